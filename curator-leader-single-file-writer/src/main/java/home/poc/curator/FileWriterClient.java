@@ -11,15 +11,20 @@
 
 package home.poc.curator;
 
+import home.poc.curator.output.FencedException;
+import home.poc.curator.output.OutputEngine;
 import org.apache.commons.io.IOUtils;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.recipes.leader.LeaderSelector;
 import org.apache.curator.framework.recipes.leader.LeaderSelectorListenerAdapter;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.lang.management.ManagementFactory;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -32,69 +37,100 @@ public class FileWriterClient extends LeaderSelectorListenerAdapter
     public static final String LEADER_PATH = "/LEADER_PATH";
 
     private final static Logger logger = LoggerFactory.getLogger(FileWriterClient.class);
-    private BufferedWriter writer = new BufferedWriter(new FileWriter(new File("out.txt"), true));
+    private final OutputEngine outputEngine;
 
     private String beingWrittenToFileMsg;
     private long processCounter = 0;
+    private final String leaderPath;
+    private volatile long fencingToken = -1;
+    private SessionLease sessionLease;
 
     // fields from Curator example
     private final String processName = getPidUniqueIdentifier();
     private final LeaderSelector leaderSelector;
     private final AtomicInteger leaderCount = new AtomicInteger();
 
-    private volatile boolean canWrite = false;
+    private final LeadershipGatedExecutor writerExecutor;
 
     /**
      * Initializes this instance & LeaderSelector
      * @param curatorClient curatorFramework client
      * @param leaderPath leader path
+     * @param writerExecutor runs this instance only while it holds leadership
+     * @param outputEngine output (out.txt) the messages are appended to
      * @throws IOException
      */
-    public FileWriterClient(String beingWrittenToFileMsg, CuratorFramework curatorClient, String leaderPath) throws IOException {
+    public FileWriterClient(String beingWrittenToFileMsg, CuratorFramework curatorClient, String leaderPath,
+                            LeadershipGatedExecutor writerExecutor, OutputEngine outputEngine) throws IOException {
         this.beingWrittenToFileMsg = beingWrittenToFileMsg;
+        this.leaderPath = leaderPath;
+        this.writerExecutor = writerExecutor;
+        this.outputEngine = outputEngine;
         // also can pass ExecutorService to below leaderSelector
         leaderSelector = new LeaderSelector(curatorClient, leaderPath, this);
         // When takeLeadership() returns, this instance isn't re-queued. Hence put LeaderSelector into mode, in which it will always re-queue itself
         leaderSelector.autoRequeue();
     }
 
+    /**
+     * Leadership is held for as long as this method doesn't return. Curator interrupts it once connection
+     * is SUSPENDED or LOST (see LeaderSelectorListenerAdapter), which revokes leadership from writer thread.
+     */
     @Override
-    public void takeLeadership(CuratorFramework curatorFramework) {
+    public void takeLeadership(CuratorFramework curatorFramework) throws Exception {
         // having obtained LEADERSHIP, do the work until loosing leadership or interruption
         System.out.println(processName + " is now the leader. Starting to write in file...\n");
         System.out.println(processName + " has been leader " + leaderCount.getAndIncrement() + " time(s) before\n");
-        startWriting();
+        startWriting(readFencingToken(curatorFramework));
+        try {
+            writerExecutor.awaitRevocation();
+        } finally {
+            stopWriting();
+        }
     }
 
-    @Override
-    public void run() {
-        appendDataToFileInLoop();
+    /**
+     * While this instance is the leader, its LeaderSelector lock znode is the one with the lowest sequence number
+     * under leaderPath. Its czxid is used as fencing token, since zxid-s are monotonic across leaderships.
+     */
+    private long readFencingToken(CuratorFramework curatorFramework) throws Exception {
+        List<String> children = curatorFramework.getChildren().forPath(leaderPath);
+        String leaderZnode = null;
+        for (String child : children) {
+            if (leaderZnode == null || parseSequenceNumber(child) < parseSequenceNumber(leaderZnode)) {
+                leaderZnode = child;
+            }
+        }
+        Stat stat = leaderZnode == null ? null : curatorFramework.checkExists().forPath(ZKPaths.makePath(leaderPath, leaderZnode));
+        if (stat == null) {
+            throw new IllegalStateException("Leader znode has gone under " + leaderPath + ", can't obtain fencing token");
+        }
+        return stat.getCzxid();
     }
 
-    private void appendDataToFileInLoop() {
-        while (true) {
-            if (canWrite) {
-                try {
-                    appendDataToFile();
-                    emulateDelayToPreventTooQuickFileGrowth();
-                } catch (IOException e) {
-                    System.out.println(e.getLocalizedMessage());
-                    System.exit(1);
-                }
-            }
+    private static long parseSequenceNumber(String znode) {
+        return Long.parseLong(znode.substring(znode.lastIndexOf(ID_DELIMITER) + 1));
+    }
+
+    @Override
+    public void run() {
+        try {
+            appendDataToFile();
+        } catch (FencedException e) {
+            // a newer leader has already written to output, hence this one has been deposed
+            System.out.println(e.getLocalizedMessage());
+            stopWriting();
+        } catch (IOException e) {
+            System.out.println(e.getLocalizedMessage());
+            System.exit(1);
         }
     }
 
     /**
-     * Emulate delay for to avoid too quick file size growth
-     * @throws InterruptedException
+     * @param sessionLease checked prior every write, optional
      */
-    private void emulateDelayToPreventTooQuickFileGrowth(){
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            System.err.println(e.getLocalizedMessage());
-        }
+    public void setSessionLease(SessionLease sessionLease) {
+        this.sessionLease = sessionLease;
     }
 
     public void start() throws IOException {
@@ -104,14 +140,22 @@ public class FileWriterClient extends LeaderSelectorListenerAdapter
     @Override
     public void close() throws IOException {
         stopWriting();
+        if (sessionLease != null) {
+            sessionLease.close();
+        }
         leaderSelector.close();
-        IOUtils.closeQuietly(writer);
+        writerExecutor.close();
+        IOUtils.closeQuietly(outputEngine);
     }
 
     public void appendDataToFile() throws IOException {
+        if (sessionLease != null && !sessionLease.isValid()) {
+            // partitioned away or paused for too long: session might have expired & leadership might have been handed over
+            System.out.println(processName + ": session lease has run out, skipping write");
+            return;
+        }
         String msg = beingWrittenToFileMsg + ": " + processCounter++ + " " + processName;
-        writer.append(msg + "\n");
-        writer.flush();     // append data to file line by line
+        outputEngine.append(fencingToken, msg);
         System.out.println(msg);
     }
 
@@ -122,12 +166,13 @@ public class FileWriterClient extends LeaderSelectorListenerAdapter
     }
 
     @Override
-    public void startWriting() {
-        this.canWrite = true;
+    public void startWriting(long fencingToken) {
+        this.fencingToken = fencingToken;
+        writerExecutor.grantLeadership();
     }
     @Override
     public void stopWriting() {
-        this.canWrite = false;
+        writerExecutor.revokeLeadership();
     }
     @Override
     public String getProcessName() {
@@ -1,69 +1,136 @@
 package home.poc.curator;
 
 
+import home.poc.curator.metrics.WriterBean;
+import home.poc.curator.output.GroupCommitOutputEngine;
+import home.poc.curator.output.LineOutputEngine;
+import home.poc.curator.output.OutputEngine;
+import home.poc.curator.output.SegmentedLogOutputEngine;
 import org.apache.commons.io.IOUtils;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 /**
- *  Instantiates FileWriterClient, and starts whole thing up in separate fixed scheduled thread.
+ *  Instantiates FileWriterClient, and starts whole thing up in separate thread, which is parked until leadership is granted.
  *
  */
 public class FileWriterServer {
 
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(5);
-
-    private static final int INTER_TASKS_DELAY_MILLIS = 500;
+    // delay to avoid too quick file size growth
+    private static final int INTER_TASKS_DELAY_MILLIS = 1000;
     public static final String CONFIG_FILE_PATH = "fileWriter.config";
+    public static final String OUTPUT_FILE_PATH = "out.txt";
+    private static final int CONNECTION_TIMEOUT_MILLIS = 15000;
 
+    /**
+     * @param args optional [config file path (default: fileWriter.config from classpath), msg to write]
+     */
     public static void main(String[] args) {
-        String connectionString = readConfig(CONFIG_FILE_PATH);
-        new FileWriterServer().start("a msg, to write in file", connectionString);
+        Properties config = readConfig(args.length > 0 ? args[0] : CONFIG_FILE_PATH);
+        new FileWriterServer().start(args.length > 1 ? args[1] : "a msg, to write in file", config);
     }
 
     public void start(String beingWrittenToFileMsg, String connectionString) {
+        Properties config = new Properties();
+        config.setProperty("connectionString", connectionString);
+        start(beingWrittenToFileMsg, config);
+    }
+
+    public void start(String beingWrittenToFileMsg, Properties config) {
+        String connectionString = config.getProperty("connectionString");
         FileWriterClient fileWriterListener = null;
+        LeadershipGatedExecutor writerExecutor = new LeadershipGatedExecutor(INTER_TASKS_DELAY_MILLIS);
         // These are reasonable args for the ExponentialBackoffRetry: 1-st retry will wait 1 sec, 2-d - up to 2 seconds, 3-rd - up to 4 seconds
         ExponentialBackoffRetry retryPolicy = new ExponentialBackoffRetry(1000, 3);
-        // Simplest way to construct CuratorFramework instance (this implies default values will be used)
-        CuratorFramework curatorFrameworkClient = CuratorFrameworkFactory.newClient(connectionString, retryPolicy);
+        // Simplest way to construct CuratorFramework instance (this implies default values will be used unless sessionTimeoutMillis is configured)
+        CuratorFramework curatorFrameworkClient = config.getProperty("sessionTimeoutMillis") == null
+                ? CuratorFrameworkFactory.newClient(connectionString, retryPolicy)
+                : CuratorFrameworkFactory.newClient(connectionString, Integer.parseInt(config.getProperty("sessionTimeoutMillis")),
+                        CONNECTION_TIMEOUT_MILLIS, retryPolicy);
         try {
-            fileWriterListener = new FileWriterClient(beingWrittenToFileMsg, curatorFrameworkClient, FileWriterClient.LEADER_PATH);
+            OutputEngine outputEngine = createOutputEngine(config);
+            fileWriterListener = new FileWriterClient(beingWrittenToFileMsg, curatorFrameworkClient, FileWriterClient.LEADER_PATH,
+                    writerExecutor, outputEngine);
+            registerWriterBean(fileWriterListener.getProcessName(), writerExecutor, outputEngine);
         } catch (IOException e) {
-            System.out.println("Couldn't read config file: " + e);
+            System.out.println("Couldn't open output file: " + e);
+            System.exit(1);
         }
         try {
             curatorFrameworkClient.start();
+            // 0 disables the lease, so that only connection state changes stop the writer
+            double sessionLeaseRatio = Double.parseDouble(config.getProperty("sessionLeaseRatio", "0"));
+            if (sessionLeaseRatio > 0) {
+                SessionLease sessionLease = new SessionLease(curatorFrameworkClient, FileWriterClient.LEADER_PATH, sessionLeaseRatio);
+                fileWriterListener.setSessionLease(sessionLease);
+                sessionLease.start();
+            }
             fileWriterListener.start();
         } catch (Exception e) {
             System.out.println("Unrecoverable error while attempting to start " + getClass().getSimpleName() + e);
             System.exit(1);
         }
-        scheduler.scheduleWithFixedDelay(fileWriterListener, 0, INTER_TASKS_DELAY_MILLIS, TimeUnit.MILLISECONDS);
-        System.out.println("<-- " + getClass().getSimpleName() + " started & is gonna submit tasks with fixed delay " + INTER_TASKS_DELAY_MILLIS + " MILLIS -->");
+        writerExecutor.execute(fileWriterListener);
+        System.out.println("<-- " + getClass().getSimpleName() + " started & is gonna run tasks with fixed delay " + INTER_TASKS_DELAY_MILLIS + " MILLIS while being leader -->");
+    }
+
+    /**
+     * LINE (default) - BufferedWriter flushed line by line,
+     * GROUP_COMMIT - FileChannel with batched appends, fencing tokens & fsyncPolicy,
+     * SEGMENTED_LOG - memory-mapped segments of segmentBytes in out-log directory (named after outputFile), fencing tokens & fsyncPolicy
+     */
+    static OutputEngine createOutputEngine(Properties config) throws IOException {
+        String outputFilePath = config.getProperty("outputFile", OUTPUT_FILE_PATH);
+        File outputFile = new File(outputFilePath);
+        if ("SEGMENTED_LOG".equals(config.getProperty("outputEngine"))) {
+            String outputFileBase = outputFilePath.endsWith(".txt") ? outputFilePath.substring(0, outputFilePath.length() - 4) : outputFilePath;
+            return new SegmentedLogOutputEngine(new File(outputFileBase + "-log"),
+                    Integer.parseInt(config.getProperty("segmentBytes", String.valueOf(64 * 1024 * 1024))),
+                    GroupCommitOutputEngine.FsyncPolicy.valueOf(config.getProperty("fsyncPolicy", "EVERY_COMMIT")),
+                    Long.parseLong(config.getProperty("fsyncIntervalMillis", "1000")));
+        }
+        if ("GROUP_COMMIT".equals(config.getProperty("outputEngine"))) {
+            return new GroupCommitOutputEngine(outputFile,
+                    GroupCommitOutputEngine.FsyncPolicy.valueOf(config.getProperty("fsyncPolicy", "EVERY_COMMIT")),
+                    Long.parseLong(config.getProperty("fsyncIntervalMillis", "1000")),
+                    Integer.parseInt(config.getProperty("maxBatchRecords", "1000")));
+        }
+        return new LineOutputEngine(outputFile);
+    }
+
+    /**
+     * Exposes leadership & output statistics of a writer via JMX
+     * @param name "/" separated MBean path
+     */
+    static WriterBean registerWriterBean(String name, LeadershipGatedExecutor writerExecutor, OutputEngine outputEngine) {
+        WriterBean writerBean = new WriterBean(name);
+        writerExecutor.setWriterBean(writerBean);
+        outputEngine.setMetrics(writerBean);
+        writerBean.register();
+        return writerBean;
     }
 
-    private static String readConfig(String configFile) {
+    static Properties readConfig(String configFile) {
         Properties properties = new Properties();
-        InputStream inputStream = ClassLoader.getSystemClassLoader ().getResourceAsStream (configFile);
+        InputStream inputStream = null;
         try {
+            inputStream = new File(configFile).isFile()
+                    ? new FileInputStream(configFile) : ClassLoader.getSystemClassLoader ().getResourceAsStream (configFile);
             properties.load(inputStream);
         } catch (IOException e) {
             System.out.println("Couldn't read config file: " + e);
             System.exit(1);
         }
-        String connectionString = properties.getProperty("connectionString");
-        System.out.println("Connection string: " + connectionString);
+        System.out.println("Connection string: " + properties.getProperty("connectionString"));
         IOUtils.closeQuietly(inputStream);
-        return connectionString;
+        return properties;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+package home.poc.curator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local leadership lease, derived from the negotiated session timeout. ZK server can't expire the session
+ * (and hand leadership over) earlier than session timeout after it has heard from the client for the last time,
+ * which is no earlier than the moment the last answered request was sent. Hence the lease lasts for
+ * leaseRatio * sessionTimeout since sending of the last answered request, measured with System.nanoTime.
+ *
+ * Curator reports SUSPENDED only once ZK client notices the disconnect, while the lease lets the writer
+ * check locally on every write & stop on its own when partitioned away or paused.
+ */
+public class SessionLease implements BackgroundCallback {
+
+    // ZK client pings every 1/3 of read timeout, do the same relative to the lease
+    private static final int RENEWALS_PER_LEASE = 3;
+
+    private final CuratorFramework client;
+    private final String path;
+    private final double leaseRatio;
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SessionLease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicLong expiresAtNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param path read to renew the lease
+     * @param leaseRatio share of the session timeout the lease lasts for, the rest is a margin for
+     *                   the write, which has passed the check, to complete
+     */
+    public SessionLease(CuratorFramework client, String path, double leaseRatio) {
+        if (leaseRatio <= 0 || leaseRatio > 1) {
+            throw new IllegalArgumentException("leaseRatio has to be in (0, 1], got: " + leaseRatio);
+        }
+        this.client = client;
+        this.path = path;
+        this.leaseRatio = leaseRatio;
+    }
+
+    /**
+     * Starts renewing the lease, curatorFramework client has to be started already
+     */
+    public void start() throws Exception {
+        client.blockUntilConnected();
+        long intervalMillis = Math.max(1, (long) (getSessionTimeout() * leaseRatio / RENEWALS_PER_LEASE));
+        renewer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.checkExists().inBackground(SessionLease.this, System.nanoTime()).forPath(path);
+                } catch (Exception e) {
+                    // let the lease run out
+                    System.out.println("Couldn't renew session lease: " + e.getLocalizedMessage());
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        renewer.shutdownNow();
+    }
+
+    /**
+     * @return true if ZK session is guaranteed to be alive at the moment, i.e. its ephemeral znodes still exist
+     */
+    public boolean isValid() {
+        return getRemainingNanos() > 0;
+    }
+
+    public long getRemainingNanos() {
+        return expiresAtNanos.get() - System.nanoTime();
+    }
+
+    /**
+     * Extends the lease, never shortens it, since answers to earlier sent requests may come later
+     * @param sentAtNanos System.nanoTime at the moment the answered request was sent
+     */
+    void renew(long sentAtNanos, int sessionTimeoutMillis) {
+        long expiresAt = sentAtNanos + (long) (TimeUnit.MILLISECONDS.toNanos(sessionTimeoutMillis) * leaseRatio);
+        while (true) {
+            long current = expiresAtNanos.get();
+            if (expiresAt - current <= 0 || expiresAtNanos.compareAndSet(current, expiresAt)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Any answer, apart from connection or session related errors, proves that the session was alive
+     * when the request reached the server
+     */
+    @Override
+    public void processResult(CuratorFramework curatorFramework, CuratorEvent event) throws Exception {
+        int rc = event.getResultCode();
+        if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue()) {
+            renew((Long) event.getContext(), getSessionTimeout());
+        }
+    }
+
+    private int getSessionTimeout() throws Exception {
+        // negotiated one, which may differ from the requested
+        return client.getZookeeperClient().getZooKeeper().getSessionTimeout();
+    }
+}
@@ -0,0 +1,205 @@
+package home.poc.curator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Partitioned counterpart of LeaderSelector: instead of a single leader for the single output, every one of K shards
+ * has its own owner. Participants register themselves under /SHARD_MEMBERS and spread shards across live
+ * participants with ConsistentHashRing.
+ *
+ * Owner of a shard holds ephemeral /SHARDS/shard-N znode, whose czxid is the fencing token of the shard.
+ * When membership changes, the previous owner stops writing and deletes the znode, while the new owner waits
+ * for the deletion (or session expiry of the previous owner) prior taking the shard over.
+ *
+ * On suspension the owner stops writing, but keeps the znode, which survives for as long as the session does,
+ * hence a shard that has moved elsewhere meanwhile is still released once reconnected.
+ *
+ * Members aren't kept under LEADER_PATH, since LeaderSelector expects only its own lock znodes there.
+ * All ZK calls are made from a single rebalancing thread.
+ */
+public class ShardCoordinator implements CuratorWatcher, ConnectionStateListener, Closeable {
+
+    public static final String MEMBERS_PATH = "/SHARD_MEMBERS";
+    public static final String SHARDS_PATH = "/SHARDS";
+    private static final String SHARD_PREFIX = "shard-";
+    private static final int VIRTUAL_NODES = 100;
+
+    private final CuratorFramework client;
+    private final String processName;
+    // shard number is the index
+    private final List<? extends ZNodeMonitor> shardWriters;
+    private final boolean[] writing;
+    // the znode may be held by the current session, i.e. it's to be deleted once the shard moves elsewhere
+    private final boolean[] held;
+    private final ConsistentHashRing ring = new ConsistentHashRing(VIRTUAL_NODES);
+    private final ExecutorService rebalancer = Executors.newSingleThreadExecutor();
+
+    // confined to rebalancer thread
+    private String memberId;
+
+    public ShardCoordinator(CuratorFramework client, String processName, List<? extends ZNodeMonitor> shardWriters) {
+        this.client = client;
+        this.processName = processName;
+        this.shardWriters = shardWriters;
+        this.writing = new boolean[shardWriters.size()];
+        this.held = new boolean[shardWriters.size()];
+    }
+
+    public void start() {
+        client.getConnectionStateListenable().addListener(this);
+        submitRebalance();
+    }
+
+    @Override
+    public void close() {
+        client.getConnectionStateListenable().removeListener(this);
+        rebalancer.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopAll();
+            }
+        });
+        rebalancer.shutdown();
+    }
+
+    @Override
+    public void stateChanged(CuratorFramework curatorFramework, ConnectionState newState) {
+        switch (newState) {
+            case SUSPENDED:
+            case LOST:
+                rebalancer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        stopAll();
+                    }
+                });
+                break;
+            case RECONNECTED:
+                submitRebalance();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Membership has changed, or a shard we wait for has been released
+     */
+    @Override
+    public void process(WatchedEvent event) {
+        submitRebalance();
+    }
+
+    private void submitRebalance() {
+        rebalancer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebalance();
+                } catch (Exception e) {
+                    // connection / session problems are followed by state change, which is handled separately
+                    System.err.println(processName + ": exception during rebalance: " + e.getLocalizedMessage());
+                }
+            }
+        });
+    }
+
+    private void rebalance() throws Exception {
+        // member znode is gone together with expired session, hence join anew
+        if (memberId != null && client.checkExists().forPath(ZKPaths.makePath(MEMBERS_PATH, memberId)) == null) {
+            memberId = null;
+        }
+        if (memberId == null) {
+            String znode = client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                    .forPath(ZKPaths.makePath(MEMBERS_PATH, processName + ShardWriter.ID_DELIMITER));
+            memberId = ZKPaths.getNodeFromPath(znode);
+            System.out.println("<---- Joined as member: " + memberId + " ---->");
+        }
+        List<String> members = client.getChildren().usingWatcher(this).forPath(MEMBERS_PATH);
+        ring.setMembers(members);
+        for (int shard = 0; shard < writing.length; shard++) {
+            boolean mine = memberId.equals(ring.ownerOf(SHARD_PREFIX + shard));
+            if (mine && !writing[shard]) {
+                acquire(shard);
+            } else if (!mine && held[shard]) {
+                release(shard);
+            }
+        }
+    }
+
+    private void acquire(int shard) throws Exception {
+        String path = shardPath(shard);
+        // set prior create, since the znode may be created even if the call fails with connection loss
+        held[shard] = true;
+        try {
+            client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(path, memberId.getBytes());
+        } catch (KeeperException.NodeExistsException e) {
+            // either previous owner hasn't released it yet, or it's ours since before disconnect
+        }
+        Stat stat = client.checkExists().usingWatcher(this).forPath(path);
+        if (stat == null) {
+            // released in between, try again
+            held[shard] = false;
+            submitRebalance();
+        } else if (stat.getEphemeralOwner() == sessionId()) {
+            writing[shard] = true;
+            System.out.println(processName + " -> acquired " + path);
+            shardWriters.get(shard).startWriting(stat.getCzxid());
+        } else {
+            // the watch fires once previous owner deletes the znode or its session expires
+            held[shard] = false;
+        }
+    }
+
+    /**
+     * Deletes the znode only if it's owned by the current session, so that neither the znode of the next owner
+     * is deleted by mistake, nor the one of a lost session is left behind (it goes away on its own)
+     */
+    private void release(int shard) throws Exception {
+        if (writing[shard]) {
+            writing[shard] = false;
+            shardWriters.get(shard).stopWriting();
+        }
+        String path = shardPath(shard);
+        Stat stat = client.checkExists().forPath(path);
+        if (stat != null && stat.getEphemeralOwner() == sessionId()) {
+            try {
+                client.delete().withVersion(stat.getVersion()).forPath(path);
+            } catch (KeeperException.NoNodeException e) {
+                // already gone together with expired session
+            }
+        }
+        held[shard] = false;
+        System.out.println(processName + " -> released " + path);
+    }
+
+    private void stopAll() {
+        for (int shard = 0; shard < writing.length; shard++) {
+            if (writing[shard]) {
+                writing[shard] = false;
+                shardWriters.get(shard).stopWriting();
+            }
+        }
+    }
+
+    private long sessionId() throws Exception {
+        return client.getZookeeperClient().getZooKeeper().getSessionId();
+    }
+
+    private static String shardPath(int shard) {
+        return ZKPaths.makePath(SHARDS_PATH, SHARD_PREFIX + shard);
+    }
+}
@@ -0,0 +1,78 @@
+package home.poc.curator;
+
+import home.poc.curator.output.FencedException;
+import home.poc.curator.output.OutputEngine;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Writes it's PID (processId) and incremental counter to the output of a single shard (out-N.txt),
+ * while ShardCoordinator lets it
+ */
+public class ShardWriter implements ZNodeMonitor, Runnable, Closeable {
+
+    public static final String ID_DELIMITER = "-";
+
+    private final String beingWrittenToFileMsg;
+    private final LeadershipGatedExecutor writerExecutor;
+    private final OutputEngine outputEngine;
+    private final String processName = getPidUniqueIdentifier();
+    private long processCounter = 0;
+    private volatile long fencingToken = -1;
+
+    /**
+     * @param writerExecutor runs this instance only while it owns the shard
+     * @param outputEngine output of the shard the messages are appended to
+     */
+    public ShardWriter(String beingWrittenToFileMsg, LeadershipGatedExecutor writerExecutor, OutputEngine outputEngine) {
+        this.beingWrittenToFileMsg = beingWrittenToFileMsg;
+        this.writerExecutor = writerExecutor;
+        this.outputEngine = outputEngine;
+    }
+
+    @Override
+    public void run() {
+        try {
+            String msg = beingWrittenToFileMsg + ": " + processCounter++ + " " + processName;
+            outputEngine.append(fencingToken, msg);
+            System.out.println(msg);
+        } catch (FencedException e) {
+            // a newer owner has already written to the shard, hence this one has been deposed
+            System.out.println(e.getLocalizedMessage());
+            stopWriting();
+        } catch (IOException e) {
+            System.out.println(e.getLocalizedMessage());
+            System.exit(1);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopWriting();
+        writerExecutor.close();
+        IOUtils.closeQuietly(outputEngine);
+    }
+
+    private static String getPidUniqueIdentifier() {
+        String processName = ManagementFactory.getRuntimeMXBean().getName();
+        String processId = processName.substring(0, processName.indexOf("@"));
+        return "ShardWriter" + ID_DELIMITER + "pid" + ID_DELIMITER + processId;
+    }
+
+    @Override
+    public void startWriting(long fencingToken) {
+        this.fencingToken = fencingToken;
+        writerExecutor.grantLeadership();
+    }
+    @Override
+    public void stopWriting() {
+        writerExecutor.revokeLeadership();
+    }
+    @Override
+    public String getProcessName() {
+        return processName;
+    }
+}
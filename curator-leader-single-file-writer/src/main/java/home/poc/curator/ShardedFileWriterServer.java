@@ -0,0 +1,73 @@
+package home.poc.curator;
+
+import home.poc.curator.output.OutputEngine;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ *  Partitioned mode of FileWriterServer: output is split into K shards (out-0.txt ... out-K-1.txt),
+ *  each one written by its own ShardWriter, and ShardCoordinator spreads shard ownership across all running instances.
+ *
+ */
+public class ShardedFileWriterServer {
+
+    private static final int DEFAULT_INTER_TASKS_DELAY_MILLIS = 1000;
+    private static final int DEFAULT_SHARDS = 8;
+    private static final int CONNECTION_TIMEOUT_MILLIS = 15000;
+
+    /**
+     * @param args optional [config file path (default: fileWriter.config from classpath), msg to write]
+     */
+    public static void main(String[] args) {
+        Properties config = FileWriterServer.readConfig(args.length > 0 ? args[0] : FileWriterServer.CONFIG_FILE_PATH);
+        new ShardedFileWriterServer().start(args.length > 1 ? args[1] : "a msg, to write in shard", config);
+    }
+
+    public void start(String beingWrittenToFileMsg, Properties config) {
+        int shards = Integer.parseInt(config.getProperty("shards", String.valueOf(DEFAULT_SHARDS)));
+        int interTasksDelayMillis = Integer.parseInt(
+                config.getProperty("interTasksDelayMillis", String.valueOf(DEFAULT_INTER_TASKS_DELAY_MILLIS)));
+        String outputFile = config.getProperty("outputFile", FileWriterServer.OUTPUT_FILE_PATH);
+        String outputFileBase = outputFile.endsWith(".txt") ? outputFile.substring(0, outputFile.length() - 4) : outputFile;
+
+        List<ShardWriter> shardWriters = new ArrayList<ShardWriter>(shards);
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                Properties shardConfig = new Properties();
+                shardConfig.putAll(config);
+                shardConfig.setProperty("outputFile", outputFileBase + "-" + shard + ".txt");
+                LeadershipGatedExecutor writerExecutor = new LeadershipGatedExecutor(interTasksDelayMillis);
+                OutputEngine outputEngine = FileWriterServer.createOutputEngine(shardConfig);
+                ShardWriter shardWriter = new ShardWriter(beingWrittenToFileMsg + " " + shard, writerExecutor, outputEngine);
+                FileWriterServer.registerWriterBean(shardWriter.getProcessName() + "/shard-" + shard, writerExecutor, outputEngine);
+                writerExecutor.execute(shardWriter);
+                shardWriters.add(shardWriter);
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't open output file: " + e);
+            System.exit(1);
+        }
+        ExponentialBackoffRetry retryPolicy = new ExponentialBackoffRetry(1000, 3);
+        String connectionString = config.getProperty("connectionString");
+        CuratorFramework curatorFrameworkClient = config.getProperty("sessionTimeoutMillis") == null
+                ? CuratorFrameworkFactory.newClient(connectionString, retryPolicy)
+                : CuratorFrameworkFactory.newClient(connectionString, Integer.parseInt(config.getProperty("sessionTimeoutMillis")),
+                        CONNECTION_TIMEOUT_MILLIS, retryPolicy);
+        try {
+            curatorFrameworkClient.start();
+            new ShardCoordinator(curatorFrameworkClient, shardWriters.get(0).getProcessName(), shardWriters).start();
+        } catch (Exception e) {
+            System.out.println("Unrecoverable error while attempting to start " + getClass().getSimpleName() + e);
+            System.exit(1);
+        }
+        System.out.println("<-- " + getClass().getSimpleName() + " started with " + shards + " shards, each one written with fixed delay "
+                + interTasksDelayMillis + " MILLIS while owned -->");
+    }
+
+}
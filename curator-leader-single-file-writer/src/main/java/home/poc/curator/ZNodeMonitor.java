@@ -3,12 +3,13 @@ package home.poc.curator;
 public interface ZNodeMonitor {
 
     /**
-     * Sets appropriate canWrite flag to true, which is checked prior writing to file
+     * Grants leadership to the writer thread, which is parked until then
+     * @param fencingToken monotonic across leaderships, attached to every written record
      */
-    void startWriting();
+    void startWriting(long fencingToken);
 
     /**
-     * Sets the canWrite flag to false
+     * Revokes leadership, the writer thread gets parked prior next write
      */
     void stopWriting();
 
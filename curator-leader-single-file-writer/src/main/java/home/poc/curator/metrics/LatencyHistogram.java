@@ -0,0 +1,83 @@
+package home.poc.curator.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with fixed buckets, cheap enough to be updated on every flush / fsync
+ */
+public class LatencyHistogram {
+
+    /**
+     * Upper bounds (inclusive) of the buckets, the last bucket has no upper bound
+     */
+    public static final long[] BUCKET_BOUNDS_MICROS = {10, 50, 100, 500, 1000, 5000, 10000, 50000, 100000, 500000, 1000000};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MICROS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getAvgMicros() {
+        long current = count.get();
+        return current == 0 ? 0 : totalMicros.get() / current;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @return upper bound of the bucket the percentile falls into, max latency for the last bucket
+     */
+    public long getPercentileMicros(double percentile) {
+        long[] snapshot = getBuckets();
+        long total = 0;
+        for (long bucket : snapshot) {
+            total += bucket;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return BUCKET_BOUNDS_MICROS[i];
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * @return number of latencies per bucket, see BUCKET_BOUNDS_MICROS
+     */
+    public long[] getBuckets() {
+        long[] snapshot = new long[buckets.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = buckets.get(i);
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,233 @@
+package home.poc.curator.metrics;
+
+import home.poc.curator.output.OutputMetrics;
+import org.apache.zookeeper.jmx.MBeanRegistry;
+import org.apache.zookeeper.jmx.ZKMBeanInfo;
+
+import javax.management.JMException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implements WriterMXBean, registered through ZK MBeanRegistry (org.apache.ZooKeeperService domain),
+ * so that writers can be watched with jconsole & co along with ZK client / server beans.
+ * Leadership changes are reported by LeadershipGatedExecutor, the rest by OutputEngine.
+ */
+public class WriterBean implements WriterMXBean, ZKMBeanInfo, OutputMetrics {
+
+    private static final long RATE_MIN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+
+    // guarded by this
+    private boolean leader = false;
+    private long candidateSinceNanos = System.nanoTime();
+    private long leaderSinceNanos;
+    private long acquisitions;
+    private long losses;
+    private long lastTimeToAcquireNanos;
+    private long maxTimeToAcquireNanos;
+    private long timeAsLeaderNanos;
+    private long rateSinceNanos = System.nanoTime();
+    private long rateSinceRecords;
+    private long rateSinceBytes;
+    private double recordsPerSecond;
+    private double bytesPerSecond;
+
+    private final AtomicLong appendedRecords = new AtomicLong();
+    private final AtomicLong appendedBytes = new AtomicLong();
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+    private final LatencyHistogram fsyncLatency = new LatencyHistogram();
+
+    /**
+     * @param name "/" separated path, e.g. FileWriterClient-pid-1234
+     */
+    public WriterBean(String name) {
+        this.name = name;
+    }
+
+    public void register() {
+        try {
+            MBeanRegistry.getInstance().register(this, null);
+        } catch (JMException e) {
+            // not critical, writer can do without monitoring
+            System.out.println("Couldn't register MBean " + name + ": " + e);
+        }
+    }
+
+    public void unregister() {
+        MBeanRegistry.getInstance().unregister(this);
+    }
+
+    public synchronized void leadershipAcquired() {
+        if (!leader) {
+            leader = true;
+            leaderSinceNanos = System.nanoTime();
+            acquisitions++;
+            lastTimeToAcquireNanos = leaderSinceNanos - candidateSinceNanos;
+            maxTimeToAcquireNanos = Math.max(maxTimeToAcquireNanos, lastTimeToAcquireNanos);
+        }
+    }
+
+    public synchronized void leadershipLost() {
+        if (leader) {
+            leader = false;
+            candidateSinceNanos = System.nanoTime();
+            losses++;
+            timeAsLeaderNanos += candidateSinceNanos - leaderSinceNanos;
+        }
+    }
+
+    @Override
+    public void appended(int records, long bytes) {
+        appendedRecords.addAndGet(records);
+        appendedBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void flushed(long nanos) {
+        flushLatency.record(nanos);
+    }
+
+    @Override
+    public void fsynced(long nanos) {
+        fsyncLatency.record(nanos);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isHidden() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isLeader() {
+        return leader;
+    }
+
+    @Override
+    public synchronized long getLeadershipAcquisitions() {
+        return acquisitions;
+    }
+
+    @Override
+    public synchronized long getLeadershipLosses() {
+        return losses;
+    }
+
+    @Override
+    public synchronized long getLastTimeToAcquireMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastTimeToAcquireNanos);
+    }
+
+    @Override
+    public synchronized long getMaxTimeToAcquireMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxTimeToAcquireNanos);
+    }
+
+    @Override
+    public synchronized long getTimeAsLeaderMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeAsLeaderNanos + (leader ? System.nanoTime() - leaderSinceNanos : 0));
+    }
+
+    @Override
+    public synchronized long getCurrentLeadershipMillis() {
+        return leader ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - leaderSinceNanos) : 0;
+    }
+
+    @Override
+    public long getAppendedRecords() {
+        return appendedRecords.get();
+    }
+
+    @Override
+    public long getAppendedBytes() {
+        return appendedBytes.get();
+    }
+
+    @Override
+    public synchronized double getRecordsPerSecond() {
+        updateRates();
+        return recordsPerSecond;
+    }
+
+    @Override
+    public synchronized double getBytesPerSecond() {
+        updateRates();
+        return bytesPerSecond;
+    }
+
+    private void updateRates() {
+        long now = System.nanoTime();
+        long elapsed = now - rateSinceNanos;
+        if (elapsed >= RATE_MIN_INTERVAL_NANOS) {
+            long records = appendedRecords.get();
+            long bytes = appendedBytes.get();
+            double seconds = (double) elapsed / TimeUnit.SECONDS.toNanos(1);
+            recordsPerSecond = (records - rateSinceRecords) / seconds;
+            bytesPerSecond = (bytes - rateSinceBytes) / seconds;
+            rateSinceNanos = now;
+            rateSinceRecords = records;
+            rateSinceBytes = bytes;
+        }
+    }
+
+    @Override
+    public long[] getLatencyHistogramBoundsMicros() {
+        return LatencyHistogram.BUCKET_BOUNDS_MICROS.clone();
+    }
+
+    @Override
+    public long[] getFlushLatencyHistogram() {
+        return flushLatency.getBuckets();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flushLatency.getCount();
+    }
+
+    @Override
+    public long getAvgFlushLatencyMicros() {
+        return flushLatency.getAvgMicros();
+    }
+
+    @Override
+    public long getP99FlushLatencyMicros() {
+        return flushLatency.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getMaxFlushLatencyMicros() {
+        return flushLatency.getMaxMicros();
+    }
+
+    @Override
+    public long[] getFsyncLatencyHistogram() {
+        return fsyncLatency.getBuckets();
+    }
+
+    @Override
+    public long getFsyncCount() {
+        return fsyncLatency.getCount();
+    }
+
+    @Override
+    public long getAvgFsyncLatencyMicros() {
+        return fsyncLatency.getAvgMicros();
+    }
+
+    @Override
+    public long getP99FsyncLatencyMicros() {
+        return fsyncLatency.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getMaxFsyncLatencyMicros() {
+        return fsyncLatency.getMaxMicros();
+    }
+}
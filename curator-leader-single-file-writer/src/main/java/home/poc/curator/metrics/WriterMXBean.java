@@ -0,0 +1,63 @@
+package home.poc.curator.metrics;
+
+/**
+ * Leadership & output statistics of a single writer (FileWriterClient)
+ */
+public interface WriterMXBean {
+
+    boolean isLeader();
+
+    long getLeadershipAcquisitions();
+
+    long getLeadershipLosses();
+
+    /**
+     * @return time from becoming a candidate (start or loss of previous leadership) until the latest acquisition
+     */
+    long getLastTimeToAcquireMillis();
+
+    long getMaxTimeToAcquireMillis();
+
+    /**
+     * @return total time spent as leader, including the current leadership
+     */
+    long getTimeAsLeaderMillis();
+
+    long getCurrentLeadershipMillis();
+
+    long getAppendedRecords();
+
+    long getAppendedBytes();
+
+    /**
+     * @return rate since the previous read of the rate (at least a second ago)
+     */
+    double getRecordsPerSecond();
+
+    double getBytesPerSecond();
+
+    /**
+     * @return upper bounds of the latency histogram buckets, the last bucket has no upper bound
+     */
+    long[] getLatencyHistogramBoundsMicros();
+
+    long[] getFlushLatencyHistogram();
+
+    long getFlushCount();
+
+    long getAvgFlushLatencyMicros();
+
+    long getP99FlushLatencyMicros();
+
+    long getMaxFlushLatencyMicros();
+
+    long[] getFsyncLatencyHistogram();
+
+    long getFsyncCount();
+
+    long getAvgFsyncLatencyMicros();
+
+    long getP99FsyncLatencyMicros();
+
+    long getMaxFsyncLatencyMicros();
+}
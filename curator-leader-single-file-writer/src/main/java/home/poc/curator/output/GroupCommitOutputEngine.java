@@ -0,0 +1,343 @@
+package home.poc.curator.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends records through FileChannel, batching the ones appended concurrently into a single write (group commit),
+ * which is fsynced according to FsyncPolicy. With INTERVAL policy the committer also wakes up once the interval
+ * elapses while idle, so that the last batches are forced even if no more records come, and close() forces whatever
+ * is left unsynced.
+ *
+ * Every record is written as "fencingToken record". A commit is done under exclusive lock on the file, during which
+ * fencing token of the last record in file is read, so that records of a deposed leader are rejected even if
+ * the newer leader lives in another process.
+ */
+public class GroupCommitOutputEngine implements OutputEngine {
+
+    public enum FsyncPolicy {
+        /** leave it to OS */
+        NEVER,
+        /** force every group commit to disk prior acknowledging its records */
+        EVERY_COMMIT,
+        /** force to disk at most once per fsync interval */
+        INTERVAL
+    }
+
+    public static final String TOKEN_DELIMITER = " ";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int TAIL_READ_BYTES = 4096;
+    // FileLock is held on behalf of whole JVM, hence engines of the same JVM have to be serialized separately
+    private static final ConcurrentMap<String, Lock> IN_PROCESS_LOCKS = new ConcurrentHashMap<String, Lock>();
+
+    private final FileChannel channel;
+    private final Lock inProcessLock;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final int maxBatchRecords;
+    private final Thread committer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // guarded by lock
+    private List<PendingRecord> pending = new ArrayList<PendingRecord>();
+    private boolean closed = false;
+
+    private volatile long highestFencingToken = -1;
+    private volatile OutputMetrics metrics = OutputMetrics.NONE;
+    // confined to committer thread until it's joined by close()
+    private long lastFsyncNanos = System.nanoTime();
+    private boolean unsynced = false;
+
+    public GroupCommitOutputEngine(File file, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, int maxBatchRecords)
+            throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Lock newLock = new ReentrantLock();
+        Lock existingLock = IN_PROCESS_LOCKS.putIfAbsent(file.getCanonicalPath(), newLock);
+        this.inProcessLock = existingLock != null ? existingLock : newLock;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.maxBatchRecords = maxBatchRecords;
+        this.highestFencingToken = readLastFencingToken();
+        this.committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitInLoop();
+            }
+        }, "GroupCommit-" + file.getName());
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    @Override
+    public void append(long fencingToken, String record) throws IOException {
+        if (fencingToken < highestFencingToken) {
+            throw new FencedException(fencingToken, highestFencingToken);
+        }
+        PendingRecord pendingRecord = new PendingRecord(fencingToken,
+                (fencingToken + TOKEN_DELIMITER + record + "\n").getBytes(UTF_8));
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException(getClass().getSimpleName() + " is closed");
+            }
+            pending.add(pendingRecord);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        pendingRecord.await();
+    }
+
+    @Override
+    public void setMetrics(OutputMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public long getHighestFencingToken() {
+        return highestFencingToken;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (unsynced && fsyncPolicy != FsyncPolicy.NEVER) {
+                fsync();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void commitInLoop() {
+        while (true) {
+            List<PendingRecord> batch = null;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    long idleFsyncNanos = idleFsyncDelayNanos();
+                    if (idleFsyncNanos < 0) {
+                        notEmpty.awaitUninterruptibly();
+                    } else if (idleFsyncNanos == 0) {
+                        break;
+                    } else {
+                        awaitUninterruptibly(idleFsyncNanos);
+                    }
+                }
+                if (pending.isEmpty() && closed) {
+                    return;
+                }
+                // otherwise empty if idle for the whole fsync interval
+                if (!pending.isEmpty()) {
+                    batch = takeBatch();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (batch != null) {
+                commit(batch);
+            } else {
+                fsyncIdle();
+            }
+        }
+    }
+
+    // guarded by lock
+    private List<PendingRecord> takeBatch() {
+        if (pending.size() <= maxBatchRecords) {
+            List<PendingRecord> batch = pending;
+            pending = new ArrayList<PendingRecord>();
+            return batch;
+        }
+        List<PendingRecord> batch = new ArrayList<PendingRecord>(pending.subList(0, maxBatchRecords));
+        pending.subList(0, maxBatchRecords).clear();
+        return batch;
+    }
+
+    /**
+     * @return time left till the unsynced bytes are to be forced, or -1 if there is nothing to wait for
+     */
+    private long idleFsyncDelayNanos() {
+        if (fsyncPolicy != FsyncPolicy.INTERVAL || !unsynced) {
+            return -1;
+        }
+        return Math.max(0, lastFsyncNanos + fsyncIntervalNanos - System.nanoTime());
+    }
+
+    private void awaitUninterruptibly(long nanos) {
+        try {
+            notEmpty.awaitNanos(nanos);
+        } catch (InterruptedException e) {
+            // committer is never interrupted, the same as awaitUninterruptibly() would do
+        }
+    }
+
+    private void fsyncIdle() {
+        try {
+            fsync();
+        } catch (IOException e) {
+            // records are acknowledged already, hence retried at the next interval
+            lastFsyncNanos = System.nanoTime();
+            System.err.println("Failed to fsync idle output: " + e.getLocalizedMessage());
+        }
+    }
+
+    private void fsync() throws IOException {
+        long startNanos = System.nanoTime();
+        channel.force(false);
+        lastFsyncNanos = System.nanoTime();
+        unsynced = false;
+        metrics.fsynced(lastFsyncNanos - startNanos);
+    }
+
+    private void commit(List<PendingRecord> batch) {
+        List<PendingRecord> accepted = new ArrayList<PendingRecord>(batch.size());
+        inProcessLock.lock();
+        try {
+            FileLock fileLock = channel.lock();
+            try {
+                long highest = Math.max(highestFencingToken, readLastFencingToken());
+                int bytes = 0;
+                for (PendingRecord record : batch) {
+                    if (record.fencingToken < highest) {
+                        record.fail(new FencedException(record.fencingToken, highest));
+                    } else {
+                        highest = record.fencingToken;
+                        bytes += record.bytes.length;
+                        accepted.add(record);
+                    }
+                }
+                highestFencingToken = highest;
+                ByteBuffer buffer = ByteBuffer.allocate(bytes);
+                for (PendingRecord record : accepted) {
+                    buffer.put(record.bytes);
+                }
+                buffer.flip();
+                long startNanos = System.nanoTime();
+                long position = channel.size();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                metrics.flushed(System.nanoTime() - startNanos);
+                unsynced |= bytes > 0;
+                if (shouldFsync()) {
+                    fsync();
+                }
+                metrics.appended(accepted.size(), bytes);
+            } finally {
+                fileLock.release();
+            }
+            for (PendingRecord record : accepted) {
+                record.complete();
+            }
+        } catch (IOException e) {
+            for (PendingRecord record : batch) {
+                record.fail(e);
+            }
+        } finally {
+            inProcessLock.unlock();
+        }
+    }
+
+    private boolean shouldFsync() {
+        switch (fsyncPolicy) {
+            case EVERY_COMMIT:
+                return true;
+            case INTERVAL:
+                return System.nanoTime() - lastFsyncNanos >= fsyncIntervalNanos;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return fencing token of the last record in file, or -1 if file is empty or the last line carries no token
+     */
+    private long readLastFencingToken() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return -1;
+        }
+        int length = (int) Math.min(size, TAIL_READ_BYTES);
+        ByteBuffer tail = ByteBuffer.allocate(length);
+        long position = size - length;
+        while (tail.hasRemaining()) {
+            int read = channel.read(tail, position + tail.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        String text = new String(tail.array(), 0, tail.position(), UTF_8);
+        int end = text.endsWith("\n") ? text.length() - 1 : text.length();
+        String lastLine = text.substring(text.lastIndexOf('\n', end - 1) + 1, end);
+        int delimiter = lastLine.indexOf(TOKEN_DELIMITER);
+        try {
+            return Long.parseLong(delimiter < 0 ? lastLine : lastLine.substring(0, delimiter));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class PendingRecord {
+        private final long fencingToken;
+        private final byte[] bytes;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IOException failure;
+
+        PendingRecord(long fencingToken, byte[] bytes) {
+            this.fencingToken = fencingToken;
+            this.bytes = bytes;
+        }
+
+        void complete() {
+            done.countDown();
+        }
+
+        void fail(IOException e) {
+            if (done.getCount() > 0) {
+                failure = e;
+                done.countDown();
+            }
+        }
+
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while awaiting group commit", e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package home.poc.curator.output;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Appends data to file line by line, flushing each one. Neither fsyncs nor checks fencing tokens.
+ */
+public class LineOutputEngine implements OutputEngine {
+
+    private static final Charset DEFAULT_CHARSET = Charset.defaultCharset();
+
+    private final BufferedWriter writer;
+    private volatile OutputMetrics metrics = OutputMetrics.NONE;
+
+    public LineOutputEngine(File file) throws IOException {
+        this.writer = new BufferedWriter(new FileWriter(file, true));
+    }
+
+    @Override
+    public synchronized void append(long fencingToken, String record) throws IOException {
+        String line = record + "\n";
+        long startNanos = System.nanoTime();
+        writer.append(line);
+        writer.flush();
+        metrics.flushed(System.nanoTime() - startNanos);
+        metrics.appended(1, line.getBytes(DEFAULT_CHARSET).length);
+    }
+
+    @Override
+    public void setMetrics(OutputMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(writer);
+    }
+}
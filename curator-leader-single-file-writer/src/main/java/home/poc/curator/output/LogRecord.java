@@ -0,0 +1,50 @@
+package home.poc.curator.output;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Record read from the segmented log. Payload is a read-only view of the mapped segment, i.e. it isn't copied
+ * out of the page cache unless getRecord() is called.
+ */
+public class LogRecord {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long index;
+    private final long fencingToken;
+    private final ByteBuffer payload;
+
+    LogRecord(long index, long fencingToken, ByteBuffer payload) {
+        this.index = index;
+        this.fencingToken = fencingToken;
+        this.payload = payload;
+    }
+
+    /**
+     * @return number of the record in the whole log, starting from 0
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    /**
+     * @return UTF-8 bytes of the record, valid for as long as the segment isn't deleted
+     */
+    public ByteBuffer getPayload() {
+        return payload.duplicate();
+    }
+
+    public String getRecord() {
+        return UTF_8.decode(payload.duplicate()).toString();
+    }
+
+    @Override
+    public String toString() {
+        return index + ": " + fencingToken + GroupCommitOutputEngine.TOKEN_DELIMITER + getRecord();
+    }
+}
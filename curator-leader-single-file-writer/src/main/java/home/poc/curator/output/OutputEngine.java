@@ -0,0 +1,23 @@
+package home.poc.curator.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sink for the records written by the current leader
+ */
+public interface OutputEngine extends Closeable {
+
+    /**
+     * Appends record to the output. Returns once record is written according to engine's durability policy.
+     * @param fencingToken monotonic token of the leadership the record is written in
+     * @param record record without trailing line separator
+     * @throws FencedException if a record with higher fencing token has already been written
+     */
+    void append(long fencingToken, String record) throws IOException;
+
+    /**
+     * @param metrics receives number of appended records & bytes, flush & fsync latencies
+     */
+    void setMetrics(OutputMetrics metrics);
+}
@@ -0,0 +1,36 @@
+package home.poc.curator.output;
+
+/**
+ * Receives measurements of an OutputEngine. Called from the thread which writes to the output,
+ * hence implementations have to be cheap & thread safe.
+ */
+public interface OutputMetrics {
+
+    OutputMetrics NONE = new OutputMetrics() {
+        @Override
+        public void appended(int records, long bytes) {
+        }
+        @Override
+        public void flushed(long nanos) {
+        }
+        @Override
+        public void fsynced(long nanos) {
+        }
+    };
+
+    /**
+     * @param records number of records which have reached the output
+     * @param bytes their size, including fencing tokens & line separators
+     */
+    void appended(int records, long bytes);
+
+    /**
+     * @param nanos time spent to hand written bytes over to OS
+     */
+    void flushed(long nanos);
+
+    /**
+     * @param nanos time spent to force written bytes to disk
+     */
+    void fsynced(long nanos);
+}
@@ -0,0 +1,86 @@
+package home.poc.curator.output;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class GroupCommitOutputEngineTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("group-commit", ".txt");
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtils.deleteQuietly(file);
+    }
+
+    public void testRecordsCarryFencingToken() throws IOException {
+        GroupCommitOutputEngine underTest = new GroupCommitOutputEngine(file,
+                GroupCommitOutputEngine.FsyncPolicy.EVERY_COMMIT, 1000, 100);
+        underTest.append(27, "msg: 0");
+        underTest.append(27, "msg: 1");
+        underTest.close();
+
+        List<String> lines = FileUtils.readLines(file, "UTF-8");
+        assertEquals(2, lines.size());
+        assertEquals("27 msg: 0", lines.get(0));
+        assertEquals("27 msg: 1", lines.get(1));
+    }
+
+    public void testIdleIntervalIsFsynced() throws Exception {
+        final CountDownLatch fsynced = new CountDownLatch(1);
+        GroupCommitOutputEngine underTest = new GroupCommitOutputEngine(file,
+                GroupCommitOutputEngine.FsyncPolicy.INTERVAL, 200, 100);
+        underTest.setMetrics(new FsyncCounter(fsynced, new int[1]));
+        // the interval since start hasn't elapsed yet, hence not forced by the commit itself
+        underTest.append(27, "msg: 0");
+
+        assertTrue("idle writer must be fsynced once the interval elapses", fsynced.await(10, TimeUnit.SECONDS));
+        underTest.close();
+    }
+
+    public void testCloseFsyncsUnsyncedRecords() throws IOException {
+        int[] fsyncs = new int[1];
+        GroupCommitOutputEngine underTest = new GroupCommitOutputEngine(file,
+                GroupCommitOutputEngine.FsyncPolicy.INTERVAL, TimeUnit.HOURS.toMillis(1), 100);
+        underTest.setMetrics(new FsyncCounter(new CountDownLatch(1), fsyncs));
+        underTest.append(27, "msg: 0");
+        assertEquals(0, fsyncs[0]);
+
+        underTest.close();
+        assertEquals(1, fsyncs[0]);
+    }
+
+    private static class FsyncCounter implements OutputMetrics {
+        private final CountDownLatch fsynced;
+        private final int[] fsyncs;
+
+        FsyncCounter(CountDownLatch fsynced, int[] fsyncs) {
+            this.fsynced = fsynced;
+            this.fsyncs = fsyncs;
+        }
+
+        @Override
+        public void appended(int records, long bytes) {
+        }
+
+        @Override
+        public void flushed(long nanos) {
+        }
+
+        @Override
+        public synchronized void fsynced(long nanos) {
+            fsyncs[0]++;
+            fsynced.countDown();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper;
+
+/**
+ * Modes of watches added by ZooKeeper.addWatch(). Unlike the watches set by
+ * getData(), exists() & getChildren(), these ones are not removed once
+ * triggered, they last until the session is closed.
+ */
+public enum AddWatchMode {
+    /**
+     * Watches the given path only: NodeCreated, NodeDataChanged,
+     * NodeDeleted and NodeChildrenChanged events of it.
+     */
+    PERSISTENT(0),
+
+    /**
+     * Watches the given path and all the paths below it: NodeCreated,
+     * NodeDataChanged and NodeDeleted events of any of them
+     * (NodeChildrenChanged is not sent, it is implied by the NodeCreated /
+     * NodeDeleted events of the children).
+     */
+    PERSISTENT_RECURSIVE(1);
+
+    private final int mode;
+
+    AddWatchMode(int mode) {
+        this.mode = mode;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * @throws IllegalArgumentException for an unknown mode
+     */
+    public static AddWatchMode fromInt(int mode) {
+        for (AddWatchMode m : values()) {
+            if (m.mode == mode) {
+                return m;
+            }
+        }
+        throw new IllegalArgumentException("Unknown watch mode: " + mode);
+    }
+}
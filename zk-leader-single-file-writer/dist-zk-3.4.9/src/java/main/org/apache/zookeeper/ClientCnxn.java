@@ -60,6 +60,7 @@ import org.apache.zookeeper.ZooKeeper.States;
 import org.apache.zookeeper.ZooKeeper.WatchRegistration;
 import org.apache.zookeeper.client.HostProvider;
 import org.apache.zookeeper.client.ZooKeeperSaslClient;
+import org.apache.zookeeper.proto.AddWatchRequest;
 import org.apache.zookeeper.proto.AuthPacket;
 import org.apache.zookeeper.proto.ConnectRequest;
 import org.apache.zookeeper.proto.CreateResponse;
@@ -934,6 +935,17 @@ public class ClientCnxn {
                             outgoingQueue.addFirst(packet);
                         }
                     }
+                    // persistent watches are set again one by one, answers are
+                    // ignored like the ones of SetWatches
+                    for (AddWatchMode mode : AddWatchMode.values()) {
+                        for (String path : prependChroot(zooKeeper.getPersistentWatches(mode))) {
+                            RequestHeader h = new RequestHeader();
+                            h.setType(ZooDefs.OpCode.addWatch);
+                            h.setXid(-8);
+                            outgoingQueue.addFirst(new Packet(h, new ReplyHeader(),
+                                    new AddWatchRequest(path, mode.getMode()), null, null));
+                        }
+                    }
                 }
 
                 for (AuthData id : authInfo) {
@@ -60,6 +60,8 @@ public class ZooDefs {
 
         public final int sasl = 102;
 
+        public final int addWatch = 106;
+
         public final int createSession = -10;
 
         public final int closeSession = -11;
@@ -25,6 +25,7 @@ import org.apache.zookeeper.client.HostProvider;
 import org.apache.zookeeper.client.StaticHostProvider;
 import org.apache.zookeeper.client.ZooKeeperSaslClient;
 import org.apache.zookeeper.common.PathUtils;
+import org.apache.zookeeper.common.PersistentWatchTrie;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.proto.*;
@@ -119,6 +120,10 @@ public class ZooKeeper {
             return rc;
         }
     }
+    List<String> getPersistentWatches(AddWatchMode mode) {
+        return new ArrayList<String>(watchManager.persistentWatches.getWatches(
+                mode == AddWatchMode.PERSISTENT_RECURSIVE).keySet());
+    }
 
     /**
      * Manage watchers & handle events generated by the ClientCnxn object.
@@ -134,6 +139,8 @@ public class ZooKeeper {
             new HashMap<String, Set<Watcher>>();
         private final Map<String, Set<Watcher>> childWatches =
             new HashMap<String, Set<Watcher>>();
+        private final PersistentWatchTrie<Watcher> persistentWatches =
+            new PersistentWatchTrie<Watcher>();
 
         private volatile Watcher defaultWatcher;
 
@@ -187,6 +194,11 @@ public class ZooKeeper {
                     }
                 }
 
+                result.addAll(persistentWatches.getWatchers());
+                if (clear) {
+                    persistentWatches.clear();
+                }
+
                 return result;
             case NodeDataChanged:
             case NodeCreated:
@@ -196,11 +208,14 @@ public class ZooKeeper {
                 synchronized (existWatches) {
                     addTo(existWatches.remove(clientPath), result);
                 }
+                persistentWatches.collectWatchers(clientPath, true, result);
                 break;
             case NodeChildrenChanged:
                 synchronized (childWatches) {
                     addTo(childWatches.remove(clientPath), result);
                 }
+                // recursive watches don't get NodeChildrenChanged
+                persistentWatches.collectWatchers(clientPath, false, result);
                 break;
             case NodeDeleted:
                 synchronized (dataWatches) {
@@ -217,6 +232,7 @@ public class ZooKeeper {
                 synchronized (childWatches) {
                     addTo(childWatches.remove(clientPath), result);
                 }
+                persistentWatches.collectWatchers(clientPath, true, result);
                 break;
             default:
                 String msg = "Unhandled watch event type " + type
@@ -272,6 +288,38 @@ public class ZooKeeper {
         }
     }
 
+    /**
+     * Registers a persistent watch, which isn't kept in the maps of one-time
+     * watches.
+     */
+    class AddWatchRegistration extends WatchRegistration {
+        private final Watcher watcher;
+        private final String clientPath;
+        private final AddWatchMode mode;
+
+        public AddWatchRegistration(Watcher watcher, String clientPath,
+                AddWatchMode mode) {
+            super(watcher, clientPath);
+            this.watcher = watcher;
+            this.clientPath = clientPath;
+            this.mode = mode;
+        }
+
+        @Override
+        public void register(int rc) {
+            if (shouldAddWatch(rc)) {
+                watchManager.persistentWatches.add(clientPath, watcher,
+                        mode == AddWatchMode.PERSISTENT_RECURSIVE);
+            }
+        }
+
+        @Override
+        protected Map<String, Set<Watcher>> getWatches(int rc) {
+            // not used, see register()
+            return null;
+        }
+    }
+
     /** Handle the special case of exists watches - they add a watcher
      * even in the case where NONODE result code is returned.
      */
@@ -1057,6 +1105,64 @@ public class ZooKeeper {
                 serverPath, ctx, null);
     }
 
+    /**
+     * Add a watch of the given mode to the given path. Unlike the watches
+     * left by getData, exists and getChildren, it is not removed once
+     * triggered, it lasts until the session is closed. A
+     * PERSISTENT_RECURSIVE watch is triggered by changes of any node below
+     * the given path as well, see {@link AddWatchMode}.
+     * <p>
+     * The node of the path doesn't have to exist. The watch is set again
+     * after a reconnection (unless zookeeper.disableAutoWatchReset is set),
+     * but changes made while the client was disconnected are not reported.
+     *
+     * @param basePath the path to watch
+     * @param watcher explicit watcher
+     * @param mode mode of the watch
+     * @throws KeeperException If the server signals an error
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public void addWatch(final String basePath, Watcher watcher,
+            AddWatchMode mode)
+        throws KeeperException, InterruptedException
+    {
+        final String clientPath = basePath;
+        PathUtils.validatePath(clientPath);
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.addWatch);
+        AddWatchRequest request = new AddWatchRequest(serverPath, mode.getMode());
+        ReplyHeader r = cnxn.submitRequest(h, request, null,
+                new AddWatchRegistration(watcher, clientPath, mode));
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()),
+                    clientPath);
+        }
+    }
+
+    /**
+     * The asynchronous version of addWatch.
+     *
+     * @see #addWatch(String, Watcher, AddWatchMode)
+     */
+    public void addWatch(final String basePath, Watcher watcher,
+            AddWatchMode mode, VoidCallback cb, Object ctx)
+    {
+        final String clientPath = basePath;
+        PathUtils.validatePath(clientPath);
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.addWatch);
+        AddWatchRequest request = new AddWatchRequest(serverPath, mode.getMode());
+        cnxn.queuePacket(h, new ReplyHeader(), request, null, cb, clientPath,
+                serverPath, ctx, new AddWatchRegistration(watcher, clientPath, mode));
+    }
+
     /**
      * Return the stat of the node of the given path. Return null if no such a
      * node exists.
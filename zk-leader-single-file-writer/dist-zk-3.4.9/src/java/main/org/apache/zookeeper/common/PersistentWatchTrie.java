@@ -0,0 +1,260 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.common;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent (AddWatchMode.PERSISTENT) and persistent recursive
+ * (AddWatchMode.PERSISTENT_RECURSIVE) watches, kept in a trie of path
+ * components like PathTrie, so that finding the watchers of a changed path
+ * costs O(depth of the path) rather than O(number of watches): the recursive
+ * watchers are picked up on the way down from the root, the persistent ones
+ * at the node of the path itself.
+ *
+ * Used by both the server (watcher is a connection) and the client (watcher
+ * is a user's Watcher). Lookups share a read lock, so that triggering
+ * doesn't serialize on it.
+ *
+ * @param <W> type of the watchers
+ */
+public class PersistentWatchTrie<W> {
+
+    private static class TrieNode<W> {
+        final TrieNode<W> parent;
+        final String name;
+        final HashMap<String, TrieNode<W>> children =
+            new HashMap<String, TrieNode<W>>(4);
+        // null until a watch of the mode is added
+        Set<W> persistent;
+        Set<W> recursive;
+
+        TrieNode(TrieNode<W> parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        boolean isUnused() {
+            return children.isEmpty()
+                && (persistent == null || persistent.isEmpty())
+                && (recursive == null || recursive.isEmpty());
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final TrieNode<W> root = new TrieNode<W>(null, "");
+
+    // nodes a watcher has watches on, for removal of all its watches
+    private final HashMap<W, Set<TrieNode<W>>> watcherNodes =
+        new HashMap<W, Set<TrieNode<W>>>();
+
+    // lets lookups skip locking while there are no watches at all
+    private volatile int size;
+
+    /**
+     * @return true if the watch has been added, false if the watcher has had
+     * it already
+     */
+    public boolean add(String path, W watcher, boolean recursive) {
+        lock.writeLock().lock();
+        try {
+            TrieNode<W> node = root;
+            int start = 1;
+            while (start < path.length()) {
+                int end = componentEnd(path, start);
+                String name = path.substring(start, end);
+                TrieNode<W> child = node.children.get(name);
+                if (child == null) {
+                    child = new TrieNode<W>(node, name);
+                    node.children.put(name, child);
+                }
+                node = child;
+                start = end + 1;
+            }
+            Set<W> watchers = recursive ? node.recursive : node.persistent;
+            if (watchers == null) {
+                watchers = new HashSet<W>(4);
+                if (recursive) {
+                    node.recursive = watchers;
+                } else {
+                    node.persistent = watchers;
+                }
+            }
+            if (!watchers.add(watcher)) {
+                return false;
+            }
+            Set<TrieNode<W>> nodes = watcherNodes.get(watcher);
+            if (nodes == null) {
+                nodes = new HashSet<TrieNode<W>>();
+                watcherNodes.put(watcher, nodes);
+            }
+            nodes.add(node);
+            size++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all the watches of the watcher.
+     */
+    public void removeWatcher(W watcher) {
+        lock.writeLock().lock();
+        try {
+            Set<TrieNode<W>> nodes = watcherNodes.remove(watcher);
+            if (nodes == null) {
+                return;
+            }
+            int removed = 0;
+            for (TrieNode<W> node : nodes) {
+                if (node.persistent != null && node.persistent.remove(watcher)) {
+                    removed++;
+                }
+                if (node.recursive != null && node.recursive.remove(watcher)) {
+                    removed++;
+                }
+                prune(node);
+            }
+            size -= removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds watchers of the path to the result: the persistent ones of the
+     * path and, if includeRecursive, the recursive ones of the path and of
+     * its ancestors.
+     */
+    public void collectWatchers(String path, boolean includeRecursive, Set<W> result) {
+        if (size == 0) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            TrieNode<W> node = root;
+            if (includeRecursive && node.recursive != null) {
+                result.addAll(node.recursive);
+            }
+            int start = 1;
+            while (start < path.length()) {
+                int end = componentEnd(path, start);
+                node = node.children.get(path.substring(start, end));
+                if (node == null) {
+                    return;
+                }
+                if (includeRecursive && node.recursive != null) {
+                    result.addAll(node.recursive);
+                }
+                start = end + 1;
+            }
+            if (node.persistent != null) {
+                result.addAll(node.persistent);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return all the watchers having any watch
+     */
+    public Set<W> getWatchers() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<W>(watcherNodes.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return watched paths of the given mode mapped to their watchers
+     */
+    public Map<String, Set<W>> getWatches(boolean recursive) {
+        Map<String, Set<W>> result = new HashMap<String, Set<W>>();
+        lock.readLock().lock();
+        try {
+            for (Set<TrieNode<W>> nodes : watcherNodes.values()) {
+                for (TrieNode<W> node : nodes) {
+                    Set<W> watchers = recursive ? node.recursive : node.persistent;
+                    if (watchers != null && !watchers.isEmpty()) {
+                        String path = pathOf(node);
+                        if (!result.containsKey(path)) {
+                            result.put(path, new HashSet<W>(watchers));
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * @return number of watches (path, watcher, mode triples)
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            root.children.clear();
+            root.persistent = null;
+            root.recursive = null;
+            watcherNodes.clear();
+            size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void prune(TrieNode<W> node) {
+        while (node.parent != null && node.isUnused()) {
+            node.parent.children.remove(node.name);
+            node = node.parent;
+        }
+    }
+
+    private static String pathOf(TrieNode<?> node) {
+        if (node.parent == null) {
+            return "/";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (; node.parent != null; node = node.parent) {
+            sb.insert(0, node.name).insert(0, '/');
+        }
+        return sb.toString();
+    }
+
+    private static int componentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return end < 0 ? path.length() : end;
+    }
+}
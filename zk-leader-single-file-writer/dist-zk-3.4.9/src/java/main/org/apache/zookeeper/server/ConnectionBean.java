@@ -88,7 +88,7 @@ public class ConnectionBean implements ConnectionMXBean, ZKMBeanInfo {
     
     public String[] getEphemeralNodes() {
         if(zk.getZKDatabase()  !=null){
-            String[] res = zk.getZKDatabase().getEphemerals(sessionId)
+            String[] res = zk.getZKDatabase().getEphemeralPaths(sessionId)
                 .toArray(new String[0]);
             Arrays.sort(res);
             return res;
@@ -19,7 +19,13 @@
 package org.apache.zookeeper.server;
 
 import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.Collections;
 
@@ -32,16 +38,25 @@ import org.apache.zookeeper.data.StatPersisted;
 /**
  * This class contains the data for a node in the data tree.
  * <p>
- * A data node contains a reference to its parent, a byte array as its data, an
- * array of ACLs, a stat object, and a set of its children's paths.
+ * A data node contains a byte array as its data, an array of ACLs, a stat
+ * (kept in the StatTable of the DataTree the node is in), and a set of its
+ * children's paths.
  * 
  */
 public class DataNode implements Record {
-    /** the parent of this datanode */
-    DataNode parent;
+    /**
+     * Children sets up to this size are kept in a sorted array, which takes
+     * a reference per child rather than a hash table entry, larger ones in a
+     * HashSet. Back from a HashSet to an array at half of it, so that a set
+     * of about this size doesn't switch on every change.
+     */
+    static final int MAX_CHILD_ARRAY_SIZE = 1024;
 
-    /** the data for this datanode */
-    byte data[];
+    /**
+     * the data for this datanode: a byte[] (or null), or a
+     * SlabDataStore.Data if DataTree keeps it off the heap
+     */
+    Object data;
 
     /**
      * the acl map long for this datanode. the datatree has the map
@@ -49,16 +64,26 @@ public class DataNode implements Record {
     Long acl;
 
     /**
-     * the stat for this node that is persisted to disk.
+     * the stat for this node that is persisted to disk: the StatTable of the
+     * DataTree (at statSlot) while the node is in the tree, otherwise a
+     * StatPersisted. Stat setters have to be synchronized on the node,
+     * getters are not.
      */
-    public StatPersisted stat;
+    private volatile Object stat;
+
+    private int statSlot;
 
     /**
      * the list of children for this node. note that the list of children string
      * does not contain the parent path -- just the last part of the path. This
      * should be synchronized on except deserializing (for speed up issues).
+     *
+     * null if there are no children, a sorted String[] (which is replaced
+     * rather than modified, so that views of it never change) up to
+     * MAX_CHILD_ARRAY_SIZE children, a HashSet<String> above it; a single
+     * field of either type keeps the node small.
      */
-    private Set<String> children = null;
+    private Object children = null;
 
     /**
      * default constructor for the datanode
@@ -68,10 +93,8 @@ public class DataNode implements Record {
     }
 
     /**
-     * create a DataNode with parent, data, acls and stat
+     * create a DataNode with data, acls and stat
      * 
-     * @param parent
-     *            the parent of this DataNode
      * @param data
      *            the data to be set
      * @param acl
@@ -79,13 +102,35 @@ public class DataNode implements Record {
      * @param stat
      *            the stat for this node.
      */
-    public DataNode(DataNode parent, byte data[], Long acl, StatPersisted stat) {
-        this.parent = parent;
+    public DataNode(byte data[], Long acl, StatPersisted stat) {
         this.data = data;
         this.acl = acl;
         this.stat = stat;
     }
 
+    /**
+     * @return the data of this datanode, a copy if it's kept off the heap
+     */
+    public synchronized byte[] getData() {
+        if (data instanceof SlabDataStore.Data) {
+            return ((SlabDataStore.Data) data).get();
+        }
+        return (byte[]) data;
+    }
+
+    /**
+     * @return length of the data of this datanode, 0 if there is none
+     */
+    public synchronized int getDataLength() {
+        if (data == null) {
+            return 0;
+        }
+        if (data instanceof SlabDataStore.Data) {
+            return ((SlabDataStore.Data) data).length();
+        }
+        return ((byte[]) data).length;
+    }
+
     /**
      * Method that inserts a child into the children set
      * 
@@ -93,12 +138,34 @@ public class DataNode implements Record {
      *            to be inserted
      * @return true if this set did not already contain the specified element
      */
+    @SuppressWarnings("unchecked")
     public synchronized boolean addChild(String child) {
         if (children == null) {
-            // let's be conservative on the typical number of children
-            children = new HashSet<String>(8);
+            children = new String[] { child };
+            return true;
+        }
+        if (children instanceof HashSet) {
+            return ((HashSet<String>) children).add(child);
+        }
+        String[] array = (String[]) children;
+        int i = Arrays.binarySearch(array, child);
+        if (i >= 0) {
+            return false;
+        }
+        if (array.length == MAX_CHILD_ARRAY_SIZE) {
+            HashSet<String> set = new HashSet<String>(array.length * 2);
+            Collections.addAll(set, array);
+            set.add(child);
+            children = set;
+            return true;
         }
-        return children.add(child);
+        i = -(i + 1);
+        String[] grown = new String[array.length + 1];
+        System.arraycopy(array, 0, grown, 0, i);
+        grown[i] = child;
+        System.arraycopy(array, i, grown, i + 1, array.length - i);
+        children = grown;
+        return true;
     }
 
     /**
@@ -107,11 +174,35 @@ public class DataNode implements Record {
      * @param child
      * @return true if this set contained the specified element
      */
+    @SuppressWarnings("unchecked")
     public synchronized boolean removeChild(String child) {
         if (children == null) {
             return false;
         }
-        return children.remove(child);
+        if (children instanceof HashSet) {
+            HashSet<String> set = (HashSet<String>) children;
+            if (!set.remove(child)) {
+                return false;
+            }
+            if (set.size() <= MAX_CHILD_ARRAY_SIZE / 2) {
+                setChildren(set);
+            }
+            return true;
+        }
+        String[] array = (String[]) children;
+        int i = Arrays.binarySearch(array, child);
+        if (i < 0) {
+            return false;
+        }
+        if (array.length == 1) {
+            children = null;
+            return true;
+        }
+        String[] shrunk = new String[array.length - 1];
+        System.arraycopy(array, 0, shrunk, 0, i);
+        System.arraycopy(array, i + 1, shrunk, i, shrunk.length - i);
+        children = shrunk;
+        return true;
     }
 
     /**
@@ -120,40 +211,225 @@ public class DataNode implements Record {
      * @param children
      */
     public synchronized void setChildren(HashSet<String> children) {
-        this.children = children;
+        if (children == null || children.isEmpty()) {
+            this.children = null;
+        } else if (children.size() <= MAX_CHILD_ARRAY_SIZE) {
+            String[] array = children.toArray(new String[children.size()]);
+            Arrays.sort(array);
+            this.children = array;
+        } else {
+            this.children = children;
+        }
     }
 
     /**
      * convenience methods to get the children
      * 
-     * @return the children of this datanode
+     * @return the children of this datanode, null if there are none. A view
+     * which can't be modified: of a large set it follows changes of the node,
+     * hence it has to be used while synchronized on the node, like the node
+     * itself.
      */
+    @SuppressWarnings("unchecked")
     public synchronized Set<String> getChildren() {
         if (children == null) {
-            return children;
+            return null;
+        }
+        if (children instanceof HashSet) {
+            return Collections.unmodifiableSet((HashSet<String>) children);
+        }
+        return new ChildArraySet((String[]) children);
+    }
+
+    /**
+     * @return the children of this datanode, which don't change with the
+     * node: a view of a small set, a copy of a large one
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<String> getChildrenList() {
+        if (children == null) {
+            return Collections.emptyList();
+        }
+        if (children instanceof HashSet) {
+            return new ArrayList<String>((HashSet<String>) children);
+        }
+        return Collections.unmodifiableList(Arrays.asList((String[]) children));
+    }
+
+    /**
+     * @return number of children
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized int getChildCount() {
+        if (children == null) {
+            return 0;
         }
+        if (children instanceof HashSet) {
+            return ((HashSet<String>) children).size();
+        }
+        return ((String[]) children).length;
+    }
 
-        return Collections.unmodifiableSet(children);
+    /**
+     * Moves the stat of this node to the table
+     */
+    synchronized void attach(StatTable table) {
+        if (stat instanceof StatTable) {
+            throw new IllegalStateException("Node is in a table already");
+        }
+        int slot = table.allocate();
+        table.set(slot, (StatPersisted) stat);
+        statSlot = slot;
+        stat = table;
+    }
+
+    /**
+     * Moves the stat of this node out of its table, once it's removed from
+     * the tree, so that the slot can be reused
+     */
+    synchronized void detach() {
+        Object s = stat;
+        if (s instanceof StatTable) {
+            StatPersisted copy = new StatPersisted();
+            ((StatTable) s).copyTo(statSlot, copy);
+            stat = copy;
+            ((StatTable) s).free(statSlot);
+        }
+    }
+
+    /**
+     * @return copy of the stat of this node
+     */
+    public StatPersisted getStat() {
+        StatPersisted copy = new StatPersisted();
+        while (true) {
+            Object s = stat;
+            if (s instanceof StatPersisted) {
+                DataTree.copyStatPersisted((StatPersisted) s, copy);
+                return copy;
+            }
+            ((StatTable) s).copyTo(statSlot, copy);
+            // the slot may have been reused if the node was detached
+            if (stat == s) {
+                return copy;
+            }
+        }
+    }
+
+    long getMzxid() {
+        while (true) {
+            Object s = stat;
+            if (s instanceof StatPersisted) {
+                return ((StatPersisted) s).getMzxid();
+            }
+            long mzxid = ((StatTable) s).getMzxid(statSlot);
+            if (stat == s) {
+                return mzxid;
+            }
+        }
+    }
+
+    long getPzxid() {
+        while (true) {
+            Object s = stat;
+            if (s instanceof StatPersisted) {
+                return ((StatPersisted) s).getPzxid();
+            }
+            long pzxid = ((StatTable) s).getPzxid(statSlot);
+            if (stat == s) {
+                return pzxid;
+            }
+        }
+    }
+
+    long getEphemeralOwner() {
+        while (true) {
+            Object s = stat;
+            if (s instanceof StatPersisted) {
+                return ((StatPersisted) s).getEphemeralOwner();
+            }
+            long owner = ((StatTable) s).getEphemeralOwner(statSlot);
+            if (stat == s) {
+                return owner;
+            }
+        }
+    }
+
+    int getCversion() {
+        while (true) {
+            Object s = stat;
+            if (s instanceof StatPersisted) {
+                return ((StatPersisted) s).getCversion();
+            }
+            int cversion = ((StatTable) s).getCversion(statSlot);
+            if (stat == s) {
+                return cversion;
+            }
+        }
+    }
+
+    synchronized void setModified(long mzxid, long mtime, int version) {
+        Object s = stat;
+        if (s instanceof StatTable) {
+            ((StatTable) s).setModified(statSlot, mzxid, mtime, version);
+        } else {
+            StatPersisted sp = (StatPersisted) s;
+            sp.setMzxid(mzxid);
+            sp.setMtime(mtime);
+            sp.setVersion(version);
+        }
+    }
+
+    synchronized void setCversionPzxid(int cversion, long pzxid) {
+        Object s = stat;
+        if (s instanceof StatTable) {
+            ((StatTable) s).setCversionPzxid(statSlot, cversion, pzxid);
+        } else {
+            ((StatPersisted) s).setCversion(cversion);
+            ((StatPersisted) s).setPzxid(pzxid);
+        }
+    }
+
+    synchronized void setPzxid(long pzxid) {
+        Object s = stat;
+        if (s instanceof StatTable) {
+            ((StatTable) s).setPzxid(statSlot, pzxid);
+        } else {
+            ((StatPersisted) s).setPzxid(pzxid);
+        }
+    }
+
+    synchronized void setAversion(int aversion) {
+        Object s = stat;
+        if (s instanceof StatTable) {
+            ((StatTable) s).setAversion(statSlot, aversion);
+        } else {
+            ((StatPersisted) s).setAversion(aversion);
+        }
     }
 
     synchronized public void copyStat(Stat to) {
-        to.setAversion(stat.getAversion());
-        to.setCtime(stat.getCtime());
-        to.setCzxid(stat.getCzxid());
-        to.setMtime(stat.getMtime());
-        to.setMzxid(stat.getMzxid());
-        to.setPzxid(stat.getPzxid());
-        to.setVersion(stat.getVersion());
-        to.setEphemeralOwner(stat.getEphemeralOwner());
-        to.setDataLength(data == null ? 0 : data.length);
-        int numChildren = 0;
-        if (this.children != null) {
-            numChildren = children.size();
+        Object s = stat;
+        if (s instanceof StatTable) {
+            ((StatTable) s).copyTo(statSlot, to);
+        } else {
+            StatPersisted sp = (StatPersisted) s;
+            to.setAversion(sp.getAversion());
+            to.setCtime(sp.getCtime());
+            to.setCzxid(sp.getCzxid());
+            to.setMtime(sp.getMtime());
+            to.setMzxid(sp.getMzxid());
+            to.setPzxid(sp.getPzxid());
+            to.setVersion(sp.getVersion());
+            to.setEphemeralOwner(sp.getEphemeralOwner());
+            to.setCversion(sp.getCversion());
         }
+        to.setDataLength(getDataLength());
+        int numChildren = getChildCount();
         // when we do the Cversion we need to translate from the count of the creates
         // to the count of the changes (v3 semantics)
         // for every create there is a delete except for the children still present
-        to.setCversion(stat.getCversion()*2 - numChildren);
+        to.setCversion(to.getCversion()*2 - numChildren);
         to.setNumChildren(numChildren);
     }
 
@@ -162,17 +438,68 @@ public class DataNode implements Record {
         archive.startRecord("node");
         data = archive.readBuffer("data");
         acl = archive.readLong("acl");
-        stat = new StatPersisted();
-        stat.deserialize(archive, "statpersisted");
+        StatPersisted sp = new StatPersisted();
+        sp.deserialize(archive, "statpersisted");
+        stat = sp;
         archive.endRecord("node");
     }
 
     synchronized public void serialize(OutputArchive archive, String tag)
             throws IOException {
         archive.startRecord(this, "node");
-        archive.writeBuffer(data, "data");
+        archive.writeBuffer(getData(), "data");
         archive.writeLong(acl, "acl");
-        stat.serialize(archive, "statpersisted");
+        Object s = stat;
+        StatPersisted sp = s instanceof StatPersisted ? (StatPersisted) s : getStat();
+        sp.serialize(archive, "statpersisted");
         archive.endRecord(this, "node");
     }
+
+    /**
+     * Unmodifiable Set view of a sorted array of children.
+     */
+    private static class ChildArraySet extends AbstractSet<String> {
+        private final String[] array;
+
+        ChildArraySet(String[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && Arrays.binarySearch(array, o) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return array.length;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next;
+
+                public boolean hasNext() {
+                    return next < array.length;
+                }
+
+                public String next() {
+                    if (next == array.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return array[next++];
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public Object[] toArray() {
+            return array.clone();
+        }
+    }
 }
@@ -18,20 +18,26 @@
 
 package org.apache.zookeeper.server;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.KeeperException.NoNodeException;
@@ -43,11 +49,12 @@ import org.apache.zookeeper.Watcher.Event;
 import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.ZooDefs.OpCode;
-import org.apache.zookeeper.common.PathTrie;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.data.StatPersisted;
 import org.apache.zookeeper.server.upgrade.DataNodeV1;
+import org.apache.zookeeper.server.watch.IWatchManager;
+import org.apache.zookeeper.server.watch.WatchManagerFactory;
 import org.apache.zookeeper.txn.CheckVersionTxn;
 import org.apache.zookeeper.txn.CreateTxn;
 import org.apache.zookeeper.txn.DeleteTxn;
@@ -73,15 +80,71 @@ public class DataTree {
     private static final Logger LOG = LoggerFactory.getLogger(DataTree.class);
 
     /**
-     * This hashtable provides a fast lookup to the datanodes. The tree is the
+     * Name of the system property selecting the NodeIndex implementation
+     * (fully qualified class name), HashNodeIndex by default, other
+     * implementations are only used by tests & benchmarks
+     */
+    public static final String ZOOKEEPER_NODE_INDEX_NAME = "zookeeper.nodeIndexName";
+
+    /**
+     * Name of the system property with the size (in bytes) of slabs of
+     * SlabDataStore, data of znodes is kept on the heap if it's not set
+     */
+    public static final String ZOOKEEPER_OFF_HEAP_SLAB_SIZE = "zookeeper.offHeapSlabSize";
+
+    /**
+     * Name of the system property with the directory of memory-mapped slabs
+     * of SlabDataStore, they are direct buffers if it's not set
+     */
+    public static final String ZOOKEEPER_OFF_HEAP_DIR = "zookeeper.offHeapDir";
+
+    /**
+     * Name of the system property enabling the breakdown of data size & node
+     * count by top level subtree, disabled by default
+     */
+    public static final String ZOOKEEPER_SUBTREE_SIZES = "zookeeper.subtreeSizes";
+
+    /**
+     * This index provides a fast lookup to the datanodes. The tree is the
      * source of truth and is where all the locking occurs
      */
-    private final ConcurrentHashMap<String, DataNode> nodes =
-        new ConcurrentHashMap<String, DataNode>();
+    private final NodeIndex nodes = createNodeIndex();
+
+    /**
+     * Keeps data of znodes off the heap, null if it's kept on the heap
+     */
+    private final SlabDataStore dataStore = createDataStore();
+
+    /**
+     * Persisted stats of the nodes of the tree
+     */
+    private final StatTable stats = new StatTable();
+
+    /**
+     * Sum of the lengths of the paths & of the data of the nodes, and number
+     * of the nodes (the root is counted twice, as "" & "/"), kept as nodes
+     * are added, changed & removed
+     */
+    private final AtomicLong dataSize = new AtomicLong();
+
+    private final AtomicInteger nodeCount = new AtomicInteger();
+
+    /**
+     * Data size & node count by top level node ("/" for the root itself),
+     * null unless enabled
+     */
+    private final ConcurrentHashMap<String, SubtreeSize> subtreeSizes =
+        Boolean.getBoolean(ZOOKEEPER_SUBTREE_SIZES)
+            ? new ConcurrentHashMap<String, SubtreeSize>() : null;
+
+    private static final class SubtreeSize {
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger nodes = new AtomicInteger();
+    }
 
-    private final WatchManager dataWatches = new WatchManager();
+    private final IWatchManager dataWatches = WatchManagerFactory.createWatchManager();
 
-    private final WatchManager childWatches = new WatchManager();
+    private final IWatchManager childWatches = WatchManagerFactory.createWatchManager();
 
     /** the root of zookeeper tree */
     private static final String rootZookeeper = "/";
@@ -103,38 +166,36 @@ public class DataTree {
             .substring(procZookeeper.length() + 1);
 
     /**
-     * the path trie that keeps track fo the quota nodes in this datatree
+     * the quotas of this datatree with their limits and usage
      */
-    private final PathTrie pTrie = new PathTrie();
+    private final QuotaTable quotas = new QuotaTable();
 
     /**
-     * This hashtable lists the paths of the ephemeral nodes of a session.
+     * This index lists the paths of the ephemeral nodes of a session.
      */
-    private final Map<Long, HashSet<String>> ephemerals =
-        new ConcurrentHashMap<Long, HashSet<String>>();
+    private final EphemeralIndex ephemerals = new EphemeralIndex();
 
     private final ReferenceCountedACLCache aclCache = new ReferenceCountedACLCache();
 
-    @SuppressWarnings("unchecked")
+    /**
+     * @return a copy of the paths of the ephemeral nodes of the session,
+     *         see getEphemeralPaths to read them without copying
+     */
     public HashSet<String> getEphemerals(long sessionId) {
-        HashSet<String> retv = ephemerals.get(sessionId);
-        if (retv == null) {
-            return new HashSet<String>();
-        }
-        HashSet<String> cloned = null;
-        synchronized (retv) {
-            cloned = (HashSet<String>) retv.clone();
-        }
-        return cloned;
+        return new HashSet<String>(ephemerals.get(sessionId));
     }
 
-    public Map<Long, HashSet<String>> getEphemeralsMap() {
-        return ephemerals;
+    /**
+     * @return a read-only view of the paths of the ephemeral nodes of the
+     *         session, which reflects later changes while the session has
+     *         any
+     */
+    public Set<String> getEphemeralPaths(long sessionId) {
+        return ephemerals.get(sessionId);
     }
 
-
     public Collection<Long> getSessions() {
-        return ephemerals.keySet();
+        return ephemerals.getSessions();
     }
 
     /**
@@ -147,7 +208,12 @@ public class DataTree {
      *            the datanode corresponding to this path
      */
     public void addDataNode(String path, DataNode node) {
-        nodes.put(path, node);
+        node.attach(stats);
+        DataNode previous = nodes.get(path);
+        if (previous != null) {
+            countNode(path, -(path.length() + previous.getDataLength()), -1);
+        }
+        addNode(path, node);
     }
 
     public DataNode getNode(String path) {
@@ -155,7 +221,7 @@ public class DataTree {
     }
 
     public int getNodeCount() {
-        return nodes.size();
+        return nodeCount.get();
     }
 
     public int getWatchCount() {
@@ -163,12 +229,7 @@ public class DataTree {
     }
 
     public int getEphemeralsCount() {
-        Map<Long, HashSet<String>> map = this.getEphemeralsMap();
-        int result = 0;
-        for (HashSet<String> set : map.values()) {
-            result += set.size();
-        }
-        return result;
+        return ephemerals.size();
     }
 
     /**
@@ -177,49 +238,161 @@ public class DataTree {
      * @return size of the data
      */
     public long approximateDataSize() {
-        long result = 0;
-        for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
-            DataNode value = entry.getValue();
-            synchronized (value) {
-                result += entry.getKey().length();
-                result += (value.data == null ? 0
-                        : value.data.length);
+        return dataSize.get();
+    }
+
+    /**
+     * @return data size by top level node, empty unless enabled by
+     *         ZOOKEEPER_SUBTREE_SIZES
+     */
+    public Map<String, Long> getSubtreeDataSizes() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        if (subtreeSizes != null) {
+            for (Map.Entry<String, SubtreeSize> e : subtreeSizes.entrySet()) {
+                result.put(e.getKey(), e.getValue().bytes.get());
             }
         }
         return result;
     }
 
+    /**
+     * @return node count by top level node, empty unless enabled by
+     *         ZOOKEEPER_SUBTREE_SIZES
+     */
+    public Map<String, Integer> getSubtreeNodeCounts() {
+        Map<String, Integer> result = new TreeMap<String, Integer>();
+        if (subtreeSizes != null) {
+            for (Map.Entry<String, SubtreeSize> e : subtreeSizes.entrySet()) {
+                result.put(e.getKey(), e.getValue().nodes.get());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the node to the index & counts it, with its current data
+     */
+    private void addNode(String path, DataNode node) {
+        nodes.put(path, node);
+        countNode(path, path.length() + node.getDataLength(), 1);
+    }
+
+    private void countNode(String path, long bytes, int count) {
+        dataSize.addAndGet(bytes);
+        nodeCount.addAndGet(count);
+        if (subtreeSizes == null) {
+            return;
+        }
+        String top;
+        if (path.length() <= 1) {
+            top = rootZookeeper;
+        } else {
+            int slash = path.indexOf('/', 1);
+            top = slash == -1 ? path : path.substring(0, slash);
+        }
+        SubtreeSize size = subtreeSizes.get(top);
+        if (size == null) {
+            size = new SubtreeSize();
+            SubtreeSize existing = subtreeSizes.putIfAbsent(top, size);
+            if (existing != null) {
+                size = existing;
+            }
+        }
+        size.bytes.addAndGet(bytes);
+        if (size.nodes.addAndGet(count) == 0) {
+            subtreeSizes.remove(top, size);
+        }
+    }
+
+    private void clearCounts() {
+        dataSize.set(0);
+        nodeCount.set(0);
+        if (subtreeSizes != null) {
+            subtreeSizes.clear();
+        }
+    }
+
+    private static NodeIndex createNodeIndex() {
+        String nodeIndexName = System.getProperty(ZOOKEEPER_NODE_INDEX_NAME);
+        if (nodeIndexName == null) {
+            return new HashNodeIndex();
+        }
+        try {
+            NodeIndex nodeIndex = (NodeIndex) Class.forName(nodeIndexName).newInstance();
+            LOG.info("Using " + nodeIndexName + " as node index");
+            return nodeIndex;
+        } catch (Exception e) {
+            throw new RuntimeException("Couldn't instantiate node index "
+                    + nodeIndexName, e);
+        }
+    }
+
+    private static SlabDataStore createDataStore() {
+        int slabSize = Integer.getInteger(ZOOKEEPER_OFF_HEAP_SLAB_SIZE, 0);
+        if (slabSize <= 0) {
+            return null;
+        }
+        String dir = System.getProperty(ZOOKEEPER_OFF_HEAP_DIR);
+        LOG.info("Keeping znode data off the heap in " + slabSize + " byte slabs"
+                + (dir == null ? "" : " mapped in " + dir));
+        return new SlabDataStore(slabSize, dir == null ? null : new File(dir));
+    }
+
+    SlabDataStore getDataStore() {
+        return dataStore;
+    }
+
+    /**
+     * Replaces data of the node at path, the caller has to be synchronized
+     * on the node
+     */
+    private void setNodeData(String path, DataNode node, byte[] data) {
+        int lastLength = node.getDataLength();
+        if (dataStore == null) {
+            node.data = data;
+        } else {
+            Object lastData = node.data;
+            node.data = dataStore.store(data);
+            dataStore.release(lastData);
+        }
+        countNode(path, (data == null ? 0 : data.length) - lastLength, 0);
+    }
+
     /**
      * This is a pointer to the root of the DataTree. It is the source of truth,
      * but we usually use the nodes hashmap to find nodes in the tree.
      */
-    private DataNode root = new DataNode(null, new byte[0], -1L,
+    private DataNode root = new DataNode(new byte[0], -1L,
             new StatPersisted());
 
     /**
      * create a /zookeeper filesystem that is the proc filesystem of zookeeper
      */
-    private DataNode procDataNode = new DataNode(root, new byte[0], -1L,
+    private DataNode procDataNode = new DataNode(new byte[0], -1L,
             new StatPersisted());
 
     /**
      * create a /zookeeper/quota node for maintaining quota properties for
      * zookeeper
      */
-    private DataNode quotaDataNode = new DataNode(procDataNode, new byte[0],
+    private DataNode quotaDataNode = new DataNode(new byte[0],
             -1L, new StatPersisted());
 
     public DataTree() {
+        root.attach(stats);
+        procDataNode.attach(stats);
+        quotaDataNode.attach(stats);
+
         /* Rather than fight it, let root have an alias */
-        nodes.put("", root);
-        nodes.put(rootZookeeper, root);
+        addNode("", root);
+        addNode(rootZookeeper, root);
 
         /** add the proc node and quota node */
         root.addChild(procChildZookeeper);
-        nodes.put(procZookeeper, procDataNode);
+        addNode(procZookeeper, procDataNode);
 
         procDataNode.addChild(quotaChildZookeeper);
-        nodes.put(quotaZookeeper, quotaDataNode);
+        addNode(quotaZookeeper, quotaDataNode);
     }
 
     /**
@@ -272,36 +445,24 @@ public class DataTree {
      *            the diff to be added to the count
      */
     public void updateCount(String lastPrefix, int diff) {
-        String statNode = Quotas.statPath(lastPrefix);
-        DataNode node = nodes.get(statNode);
-        StatsTrack updatedStat = null;
-        if (node == null) {
+        QuotaTable.Quota quota = quotas.get(lastPrefix);
+        if (quota == null) {
             // should not happen
-            LOG.error("Missing count node for stat " + statNode);
+            LOG.error("Missing quota for " + lastPrefix);
             return;
         }
-        synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
-            updatedStat.setCount(updatedStat.getCount() + diff);
-            node.data = updatedStat.toString().getBytes();
-        }
+        updateCount(quota, diff);
+    }
+
+    private void updateCount(QuotaTable.Quota quota, int diff) {
+        int count = quota.addCount(diff);
         // now check if the counts match the quota
-        String quotaNode = Quotas.quotaPath(lastPrefix);
-        node = nodes.get(quotaNode);
-        StatsTrack thisStats = null;
-        if (node == null) {
-            // should not happen
-            LOG.error("Missing count node for quota " + quotaNode);
-            return;
-        }
-        synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
-        }
-        if (thisStats.getCount() > -1 && (thisStats.getCount() < updatedStat.getCount())) {
+        int limit = quota.countLimit;
+        if (limit > -1 && limit < count) {
             LOG
-            .warn("Quota exceeded: " + lastPrefix + " count="
-                    + updatedStat.getCount() + " limit="
-                    + thisStats.getCount());
+            .warn("Quota exceeded: " + quota.path + " count="
+                    + count + " limit="
+                    + limit);
         }
     }
 
@@ -316,38 +477,115 @@ public class DataTree {
      *             if path is not found
      */
     public void updateBytes(String lastPrefix, long diff) {
-        String statNode = Quotas.statPath(lastPrefix);
-        DataNode node = nodes.get(statNode);
+        QuotaTable.Quota quota = quotas.get(lastPrefix);
+        if (quota == null) {
+            // should not happen
+            LOG.error("Missing quota for " + lastPrefix);
+            return;
+        }
+        updateBytes(quota, diff);
+    }
+
+    private void updateBytes(QuotaTable.Quota quota, long diff) {
+        long bytes = quota.addBytes(diff);
+        // now check if the bytes match the quota
+        long limit = quota.bytesLimit;
+        if (limit > -1 && limit < bytes) {
+            LOG
+            .warn("Quota exceeded: " + quota.path + " bytes="
+                    + bytes + " limit="
+                    + limit);
+        }
+    }
+
+    /**
+     * add the quota whose limit node has been created, with the usage
+     * its stat node may already hold
+     *
+     * @param path
+     *            the path of the node that is quotaed
+     */
+    private void addQuota(String path) {
+        if (path.length() == 0 || rootZookeeper.equals(path)) {
+            // we are not keeping a quota on the root node
+            return;
+        }
+        QuotaTable.Quota quota = quotas.add(path);
+        updateQuotaLimits(quota);
+        DataNode node = getNode(Quotas.statPath(path));
+        if (node != null) {
+            StatsTrack stats = parseStats(Quotas.statPath(path), node);
+            quota.setUsage(stats.getCount(), stats.getBytes());
+            // the stat node already holds it
+            quota.clean();
+        }
+    }
+
+    private void updateQuotaLimits(QuotaTable.Quota quota) {
+        String limitPath = Quotas.quotaPath(quota.path);
+        DataNode node = getNode(limitPath);
         if (node == null) {
-            // should never be null but just to make
-            // findbugs happy
-            LOG.error("Missing stat node for bytes " + statNode);
             return;
         }
-        StatsTrack updatedStat = null;
-        synchronized (node) {
-            updatedStat = new StatsTrack(new String(node.data));
-            updatedStat.setBytes(updatedStat.getBytes() + diff);
-            node.data = updatedStat.toString().getBytes();
+        StatsTrack limits = parseStats(limitPath, node);
+        quota.countLimit = limits.getCount();
+        quota.bytesLimit = limits.getBytes();
+    }
+
+    /**
+     * @return the stats held by the limit or stat node, -1 for unparsable
+     *         ones
+     */
+    private static StatsTrack parseStats(String path, DataNode node) {
+        byte[] data = node.getData();
+        if (data != null) {
+            try {
+                return new StatsTrack(new String(data));
+            } catch (RuntimeException e) {
+                LOG.warn("Invalid quota stats in " + path, e);
+            }
         }
-        // now check if the bytes match the quota
-        String quotaNode = Quotas.quotaPath(lastPrefix);
-        node = nodes.get(quotaNode);
+        return new StatsTrack();
+    }
+
+    /**
+     * writes the usage of the quota to its stat node, if it has changed
+     * since the last write
+     */
+    private void writeQuotaStats(QuotaTable.Quota quota) {
+        String statPath = Quotas.statPath(quota.path);
+        DataNode node = nodes.get(statPath);
         if (node == null) {
-            // should never be null but just to make
-            // findbugs happy
-            LOG.error("Missing quota node for bytes " + quotaNode);
             return;
         }
-        StatsTrack thisStats = null;
         synchronized (node) {
-            thisStats = new StatsTrack(new String(node.data));
+            if (!quota.clean()) {
+                return;
+            }
+            StatsTrack stats = new StatsTrack();
+            stats.setCount(quota.count.get());
+            stats.setBytes(quota.bytes.get());
+            setNodeData(statPath, node, stats.toString().getBytes());
         }
-        if (thisStats.getBytes() > -1 && (thisStats.getBytes() < updatedStat.getBytes())) {
-            LOG
-            .warn("Quota exceeded: " + lastPrefix + " bytes="
-                    + updatedStat.getBytes() + " limit="
-                    + thisStats.getBytes());
+    }
+
+    /**
+     * brings the stat node at the path up to date before it is read, if it
+     * is the stat node of a quota
+     */
+    private void writeQuotaStats(String path) {
+        if (quotas.isEmpty() || !path.startsWith(quotaZookeeper)
+                || !path.endsWith(Quotas.statNode)) {
+            return;
+        }
+        int end = path.length() - Quotas.statNode.length() - 1;
+        if (end <= quotaZookeeper.length() || path.charAt(end) != '/') {
+            return;
+        }
+        QuotaTable.Quota quota = quotas.get(path.substring(
+                quotaZookeeper.length(), end));
+        if (quota != null) {
+            writeQuotaStats(quota);
         }
     }
 
@@ -392,24 +630,18 @@ public class DataTree {
             }
             
             if (parentCVersion == -1) {
-                parentCVersion = parent.stat.getCversion();
+                parentCVersion = parent.getCversion();
                 parentCVersion++;
             }    
-            parent.stat.setCversion(parentCVersion);
-            parent.stat.setPzxid(zxid);
+            parent.setCversionPzxid(parentCVersion, zxid);
             Long longval = aclCache.convertAcls(acl);
-            DataNode child = new DataNode(parent, data, longval, stat);
+            DataNode child = new DataNode(null, longval, stat);
+            child.attach(stats);
+            child.data = dataStore == null ? data : dataStore.store(data);
             parent.addChild(childName);
-            nodes.put(path, child);
+            addNode(path, child);
             if (ephemeralOwner != 0) {
-                HashSet<String> list = ephemerals.get(ephemeralOwner);
-                if (list == null) {
-                    list = new HashSet<String>();
-                    ephemerals.put(ephemeralOwner, list);
-                }
-                synchronized (list) {
-                    list.add(path);
-                }
+                ephemerals.add(ephemeralOwner, path);
             }
         }
         // now check if its one of the zookeeper node child
@@ -417,8 +649,8 @@ public class DataTree {
             // now check if its the limit node
             if (Quotas.limitNode.equals(childName)) {
                 // this is the limit node
-                // get the parent and add it to the trie
-                pTrie.addPath(parentName.substring(quotaZookeeper.length()));
+                // get the parent and add its quota
+                addQuota(parentName.substring(quotaZookeeper.length()));
             }
             if (Quotas.statNode.equals(childName)) {
                 updateQuotaForPath(parentName
@@ -426,11 +658,11 @@ public class DataTree {
             }
         }
         // also check to update the quotas for this node
-        String lastPrefix;
-        if((lastPrefix = getMaxPrefixWithQuota(path)) != null) {
+        QuotaTable.Quota quota = quotas.findMaxPrefix(path);
+        if (quota != null) {
             // ok we have some match and need to update
-            updateCount(lastPrefix, 1);
-            updateBytes(lastPrefix, data == null ? 0 : data.length);
+            updateCount(quota, 1);
+            updateBytes(quota, data == null ? 0 : data.length);
         }
         dataWatches.triggerWatch(path, Event.EventType.NodeCreated);
         childWatches.triggerWatch(parentName.equals("") ? "/" : parentName,
@@ -449,6 +681,27 @@ public class DataTree {
      */
     public void deleteNode(String path, long zxid)
             throws KeeperException.NoNodeException {
+        String parentName = removeNode(path, zxid);
+        if (LOG.isTraceEnabled()) {
+            ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK,
+                    "dataWatches.triggerWatch " + path);
+            ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK,
+                    "childWatches.triggerWatch " + parentName);
+        }
+        Set<Watcher> processed = dataWatches.triggerWatch(path,
+                EventType.NodeDeleted);
+        childWatches.triggerWatch(path, EventType.NodeDeleted, processed);
+        childWatches.triggerWatch(parentName.equals("") ? "/" : parentName,
+                EventType.NodeChildrenChanged);
+    }
+
+    /**
+     * removes the node from the datatree without triggering the watches
+     *
+     * @return the path of the parent of the node
+     */
+    private String removeNode(String path, long zxid)
+            throws KeeperException.NoNodeException {
         int lastSlash = path.lastIndexOf('/');
         String parentName = path.substring(0, lastSlash);
         String childName = path.substring(lastSlash + 1);
@@ -457,58 +710,44 @@ public class DataTree {
             throw new KeeperException.NoNodeException();
         }
         nodes.remove(path);
+        int dataLength;
         synchronized (node) {
             aclCache.removeUsage(node.acl);
+            dataLength = node.getDataLength();
+            if (dataStore != null) {
+                dataStore.release(node.data);
+                node.data = null;
+            }
+            node.detach();
         }
+        countNode(path, -(path.length() + dataLength), -1);
         DataNode parent = nodes.get(parentName);
         if (parent == null) {
             throw new KeeperException.NoNodeException();
         }
         synchronized (parent) {
             parent.removeChild(childName);
-            parent.stat.setPzxid(zxid);
-            long eowner = node.stat.getEphemeralOwner();
+            parent.setPzxid(zxid);
+            long eowner = node.getEphemeralOwner();
             if (eowner != 0) {
-                HashSet<String> nodes = ephemerals.get(eowner);
-                if (nodes != null) {
-                    synchronized (nodes) {
-                        nodes.remove(path);
-                    }
-                }
+                ephemerals.remove(eowner, path);
             }
-            node.parent = null;
         }
-        if (parentName.startsWith(procZookeeper)) {
-            // delete the node in the trie.
+        if (parentName.startsWith(quotaZookeeper)) {
+            // delete the quota of the limit node
             if (Quotas.limitNode.equals(childName)) {
-                // we need to update the trie
-                // as well
-                pTrie.deletePath(parentName.substring(quotaZookeeper.length()));
+                quotas.remove(parentName.substring(quotaZookeeper.length()));
             }
         }
 
         // also check to update the quotas for this node
-        String lastPrefix;
-        if((lastPrefix = getMaxPrefixWithQuota(path)) != null) {
+        QuotaTable.Quota quota = quotas.findMaxPrefix(path);
+        if (quota != null) {
             // ok we have some match and need to update
-            updateCount(lastPrefix, -1);
-            int bytes = 0;
-            synchronized (node) {
-                bytes = (node.data == null ? 0 : -(node.data.length));
-            }
-            updateBytes(lastPrefix, bytes);
+            updateCount(quota, -1);
+            updateBytes(quota, -dataLength);
         }
-        if (LOG.isTraceEnabled()) {
-            ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK,
-                    "dataWatches.triggerWatch " + path);
-            ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK,
-                    "childWatches.triggerWatch " + parentName);
-        }
-        Set<Watcher> processed = dataWatches.triggerWatch(path,
-                EventType.NodeDeleted);
-        childWatches.triggerWatch(path, EventType.NodeDeleted, processed);
-        childWatches.triggerWatch(parentName.equals("") ? "/" : parentName,
-                EventType.NodeChildrenChanged);
+        return parentName;
     }
 
     public Stat setData(String path, byte data[], int version, long zxid,
@@ -518,20 +757,21 @@ public class DataTree {
         if (n == null) {
             throw new KeeperException.NoNodeException();
         }
-        byte lastdata[] = null;
+        int lastLength;
         synchronized (n) {
-            lastdata = n.data;
-            n.data = data;
-            n.stat.setMtime(time);
-            n.stat.setMzxid(zxid);
-            n.stat.setVersion(version);
+            lastLength = n.getDataLength();
+            setNodeData(path, n, data);
+            n.setModified(zxid, time, version);
             n.copyStat(s);
         }
+        if (!quotas.isEmpty() && path.startsWith(quotaZookeeper)) {
+            updateQuotaNode(path);
+        }
         // now update if the path is in a quota subtree.
-        String lastPrefix;
-        if((lastPrefix = getMaxPrefixWithQuota(path)) != null) {
-          this.updateBytes(lastPrefix, (data == null ? 0 : data.length)
-              - (lastdata == null ? 0 : lastdata.length));
+        QuotaTable.Quota quota = quotas.findMaxPrefix(path);
+        if (quota != null) {
+          this.updateBytes(quota, (data == null ? 0 : data.length)
+              - lastLength);
         }
         dataWatches.triggerWatch(path, EventType.NodeDataChanged);
         return s;
@@ -547,13 +787,31 @@ public class DataTree {
         // do nothing for the root.
         // we are not keeping a quota on the zookeeper
         // root node for now.
-        String lastPrefix = pTrie.findMaxPrefix(path);
+        QuotaTable.Quota quota = quotas.findMaxPrefix(path);
+        return quota == null ? null : quota.path;
+    }
 
-        if (!rootZookeeper.equals(lastPrefix) && !("".equals(lastPrefix))) {
-            return lastPrefix;
+    /**
+     * picks up the limits or the usage set on a limit or stat node
+     */
+    private void updateQuotaNode(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        QuotaTable.Quota quota = quotas.get(path.substring(
+                quotaZookeeper.length(), Math.max(lastSlash,
+                        quotaZookeeper.length())));
+        if (quota == null) {
+            return;
         }
-        else {
-            return null;
+        String childName = path.substring(lastSlash + 1);
+        if (Quotas.limitNode.equals(childName)) {
+            updateQuotaLimits(quota);
+        } else if (Quotas.statNode.equals(childName)) {
+            DataNode node = getNode(path);
+            synchronized (node) {
+                StatsTrack stats = parseStats(path, node);
+                quota.setUsage(stats.getCount(), stats.getBytes());
+                quota.clean();
+            }
         }
     }
 
@@ -563,12 +821,13 @@ public class DataTree {
         if (n == null) {
             throw new KeeperException.NoNodeException();
         }
+        writeQuotaStats(path);
         synchronized (n) {
             n.copyStat(stat);
             if (watcher != null) {
                 dataWatches.addWatch(path, watcher);
             }
-            return n.data;
+            return n.getData();
         }
     }
 
@@ -582,6 +841,7 @@ public class DataTree {
         if (n == null) {
             throw new KeeperException.NoNodeException();
         }
+        writeQuotaStats(path);
         synchronized (n) {
             n.copyStat(stat);
             return stat;
@@ -598,14 +858,7 @@ public class DataTree {
             if (stat != null) {
                 n.copyStat(stat);
             }
-            ArrayList<String> children;
-            Set<String> childs = n.getChildren();
-            if (childs != null) {
-                children = new ArrayList<String>(childs.size());
-                children.addAll(childs);
-            } else {
-                children = new ArrayList<String>(0);
-            }
+            List<String> children = n.getChildrenList();
 
             if (watcher != null) {
                 childWatches.addWatch(path, watcher);
@@ -623,7 +876,7 @@ public class DataTree {
         }
         synchronized (n) {
             aclCache.removeUsage(n.acl);
-            n.stat.setAversion(version);
+            n.setAversion(version);
             n.acl = aclCache.convertAcls(acl);
             n.copyStat(stat);
             return stat;
@@ -886,30 +1139,45 @@ public class DataTree {
     }
 
     void killSession(long session, long zxid) {
-        // the list is already removed from the ephemerals
-        // so we do not have to worry about synchronizing on
-        // the list. This is only called from FinalRequestProcessor
-        // so there is no need for synchronization. The list is not
-        // changed here. Only create and delete change the list which
-        // are again called from FinalRequestProcessor in sequence.
-        HashSet<String> list = ephemerals.remove(session);
-        if (list != null) {
-            for (String path : list) {
-                try {
-                    deleteNode(path, zxid);
-                    if (LOG.isDebugEnabled()) {
-                        LOG
-                                .debug("Deleting ephemeral node " + path
-                                        + " for session 0x"
-                                        + Long.toHexString(session));
-                    }
-                } catch (NoNodeException e) {
-                    LOG.warn("Ignoring NoNodeException for path " + path
-                            + " while removing ephemeral for dead session 0x"
-                            + Long.toHexString(session));
+        // the paths are removed from the ephemerals at once, so deleting
+        // them doesn't change the set iterated. This is only called from
+        // FinalRequestProcessor in sequence with create and delete, which
+        // are the only other ones changing the ephemerals.
+        Set<String> list = ephemerals.removeSession(session);
+        if (list == null) {
+            return;
+        }
+        // all the nodes are removed before any watch is triggered, so that
+        // the watches are triggered in a single pass, the ones of a parent
+        // losing many children just once
+        List<String> deleted = new ArrayList<String>();
+        Set<String> parents = new LinkedHashSet<String>();
+        for (String path : list) {
+            try {
+                String parentName = removeNode(path, zxid);
+                deleted.add(path);
+                parents.add(parentName.equals("") ? "/" : parentName);
+                if (LOG.isDebugEnabled()) {
+                    LOG
+                            .debug("Deleting ephemeral node " + path
+                                    + " for session 0x"
+                                    + Long.toHexString(session));
                 }
+            } catch (NoNodeException e) {
+                LOG.warn("Ignoring NoNodeException for path " + path
+                        + " while removing ephemeral for dead session 0x"
+                        + Long.toHexString(session));
             }
         }
+        for (String path : deleted) {
+            Set<Watcher> processed = dataWatches.triggerWatch(path,
+                    EventType.NodeDeleted);
+            childWatches.triggerWatch(path, EventType.NodeDeleted, processed);
+        }
+        for (String parentName : parents) {
+            childWatches.triggerWatch(parentName,
+                    EventType.NodeChildrenChanged);
+        }
     }
 
     /**
@@ -940,7 +1208,7 @@ public class DataTree {
             if (childs != null) {
                 children = childs.toArray(new String[childs.size()]);
             }
-            len = (node.data == null ? 0 : node.data.length);
+            len = node.getDataLength();
         }
         // add itself
         counts.count += 1;
@@ -962,6 +1230,12 @@ public class DataTree {
     private void updateQuotaForPath(String path) {
         Counts c = new Counts();
         getCounts(path, c);
+        QuotaTable.Quota quota = quotas.get(path);
+        if (quota != null) {
+            quota.setUsage(c.count, c.bytes);
+            writeQuotaStats(quota);
+            return;
+        }
         StatsTrack strack = new StatsTrack();
         strack.setBytes(c.bytes);
         strack.setCount(c.count);
@@ -973,12 +1247,12 @@ public class DataTree {
             return;
         }
         synchronized (node) {
-            node.data = strack.toString().getBytes();
+            setNodeData(statPath, node, strack.toString().getBytes());
         }
     }
 
     /**
-     * this method traverses the quota path and update the path trie and sets
+     * this method traverses the quota path and adds the quotas and sets
      *
      * @param path
      */
@@ -1002,8 +1276,8 @@ public class DataTree {
                 // the count and the bytes
                 String realPath = path.substring(Quotas.quotaZookeeper
                         .length(), path.indexOf(endString));
+                addQuota(realPath);
                 updateQuotaForPath(realPath);
-                this.pTrie.addPath(realPath);
             }
             return;
         }
@@ -1013,7 +1287,7 @@ public class DataTree {
     }
 
     /**
-     * this method sets up the path trie and sets up stats for quota nodes
+     * this method sets up the quota table and sets up stats for quota nodes
      */
     private void setupQuota() {
         String quotaPath = Quotas.quotaZookeeper;
@@ -1045,11 +1319,10 @@ public class DataTree {
         DataNode nodeCopy;
         synchronized (node) {
             scount++;
-            StatPersisted statCopy = new StatPersisted();
-            copyStatPersisted(node.stat, statCopy);
-            //we do not need to make a copy of node.data because the contents
-            //are never changed
-            nodeCopy = new DataNode(node.parent, node.data, node.acl, statCopy);
+            //we do not need to make a copy of data on the heap because the
+            //contents are never changed, data off the heap is copied since
+            //it may be released once the node is unlocked
+            nodeCopy = new DataNode(node.getData(), node.acl, node.getStat());
             Set<String> childs = node.getChildren();
             if (childs != null) {
                 children = childs.toArray(new String[childs.size()]);
@@ -1077,6 +1350,9 @@ public class DataTree {
 
     public void serialize(OutputArchive oa, String tag) throws IOException {
         scount = 0;
+        for (QuotaTable.Quota quota : quotas.values()) {
+            writeQuotaStats(quota);
+        }
         aclCache.serialize(oa);
         serializeNode(oa, new StringBuilder(""));
         // / marks end of stream
@@ -1089,42 +1365,42 @@ public class DataTree {
     public void deserialize(InputArchive ia, String tag) throws IOException {
         aclCache.deserialize(ia);
         nodes.clear();
-        pTrie.clear();
+        clearCounts();
+        quotas.clear();
         String path = ia.readString("path");
         while (!path.equals("/")) {
             DataNode node = new DataNode();
             ia.readRecord(node, "node");
-            nodes.put(path, node);
+            node.attach(stats);
+            addNode(path, node);
             synchronized (node) {
                 aclCache.addUsage(node.acl);
+                if (dataStore != null) {
+                    node.data = dataStore.store((byte[]) node.data);
+                }
             }
             int lastSlash = path.lastIndexOf('/');
             if (lastSlash == -1) {
                 root = node;
             } else {
                 String parentPath = path.substring(0, lastSlash);
-                node.parent = nodes.get(parentPath);
-                if (node.parent == null) {
+                DataNode parent = nodes.get(parentPath);
+                if (parent == null) {
                     throw new IOException("Invalid Datatree, unable to find " +
                             "parent " + parentPath + " of path " + path);
                 }
-                node.parent.addChild(path.substring(lastSlash + 1));
-                long eowner = node.stat.getEphemeralOwner();
+                parent.addChild(path.substring(lastSlash + 1));
+                long eowner = node.getEphemeralOwner();
                 if (eowner != 0) {
-                    HashSet<String> list = ephemerals.get(eowner);
-                    if (list == null) {
-                        list = new HashSet<String>();
-                        ephemerals.put(eowner, list);
-                    }
-                    list.add(path);
+                    ephemerals.add(eowner, path);
                 }
             }
             path = ia.readString("path");
         }
-        nodes.put("/", root);
+        addNode("/", root);
         // we are done with deserializing the
         // the datatree
-        // update the quotas - create path trie
+        // update the quotas - add them to the quota table
         // and also update the stat nodes
         setupQuota();
 
@@ -1153,23 +1429,30 @@ public class DataTree {
      * @param pwriter the output to write to
      */
     public void dumpEphemerals(PrintWriter pwriter) {
-        Set<Long> keys = ephemerals.keySet();
+        Set<Long> keys = ephemerals.getSessions();
         pwriter.println("Sessions with Ephemerals ("
                 + keys.size() + "):");
         for (long k : keys) {
             pwriter.print("0x" + Long.toHexString(k));
             pwriter.println(":");
-            HashSet<String> tmp = ephemerals.get(k);
-            if (tmp != null) {
-                synchronized (tmp) {
-                    for (String path : tmp) {
-                        pwriter.println("\t" + path);
-                    }
-                }
+            for (String path : ephemerals.get(k)) {
+                pwriter.println("\t" + path);
             }
         }
     }
 
+    /**
+     * Adds a watch which lasts until the watcher is removed. The node doesn't
+     * have to exist.
+     */
+    public void addWatch(String basePath, Watcher watcher, AddWatchMode mode) {
+        dataWatches.addWatch(basePath, watcher, mode);
+        if (mode == AddWatchMode.PERSISTENT) {
+            // recursive watches don't get NodeChildrenChanged
+            childWatches.addWatch(basePath, watcher, mode);
+        }
+    }
+
     public void removeCnxn(Watcher watcher) {
         dataWatches.removeWatcher(watcher);
         childWatches.removeWatcher(watcher);
@@ -1178,9 +1461,19 @@ public class DataTree {
     public void clear() {
         root = null;
         nodes.clear();
+        clearCounts();
         ephemerals.clear();
     }
 
+    /**
+     * Releases resources of the watch managers, the tree mustn't be used
+     * afterwards.
+     */
+    public void shutdownWatcher() {
+        dataWatches.shutdown();
+        childWatches.shutdown();
+    }
+
     public void setWatches(long relativeZxid, List<String> dataWatches,
             List<String> existWatches, List<String> childWatches,
             Watcher watcher) {
@@ -1189,7 +1482,7 @@ public class DataTree {
             if (node == null) {
                 watcher.process(new WatchedEvent(EventType.NodeDeleted,
                             KeeperState.SyncConnected, path));
-            } else if (node.stat.getMzxid() > relativeZxid) {
+            } else if (node.getMzxid() > relativeZxid) {
                 watcher.process(new WatchedEvent(EventType.NodeDataChanged,
                             KeeperState.SyncConnected, path));
             } else {
@@ -1210,7 +1503,7 @@ public class DataTree {
             if (node == null) {
                 watcher.process(new WatchedEvent(EventType.NodeDeleted,
                             KeeperState.SyncConnected, path));
-            } else if (node.stat.getPzxid() > relativeZxid) {
+            } else if (node.getPzxid() > relativeZxid) {
                 watcher.process(new WatchedEvent(EventType.NodeChildrenChanged,
                             KeeperState.SyncConnected, path));
             } else {
@@ -1246,11 +1539,10 @@ public class DataTree {
         }
         synchronized (node) {
             if(newCversion == -1) {
-                newCversion = node.stat.getCversion() + 1;
+                newCversion = node.getCversion() + 1;
             }
-            if (newCversion > node.stat.getCversion()) {
-                node.stat.setCversion(newCversion);
-                node.stat.setPzxid(zxid);
+            if (newCversion > node.getCversion()) {
+                node.setCversionPzxid(newCversion, zxid);
             }
         }
     }
@@ -18,6 +18,8 @@
 
 package org.apache.zookeeper.server;
 
+import java.util.Map;
+
 import org.apache.zookeeper.jmx.ZKMBeanInfo;
 
 /**
@@ -38,6 +40,14 @@ public class DataTreeBean implements DataTreeMXBean, ZKMBeanInfo {
         return dataTree.approximateDataSize();
     }
 
+    public Map<String, Long> getSubtreeDataSizes() {
+        return dataTree.getSubtreeDataSizes();
+    }
+
+    public Map<String, Integer> getSubtreeNodeCounts() {
+        return dataTree.getSubtreeNodeCounts();
+    }
+
     public int countEphemerals() {
         return dataTree.getEphemeralsCount();
     }
@@ -18,6 +18,8 @@
 
 package org.apache.zookeeper.server;
 
+import java.util.Map;
+
 /**
  * Zookeeper data tree MBean.
  */
@@ -40,6 +42,16 @@ public interface DataTreeMXBean {
      * its value.
      */
     public long approximateDataSize();
+    /**
+     * @return data size in bytes by top level znode, if enabled by the
+     * zookeeper.subtreeSizes system property
+     */
+    public Map<String, Long> getSubtreeDataSizes();
+    /**
+     * @return number of znodes by top level znode, if enabled by the
+     * zookeeper.subtreeSizes system property
+     */
+    public Map<String, Integer> getSubtreeNodeCounts();
     /**
      * @return number of ephemeral nodes in the data tree
      */
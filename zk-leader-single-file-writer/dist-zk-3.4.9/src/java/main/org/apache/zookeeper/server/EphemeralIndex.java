@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The paths of the ephemeral nodes of a DataTree by their owner session.
+ * Neither updates nor reads lock: the paths of a session are the keys of
+ * a concurrent map, handed out as a read-only view which is iterated
+ * without copying, weakly consistent with concurrent updates.
+ * <p>
+ * A session stays in the index once its last ephemeral is deleted, until
+ * it is removed itself.
+ */
+class EphemeralIndex {
+    private final ConcurrentHashMap<Long, Map<String, Boolean>> sessions =
+        new ConcurrentHashMap<Long, Map<String, Boolean>>();
+
+    void add(long session, String path) {
+        Map<String, Boolean> paths = sessions.get(session);
+        if (paths == null) {
+            paths = new ConcurrentHashMap<String, Boolean>();
+            Map<String, Boolean> existing = sessions.putIfAbsent(session, paths);
+            if (existing != null) {
+                paths = existing;
+            }
+        }
+        paths.put(path, Boolean.TRUE);
+    }
+
+    void remove(long session, String path) {
+        Map<String, Boolean> paths = sessions.get(session);
+        if (paths != null) {
+            paths.remove(path);
+        }
+    }
+
+    /**
+     * @return the paths of the session, empty if it has none
+     */
+    Set<String> get(long session) {
+        Map<String, Boolean> paths = sessions.get(session);
+        if (paths == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(paths.keySet());
+    }
+
+    /**
+     * Removes the session with all its paths at once.
+     *
+     * @return the paths the session had, null if it wasn't in the index
+     */
+    Set<String> removeSession(long session) {
+        Map<String, Boolean> paths = sessions.remove(session);
+        return paths == null ? null
+                : Collections.unmodifiableSet(paths.keySet());
+    }
+
+    Set<Long> getSessions() {
+        return Collections.unmodifiableSet(sessions.keySet());
+    }
+
+    /**
+     * @return the number of paths of all the sessions
+     */
+    int size() {
+        int size = 0;
+        for (Map<String, Boolean> paths : sessions.values()) {
+            size += paths.size();
+        }
+        return size;
+    }
+
+    void clear() {
+        sessions.clear();
+    }
+}
@@ -25,6 +25,7 @@ import java.util.List;
 import org.apache.jute.Record;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.MultiResponse;
 import org.apache.zookeeper.ZooDefs;
@@ -33,6 +34,7 @@ import org.apache.zookeeper.KeeperException.SessionMovedException;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.AddWatchRequest;
 import org.apache.zookeeper.proto.CreateResponse;
 import org.apache.zookeeper.proto.ExistsRequest;
 import org.apache.zookeeper.proto.ExistsResponse;
@@ -303,6 +305,31 @@ public class FinalRequestProcessor implements RequestProcessor {
                         setWatches.getChildWatches(), cnxn);
                 break;
             }
+            case OpCode.addWatch: {
+                lastOp = "ADDW";
+                AddWatchRequest addWatchRequest = new AddWatchRequest();
+                ByteBufferInputStream.byteBuffer2Record(request.request,
+                        addWatchRequest);
+                String path = addWatchRequest.getPath();
+                if (path.indexOf('\0') != -1) {
+                    throw new KeeperException.BadArgumentsException();
+                }
+                AddWatchMode mode;
+                try {
+                    mode = AddWatchMode.fromInt(addWatchRequest.getMode());
+                } catch (IllegalArgumentException e) {
+                    throw new KeeperException.BadArgumentsException(path);
+                }
+                // the node may not exist yet, like for exists()
+                DataNode n = zks.getZKDatabase().getNode(path);
+                if (n != null) {
+                    PrepRequestProcessor.checkACL(zks, zks.getZKDatabase().aclForNode(n),
+                            ZooDefs.Perms.READ,
+                            request.authInfo);
+                }
+                zks.getZKDatabase().addWatch(path, cnxn, mode);
+                break;
+            }
             case OpCode.getACL: {
                 lastOp = "GETA";
                 GetACLRequest getACLRequest = new GetACLRequest();
@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long SyncRequestProcessor waits for more requests, once it
+ * has run out of queued ones, before it flushes the batch it has written.
+ * <p>
+ * Waiting adds latency to the requests of the batch, so it is worth it only
+ * if another request is expected to arrive before long, compared with the
+ * fsync it would share: the wait is limited to half of the measured commit
+ * latency, and skipped if requests have been arriving further apart than
+ * that. It is also limited by the configured maximum delay of a batch,
+ * which disables waiting if 0 (the default), and the batch is flushed
+ * right away once it holds the configured maximum of bytes.
+ * <p>
+ * Used by the thread of the processor only, except for arrived.
+ */
+class GroupCommitPolicy {
+    public static final String GROUP_COMMIT_MAX_DELAY =
+        "zookeeper.groupCommitMaxDelayMicros";
+
+    public static final String GROUP_COMMIT_MAX_BYTES =
+        "zookeeper.groupCommitMaxBytes";
+
+    private final long maxDelayNanos;
+
+    private final long maxBytes;
+
+    /** moving averages of the commit latency and of the arrival gaps */
+    private long commitNanos = -1;
+
+    private volatile long arrivalGapNanos = -1;
+
+    private volatile long lastArrivalNanos = System.nanoTime();
+
+    private int batchSize;
+
+    private long batchStartNanos;
+
+    private long batchBytes;
+
+    private long batchWaitNanos;
+
+    GroupCommitPolicy() {
+        this(Long.getLong(GROUP_COMMIT_MAX_DELAY, 0),
+                Long.getLong(GROUP_COMMIT_MAX_BYTES, 0));
+    }
+
+    /**
+     * @param maxDelayMicros the longest a request waits for its batch to
+     *            be flushed, waiting disabled if 0
+     * @param maxBytes the bytes of a batch it is flushed at, unlimited if 0
+     */
+    GroupCommitPolicy(long maxDelayMicros, long maxBytes) {
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * A request to be logged has been queued.
+     */
+    void arrived(long now) {
+        if (maxDelayNanos == 0) {
+            return;
+        }
+        long last = lastArrivalNanos;
+        lastArrivalNanos = now;
+        // a long pause says no more than that the next request is late
+        long gap = Math.max(0, Math.min(now - last, 2 * maxDelayNanos));
+        long average = arrivalGapNanos;
+        arrivalGapNanos = average < 0 ? gap : average + (gap - average) / 8;
+    }
+
+    /**
+     * A request has been added to the batch.
+     */
+    void added(long now, long bytes) {
+        if (batchSize++ == 0) {
+            batchStartNanos = now;
+        }
+        batchBytes += bytes;
+    }
+
+    boolean isFull() {
+        return maxBytes > 0 && batchBytes >= maxBytes;
+    }
+
+    /**
+     * @return how long to wait for another request before the batch is
+     *         flushed, 0 to flush it now
+     */
+    long getWaitNanos(long now) {
+        if (maxDelayNanos == 0 || commitNanos < 0 || isFull()) {
+            return 0;
+        }
+        long wait = Math.min(batchStartNanos + maxDelayNanos - now,
+                commitNanos / 2);
+        long gap = arrivalGapNanos;
+        if (wait <= 0 || gap < 0 || gap > wait) {
+            return 0;
+        }
+        return wait;
+    }
+
+    void waited(long nanos) {
+        batchWaitNanos += nanos;
+    }
+
+    /**
+     * @return the time the batch has waited for more requests
+     */
+    long getBatchWaitNanos() {
+        return batchWaitNanos;
+    }
+
+    /**
+     * The batch has been flushed, taking the given time.
+     */
+    void committed(long nanos) {
+        commitNanos = commitNanos < 0 ? nanos
+                : commitNanos + (nanos - commitNanos) / 8;
+        batchSize = 0;
+        batchBytes = 0;
+        batchWaitNanos = 0;
+    }
+
+    long getCommitNanos() {
+        return commitNanos;
+    }
+}
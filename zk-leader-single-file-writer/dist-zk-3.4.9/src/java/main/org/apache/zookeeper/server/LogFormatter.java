@@ -24,7 +24,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.util.Date;
-import java.util.zip.Adler32;
 import java.util.zip.Checksum;
 
 import org.apache.jute.BinaryInputArchive;
@@ -32,6 +31,7 @@ import org.apache.jute.InputArchive;
 import org.apache.jute.Record;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.zookeeper.server.persistence.ChecksumAlgorithm;
 import org.apache.zookeeper.server.persistence.FileHeader;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
 import org.apache.zookeeper.server.util.SerializeUtils;
@@ -60,6 +60,7 @@ public class LogFormatter {
         System.out.println("ZooKeeper Transactional Log File with dbid "
                 + fhdr.getDbid() + " txnlog format version "
                 + fhdr.getVersion());
+        Checksum crc = ChecksumAlgorithm.fromVersion(fhdr.getVersion()).create();
 
         int count = 0;
         while (true) {
@@ -79,7 +80,7 @@ public class LogFormatter {
                 System.out.println("EOF reached after " + count + " txns.");
                 return;
             }
-            Checksum crc = new Adler32();
+            crc.reset();
             crc.update(bytes, 0, bytes.length);
             if (crcValue != crc.getValue()) {
                 throw new IOException("CRC doesn't match " + crcValue +
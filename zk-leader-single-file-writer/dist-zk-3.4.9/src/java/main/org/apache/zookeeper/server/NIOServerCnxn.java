@@ -768,6 +768,18 @@ public class NIOServerCnxn extends ServerCnxn {
             print("ephemerals_count", zkdb.getDataTree().getEphemeralsCount());
             print("approximate_data_size", zkdb.getDataTree().approximateDataSize());
 
+            print("group_commit_count", stats.getGroupCommitCount());
+            print("group_commit_avg_size", stats.getAvgGroupCommitSize());
+            print("group_commit_max_size", stats.getMaxGroupCommitSize());
+            print("group_commit_avg_wait_us", stats.getAvgGroupCommitWaitMicros());
+            print("group_commit_max_wait_us", stats.getMaxGroupCommitWaitMicros());
+            print("group_commit_avg_fsync_us", stats.getAvgGroupCommitFsyncMicros());
+            long[] groupCommitSizes = stats.getGroupCommitSizes();
+            for (int i = 0; i < groupCommitSizes.length; i++) {
+                print("group_commit_size_" + ServerStats.getGroupCommitSizeBucket(i),
+                        groupCommitSizes[i]);
+            }
+
             OSMXBean osMbean = new OSMXBean();
             if (osMbean != null && osMbean.getUnix() == true) {
                 print("open_file_descriptor_count", osMbean.getOpenFileDescriptorCount());
@@ -969,6 +981,7 @@ public class NIOServerCnxn extends ServerCnxn {
             if (!factory.cnxns.remove(this)) {
                 return;
             }
+            setStale();
 
             synchronized (factory.ipMap) {
                 Set<NIOServerCnxn> s =
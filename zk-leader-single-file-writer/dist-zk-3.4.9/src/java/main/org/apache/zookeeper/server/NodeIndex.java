@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+/**
+ * Lookup of the nodes of a DataTree by path. The tree itself (children of
+ * the nodes) is the source of truth, the index only has to follow it.
+ * "" and "/" are both the root.
+ *
+ * Lookups may run concurrently with each other and with updates, updates
+ * are applied by one thread at a time.
+ */
+public interface NodeIndex {
+
+    /**
+     * @return node of the path, null if there is none
+     */
+    public DataNode get(String path);
+
+    public void put(String path, DataNode node);
+
+    /**
+     * @return the removed node, null if there was none
+     */
+    public DataNode remove(String path);
+
+    /**
+     * @return number of nodes, the root is counted twice ("" & "/")
+     */
+    public int size();
+
+    public void clear();
+}
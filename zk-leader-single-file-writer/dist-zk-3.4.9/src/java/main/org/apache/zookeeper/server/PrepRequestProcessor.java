@@ -154,7 +154,7 @@ public class PrepRequestProcessor extends ZooKeeperCriticalThread implements
                     synchronized(n) {
                         children = n.getChildren();
                     }
-                    lastChange = new ChangeRecord(-1, path, n.stat,
+                    lastChange = new ChangeRecord(-1, path, n.getStat(),
                         children != null ? children.size() : 0,
                             zks.getZKDatabase().aclForNode(n));
                 }
@@ -637,6 +637,7 @@ public class PrepRequestProcessor extends ZooKeeperCriticalThread implements
             case OpCode.getChildren2:
             case OpCode.ping:
             case OpCode.setWatches:
+            case OpCode.addWatch:
                 zks.sessionTracker.checkSession(request.sessionId,
                         request.getOwner());
                 break;
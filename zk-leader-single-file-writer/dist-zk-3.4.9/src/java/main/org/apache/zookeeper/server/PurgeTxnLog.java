@@ -27,6 +27,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.TxnLogIndex;
 import org.apache.zookeeper.server.persistence.Util;
 
 /**
@@ -102,6 +103,9 @@ public class PurgeTxnLog {
         // add all non-excluded log files
         List<File> files = new ArrayList<File>(Arrays.asList(txnLog
                 .getDataDir().listFiles(new MyFileFilter(PREFIX_LOG))));
+        // along with the indexes of the log files
+        files.addAll(Arrays.asList(txnLog.getDataDir().listFiles(
+                new MyFileFilter(TxnLogIndex.PREFIX))));
         // add all non-excluded snapshot files to the deletion list
         files.addAll(Arrays.asList(txnLog.getSnapDir().listFiles(
                 new MyFileFilter(PREFIX_SNAPSHOT))));
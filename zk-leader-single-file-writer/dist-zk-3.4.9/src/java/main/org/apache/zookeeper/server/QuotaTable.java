@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The quotas of a DataTree with their limits parsed and their usage kept in
+ * counters, keyed by the quota'd path. The usage is written to the stat
+ * node of a quota only when that is read or snapshotted, instead of on
+ * every update of the subtree.
+ * <p>
+ * Lookups don't lock: the deepest quota above a path is found by probing
+ * its prefixes, starting from the depth of the deepest quota.
+ */
+class QuotaTable {
+    static final class Quota {
+        final String path;
+
+        final AtomicInteger count = new AtomicInteger();
+
+        final AtomicLong bytes = new AtomicLong();
+
+        volatile int countLimit = -1;
+
+        volatile long bytesLimit = -1;
+
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        Quota(String path) {
+            this.path = path;
+        }
+
+        int addCount(int diff) {
+            int updated = count.addAndGet(diff);
+            dirty.set(true);
+            return updated;
+        }
+
+        long addBytes(long diff) {
+            long updated = bytes.addAndGet(diff);
+            dirty.set(true);
+            return updated;
+        }
+
+        void setUsage(int count, long bytes) {
+            this.count.set(count);
+            this.bytes.set(bytes);
+            dirty.set(true);
+        }
+
+        /**
+         * @return whether the counters have changed since the last call,
+         * to be called before they are read to be written out
+         */
+        boolean clean() {
+            return dirty.getAndSet(false);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Quota> quotas =
+        new ConcurrentHashMap<String, Quota>();
+
+    /** the number of components of the deepest quota'd path */
+    private volatile int maxDepth;
+
+    boolean isEmpty() {
+        return quotas.isEmpty();
+    }
+
+    Quota get(String path) {
+        return quotas.get(path);
+    }
+
+    Collection<Quota> values() {
+        return quotas.values();
+    }
+
+    /**
+     * @return the quota of the path, added if missing
+     */
+    synchronized Quota add(String path) {
+        Quota quota = quotas.get(path);
+        if (quota == null) {
+            quota = new Quota(path);
+            quotas.put(path, quota);
+            maxDepth = Math.max(maxDepth, depth(path));
+        }
+        return quota;
+    }
+
+    synchronized Quota remove(String path) {
+        Quota quota = quotas.remove(path);
+        if (quota != null && depth(path) == maxDepth) {
+            int max = 0;
+            for (String p : quotas.keySet()) {
+                max = Math.max(max, depth(p));
+            }
+            maxDepth = max;
+        }
+        return quota;
+    }
+
+    synchronized void clear() {
+        quotas.clear();
+        maxDepth = 0;
+    }
+
+    /**
+     * @return the quota of the path or of its deepest ancestor that has one,
+     * null if none
+     */
+    Quota findMaxPrefix(String path) {
+        if (quotas.isEmpty()) {
+            return null;
+        }
+        // skip the components deeper than any quota
+        int depth = maxDepth;
+        int end = path.length();
+        for (int i = 1; i < path.length(); i++) {
+            if (path.charAt(i) == '/' && --depth == 0) {
+                end = i;
+                break;
+            }
+        }
+        while (end > 0) {
+            Quota quota = quotas.get(path.substring(0, end));
+            if (quota != null) {
+                return quota;
+            }
+            end = path.lastIndexOf('/', end - 1);
+        }
+        return null;
+    }
+
+    private static int depth(String path) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+}
@@ -117,6 +117,7 @@ public class Request {
         case OpCode.ping:
         case OpCode.closeSession:
         case OpCode.setWatches:
+        case OpCode.addWatch:
             return true;
         default:
             return false;
@@ -154,6 +155,8 @@ public class Request {
             return "create";
         case OpCode.setWatches:
             return "setWatches";
+        case OpCode.addWatch:
+            return "addWatch";
         case OpCode.delete:
             return "delete";
         case OpCode.exists:
@@ -55,6 +55,8 @@ public abstract class ServerCnxn implements Stats, Watcher {
      */
     boolean isOldClient = true;
 
+    private volatile boolean stale = false;
+
     abstract int getSessionTimeout();
 
     abstract void close();
@@ -67,10 +69,22 @@ public abstract class ServerCnxn implements Stats, Watcher {
 
     public abstract void process(WatchedEvent event);
 
-    abstract long getSessionId();
+    public abstract long getSessionId();
 
     abstract void setSessionId(long sessionId);
 
+    /**
+     * @return true once the connection is being closed, watches of requests
+     * processed after that are ignored, otherwise they would never be removed
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    void setStale() {
+        stale = true;
+    }
+
     /** auth info for the cnxn, returns an unmodifyable list */
     public List<Id> getAuthInfo() {
         return Collections.unmodifiableList(authInfo);
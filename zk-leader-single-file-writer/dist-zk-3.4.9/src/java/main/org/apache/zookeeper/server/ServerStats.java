@@ -30,6 +30,19 @@ public class ServerStats {
     private long totalLatency = 0;
     private long count = 0;
 
+    /**
+     * The number of batches of sizes 1, 2-3, 4-7 and so on, the last bucket
+     * counts the larger ones too
+     */
+    public static final int GROUP_COMMIT_SIZE_BUCKETS = 11;
+    private final long[] groupCommitSizes = new long[GROUP_COMMIT_SIZE_BUCKETS];
+    private long groupCommitCount;
+    private long groupCommitRequests;
+    private long maxGroupCommitSize;
+    private long groupCommitWaitMicros;
+    private long maxGroupCommitWaitMicros;
+    private long groupCommitFsyncMicros;
+
     private final Provider provider;
 
     public interface Provider {
@@ -78,6 +91,62 @@ public class ServerStats {
     public String getServerState() {
         return provider.getState();
     }
+
+    synchronized public long getGroupCommitCount() {
+        return groupCommitCount;
+    }
+
+    synchronized public long getAvgGroupCommitSize() {
+        if (groupCommitCount != 0) {
+            return groupCommitRequests / groupCommitCount;
+        }
+        return 0;
+    }
+
+    synchronized public long getMaxGroupCommitSize() {
+        return maxGroupCommitSize;
+    }
+
+    /** the time a batch has waited for more requests after the queue ran out */
+    synchronized public long getAvgGroupCommitWaitMicros() {
+        if (groupCommitCount != 0) {
+            return groupCommitWaitMicros / groupCommitCount;
+        }
+        return 0;
+    }
+
+    synchronized public long getMaxGroupCommitWaitMicros() {
+        return maxGroupCommitWaitMicros;
+    }
+
+    /** the time a batch has taken to be flushed and synced */
+    synchronized public long getAvgGroupCommitFsyncMicros() {
+        if (groupCommitCount != 0) {
+            return groupCommitFsyncMicros / groupCommitCount;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of batches by size, see GROUP_COMMIT_SIZE_BUCKETS
+     */
+    synchronized public long[] getGroupCommitSizes() {
+        return groupCommitSizes.clone();
+    }
+
+    /**
+     * @return the name of a bucket of getGroupCommitSizes, by the sizes it
+     *         counts, e.g. 4_7
+     */
+    public static String getGroupCommitSizeBucket(int bucket) {
+        if (bucket == 0) {
+            return "1";
+        }
+        if (bucket == GROUP_COMMIT_SIZE_BUCKETS - 1) {
+            return (1 << bucket) + "_";
+        }
+        return (1 << bucket) + "_" + ((2 << bucket) - 1);
+    }
     
     /** The number of client connections alive to this server */
     public int getNumAliveClientConnections() {
@@ -112,6 +181,30 @@ public class ServerStats {
             maxLatency = latency;
         }
     }
+    synchronized void updateGroupCommit(int size, long waitNanos,
+            long fsyncNanos) {
+        int bucket = 31 - Integer.numberOfLeadingZeros(size);
+        groupCommitSizes[Math.min(bucket, GROUP_COMMIT_SIZE_BUCKETS - 1)]++;
+        groupCommitCount++;
+        groupCommitRequests += size;
+        maxGroupCommitSize = Math.max(maxGroupCommitSize, size);
+        long waitMicros = waitNanos / 1000;
+        groupCommitWaitMicros += waitMicros;
+        maxGroupCommitWaitMicros = Math.max(maxGroupCommitWaitMicros,
+                waitMicros);
+        groupCommitFsyncMicros += fsyncNanos / 1000;
+    }
+    synchronized public void resetGroupCommit() {
+        for (int i = 0; i < groupCommitSizes.length; i++) {
+            groupCommitSizes[i] = 0;
+        }
+        groupCommitCount = 0;
+        groupCommitRequests = 0;
+        maxGroupCommitSize = 0;
+        groupCommitWaitMicros = 0;
+        maxGroupCommitWaitMicros = 0;
+        groupCommitFsyncMicros = 0;
+    }
     synchronized public void resetLatency(){
         totalLatency = 0;
         count = 0;
@@ -134,6 +227,7 @@ public class ServerStats {
     synchronized public void reset() {
         resetLatency();
         resetRequestCounters();
+        resetGroupCommit();
     }
 
 }
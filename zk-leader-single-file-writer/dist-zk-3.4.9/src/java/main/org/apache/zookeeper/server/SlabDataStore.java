@@ -0,0 +1,283 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps data of znodes off the Java heap, in slabs which are direct buffers
+ * or, given a directory, memory-mapped files (so that the data set may
+ * exceed the memory, paged in & out by the OS). Data is stored in a chunk
+ * of the smallest power of two size which fits it, carved out of the
+ * current slab. A released chunk is kept on the free list of its size and
+ * reused by the next data of that size, so that updates & deletes don't
+ * grow the slabs: they hold at most about twice the peak data of every
+ * size. Slabs are never freed; see getSlabBytes() vs getLiveBytes().
+ * <p>
+ * Data shorter than MIN_LENGTH (a byte[] on the heap is smaller than the
+ * handle) or longer than a slab stays on the heap. Data must not be read
+ * after it has been released; DataTree reads & releases data of a node
+ * while synchronized on the node.
+ */
+public class SlabDataStore {
+    private static final Logger LOG = LoggerFactory.getLogger(SlabDataStore.class);
+
+    /** shorter data is kept on the heap */
+    static final int MIN_LENGTH = 32;
+
+    private final int slabSize;
+
+    private final File directory;
+
+    private final ArrayList<Slab> slabs = new ArrayList<Slab>();
+
+    /**
+     * free chunks by the log2 of their size, as the index of the slab
+     * shifted left by 32 bits | the offset in it
+     */
+    private final long[][] freeChunks = new long[32][];
+
+    private final int[] freeCounts = new int[32];
+
+    private Slab current;
+
+    private long liveBytes;
+
+    /**
+     * @param slabSize size of a slab in bytes
+     * @param directory directory of memory-mapped slabs, null for direct
+     *        buffers
+     */
+    public SlabDataStore(int slabSize, File directory) {
+        if (slabSize <= 0) {
+            throw new IllegalArgumentException("Invalid slab size " + slabSize);
+        }
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Couldn't create slab directory "
+                    + directory);
+        }
+        this.slabSize = slabSize;
+        this.directory = directory;
+    }
+
+    /**
+     * @return what a DataNode has to keep instead of the data: the data
+     *         itself if it stays on the heap, otherwise a Data handle
+     */
+    public Object store(byte[] data) {
+        if (data == null || data.length < MIN_LENGTH || data.length > slabSize) {
+            return data;
+        }
+        int sizeClass = sizeClass(data.length);
+        Slab slab;
+        int offset;
+        synchronized (this) {
+            if (freeCounts[sizeClass] > 0) {
+                long chunk = freeChunks[sizeClass][--freeCounts[sizeClass]];
+                slab = slabs.get((int) (chunk >>> 32));
+                offset = (int) chunk;
+            } else {
+                int size = chunkSize(sizeClass);
+                if (current == null || current.allocated + size > slabSize) {
+                    if (current != null) {
+                        freeTail(current);
+                    }
+                    current = newSlab();
+                }
+                slab = current;
+                offset = slab.allocated;
+                slab.allocated += size;
+            }
+            liveBytes += data.length;
+        }
+        // the range is reserved, readers get the handle after it's filled
+        ByteBuffer buffer = slab.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(data);
+        return new Data(slab, offset, data.length);
+    }
+
+    /**
+     * Releases what store() returned, if it's a handle of off-heap data
+     */
+    public void release(Object stored) {
+        if (!(stored instanceof Data)) {
+            return;
+        }
+        Data data = (Data) stored;
+        synchronized (this) {
+            Slab slab = data.slab;
+            if (slab == null) {
+                throw new IllegalStateException("Data released twice");
+            }
+            data.slab = null;
+            liveBytes -= data.length;
+            free(sizeClass(data.length), slab, data.offset);
+        }
+    }
+
+    /**
+     * @return bytes of the data stored off the heap
+     */
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * @return bytes taken by all the slabs, including the free chunks
+     */
+    public synchronized long getSlabBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    public synchronized int getSlabCount() {
+        return slabs.size();
+    }
+
+    /**
+     * @return log2 of the size of the chunks the data of the length goes to
+     */
+    private static int sizeClass(int length) {
+        return 32 - Integer.numberOfLeadingZeros(length - 1);
+    }
+
+    /**
+     * @return size of the chunks of the class, a slab at most
+     */
+    private int chunkSize(int sizeClass) {
+        return (int) Math.min(1L << sizeClass, slabSize);
+    }
+
+    private void free(int sizeClass, Slab slab, int offset) {
+        long[] chunks = freeChunks[sizeClass];
+        if (chunks == null) {
+            chunks = new long[16];
+        } else if (freeCounts[sizeClass] == chunks.length) {
+            long[] grown = new long[chunks.length * 2];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            chunks = grown;
+        }
+        freeChunks[sizeClass] = chunks;
+        chunks[freeCounts[sizeClass]++] = (long) slab.index << 32 | offset;
+    }
+
+    /**
+     * Frees the rest of a slab which the next chunk doesn't fit into, as
+     * chunks of the sizes it adds up to
+     */
+    private void freeTail(Slab slab) {
+        int remaining;
+        while ((remaining = slabSize - slab.allocated) >= MIN_LENGTH) {
+            int sizeClass = 31 - Integer.numberOfLeadingZeros(remaining);
+            free(sizeClass, slab, slab.allocated);
+            slab.allocated += 1 << sizeClass;
+        }
+    }
+
+    private Slab newSlab() {
+        ByteBuffer buffer;
+        if (directory == null) {
+            buffer = ByteBuffer.allocateDirect(slabSize);
+        } else {
+            try {
+                File file = File.createTempFile("slab-", ".data", directory);
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(slabSize);
+                    buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                            slabSize);
+                } finally {
+                    raf.close();
+                }
+                // the mapping outlives the file where it may be deleted
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't map slab in " + directory, e);
+            }
+        }
+        Slab slab = new Slab(buffer, slabs.size());
+        slabs.add(slab);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Allocated slab " + slabs.size() + " of " + slabSize + " bytes");
+        }
+        return slab;
+    }
+
+    private static final class Slab {
+        final ByteBuffer buffer;
+
+        final int index;
+
+        /** guarded by the store: bytes carved into chunks */
+        int allocated;
+
+        Slab(ByteBuffer buffer, int index) {
+            this.buffer = buffer;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Handle of data stored off the heap
+     */
+    public static final class Data {
+        /** null once released */
+        private Slab slab;
+
+        private final int offset;
+
+        private final int length;
+
+        Data(Slab slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        /**
+         * @return copy of the data on the heap
+         */
+        public byte[] get() {
+            Slab s = slab;
+            if (s == null) {
+                throw new IllegalStateException("Data read after release");
+            }
+            byte[] data = new byte[length];
+            ByteBuffer buffer = s.buffer.duplicate();
+            buffer.position(offset);
+            buffer.get(data);
+            return data;
+        }
+    }
+}
@@ -26,12 +26,12 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.Adler32;
 import java.util.zip.CheckedInputStream;
 
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.zookeeper.data.StatPersisted;
+import org.apache.zookeeper.server.persistence.ChecksumAlgorithm;
 import org.apache.zookeeper.server.persistence.FileSnap;
 
 /**
@@ -52,9 +52,10 @@ public class SnapshotFormatter {
     }
     
     public void run(String snapshotFileName) throws IOException {
-        InputStream is = new CheckedInputStream(
-                new BufferedInputStream(new FileInputStream(snapshotFileName)),
-                new Adler32());
+        InputStream snapIS = new BufferedInputStream(
+                new FileInputStream(snapshotFileName));
+        InputStream is = new CheckedInputStream(snapIS,
+                ChecksumAlgorithm.fromHeader(snapIS).create());
         InputArchive ia = BinaryInputArchive.getArchive(is);
         
         FileSnap fileSnap = new FileSnap(null);
@@ -86,9 +87,9 @@ public class SnapshotFormatter {
         Set<String> children;
         synchronized(n) { // keep findbugs happy
             System.out.println(name);
-            printStat(n.stat);
+            printStat(n.getStat());
             if (n.data != null) {
-                System.out.println("  dataLength = " + n.data.length);
+                System.out.println("  dataLength = " + n.getDataLength());
             } else {
                 System.out.println("  no data");
             }
@@ -106,7 +107,7 @@ public class SnapshotFormatter {
         for (Map.Entry<Long, Integer> e : sessions.entrySet()) {
             long sid = e.getKey();
             System.out.println(String.format("%#016x, %d, %d",
-                    sid, e.getValue(), dataTree.getEphemerals(sid).size()));
+                    sid, e.getValue(), dataTree.getEphemeralPaths(sid).size()));
         }
     }
 
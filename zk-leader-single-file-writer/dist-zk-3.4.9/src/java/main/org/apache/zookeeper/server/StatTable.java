@@ -0,0 +1,247 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.data.StatPersisted;
+
+/**
+ * Persisted stats of the nodes of a DataTree, a column of primitives per
+ * field, indexed by slots the nodes refer to. Columns are allocated in
+ * chunks, so that growing the table doesn't copy them.
+ * <p>
+ * Every stripe of STRIPE_SIZE slots has a sequence number, odd while a
+ * slot of the stripe is being written, so that a stat is read consistently
+ * without locking: the read is retried if the sequence number has changed
+ * meanwhile. Writers of the same stripe exclude each other on it.
+ */
+class StatTable {
+    private static final int CHUNK_BITS = 12;
+
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int STRIPE_BITS = 4;
+
+    static final int STRIPE_SIZE = 1 << STRIPE_BITS;
+
+    private static final class Chunk {
+        final AtomicLongArray czxid = new AtomicLongArray(CHUNK_SIZE);
+        final AtomicLongArray mzxid = new AtomicLongArray(CHUNK_SIZE);
+        final AtomicLongArray ctime = new AtomicLongArray(CHUNK_SIZE);
+        final AtomicLongArray mtime = new AtomicLongArray(CHUNK_SIZE);
+        final AtomicLongArray ephemeralOwner = new AtomicLongArray(CHUNK_SIZE);
+        final AtomicLongArray pzxid = new AtomicLongArray(CHUNK_SIZE);
+        final AtomicIntegerArray version = new AtomicIntegerArray(CHUNK_SIZE);
+        final AtomicIntegerArray cversion = new AtomicIntegerArray(CHUNK_SIZE);
+        final AtomicIntegerArray aversion = new AtomicIntegerArray(CHUNK_SIZE);
+        final AtomicIntegerArray seq = new AtomicIntegerArray(CHUNK_SIZE >> STRIPE_BITS);
+
+        /**
+         * @return the (odd) sequence number of the stripe while written
+         */
+        int beginWrite(int i) {
+            int stripe = i >> STRIPE_BITS;
+            while (true) {
+                int s = seq.get(stripe);
+                if ((s & 1) == 0 && seq.compareAndSet(stripe, s, s + 1)) {
+                    return s + 1;
+                }
+            }
+        }
+
+        void endWrite(int i, int s) {
+            seq.set(i >> STRIPE_BITS, s + 1);
+        }
+
+        /**
+         * @return the (even) sequence number of the stripe to read at
+         */
+        int beginRead(int i) {
+            int stripe = i >> STRIPE_BITS;
+            while (true) {
+                int s = seq.get(stripe);
+                if ((s & 1) == 0) {
+                    return s;
+                }
+            }
+        }
+
+        boolean endRead(int i, int s) {
+            return seq.get(i >> STRIPE_BITS) == s;
+        }
+    }
+
+    private volatile Chunk[] chunks = new Chunk[0];
+
+    /** guarded by this: slots freed by removed nodes */
+    private int[] freeSlots = new int[16];
+
+    private int freeCount;
+
+    /** guarded by this: slots ever allocated */
+    private int slotCount;
+
+    /**
+     * @return a slot for a new node, its stat isn't initialized
+     */
+    synchronized int allocate() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        int slot = slotCount;
+        if (slot >> CHUNK_BITS == chunks.length) {
+            Chunk[] grown = new Chunk[chunks.length + 1];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            grown[chunks.length] = new Chunk();
+            chunks = grown;
+        }
+        slotCount++;
+        return slot;
+    }
+
+    synchronized void free(int slot) {
+        if (freeCount == freeSlots.length) {
+            int[] grown = new int[freeSlots.length * 2];
+            System.arraycopy(freeSlots, 0, grown, 0, freeCount);
+            freeSlots = grown;
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * @return number of slots in use
+     */
+    synchronized int size() {
+        return slotCount - freeCount;
+    }
+
+    private Chunk chunk(int slot) {
+        return chunks[slot >> CHUNK_BITS];
+    }
+
+    void set(int slot, StatPersisted from) {
+        Chunk c = chunk(slot);
+        int i = slot & (CHUNK_SIZE - 1);
+        int s = c.beginWrite(i);
+        c.czxid.lazySet(i, from.getCzxid());
+        c.mzxid.lazySet(i, from.getMzxid());
+        c.ctime.lazySet(i, from.getCtime());
+        c.mtime.lazySet(i, from.getMtime());
+        c.ephemeralOwner.lazySet(i, from.getEphemeralOwner());
+        c.pzxid.lazySet(i, from.getPzxid());
+        c.version.lazySet(i, from.getVersion());
+        c.cversion.lazySet(i, from.getCversion());
+        c.aversion.lazySet(i, from.getAversion());
+        c.endWrite(i, s);
+    }
+
+    void copyTo(int slot, StatPersisted to) {
+        Chunk c = chunk(slot);
+        int i = slot & (CHUNK_SIZE - 1);
+        int s;
+        do {
+            s = c.beginRead(i);
+            to.setCzxid(c.czxid.get(i));
+            to.setMzxid(c.mzxid.get(i));
+            to.setCtime(c.ctime.get(i));
+            to.setMtime(c.mtime.get(i));
+            to.setEphemeralOwner(c.ephemeralOwner.get(i));
+            to.setPzxid(c.pzxid.get(i));
+            to.setVersion(c.version.get(i));
+            to.setCversion(c.cversion.get(i));
+            to.setAversion(c.aversion.get(i));
+        } while (!c.endRead(i, s));
+    }
+
+    /**
+     * Copies the persisted fields, cversion as it is persisted
+     */
+    void copyTo(int slot, Stat to) {
+        Chunk c = chunk(slot);
+        int i = slot & (CHUNK_SIZE - 1);
+        int s;
+        do {
+            s = c.beginRead(i);
+            to.setCzxid(c.czxid.get(i));
+            to.setMzxid(c.mzxid.get(i));
+            to.setCtime(c.ctime.get(i));
+            to.setMtime(c.mtime.get(i));
+            to.setEphemeralOwner(c.ephemeralOwner.get(i));
+            to.setPzxid(c.pzxid.get(i));
+            to.setVersion(c.version.get(i));
+            to.setCversion(c.cversion.get(i));
+            to.setAversion(c.aversion.get(i));
+        } while (!c.endRead(i, s));
+    }
+
+    long getMzxid(int slot) {
+        return chunk(slot).mzxid.get(slot & (CHUNK_SIZE - 1));
+    }
+
+    long getPzxid(int slot) {
+        return chunk(slot).pzxid.get(slot & (CHUNK_SIZE - 1));
+    }
+
+    long getEphemeralOwner(int slot) {
+        return chunk(slot).ephemeralOwner.get(slot & (CHUNK_SIZE - 1));
+    }
+
+    int getCversion(int slot) {
+        return chunk(slot).cversion.get(slot & (CHUNK_SIZE - 1));
+    }
+
+    void setModified(int slot, long mzxid, long mtime, int version) {
+        Chunk c = chunk(slot);
+        int i = slot & (CHUNK_SIZE - 1);
+        int s = c.beginWrite(i);
+        c.mzxid.lazySet(i, mzxid);
+        c.mtime.lazySet(i, mtime);
+        c.version.lazySet(i, version);
+        c.endWrite(i, s);
+    }
+
+    void setCversionPzxid(int slot, int cversion, long pzxid) {
+        Chunk c = chunk(slot);
+        int i = slot & (CHUNK_SIZE - 1);
+        int s = c.beginWrite(i);
+        c.cversion.lazySet(i, cversion);
+        c.pzxid.lazySet(i, pzxid);
+        c.endWrite(i, s);
+    }
+
+    void setPzxid(int slot, long pzxid) {
+        Chunk c = chunk(slot);
+        int i = slot & (CHUNK_SIZE - 1);
+        int s = c.beginWrite(i);
+        c.pzxid.lazySet(i, pzxid);
+        c.endWrite(i, s);
+    }
+
+    void setAversion(int slot, int aversion) {
+        Chunk c = chunk(slot);
+        int i = slot & (CHUNK_SIZE - 1);
+        int s = c.beginWrite(i);
+        c.aversion.lazySet(i, aversion);
+        c.endWrite(i, s);
+    }
+}
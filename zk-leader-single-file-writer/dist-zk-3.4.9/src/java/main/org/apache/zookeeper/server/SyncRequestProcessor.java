@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.util.LinkedList;
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,7 +31,8 @@ import org.slf4j.LoggerFactory;
 /**
  * This RequestProcessor logs requests to disk. It batches the requests to do
  * the io efficiently. The request is not passed to the next RequestProcessor
- * until its log has been synced to disk.
+ * until its log has been synced to disk. A batch is flushed once there are
+ * no more queued requests, unless GroupCommitPolicy has it wait for more.
  *
  * SyncRequestProcessor is used in 3 different cases
  * 1. Leader - Sync request to disk and forward it to AckRequestProcessor which
@@ -60,6 +62,7 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
      * invoked after flush returns successfully.
      */
     private final LinkedList<Request> toFlush = new LinkedList<Request>();
+    private final GroupCommitPolicy groupCommit = new GroupCommitPolicy();
     private final Random r = new Random(System.nanoTime());
     /**
      * The number of log entries to log before starting a snapshot
@@ -128,14 +131,25 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
                 } else {
                     si = queuedRequests.poll();
                     if (si == null) {
-                        flush(toFlush);
-                        continue;
+                        // wait for more requests to share the flush with,
+                        // if they are expected in time
+                        long wait = groupCommit.getWaitNanos(System.nanoTime());
+                        if (wait > 0) {
+                            long start = System.nanoTime();
+                            si = queuedRequests.poll(wait, TimeUnit.NANOSECONDS);
+                            groupCommit.waited(System.nanoTime() - start);
+                        }
+                        if (si == null) {
+                            flush(toFlush);
+                            continue;
+                        }
                     }
                 }
                 if (si == requestOfDeath) {
                     break;
                 }
                 if (si != null) {
+                    long appendedBytes = zks.getZKDatabase().getAppendedBytes();
                     // track the number of records written to the log
                     if (zks.getZKDatabase().append(si)) {
                         logCount++;
@@ -174,7 +188,9 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
                         continue;
                     }
                     toFlush.add(si);
-                    if (toFlush.size() > 1000) {
+                    groupCommit.added(System.nanoTime(),
+                            zks.getZKDatabase().getAppendedBytes() - appendedBytes);
+                    if (toFlush.size() > 1000 || groupCommit.isFull()) {
                         flush(toFlush);
                     }
                 }
@@ -192,7 +208,13 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
         if (toFlush.isEmpty())
             return;
 
+        int size = toFlush.size();
+        long start = System.nanoTime();
         zks.getZKDatabase().commit();
+        long commitNanos = System.nanoTime() - start;
+        zks.serverStats().updateGroupCommit(size,
+                groupCommit.getBatchWaitNanos(), commitNanos);
+        groupCommit.committed(commitNanos);
         while (!toFlush.isEmpty()) {
             Request i = toFlush.remove();
             if (nextProcessor != null) {
@@ -228,6 +250,9 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
 
     public void processRequest(Request request) {
         // request.addRQRec(">sync");
+        if (request.hdr != null) {
+            groupCommit.arrived(System.nanoTime());
+        }
         queuedRequests.add(request);
     }
 
@@ -53,6 +53,8 @@ public class TraceFormatter {
             return "getChildren";
         case OpCode.getChildren2:
             return "getChildren2";
+        case OpCode.addWatch:
+            return "addWatch";
         case OpCode.ping:
             return "ping";
         case OpCode.createSession:
@@ -19,75 +19,148 @@
 package org.apache.zookeeper.server;
 
 import java.io.PrintWriter;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.server.util.LockStripes;
+import org.apache.zookeeper.server.watch.IWatchManager;
+import org.apache.zookeeper.server.watch.PersistentWatches;
 
 /**
  * This class manages watches. It allows watches to be associated with a string
  * and removes watchers and their watches in addition to managing triggers.
+ *
+ * Watches of a path are guarded by the path's lock stripe rather than by the
+ * whole manager, so that adding / triggering watches of unrelated paths and
+ * removal of a watcher don't contend with each other.
  */
-public class WatchManager {
+public class WatchManager implements IWatchManager {
     private static final Logger LOG = LoggerFactory.getLogger(WatchManager.class);
 
-    private final HashMap<String, HashSet<Watcher>> watchTable =
-        new HashMap<String, HashSet<Watcher>>();
+    private static final int LOCK_STRIPES = 256;
+
+    private final LockStripes pathLocks = new LockStripes(LOCK_STRIPES);
+
+    // sets are guarded by the lock stripe of their path
+    private final ConcurrentHashMap<String, HashSet<Watcher>> watchTable =
+        new ConcurrentHashMap<String, HashSet<Watcher>>();
+
+    // sets are guarded by themselves, updated under the lock stripe of the
+    // path being added / triggered
+    private final ConcurrentHashMap<Watcher, HashSet<String>> watch2Paths =
+        new ConcurrentHashMap<Watcher, HashSet<String>>();
 
-    private final HashMap<Watcher, HashSet<String>> watch2Paths =
-        new HashMap<Watcher, HashSet<String>>();
+    private final PersistentWatches persistentWatches = new PersistentWatches();
 
-    public synchronized int size(){
-        int result = 0;
-        for(Set<Watcher> watches : watchTable.values()) {
-            result += watches.size();
+    public int size(){
+        int result = persistentWatches.size();
+        for (Entry<String, HashSet<Watcher>> e : watchTable.entrySet()) {
+            synchronized (pathLocks.lockFor(e.getKey())) {
+                result += e.getValue().size();
+            }
         }
         return result;
     }
 
-    public synchronized void addWatch(String path, Watcher watcher) {
-        HashSet<Watcher> list = watchTable.get(path);
-        if (list == null) {
-            // don't waste memory if there are few watches on a node
-            // rehash when the 4th entry is added, doubling size thereafter
-            // seems like a good compromise
-            list = new HashSet<Watcher>(4);
-            watchTable.put(path, list);
+    public void addWatch(String path, Watcher watcher) {
+        if (isDeadWatcher(watcher)) {
+            // otherwise it would never be removed
+            LOG.debug("Ignoring watch of closed connection on {}", path);
+            return;
         }
-        list.add(watcher);
+        synchronized (pathLocks.lockFor(path)) {
+            HashSet<Watcher> list = watchTable.get(path);
+            if (list == null) {
+                // don't waste memory if there are few watches on a node
+                // rehash when the 4th entry is added, doubling size thereafter
+                // seems like a good compromise
+                list = new HashSet<Watcher>(4);
+                watchTable.put(path, list);
+            }
+            list.add(watcher);
 
-        HashSet<String> paths = watch2Paths.get(watcher);
-        if (paths == null) {
-            // cnxns typically have many watches, so use default cap here
-            paths = new HashSet<String>();
-            watch2Paths.put(watcher, paths);
+            HashSet<String> paths = watch2Paths.get(watcher);
+            if (paths == null) {
+                // cnxns typically have many watches, so use default cap here
+                paths = new HashSet<String>();
+                HashSet<String> existingPaths = watch2Paths.putIfAbsent(watcher, paths);
+                if (existingPaths != null) {
+                    paths = existingPaths;
+                }
+            }
+            synchronized (paths) {
+                paths.add(path);
+            }
+            if (watch2Paths.get(watcher) != paths) {
+                // detached by removeWatcher() meanwhile, which may have
+                // copied the set before the path was added, hence the watch
+                // is undone here (removal of a later copy is a no-op)
+                list.remove(watcher);
+                if (list.isEmpty()) {
+                    watchTable.remove(path);
+                }
+            }
+        }
+        if (isDeadWatcher(watcher)) {
+            // closed meanwhile, removal may have missed the watch
+            removeWatcher(watcher);
         }
-        paths.add(path);
     }
 
-    public synchronized void removeWatcher(Watcher watcher) {
-        HashSet<String> paths = watch2Paths.remove(watcher);
-        if (paths == null) {
+    public void addWatch(String path, Watcher watcher, AddWatchMode mode) {
+        if (isDeadWatcher(watcher)) {
+            // otherwise it would be notified of every later change
+            LOG.debug("Ignoring persistent watch of closed connection on {}", path);
             return;
         }
-        for (String p : paths) {
-            HashSet<Watcher> list = watchTable.get(p);
-            if (list != null) {
-                list.remove(watcher);
-                if (list.size() == 0) {
-                    watchTable.remove(p);
+        persistentWatches.add(path, watcher,
+                mode == AddWatchMode.PERSISTENT_RECURSIVE);
+        if (isDeadWatcher(watcher)) {
+            // closed meanwhile, removal may have missed the watch
+            persistentWatches.removeWatcher(watcher);
+        }
+    }
+
+    public void removeWatcher(Watcher watcher) {
+        persistentWatches.removeWatcher(watcher);
+        HashSet<String> paths;
+        // watches added while removing (connection closed in the middle of
+        // a request) are removed as well
+        while ((paths = watch2Paths.remove(watcher)) != null) {
+            String[] watchedPaths;
+            synchronized (paths) {
+                watchedPaths = paths.toArray(new String[paths.size()]);
+            }
+            for (String p : watchedPaths) {
+                synchronized (pathLocks.lockFor(p)) {
+                    HashSet<Watcher> list = watchTable.get(p);
+                    if (list != null) {
+                        list.remove(watcher);
+                        if (list.size() == 0) {
+                            watchTable.remove(p);
+                        }
+                    }
                 }
             }
         }
     }
 
+    /**
+     * A closed connection is stale before its watcher is removed
+     */
+    private static boolean isDeadWatcher(Watcher watcher) {
+        return watcher instanceof ServerCnxn && ((ServerCnxn) watcher).isStale();
+    }
+
     public Set<Watcher> triggerWatch(String path, EventType type) {
         return triggerWatch(path, type, null);
     }
@@ -96,22 +169,32 @@ public class WatchManager {
         WatchedEvent e = new WatchedEvent(type,
                 KeeperState.SyncConnected, path);
         HashSet<Watcher> watchers;
-        synchronized (this) {
+        synchronized (pathLocks.lockFor(path)) {
             watchers = watchTable.remove(path);
-            if (watchers == null || watchers.isEmpty()) {
-                if (LOG.isTraceEnabled()) {
-                    ZooTrace.logTraceMessage(LOG,
-                            ZooTrace.EVENT_DELIVERY_TRACE_MASK,
-                            "No watchers for " + path);
+            if (watchers != null) {
+                for (Watcher w : watchers) {
+                    HashSet<String> paths = watch2Paths.get(w);
+                    if (paths != null) {
+                        synchronized (paths) {
+                            paths.remove(path);
+                        }
+                    }
                 }
-                return null;
             }
-            for (Watcher w : watchers) {
-                HashSet<String> paths = watch2Paths.get(w);
-                if (paths != null) {
-                    paths.remove(path);
-                }
+        }
+        if (persistentWatches.size() > 0) {
+            if (watchers == null) {
+                watchers = new HashSet<Watcher>();
+            }
+            persistentWatches.collectWatchers(path, true, watchers);
+        }
+        if (watchers == null || watchers.isEmpty()) {
+            if (LOG.isTraceEnabled()) {
+                ZooTrace.logTraceMessage(LOG,
+                        ZooTrace.EVENT_DELIVERY_TRACE_MASK,
+                        "No watchers for " + path);
             }
+            return null;
         }
         for (Watcher w : watchers) {
             if (supress != null && supress.contains(w)) {
@@ -122,11 +205,15 @@ public class WatchManager {
         return watchers;
     }
 
+    public void shutdown() {
+        // nothing to release
+    }
+
     /**
      * Brief description of this object.
      */
     @Override
-    public synchronized String toString() {
+    public String toString() {
         StringBuilder sb = new StringBuilder();
 
         sb.append(watch2Paths.size()).append(" connections watching ")
@@ -134,9 +221,11 @@ public class WatchManager {
 
         int total = 0;
         for (HashSet<String> paths : watch2Paths.values()) {
-            total += paths.size();
+            synchronized (paths) {
+                total += paths.size();
+            }
         }
-        sb.append("Total watches:").append(total);
+        sb.append("Total watches:").append(total + persistentWatches.size());
 
         return sb.toString();
     }
@@ -147,11 +236,15 @@ public class WatchManager {
      * watches by connection
      * @return string representation of watches
      */
-    public synchronized void dumpWatches(PrintWriter pwriter, boolean byPath) {
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
         if (byPath) {
             for (Entry<String, HashSet<Watcher>> e : watchTable.entrySet()) {
+                Watcher[] watchers;
+                synchronized (pathLocks.lockFor(e.getKey())) {
+                    watchers = e.getValue().toArray(new Watcher[0]);
+                }
                 pwriter.println(e.getKey());
-                for (Watcher w : e.getValue()) {
+                for (Watcher w : watchers) {
                     pwriter.print("\t0x");
                     pwriter.print(Long.toHexString(((ServerCnxn)w).getSessionId()));
                     pwriter.print("\n");
@@ -159,13 +252,18 @@ public class WatchManager {
             }
         } else {
             for (Entry<Watcher, HashSet<String>> e : watch2Paths.entrySet()) {
+                String[] paths;
+                synchronized (e.getValue()) {
+                    paths = e.getValue().toArray(new String[0]);
+                }
                 pwriter.print("0x");
                 pwriter.println(Long.toHexString(((ServerCnxn)e.getKey()).getSessionId()));
-                for (String path : e.getValue()) {
+                for (String path : paths) {
                     pwriter.print("\t");
                     pwriter.println(path);
                 }
             }
         }
+        persistentWatches.dumpWatches(pwriter, byPath);
     }
 }
@@ -25,6 +25,7 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
@@ -36,6 +37,7 @@ import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.NoNodeException;
 import org.apache.zookeeper.Watcher;
@@ -107,6 +109,7 @@ public class ZKDatabase {
         /* to be safe we just create a new 
          * datatree.
          */
+        dataTree.shutdownWatcher();
         dataTree = new DataTree();
         sessionsWithTimeouts.clear();
         WriteLock lock = logLock.writeLock();
@@ -313,6 +316,15 @@ public class ZKDatabase {
         return dataTree.getEphemerals(sessionId);
     }
 
+    /**
+     * the paths for ephemeral session id, without copying them
+     * @param sessionId the session id for which paths match to
+     * @return a read-only view of the paths for a session id
+     */
+    public Set<String> getEphemeralPaths(long sessionId) {
+        return dataTree.getEphemeralPaths(sessionId);
+    }
+
     /**
      * the last processed zxid in the datatree
      * @param zxid the last processed zxid in the datatree
@@ -378,6 +390,16 @@ public class ZKDatabase {
         dataTree.setWatches(relativeZxid, dataWatches, existWatches, childWatches, watcher);
     }
     
+    /**
+     * add a persistent watch on the datatree
+     * @param basePath the path to watch
+     * @param watcher the watcher function
+     * @param mode mode of the watch
+     */
+    public void addWatch(String basePath, Watcher watcher, AddWatchMode mode) {
+        dataTree.addWatch(basePath, watcher, mode);
+    }
+
     /**
      * get acl for a path
      * @param path the path to query for acl
@@ -470,6 +492,14 @@ public class ZKDatabase {
         return this.snapLog.append(si);
     }
 
+    /**
+     * the bytes appended to the underlying transaction log so far
+     * @return the bytes of the appended transactions
+     */
+    public long getAppendedBytes() {
+        return this.snapLog.getAppendedBytes();
+    }
+
     /**
      * roll the underlying log
      */
@@ -491,6 +521,7 @@ public class ZKDatabase {
      */
     public void close() throws IOException {
         this.snapLog.close();
+        dataTree.shutdownWatcher();
     }
     
 }
@@ -139,9 +139,38 @@ public class ZooKeeperServerBean implements ZooKeeperServerMXBean, ZKMBeanInfo {
         ServerStats serverStats = zks.serverStats();
         serverStats.resetRequestCounters();
         serverStats.resetLatency();
+        serverStats.resetGroupCommit();
     }
 
     public long getNumAliveConnections() {
         return zks.getNumAliveConnections();
     }
+
+    public long getGroupCommitCount() {
+        return zks.serverStats().getGroupCommitCount();
+    }
+
+    public long getAvgGroupCommitSize() {
+        return zks.serverStats().getAvgGroupCommitSize();
+    }
+
+    public long getMaxGroupCommitSize() {
+        return zks.serverStats().getMaxGroupCommitSize();
+    }
+
+    public long getAvgGroupCommitWaitMicros() {
+        return zks.serverStats().getAvgGroupCommitWaitMicros();
+    }
+
+    public long getMaxGroupCommitWaitMicros() {
+        return zks.serverStats().getMaxGroupCommitWaitMicros();
+    }
+
+    public long getAvgGroupCommitFsyncMicros() {
+        return zks.serverStats().getAvgGroupCommitFsyncMicros();
+    }
+
+    public long[] getGroupCommitSizes() {
+        return zks.serverStats().getGroupCommitSizes();
+    }
 }
@@ -107,4 +107,32 @@ public interface ZooKeeperServerMXBean {
      * @return number of alive client connections
      */
     public long getNumAliveConnections();
+    /**
+     * @return number of batches of requests flushed to the txn log
+     */
+    public long getGroupCommitCount();
+    /**
+     * @return average number of requests of a flushed batch
+     */
+    public long getAvgGroupCommitSize();
+    /**
+     * @return max number of requests of a flushed batch
+     */
+    public long getMaxGroupCommitSize();
+    /**
+     * @return average time a batch waited for more requests, in microseconds
+     */
+    public long getAvgGroupCommitWaitMicros();
+    /**
+     * @return max time a batch waited for more requests, in microseconds
+     */
+    public long getMaxGroupCommitWaitMicros();
+    /**
+     * @return average time to flush and sync a batch, in microseconds
+     */
+    public long getAvgGroupCommitFsyncMicros();
+    /**
+     * @return number of flushed batches of 1, 2-3, 4-7... requests
+     */
+    public long[] getGroupCommitSizes();
 }
@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+
+import org.apache.jute.BinaryInputArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checksum algorithms of txn logs and snapshots. The version in the
+ * FileHeader of a file tells which one its txns (or the whole snapshot)
+ * are checksummed with, so that files written by older servers are still
+ * read. New files are written with the algorithm set by
+ * {@link #CHECKSUM_ALGORITHM}, CRC32C by default.
+ */
+public enum ChecksumAlgorithm {
+    /** the checksum of files written by 3.4.9 and older */
+    ADLER32(2),
+    /**
+     * CRC32C, computed with the CPU instructions by java.util.zip.CRC32C
+     * where available (Java 9+)
+     */
+    CRC32C(3);
+
+    /**
+     * The algorithm new txn logs and snapshots are written with, ADLER32 to
+     * keep them readable by older servers (e.g. during a rolling downgrade).
+     */
+    public static final String CHECKSUM_ALGORITHM = "zookeeper.checksumAlgorithm";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChecksumAlgorithm.class);
+
+    /** java.util.zip.CRC32C, or null if the JVM doesn't have it */
+    private static final Class<? extends Checksum> JDK_CRC32C = findJdkCrc32c();
+
+    private final int version;
+
+    private ChecksumAlgorithm(int version) {
+        this.version = version;
+    }
+
+    /**
+     * @return the FileHeader version of the files checksummed with this
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return a new checksum of this algorithm
+     */
+    public Checksum create() {
+        if (this == ADLER32) {
+            return new Adler32();
+        }
+        if (JDK_CRC32C != null) {
+            try {
+                return JDK_CRC32C.newInstance();
+            } catch (Exception e) {
+                LOG.warn("Failed to create java.util.zip.CRC32C", e);
+            }
+        }
+        return new Crc32c();
+    }
+
+    /**
+     * @param version the version from a FileHeader
+     * @return the algorithm files of the version are checksummed with
+     * @throws IOException if the version is not known
+     */
+    public static ChecksumAlgorithm fromVersion(int version) throws IOException {
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm.version == version) {
+                return algorithm;
+            }
+        }
+        throw new IOException("Unsupported file format version " + version);
+    }
+
+    /**
+     * Reads the FileHeader at the beginning of the stream and resets the
+     * stream back, so that the header can be read with the checksum.
+     * @param in the stream of a txn log or snapshot, which has to
+     * support mark
+     * @return the algorithm the file is checksummed with
+     * @throws IOException
+     */
+    public static ChecksumAlgorithm fromHeader(InputStream in) throws IOException {
+        // magic, version & dbid
+        in.mark(16);
+        FileHeader header = new FileHeader();
+        header.deserialize(BinaryInputArchive.getArchive(in), "fileheader");
+        in.reset();
+        return fromVersion(header.getVersion());
+    }
+
+    /**
+     * @return the algorithm new files are to be written with
+     */
+    public static ChecksumAlgorithm getConfigured() {
+        String name = System.getProperty(CHECKSUM_ALGORITHM);
+        if (name == null) {
+            return CRC32C;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warn(name + " is not a valid value for " + CHECKSUM_ALGORITHM
+                    + ", using CRC32C");
+            return CRC32C;
+        }
+    }
+
+    private static Class<? extends Checksum> findJdkCrc32c() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.persistence;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) computed 8 bytes at a time with lookup tables, for
+ * JVMs without java.util.zip.CRC32C (before Java 9).
+ */
+public class Crc32c implements Checksum {
+    /** the reflected Castagnoli polynomial */
+    private static final int POLY = 0x82F63B78;
+
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int t = 1; t < 8; t++) {
+                int prev = TABLES[t - 1][i];
+                TABLES[t][i] = (prev >>> 8) ^ TABLES[0][prev & 0xff];
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+    }
+
+    public void update(byte[] b, int off, int len) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        final int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int c = crc;
+        int end = off + len;
+        while (end - off >= 8) {
+            int lo = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+                    | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+            int hi = (b[off + 4] & 0xff) | (b[off + 5] & 0xff) << 8
+                    | (b[off + 6] & 0xff) << 16 | (b[off + 7] & 0xff) << 24;
+            c = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff]
+                    ^ t4[lo >>> 24] ^ t3[hi & 0xff] ^ t2[(hi >>> 8) & 0xff]
+                    ^ t1[(hi >>> 16) & 0xff] ^ t0[hi >>> 24];
+            off += 8;
+        }
+        while (off < end) {
+            c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xff];
+        }
+        crc = c;
+    }
+
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    public void reset() {
+        crc = 0xffffffff;
+    }
+}
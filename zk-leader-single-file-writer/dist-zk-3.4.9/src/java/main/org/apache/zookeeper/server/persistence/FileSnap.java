@@ -29,7 +29,6 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.Adler32;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
 
@@ -51,7 +50,6 @@ import org.apache.zookeeper.server.util.SerializeUtils;
 public class FileSnap implements SnapShot {
     File snapDir;
     private volatile boolean close = false;
-    private static final int VERSION=2;
     private static final long dbId=-1;
     private static final Logger LOG = LoggerFactory.getLogger(FileSnap.class);
     public final static int SNAP_MAGIC
@@ -82,7 +80,8 @@ public class FileSnap implements SnapShot {
             try {
                 LOG.info("Reading snapshot " + snap);
                 snapIS = new BufferedInputStream(new FileInputStream(snap));
-                crcIn = new CheckedInputStream(snapIS, new Adler32());
+                crcIn = new CheckedInputStream(snapIS,
+                        ChecksumAlgorithm.fromHeader(snapIS).create());
                 InputArchive ia = BinaryInputArchive.getArchive(crcIn);
                 deserialize(dt,sessions, ia);
                 long checkSum = crcIn.getChecksum().getValue();
@@ -124,6 +123,8 @@ public class FileSnap implements SnapShot {
                     + header.getMagic() + 
                     " !=  " + FileSnap.SNAP_MAGIC);
         }
+        // rejects the versions which are not known
+        ChecksumAlgorithm.fromVersion(header.getVersion());
         SerializeUtils.deserializeSnapshot(dt,ia,sessions);
     }
 
@@ -223,10 +224,11 @@ public class FileSnap implements SnapShot {
             throws IOException {
         if (!close) {
             OutputStream sessOS = new BufferedOutputStream(new FileOutputStream(snapShot));
-            CheckedOutputStream crcOut = new CheckedOutputStream(sessOS, new Adler32());
+            ChecksumAlgorithm algorithm = ChecksumAlgorithm.getConfigured();
+            CheckedOutputStream crcOut = new CheckedOutputStream(sessOS, algorithm.create());
             //CheckedOutputStream cout = new CheckedOutputStream()
             OutputArchive oa = BinaryOutputArchive.getArchive(crcOut);
-            FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
+            FileHeader header = new FileHeader(SNAP_MAGIC, algorithm.getVersion(), dbId);
             serialize(dt,sessions,oa, header);
             long val = crcOut.getChecksum().getValue();
             oa.writeLong(val, "val");
@@ -18,7 +18,8 @@
 package org.apache.zookeeper.server.persistence;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -28,17 +29,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.Adler32;
 import java.util.zip.Checksum;
 
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.InputArchive;
-import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
 import org.apache.zookeeper.server.util.SerializeUtils;
 import org.apache.zookeeper.txn.TxnHeader;
@@ -66,7 +66,8 @@ import org.slf4j.LoggerFactory;
  * Txn:
  *     checksum Txnlen TxnHeader Record 0x42
  * 
- * checksum: 8bytes Adler32 is currently used
+ * checksum: 8bytes Adler32 in version 2 files, CRC32C in version 3 ones
+ *   (see {@link ChecksumAlgorithm})
  *   calculated across payload -- Txnlen, TxnHeader, Record and 0x42
  * 
  * Txnlen:
@@ -86,6 +87,11 @@ import org.slf4j.LoggerFactory;
  * ZeroPad:
  *     0 padded to EOF (filled during preallocation stage)
  * </pre></blockquote> 
+ * <p>
+ * Appended txns are serialized into a reused buffer and copied into a
+ * direct one, which is written to the channel of the log file once full or
+ * on commit, so that appends don't allocate once the buffers have grown to
+ * fit the txns.
  */
 public class FileTxnLog implements TxnLog {
     private static final Logger LOG;
@@ -95,8 +101,20 @@ public class FileTxnLog implements TxnLog {
     public final static int TXNLOG_MAGIC =
         ByteBuffer.wrap("ZKLG".getBytes()).getInt();
 
+    /**
+     * the version of the files checksummed with Adler32, new files are
+     * written with the version of {@link ChecksumAlgorithm#getConfigured()}
+     */
     public final static int VERSION = 2;
 
+    /** the size of the direct buffer the log file is written from */
+    static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /** the checksum and the length before a txn, the EOR byte after it */
+    private static final int TXN_FRAME_SIZE = 8 + 4 + 1;
+
+    private static final byte[] EOR = { 0x42 }; // 'B'
+
     /** Maximum time we allow for elapsed fsync before WARNing */
     private final static long fsyncWarningThresholdMS;
 
@@ -119,16 +137,31 @@ public class FileTxnLog implements TxnLog {
     }
 
     long lastZxidSeen;
-    volatile BufferedOutputStream logStream = null;
-    volatile OutputArchive oa;
+    volatile FileChannel logChannel = null;
     volatile FileOutputStream fos = null;
 
+    /** the bytes appended since the last write to the log file */
+    private ByteBuffer writeBuffer;
+
+    /** the txn being appended, before it is copied to writeBuffer */
+    private final TxnBuffer txnBuffer = new TxnBuffer();
+
+    private final BinaryOutputArchive txnArchive =
+        new BinaryOutputArchive(new DataOutputStream(txnBuffer));
+
+    private Checksum checksum;
+
+    /** the index of the current log file */
+    private TxnLogIndex logIndex;
+
     File logDir;
     private final boolean forceSync = !System.getProperty("zookeeper.forceSync", "yes").equals("no");;
+    private final ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.getConfigured();
     long dbId;
     private LinkedList<FileOutputStream> streamsToFlush =
         new LinkedList<FileOutputStream>();
     long currentSize;
+    long appendedBytes;
     File logFileWrite = null;
 
     /**
@@ -154,7 +187,7 @@ public class FileTxnLog implements TxnLog {
      * @return the checksum used for this txnlog
      */
     protected Checksum makeChecksumAlgorithm(){
-        return new Adler32();
+        return checksumAlgorithm.create();
     }
 
 
@@ -163,10 +196,10 @@ public class FileTxnLog implements TxnLog {
      * @throws IOException
      */
     public synchronized void rollLog() throws IOException {
-        if (logStream != null) {
-            this.logStream.flush();
-            this.logStream = null;
-            oa = null;
+        if (logChannel != null) {
+            flushWriteBuffer();
+            logIndex.close();
+            this.logChannel = null;
         }
     }
 
@@ -175,8 +208,9 @@ public class FileTxnLog implements TxnLog {
      * @throws IOException
      */
     public synchronized void close() throws IOException {
-        if (logStream != null) {
-            logStream.close();
+        if (logChannel != null) {
+            flushWriteBuffer();
+            logIndex.close();
         }
         for (FileOutputStream log : streamsToFlush) {
             log.close();
@@ -198,7 +232,7 @@ public class FileTxnLog implements TxnLog {
                         + " is <= " + lastZxidSeen + " for "
                         + hdr.getType());
             }
-            if (logStream==null) {
+            if (logChannel==null) {
                if(LOG.isInfoEnabled()){
                     LOG.info("Creating new log file: log." +  
                             Long.toHexString(hdr.getZxid()));
@@ -206,39 +240,106 @@ public class FileTxnLog implements TxnLog {
                
                logFileWrite = new File(logDir, ("log." + 
                        Long.toHexString(hdr.getZxid())));
+               // the index is created first, so that it is not rebuilt
+               // by an iterator reading the new log
+               logIndex = TxnLogIndex.create(logFileWrite);
                fos = new FileOutputStream(logFileWrite);
-               logStream=new BufferedOutputStream(fos);
-               oa = BinaryOutputArchive.getArchive(logStream);
-               FileHeader fhdr = new FileHeader(TXNLOG_MAGIC,VERSION, dbId);
-               fhdr.serialize(oa, "fileheader");
+               logChannel = fos.getChannel();
+               if (writeBuffer == null) {
+                   writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+                   checksum = makeChecksumAlgorithm();
+               }
+               FileHeader fhdr = new FileHeader(TXNLOG_MAGIC,
+                       checksumAlgorithm.getVersion(), dbId);
+               txnBuffer.reset();
+               fhdr.serialize(txnArchive, "fileheader");
+               writeBuffer.put(txnBuffer.getBuffer(), 0, txnBuffer.size());
                // Make sure that the magic number is written before padding.
-               logStream.flush();
-               currentSize = fos.getChannel().position();
+               flushWriteBuffer();
+               currentSize = logChannel.position();
                streamsToFlush.add(fos);
             }
-            padFile(fos);
-            byte[] buf = Util.marshallTxnEntry(hdr, txn);
-            if (buf == null || buf.length == 0) {
+            padFile();
+            logIndex.add(hdr.getZxid(),
+                    logChannel.position() + writeBuffer.position());
+            txnBuffer.reset();
+            hdr.serialize(txnArchive, "hdr");
+            if (txn != null) {
+                txn.serialize(txnArchive, "txn");
+            }
+            byte[] buf = txnBuffer.getBuffer();
+            int length = txnBuffer.size();
+            if (length == 0) {
                 throw new IOException("Faulty serialization for header " +
                         "and txn");
             }
-            Checksum crc = makeChecksumAlgorithm();
-            crc.update(buf, 0, buf.length);
-            oa.writeLong(crc.getValue(), "txnEntryCRC");
-            Util.writeTxnBytes(oa, buf);
+            checksum.reset();
+            checksum.update(buf, 0, length);
+            int size = TXN_FRAME_SIZE + length;
+            if (size > writeBuffer.remaining()) {
+                if (size > writeBuffer.capacity()) {
+                    writeLargeTxn(checksum.getValue(), buf, length);
+                    appendedBytes += size;
+                    return true;
+                }
+                flushWriteBuffer();
+            }
+            writeBuffer.putLong(checksum.getValue());
+            writeBuffer.putInt(length);
+            writeBuffer.put(buf, 0, length);
+            writeBuffer.put(EOR[0]);
+            appendedBytes += size;
             
             return true;
         }
         return false;
     }
 
+    public synchronized long getAppendedBytes() {
+        return appendedBytes;
+    }
+
     /**
      * pad the current file to increase its size
-     * @param out the outputstream to be padded
      * @throws IOException
      */
-    private void padFile(FileOutputStream out) throws IOException {
-        currentSize = Util.padLogFile(out, currentSize, preAllocSize);
+    private void padFile() throws IOException {
+        currentSize = Util.padLogFile(logChannel,
+                logChannel.position() + writeBuffer.position(),
+                currentSize, preAllocSize);
+    }
+
+    /**
+     * writes a txn which doesn't fit into the write buffer, along with the
+     * buffered ones, in one gathering write
+     */
+    private void writeLargeTxn(long crc, byte[] buf, int length)
+        throws IOException
+    {
+        if (writeBuffer.remaining() < 12) {
+            flushWriteBuffer();
+        }
+        writeBuffer.putLong(crc);
+        writeBuffer.putInt(length);
+        writeBuffer.flip();
+        ByteBuffer[] buffers = { writeBuffer, ByteBuffer.wrap(buf, 0, length),
+                ByteBuffer.wrap(EOR) };
+        long remaining = writeBuffer.remaining() + length + EOR.length;
+        while (remaining > 0) {
+            remaining -= logChannel.write(buffers);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * writes the buffered txns to the current log file
+     */
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            logChannel.write(writeBuffer);
+        }
+        writeBuffer.clear();
     }
 
     /**
@@ -322,11 +423,12 @@ public class FileTxnLog implements TxnLog {
      * disk
      */
     public synchronized void commit() throws IOException {
-        if (logStream != null) {
-            logStream.flush();
+        if (logChannel != null) {
+            flushWriteBuffer();
+            // the index isn't synced, its entries are checked when read
+            logIndex.flush();
         }
         for (FileOutputStream log : streamsToFlush) {
-            log.flush();
             if (forceSync) {
                 long startSyncNS = System.nanoTime();
 
@@ -358,6 +460,48 @@ public class FileTxnLog implements TxnLog {
         return new FileTxnIterator(logDir, zxid);
     }
 
+    /**
+     * start reading all the transactions from the given zxid, like
+     * {@link #read(long)}, from the memory mapped log files. Falls back to
+     * {@link #read(long)} if a log file is too large to be mapped at once.
+     * @param zxid the zxid to start reading transactions from
+     * @return returns an iterator to iterate through the transaction
+     * logs
+     */
+    public TxnIterator readMapped(long zxid) throws IOException {
+        for (File f : getLogFilesToRead(logDir, zxid)) {
+            if (f.length() > Integer.MAX_VALUE) {
+                LOG.info("Transaction log " + f + " is too large to be mapped,"
+                        + " reading the logs through streams");
+                return read(zxid);
+            }
+        }
+        return new MappedTxnIterator(logDir, zxid);
+    }
+
+    /**
+     * finds the log files which have to be read to get the txns from the
+     * given zxid on
+     * @param logDir the transaction database directory
+     * @param zxid the zxid to start reading from
+     * @return the log files, in the descending order of their zxids
+     */
+    static ArrayList<File> getLogFilesToRead(File logDir, long zxid) {
+        ArrayList<File> storedFiles = new ArrayList<File>();
+        List<File> files = Util.sortDataDir(FileTxnLog.getLogFiles(logDir.listFiles(), 0), "log", false);
+        for (File f: files) {
+            if (Util.getZxidFromName(f.getName(), "log") >= zxid) {
+                storedFiles.add(f);
+            }
+            // add the last logfile that is less than the zxid
+            else if (Util.getZxidFromName(f.getName(), "log") < zxid) {
+                storedFiles.add(f);
+                break;
+            }
+        }
+        return storedFiles;
+    }
+
     /**
      * truncate the current transaction logs
      * @param zxid the zxid to truncate the logs to
@@ -378,10 +522,13 @@ public class FileTxnLog implements TxnLog {
             RandomAccessFile raf = new RandomAccessFile(itr.logFile, "rw");
             raf.setLength(pos);
             raf.close();
+            // rebuilt once the log is read again
+            TxnLogIndex.delete(itr.logFile);
             while (itr.goToNextLog()) {
                 if (!itr.logFile.delete()) {
                     LOG.warn("Unable to truncate {}", itr.logFile);
                 }
+                TxnLogIndex.delete(itr.logFile);
             }
         } finally {
             close(itr);
@@ -433,6 +580,20 @@ public class FileTxnLog implements TxnLog {
         return forceSync;
     }
 
+    /**
+     * a ByteArrayOutputStream whose buffer is read in place, to be reset
+     * and reused for every txn
+     */
+    private static class TxnBuffer extends ByteArrayOutputStream {
+        TxnBuffer() {
+            super(1024);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
     /**
      * a class that keeps track of the position 
      * in the input stream. The position points to offset
@@ -512,6 +673,10 @@ public class FileTxnLog implements TxnLog {
         Record record;
         File logFile;
         InputArchive ia;
+        /** the index being built for the current log file, if it has none */
+        TxnLogIndex rebuiltIndex;
+        ChecksumAlgorithm checksumAlgorithm;
+        Checksum crc;
         static final String CRC_ERROR="CRC check failed";
        
         PositionInputStream inputStream=null;
@@ -537,19 +702,10 @@ public class FileTxnLog implements TxnLog {
          * @throws IOException
          */
         void init() throws IOException {
-            storedFiles = new ArrayList<File>();
-            List<File> files = Util.sortDataDir(FileTxnLog.getLogFiles(logDir.listFiles(), 0), "log", false);
-            for (File f: files) {
-                if (Util.getZxidFromName(f.getName(), "log") >= zxid) {
-                    storedFiles.add(f);
-                }
-                // add the last logfile that is less than the zxid
-                else if (Util.getZxidFromName(f.getName(), "log") < zxid) {
-                    storedFiles.add(f);
-                    break;
-                }
+            storedFiles = getLogFilesToRead(logDir, zxid);
+            if (goToNextLog()) {
+                skipToIndexedTxn();
             }
-            goToNextLog();
             if (!next())
                 return;
             while (hdr.getZxid() < zxid) {
@@ -568,11 +724,30 @@ public class FileTxnLog implements TxnLog {
             if (storedFiles.size() > 0) {
                 this.logFile = storedFiles.remove(storedFiles.size()-1);
                 ia = createInputArchive(this.logFile);
+                rebuiltIndex = TxnLogIndex.rebuild(this.logFile);
                 return true;
             }
             return false;
         }
 
+        /**
+         * skips the txns of the current log file which precede the last
+         * indexed txn with a zxid not greater than the one to read from
+         * @throws IOException
+         */
+        private void skipToIndexedTxn() throws IOException {
+            long offset = TxnLogIndex.floorOffset(logFile, zxid);
+            long n = offset - inputStream.getPosition();
+            while (n > 0) {
+                long skipped = inputStream.skip(n);
+                if (skipped <= 0) {
+                    throw new EOFException("Failed to skip to " + offset
+                            + " in " + logFile);
+                }
+                n -= skipped;
+            }
+        }
+
         /**
          * read the header from the inputarchive
          * @param ia the inputarchive to be read from
@@ -588,6 +763,8 @@ public class FileTxnLog implements TxnLog {
                         + header.getMagic()
                         + " != " + FileTxnLog.TXNLOG_MAGIC);
             }
+            checksumAlgorithm = ChecksumAlgorithm.fromVersion(header.getVersion());
+            crc = makeChecksumAlgorithm();
         }
 
         /**
@@ -608,11 +785,11 @@ public class FileTxnLog implements TxnLog {
         }
 
         /**
-         * create a checksum algorithm
+         * create a checksum algorithm of the current log file
          * @return the checksum algorithm
          */
         protected Checksum makeChecksumAlgorithm(){
-            return new Adler32();
+            return checksumAlgorithm.create();
         }
 
         /**
@@ -625,6 +802,7 @@ public class FileTxnLog implements TxnLog {
                 return false;
             }
             try {
+                long offset = inputStream.getPosition();
                 long crcValue = ia.readLong("crcvalue");
                 byte[] bytes = Util.readTxnBytes(ia);
                 // Since we preallocate, we define EOF to be an
@@ -633,7 +811,7 @@ public class FileTxnLog implements TxnLog {
                 }
                 // EOF or corrupted record
                 // validate CRC
-                Checksum crc = makeChecksumAlgorithm();
+                crc.reset();
                 crc.update(bytes, 0, bytes.length);
                 if (crcValue != crc.getValue())
                     throw new IOException(CRC_ERROR);
@@ -641,8 +819,15 @@ public class FileTxnLog implements TxnLog {
                     return false;
                 hdr = new TxnHeader();
                 record = SerializeUtils.deserializeTxn(bytes, hdr);
+                if (rebuiltIndex != null) {
+                    rebuiltIndex.add(hdr.getZxid(), offset);
+                }
             } catch (EOFException e) {
                 LOG.debug("EOF excepton " + e);
+                if (rebuiltIndex != null) {
+                    rebuiltIndex.writeIfMissing();
+                    rebuiltIndex = null;
+                }
                 inputStream.close();
                 inputStream = null;
                 ia = null;
@@ -55,6 +55,15 @@ public class FileTxnSnapLog {
     private SnapShot snapLog;
     public final static int VERSION = 2;
     public final static String version = "version-";
+
+    /**
+     * Whether restore replays the txn logs from memory mapped files,
+     * "no" by default.
+     */
+    public static final String MAPPED_REPLAY = "zookeeper.mappedTxnLogReplay";
+
+    private final boolean mappedReplay =
+        System.getProperty(MAPPED_REPLAY, "no").equals("yes");
     
     private static final Logger LOG = LoggerFactory.getLogger(FileTxnSnapLog.class);
     
@@ -129,7 +138,9 @@ public class FileTxnSnapLog {
             PlayBackListener listener) throws IOException {
         snapLog.deserialize(dt, sessions);
         FileTxnLog txnLog = new FileTxnLog(dataDir);
-        TxnIterator itr = txnLog.read(dt.lastProcessedZxid+1);
+        TxnIterator itr = mappedReplay
+            ? txnLog.readMapped(dt.lastProcessedZxid+1)
+            : txnLog.read(dt.lastProcessedZxid+1);
         long highestZxid = dt.lastProcessedZxid;
         TxnHeader hdr;
         try {
@@ -314,6 +325,14 @@ public class FileTxnSnapLog {
         return txnLog.append(si.hdr, si.txn);
     }
 
+    /**
+     * the bytes appended to the transaction logs so far
+     * @return the bytes of the appended transactions
+     */
+    public long getAppendedBytes() {
+        return txnLog.getAppendedBytes();
+    }
+
     /**
      * commit the transaction of logs
      * @throws IOException
@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.Checksum;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.server.util.SerializeUtils;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterates over the txns of the logs like FileTxnLog.FileTxnIterator, but
+ * reads each log file through a read only mapping of the whole file
+ * rather than a stream, for replaying the logs on startup. A txn is copied
+ * out of the mapping into a reused buffer at once, where its checksum is
+ * verified and it is deserialized from.
+ * <p>
+ * The mapping of a log is released as soon as the iterator moves on to the
+ * next log or is closed, where the JVM allows it, since mapped files can't
+ * be truncated or deleted on some platforms.
+ */
+public class MappedTxnIterator implements TxnLog.TxnIterator {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedTxnIterator.class);
+
+    /** sun.misc.Unsafe and its invokeCleaner (Java 9+), if available */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /** the log files left to read, in the descending order of zxids */
+    private final ArrayList<File> storedFiles;
+
+    private File logFile;
+    private MappedByteBuffer log;
+    private Checksum crc;
+
+    /** the index being built for the current log file, if it has none */
+    private TxnLogIndex rebuiltIndex;
+
+    /** the bytes of the current txn */
+    private byte[] bytes = new byte[4096];
+
+    private TxnHeader hdr;
+    private Record record;
+
+    /**
+     * create an iterator over a transaction database directory
+     * @param logDir the transaction database directory
+     * @param zxid the zxid to start reading from
+     * @throws IOException
+     */
+    public MappedTxnIterator(File logDir, long zxid) throws IOException {
+        this.storedFiles = FileTxnLog.getLogFilesToRead(logDir, zxid);
+        if (goToNextLog()) {
+            long offset = TxnLogIndex.floorOffset(logFile, zxid);
+            if (offset > log.position()) {
+                log.position((int) offset);
+            }
+        }
+        if (!next()) {
+            return;
+        }
+        while (hdr.getZxid() < zxid) {
+            if (!next()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * maps the next log file and reads its header
+     * @return true if there is one and false if there is no
+     * new file to be read
+     * @throws IOException
+     */
+    private boolean goToNextLog() throws IOException {
+        releaseLog();
+        if (storedFiles.isEmpty()) {
+            return false;
+        }
+        logFile = storedFiles.remove(storedFiles.size() - 1);
+        RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("Transaction log: " + logFile
+                        + " is too large to be mapped");
+            }
+            // the mapping stays valid once the file is closed
+            log = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        // magic, version & dbid
+        if (log.remaining() < 16) {
+            throw new EOFException("Failed to read the header of " + logFile);
+        }
+        int magic = log.getInt();
+        if (magic != FileTxnLog.TXNLOG_MAGIC) {
+            throw new IOException("Transaction log: " + logFile
+                    + " has invalid magic number " + magic
+                    + " != " + FileTxnLog.TXNLOG_MAGIC);
+        }
+        crc = ChecksumAlgorithm.fromVersion(log.getInt()).create();
+        log.getLong();
+        rebuiltIndex = TxnLogIndex.rebuild(logFile);
+        return true;
+    }
+
+    /**
+     * the iterator that moves to the next transaction
+     * @return true if there is more transactions to be read
+     * false if not.
+     */
+    public boolean next() throws IOException {
+        while (log != null) {
+            if (readTxn()) {
+                return true;
+            }
+            // the end of the current log
+            hdr = null;
+            record = null;
+            if (rebuiltIndex != null) {
+                rebuiltIndex.writeIfMissing();
+                rebuiltIndex = null;
+            }
+            goToNextLog();
+        }
+        return false;
+    }
+
+    /**
+     * reads the txn at the current position of the log
+     * @return false if the log ends there, either with the zero padding or
+     * with a partially written txn
+     * @throws IOException if the txn is corrupt
+     */
+    private boolean readTxn() throws IOException {
+        int offset = log.position();
+        // the checksum and the length
+        if (log.remaining() < 8 + 4) {
+            return false;
+        }
+        long crcValue = log.getLong();
+        int length = log.getInt();
+        if (length == 0) {
+            // Since we preallocate, we define EOF to be an
+            // empty transaction
+            return false;
+        }
+        if (length < 0 || length > BinaryInputArchive.maxBuffer + 1024) {
+            throw new IOException("Unreasonable length = " + length);
+        }
+        if (log.remaining() < length + 1) {
+            return false;
+        }
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        log.get(bytes, 0, length);
+        if (log.get() != 'B') {
+            LOG.error("Last transaction was partial.");
+            return false;
+        }
+        crc.reset();
+        crc.update(bytes, 0, length);
+        if (crcValue != crc.getValue()) {
+            throw new IOException(FileTxnLog.FileTxnIterator.CRC_ERROR);
+        }
+        hdr = new TxnHeader();
+        record = SerializeUtils.deserializeTxn(bytes, length, hdr);
+        if (rebuiltIndex != null) {
+            rebuiltIndex.add(hdr.getZxid(), offset);
+        }
+        return true;
+    }
+
+    /**
+     * return the current header
+     * @return the current header that
+     * is read
+     */
+    public TxnHeader getHeader() {
+        return hdr;
+    }
+
+    /**
+     * return the current transaction
+     * @return the current transaction
+     * that is read
+     */
+    public Record getTxn() {
+        return record;
+    }
+
+    /**
+     * close the iterator
+     * and release the resources.
+     */
+    public void close() throws IOException {
+        releaseLog();
+        storedFiles.clear();
+    }
+
+    private void releaseLog() {
+        if (log == null) {
+            return;
+        }
+        MappedByteBuffer mapped = log;
+        log = null;
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, mapped);
+            } else {
+                // Java 8 and older
+                Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(mapped);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            LOG.debug("Failed to unmap " + logFile
+                    + ", it is unmapped once garbage collected", e);
+        }
+    }
+}
@@ -44,6 +44,13 @@ public interface TxnLog {
      */
     boolean append(TxnHeader hdr, Record r) throws IOException;
 
+    /**
+     * the bytes of the transactions appended so far, to measure
+     * how much an append adds to the log
+     * @return the bytes appended to the log by this instance
+     */
+    long getAppendedBytes();
+
     /**
      * Start reading the transaction logs
      * from a given zxid
@@ -0,0 +1,265 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sparse index of a txn log, kept in logindex.&lt;zxid&gt; next to
+ * log.&lt;zxid&gt;, which maps the zxids of some of the txns to their
+ * offsets in the log, so that reading the log from a zxid starts close to
+ * it rather than at the beginning of the file. A txn is indexed once
+ * {@link #INTERVAL} bytes of the log have been written since the last
+ * indexed one.
+ * <p>
+ * The index is written by FileTxnLog as txns are appended, but it is not
+ * synced, so an entry is trusted only if the txn at its offset has its
+ * zxid. The index of a log written without one (e.g. by an older server)
+ * is built by FileTxnIterator when it reads the whole log.
+ * <p>
+ * The format of the index is as follows:
+ * <blockquote><pre>
+ * IndexFile:
+ *     Entry || Entry IndexFile
+ *
+ * Entry:
+ *     zxid 8bytes offset 8bytes
+ * </pre></blockquote>
+ */
+public class TxnLogIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(TxnLogIndex.class);
+
+    public static final String PREFIX = "logindex";
+
+    /** the least number of log bytes between the indexed txns */
+    static final int INTERVAL = 64 * 1024;
+
+    static final int ENTRY_SIZE = 8 + 8;
+
+    private final File indexFile;
+
+    /** the index file written as the log is appended, null when rebuilt */
+    private final FileChannel channel;
+
+    /** the entries not written to the index file yet */
+    private ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * 64);
+
+    private long lastOffset = -INTERVAL;
+
+    private TxnLogIndex(File indexFile, FileChannel channel) {
+        this.indexFile = indexFile;
+        this.channel = channel;
+    }
+
+    /**
+     * creates the index of a new log file
+     * @param logFile the log file
+     * @return the index to add the appended txns to
+     * @throws IOException
+     */
+    static TxnLogIndex create(File logFile) throws IOException {
+        File indexFile = getIndexFile(logFile);
+        return new TxnLogIndex(indexFile,
+                new FileOutputStream(indexFile).getChannel());
+    }
+
+    /**
+     * starts building the missing index of an existing log file, which is
+     * written by {@link #writeIfMissing()} once all of its txns are added
+     * @param logFile the log file
+     * @return the index to add the txns to, or null if the log has one
+     */
+    static TxnLogIndex rebuild(File logFile) {
+        File indexFile = getIndexFile(logFile);
+        if (indexFile.exists()) {
+            return null;
+        }
+        return new TxnLogIndex(indexFile, null);
+    }
+
+    /**
+     * @param logFile the log file
+     * @return the index file of the log
+     */
+    public static File getIndexFile(File logFile) {
+        long zxid = Util.getZxidFromName(logFile.getName(), "log");
+        return new File(logFile.getParentFile(),
+                PREFIX + "." + Long.toHexString(zxid));
+    }
+
+    /**
+     * adds the txn to the index if it is far enough from the last indexed
+     * one, the txns have to be added in the order of the log
+     * @param zxid the zxid of the txn
+     * @param offset the offset of the txn in the log
+     * @throws IOException
+     */
+    void add(long zxid, long offset) throws IOException {
+        if (offset - lastOffset < INTERVAL) {
+            return;
+        }
+        lastOffset = offset;
+        if (!entries.hasRemaining()) {
+            if (channel != null) {
+                flush();
+            } else {
+                ByteBuffer grown = ByteBuffer.allocate(entries.capacity() * 2);
+                entries.flip();
+                entries = grown.put(entries);
+            }
+        }
+        entries.putLong(zxid).putLong(offset);
+    }
+
+    /**
+     * writes the added entries to the index file of a new log
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        entries.flip();
+        while (entries.hasRemaining()) {
+            channel.write(entries);
+        }
+        entries.clear();
+    }
+
+    void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    /**
+     * writes a rebuilt index, unless the index file has been created since
+     * the rebuild started, failures are only logged since the log can be
+     * read without its index
+     */
+    void writeIfMissing() {
+        try {
+            if (!indexFile.createNewFile()) {
+                return;
+            }
+            FileOutputStream out = new FileOutputStream(indexFile);
+            try {
+                entries.flip();
+                while (entries.hasRemaining()) {
+                    out.getChannel().write(entries);
+                }
+            } finally {
+                out.close();
+            }
+            LOG.info("Rebuilt index " + indexFile);
+        } catch (IOException e) {
+            LOG.warn("Failed to write index " + indexFile, e);
+        }
+    }
+
+    /**
+     * finds where to start reading a log from to get to a txn
+     * @param logFile the log file
+     * @param zxid the zxid of the txn
+     * @return the offset of the last indexed txn with a zxid not greater
+     * than the given one, or -1 if there is none or the log has no valid
+     * index (an invalid one is deleted)
+     * @throws IOException
+     */
+    static long floorOffset(File logFile, long zxid) throws IOException {
+        File indexFile = getIndexFile(logFile);
+        if (!indexFile.exists()) {
+            return -1;
+        }
+        ByteBuffer index;
+        FileInputStream in = new FileInputStream(indexFile);
+        try {
+            FileChannel ch = in.getChannel();
+            // a partially written last entry is ignored
+            index = ByteBuffer.allocate((int) (ch.size() / ENTRY_SIZE * ENTRY_SIZE));
+            while (index.hasRemaining() && ch.read(index) >= 0) {
+            }
+        } finally {
+            in.close();
+        }
+        // binary search for the last entry with zxid <= the given one
+        int low = 0;
+        int high = index.position() / ENTRY_SIZE - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (index.getLong(mid * ENTRY_SIZE) <= zxid) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found == -1) {
+            return -1;
+        }
+        long indexedZxid = index.getLong(found * ENTRY_SIZE);
+        long offset = index.getLong(found * ENTRY_SIZE + 8);
+        if (!isTxnAt(logFile, offset, indexedZxid)) {
+            // stale or corrupt, rebuilt by the next full read of the log
+            LOG.warn("Deleting " + indexFile + ", txn 0x"
+                    + Long.toHexString(indexedZxid) + " is not at " + offset);
+            delete(logFile);
+            return -1;
+        }
+        return offset;
+    }
+
+    /**
+     * checks the zxid of the txn at the offset, which follows the checksum,
+     * the length, the session id and the cxid
+     */
+    private static boolean isTxnAt(File logFile, long offset, long zxid)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+        try {
+            if (offset < 0 || offset + 8 + 4 + 8 + 4 + 8 > raf.length()) {
+                return false;
+            }
+            raf.seek(offset + 8);
+            return raf.readInt() > 0 && raf.skipBytes(8 + 4) == 8 + 4
+                    && raf.readLong() == zxid;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * deletes the index of a log file
+     * @param logFile the log file
+     */
+    static void delete(File logFile) {
+        File indexFile = getIndexFile(logFile);
+        if (indexFile.exists() && !indexFile.delete()) {
+            LOG.warn("Unable to delete " + indexFile);
+        }
+    }
+}
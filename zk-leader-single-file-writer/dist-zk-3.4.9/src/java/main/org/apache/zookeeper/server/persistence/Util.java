@@ -27,6 +27,7 @@ import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -212,11 +213,29 @@ public class Util {
      */
     public static long padLogFile(FileOutputStream f,long currentSize,
             long preAllocSize) throws IOException{
-        long position = f.getChannel().position();
+        return padLogFile(f.getChannel(), f.getChannel().position(),
+                currentSize, preAllocSize);
+    }
+
+    /**
+     * Grows the file to the specified number of bytes, like
+     * {@link #padLogFile(FileOutputStream, long, long)}, given the position
+     * the file is written up to, which may be ahead of the position of the
+     * channel when writes are buffered.
+     *
+     * @param channel channel of the file to pad
+     * @param position the end of the written bytes
+     * @param currentSize application keeps track of the cuurent file size
+     * @param preAllocSize how many bytes to pad
+     * @return the new file size
+     * @throws IOException
+     */
+    public static long padLogFile(FileChannel channel, long position,
+            long currentSize, long preAllocSize) throws IOException{
         if (position + 4096 >= currentSize) {
             currentSize = currentSize + preAllocSize;
             fill.position(0);
-            f.getChannel().write(fill, currentSize-fill.remaining());
+            channel.write(fill, currentSize-fill.remaining());
         }
         return currentSize;
     }
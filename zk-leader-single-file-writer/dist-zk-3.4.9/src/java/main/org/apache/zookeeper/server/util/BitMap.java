@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Assigns dense integer ids (bits) to values, so that sets of values can be
+ * kept as compact sets of ints. Ids of removed values are reused, lowest
+ * first, but only once released: until then stale references to the id
+ * (e.g. in sets being cleaned up lazily) resolve to null rather than to a new
+ * value.
+ */
+public class BitMap<T> {
+
+    private final Map<T, Integer> value2Bit = new HashMap<T, Integer>();
+    private final List<T> bit2Value = new ArrayList<T>();
+    private final BitSet freedBits = new BitSet();
+    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+
+    /**
+     * @return id of the value, a new one if the value has none yet
+     */
+    public int add(T value) {
+        rwLock.readLock().lock();
+        try {
+            Integer bit = value2Bit.get(value);
+            if (bit != null) {
+                return bit;
+            }
+        } finally {
+            rwLock.readLock().unlock();
+        }
+
+        rwLock.writeLock().lock();
+        try {
+            Integer bit = value2Bit.get(value);
+            if (bit != null) {
+                return bit;
+            }
+            int newBit = freedBits.nextSetBit(0);
+            if (newBit >= 0) {
+                freedBits.clear(newBit);
+                bit2Value.set(newBit, value);
+            } else {
+                newBit = bit2Value.size();
+                bit2Value.add(value);
+            }
+            value2Bit.put(value, newBit);
+            return newBit;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return value of the id, null if it has been removed
+     */
+    public T get(int bit) {
+        rwLock.readLock().lock();
+        try {
+            return bit < bit2Value.size() ? bit2Value.get(bit) : null;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    public Integer getBit(T value) {
+        rwLock.readLock().lock();
+        try {
+            return value2Bit.get(value);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Unmaps the value, its id isn't reused until released.
+     *
+     * @return id of the value, null if it has none
+     */
+    public Integer remove(T value) {
+        rwLock.writeLock().lock();
+        try {
+            Integer bit = value2Bit.remove(value);
+            if (bit != null) {
+                bit2Value.set(bit, null);
+            }
+            return bit;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes id of a removed value available for reuse, once no set refers
+     * to it anymore.
+     */
+    public void release(int bit) {
+        rwLock.writeLock().lock();
+        try {
+            if (bit2Value.get(bit) == null) {
+                freedBits.set(bit);
+            }
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of mapped values
+     */
+    public int size() {
+        rwLock.readLock().lock();
+        try {
+            return value2Bit.size();
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+}
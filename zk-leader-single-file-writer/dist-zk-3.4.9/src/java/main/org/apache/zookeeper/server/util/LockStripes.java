@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.util;
+
+/**
+ * Fixed set of lock objects keys are spread over, so that operations on
+ * different keys rarely contend, while operations on the same key are
+ * serialized: synchronized (stripes.lockFor(path)) { ... }
+ */
+public class LockStripes {
+
+    private final Object[] locks;
+
+    /**
+     * @param count number of stripes, rounded up to a power of two
+     */
+    public LockStripes(int count) {
+        int size = 1;
+        while (size < count) {
+            size <<= 1;
+        }
+        locks = new Object[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public Object lockFor(Object key) {
+        int h = key.hashCode();
+        // spread higher bits, since only the lower ones pick the stripe
+        h ^= (h >>> 16);
+        return locks[h & (locks.length - 1)];
+    }
+
+    /**
+     * Acquires & releases every stripe in turn, so that whatever has held
+     * a stripe since before the call has finished by the time it returns
+     */
+    public void barrier() {
+        for (Object lock : locks) {
+            synchronized (lock) {
+                // nothing, waits for the holder only
+            }
+        }
+    }
+}
@@ -50,7 +50,22 @@ public class SerializeUtils {
     
     public static Record deserializeTxn(byte txnBytes[], TxnHeader hdr)
             throws IOException {
-        final ByteArrayInputStream bais = new ByteArrayInputStream(txnBytes);
+        return deserializeTxn(txnBytes, txnBytes.length, hdr);
+    }
+
+    /**
+     * Deserializes a txn from the beginning of a buffer, which may be
+     * longer than the txn.
+     * @param txnBytes the buffer
+     * @param length the length of the txn
+     * @param hdr the header to deserialize into
+     * @return the txn, null for closeSession
+     * @throws IOException
+     */
+    public static Record deserializeTxn(byte txnBytes[], int length,
+            TxnHeader hdr) throws IOException {
+        final ByteArrayInputStream bais =
+            new ByteArrayInputStream(txnBytes, 0, length);
         InputArchive ia = BinaryInputArchive.getArchive(bais);
 
         hdr.deserialize(ia, "hdr");
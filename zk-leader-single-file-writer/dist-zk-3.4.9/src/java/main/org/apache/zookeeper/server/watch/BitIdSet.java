@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.watch;
+
+import java.util.BitSet;
+
+/**
+ * Set of watcher ids (dense non-negative ints) of a single path, kept in the
+ * more compact of two forms: a sorted int array while sparse, a BitSet once
+ * it takes less memory than the array, i.e. once more than 1/32 of the ids
+ * up to the highest one are in the set. Unlike HashSet&lt;Watcher&gt; neither
+ * form holds an object per member.
+ *
+ * Not thread safe.
+ */
+public class BitIdSet {
+
+    private static final int INITIAL_CAPACITY = 2;
+
+    // sorted, only the first size elements are valid; null once bits are used
+    private int[] ids = new int[INITIAL_CAPACITY];
+    private BitSet bits;
+    private int size;
+
+    /**
+     * @return true if the id wasn't in the set yet
+     */
+    public boolean add(int id) {
+        if (bits != null) {
+            if (bits.get(id)) {
+                return false;
+            }
+            bits.set(id);
+            size++;
+            return true;
+        }
+        int index = indexOf(id);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (size == ids.length) {
+            int maxId = Math.max(id, ids[size - 1]);
+            // a grown array would take 2 * size ints, a BitSet maxId bits
+            if ((long) size * 2 * Integer.SIZE > maxId) {
+                toBits(maxId);
+                bits.set(id);
+                size++;
+                return true;
+            }
+            int[] grown = new int[size * 2];
+            System.arraycopy(ids, 0, grown, 0, size);
+            ids = grown;
+        }
+        System.arraycopy(ids, index, ids, index + 1, size - index);
+        ids[index] = id;
+        size++;
+        return true;
+    }
+
+    public boolean contains(int id) {
+        if (bits != null) {
+            return bits.get(id);
+        }
+        return indexOf(id) >= 0;
+    }
+
+    public boolean remove(int id) {
+        if (bits != null) {
+            if (!bits.get(id)) {
+                return false;
+            }
+            bits.clear(id);
+            size--;
+            return true;
+        }
+        int index = indexOf(id);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+        size--;
+        return true;
+    }
+
+    /**
+     * @return number of removed ids
+     */
+    public int removeAll(BitSet removed) {
+        int oldSize = size;
+        if (bits != null) {
+            bits.andNot(removed);
+            size = bits.cardinality();
+            return oldSize - size;
+        }
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!removed.get(ids[i])) {
+                ids[kept++] = ids[i];
+            }
+        }
+        size = kept;
+        return oldSize - size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return ids of the set in ascending order
+     */
+    public int[] toArray() {
+        int[] result = new int[size];
+        if (bits != null) {
+            int i = 0;
+            for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+                result[i++] = id;
+            }
+        } else {
+            System.arraycopy(ids, 0, result, 0, size);
+        }
+        return result;
+    }
+
+    private void toBits(int maxId) {
+        bits = new BitSet(maxId + 1);
+        for (int i = 0; i < size; i++) {
+            bits.set(ids[i]);
+        }
+        ids = null;
+    }
+
+    /**
+     * Binary search of the array form, like Arrays.binarySearch
+     * (its ranged version isn't available in Java 5).
+     *
+     * @return index of the id, or (-(insertion point) - 1)
+     */
+    private int indexOf(int id) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (ids[middle] < id) {
+                low = middle + 1;
+            } else if (ids[middle] > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.watch;
+
+import java.io.PrintWriter;
+import java.util.Set;
+
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+
+/**
+ * Server side bookkeeping of watches, see WatchManagerFactory for the
+ * available implementations.
+ */
+public interface IWatchManager {
+
+    /**
+     * Adds a one-time watch for the given path.
+     *
+     * @param path znode path
+     * @param watcher watcher (connection) to be notified
+     */
+    public void addWatch(String path, Watcher watcher);
+
+    /**
+     * Adds a watch for the given path which isn't removed once triggered.
+     * A PERSISTENT_RECURSIVE watch fires for the paths below the given one
+     * as well.
+     *
+     * @param path znode path
+     * @param watcher watcher (connection) to be notified
+     * @param mode mode of the watch
+     */
+    public void addWatch(String path, Watcher watcher, AddWatchMode mode);
+
+    /**
+     * Removes all the watches of the given watcher, e.g. when its connection
+     * is closed.
+     */
+    public void removeWatcher(Watcher watcher);
+
+    /**
+     * Fires the watches of the given path & the recursive ones of its
+     * ancestors, removing the one-time ones.
+     *
+     * @return watchers which have been triggered, null if there were none
+     */
+    public Set<Watcher> triggerWatch(String path, EventType type);
+
+    /**
+     * Fires the watches of the given path & the recursive ones of its
+     * ancestors, removing the one-time ones and skipping the given
+     * watchers (which have been notified of the same change already).
+     *
+     * @return watchers which have been triggered (including suppressed ones),
+     * null if there were none
+     */
+    public Set<Watcher> triggerWatch(String path, EventType type,
+            Set<Watcher> supress);
+
+    /**
+     * @return number of watches (path, watcher pairs), including persistent
+     * ones
+     */
+    public int size();
+
+    /**
+     * String representation of watches. Warning, may be large!
+     * @param byPath iff true output watches by paths, otw output
+     * watches by connection
+     */
+    public void dumpWatches(PrintWriter pwriter, boolean byPath);
+
+    /**
+     * Releases resources (e.g. background threads) of the manager.
+     */
+    public void shutdown();
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.watch;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.common.PersistentWatchTrie;
+import org.apache.zookeeper.server.ServerCnxn;
+
+/**
+ * Persistent watches of connections, shared by the watch managers.
+ */
+public class PersistentWatches extends PersistentWatchTrie<Watcher> {
+
+    /**
+     * Prints watches the same way as IWatchManager.dumpWatches() does, with
+     * the mode appended.
+     */
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
+        if (size() == 0) {
+            return;
+        }
+        Map<String, Set<Watcher>> persistent = getWatches(false);
+        Map<String, Set<Watcher>> recursive = getWatches(true);
+        if (byPath) {
+            dumpByPath(pwriter, persistent, " (persistent)");
+            dumpByPath(pwriter, recursive, " (persistent recursive)");
+        } else {
+            Map<Watcher, List<String>> watch2Paths = new HashMap<Watcher, List<String>>();
+            addByWatcher(watch2Paths, persistent, " (persistent)");
+            addByWatcher(watch2Paths, recursive, " (persistent recursive)");
+            for (Entry<Watcher, List<String>> e : watch2Paths.entrySet()) {
+                pwriter.print("0x");
+                pwriter.println(Long.toHexString(((ServerCnxn)e.getKey()).getSessionId()));
+                for (String path : e.getValue()) {
+                    pwriter.print("\t");
+                    pwriter.println(path);
+                }
+            }
+        }
+    }
+
+    private static void dumpByPath(PrintWriter pwriter,
+            Map<String, Set<Watcher>> watches, String mode) {
+        for (Entry<String, Set<Watcher>> e : watches.entrySet()) {
+            pwriter.print(e.getKey());
+            pwriter.println(mode);
+            for (Watcher w : e.getValue()) {
+                pwriter.print("\t0x");
+                pwriter.print(Long.toHexString(((ServerCnxn)w).getSessionId()));
+                pwriter.print("\n");
+            }
+        }
+    }
+
+    private static void addByWatcher(Map<Watcher, List<String>> watch2Paths,
+            Map<String, Set<Watcher>> watches, String mode) {
+        for (Entry<String, Set<Watcher>> e : watches.entrySet()) {
+            for (Watcher w : e.getValue()) {
+                List<String> paths = watch2Paths.get(w);
+                if (paths == null) {
+                    paths = new ArrayList<String>();
+                    watch2Paths.put(w, paths);
+                }
+                paths.add(e.getKey() + mode);
+            }
+        }
+    }
+}
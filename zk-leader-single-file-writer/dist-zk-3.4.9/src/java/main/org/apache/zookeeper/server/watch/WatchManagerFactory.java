@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.watch;
+
+import org.apache.zookeeper.server.WatchManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the watch manager configured with the zookeeper.watchManagerName
+ * system property: fully qualified name of an IWatchManager implementation
+ * with a public no-arg constructor. Defaults to WatchManager (hash tables
+ * both by path and by watcher), WatchManagerOptimized trades per-watch
+ * memory for lazy cleanup of closed connections.
+ */
+public class WatchManagerFactory {
+    private static final Logger LOG = LoggerFactory.getLogger(WatchManagerFactory.class);
+
+    public static final String ZOOKEEPER_WATCH_MANAGER_NAME = "zookeeper.watchManagerName";
+
+    public static IWatchManager createWatchManager() {
+        String watchManagerName = System.getProperty(ZOOKEEPER_WATCH_MANAGER_NAME);
+        if (watchManagerName == null) {
+            return new WatchManager();
+        }
+        try {
+            IWatchManager watchManager =
+                (IWatchManager) Class.forName(watchManagerName).newInstance();
+            LOG.info("Using " + watchManagerName + " as watch manager");
+            return watchManager;
+        } catch (Exception e) {
+            throw new RuntimeException("Couldn't instantiate watch manager "
+                    + watchManagerName, e);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.watch;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.util.BitMap;
+import org.apache.zookeeper.server.util.LockStripes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory optimized watch manager for many connections watching many paths.
+ * Every watcher gets a dense integer id and every path a compact set of ids
+ * (see BitIdSet) instead of a HashSet of watchers, and there is no reverse
+ * (watcher to paths) table at all: a closed connection's id is unmapped right
+ * away, so that its watches never fire, and its watches are purged lazily in
+ * batches by WatcherCleaner.
+ *
+ * Select it with -Dzookeeper.watchManagerName=org.apache.zookeeper.server.watch.WatchManagerOptimized
+ */
+public class WatchManagerOptimized
+        implements IWatchManager, WatcherCleaner.DeadWatcherListener {
+    private static final Logger LOG = LoggerFactory.getLogger(WatchManagerOptimized.class);
+
+    private final ConcurrentHashMap<String, BitIdSet> pathWatches =
+        new ConcurrentHashMap<String, BitIdSet>();
+
+    private final BitMap<Watcher> watcherBitIdMap = new BitMap<Watcher>();
+
+    private static final int LOCK_STRIPES = 256;
+
+    // adding to a path's set & removal of the set are serialized by the
+    // path's stripe, otherwise a watch could be added to a set which isn't
+    // in the table anymore and get lost; unrelated paths don't contend
+    private final LockStripes pathLocks = new LockStripes(LOCK_STRIPES);
+
+    // few in comparison, hence keyed by watchers rather than by their ids
+    private final PersistentWatches persistentWatches = new PersistentWatches();
+
+    private final WatcherCleaner watcherCleaner;
+
+    public WatchManagerOptimized() {
+        watcherCleaner = new WatcherCleaner(this);
+        watcherCleaner.start();
+    }
+
+    public void addWatch(String path, Watcher watcher) {
+        if (isDeadWatcher(watcher)) {
+            // otherwise the new id would never be released
+            LOG.debug("Ignoring watch of closed connection on {}", path);
+            return;
+        }
+        synchronized (pathLocks.lockFor(path)) {
+            // taken under the stripe, see processDeadWatchers()
+            int bit = watcherBitIdMap.add(watcher);
+            BitIdSet watchers = pathWatches.get(path);
+            if (watchers == null) {
+                watchers = new BitIdSet();
+                pathWatches.put(path, watchers);
+            }
+            synchronized (watchers) {
+                watchers.add(bit);
+            }
+        }
+        if (isDeadWatcher(watcher)) {
+            // closed meanwhile, removal may have missed the id
+            removeWatcher(watcher);
+        }
+    }
+
+    public void addWatch(String path, Watcher watcher, AddWatchMode mode) {
+        if (isDeadWatcher(watcher)) {
+            // otherwise it would be notified of every later change
+            LOG.debug("Ignoring persistent watch of closed connection on {}", path);
+            return;
+        }
+        persistentWatches.add(path, watcher,
+                mode == AddWatchMode.PERSISTENT_RECURSIVE);
+        if (isDeadWatcher(watcher)) {
+            // closed meanwhile, removal may have missed the watch
+            persistentWatches.removeWatcher(watcher);
+        }
+    }
+
+    public void removeWatcher(Watcher watcher) {
+        persistentWatches.removeWatcher(watcher);
+        Integer bit = watcherBitIdMap.remove(watcher);
+        if (bit != null) {
+            watcherCleaner.addDeadWatcher(bit);
+        }
+    }
+
+    public Set<Watcher> triggerWatch(String path, EventType type) {
+        return triggerWatch(path, type, null);
+    }
+
+    public Set<Watcher> triggerWatch(String path, EventType type, Set<Watcher> supress) {
+        WatchedEvent e = new WatchedEvent(type,
+                KeeperState.SyncConnected, path);
+        BitIdSet watchers;
+        synchronized (pathLocks.lockFor(path)) {
+            watchers = pathWatches.remove(path);
+        }
+        int[] bits = null;
+        if (watchers != null) {
+            synchronized (watchers) {
+                bits = watchers.toArray();
+            }
+        }
+        if ((bits == null || bits.length == 0) && persistentWatches.size() == 0) {
+            if (LOG.isTraceEnabled()) {
+                ZooTrace.logTraceMessage(LOG,
+                        ZooTrace.EVENT_DELIVERY_TRACE_MASK,
+                        "No watchers for " + path);
+            }
+            return null;
+        }
+        Set<Watcher> triggered = new HashSet<Watcher>(bits == null ? 16 : bits.length * 2);
+        if (bits != null) {
+            for (int bit : bits) {
+                Watcher w = watcherBitIdMap.get(bit);
+                if (w != null) {
+                    // otherwise dead, not purged yet
+                    triggered.add(w);
+                }
+            }
+        }
+        persistentWatches.collectWatchers(path, true, triggered);
+        for (Watcher w : triggered) {
+            if (supress != null && supress.contains(w)) {
+                continue;
+            }
+            w.process(e);
+        }
+        return triggered.isEmpty() ? null : triggered;
+    }
+
+    /**
+     * A closed connection is stale before its watcher is removed
+     */
+    private static boolean isDeadWatcher(Watcher watcher) {
+        return watcher instanceof ServerCnxn && ((ServerCnxn) watcher).isStale();
+    }
+
+    public void processDeadWatchers(Set<Integer> deadWatchers) {
+        BitSet deadBits = new BitSet();
+        for (Integer bit : deadWatchers) {
+            deadBits.set(bit);
+        }
+        // an add which has got a dead id before its watcher was removed
+        // holds the path's stripe till the id is in the set, hence waiting
+        // for every stripe makes all such ids visible to the scan below.
+        // Adds started afterwards can't get dead ids, those are not handed
+        // out until released at the end
+        pathLocks.barrier();
+        for (Entry<String, BitIdSet> entry : pathWatches.entrySet()) {
+            BitIdSet watchers = entry.getValue();
+            boolean empty;
+            synchronized (watchers) {
+                watchers.removeAll(deadBits);
+                empty = watchers.isEmpty();
+            }
+            if (empty) {
+                synchronized (pathLocks.lockFor(entry.getKey())) {
+                    synchronized (watchers) {
+                        if (watchers.isEmpty()) {
+                            pathWatches.remove(entry.getKey(), watchers);
+                        }
+                    }
+                }
+            }
+        }
+        for (Integer bit : deadWatchers) {
+            watcherBitIdMap.release(bit);
+        }
+    }
+
+    /**
+     * @return number of watches, including the ones of dead watchers which
+     * haven't been purged yet
+     */
+    public int size() {
+        int result = persistentWatches.size();
+        for (BitIdSet watchers : pathWatches.values()) {
+            synchronized (watchers) {
+                result += watchers.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of dead watchers waiting for their watches to be purged
+     */
+    public int getDeadWatcherCount() {
+        return watcherCleaner.getDeadWatcherCount();
+    }
+
+    public void shutdown() {
+        watcherCleaner.shutdown();
+    }
+
+    /**
+     * Brief description of this object.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(watcherBitIdMap.size()).append(" connections watching ")
+            .append(pathWatches.size()).append(" paths\n");
+        sb.append("Total watches:").append(size());
+
+        return sb.toString();
+    }
+
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
+        if (byPath) {
+            for (Entry<String, BitIdSet> e : pathWatches.entrySet()) {
+                pwriter.println(e.getKey());
+                for (Watcher w : liveWatchers(e.getValue())) {
+                    pwriter.print("\t0x");
+                    pwriter.print(Long.toHexString(((ServerCnxn)w).getSessionId()));
+                    pwriter.print("\n");
+                }
+            }
+        } else {
+            // there is no reverse table, it's built for the dump only
+            Map<Watcher, List<String>> watch2Paths = new HashMap<Watcher, List<String>>();
+            for (Entry<String, BitIdSet> e : pathWatches.entrySet()) {
+                for (Watcher w : liveWatchers(e.getValue())) {
+                    List<String> paths = watch2Paths.get(w);
+                    if (paths == null) {
+                        paths = new ArrayList<String>();
+                        watch2Paths.put(w, paths);
+                    }
+                    paths.add(e.getKey());
+                }
+            }
+            for (Entry<Watcher, List<String>> e : watch2Paths.entrySet()) {
+                pwriter.print("0x");
+                pwriter.println(Long.toHexString(((ServerCnxn)e.getKey()).getSessionId()));
+                for (String path : e.getValue()) {
+                    pwriter.print("\t");
+                    pwriter.println(path);
+                }
+            }
+        }
+        persistentWatches.dumpWatches(pwriter, byPath);
+    }
+
+    private List<Watcher> liveWatchers(BitIdSet watchers) {
+        int[] bits;
+        synchronized (watchers) {
+            bits = watchers.toArray();
+        }
+        List<Watcher> result = new ArrayList<Watcher>(bits.length);
+        for (int bit : bits) {
+            Watcher w = watcherBitIdMap.get(bit);
+            if (w != null) {
+                result.add(w);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.watch;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.zookeeper.server.ZooKeeperThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects ids of dead watchers (closed connections) and hands them over to
+ * the watch manager in batches, so that their watches are purged with a
+ * single pass over the watch table instead of one lookup per watch on every
+ * connection close.
+ *
+ * A batch is processed once zookeeper.watcherCleanThreshold dead watchers
+ * have piled up, or every zookeeper.watcherCleanIntervalInSeconds if there
+ * are any.
+ */
+public class WatcherCleaner extends ZooKeeperThread {
+    private static final Logger LOG = LoggerFactory.getLogger(WatcherCleaner.class);
+
+    public interface DeadWatcherListener {
+        /**
+         * Purges watches of the given (already removed) watcher ids.
+         */
+        public void processDeadWatchers(Set<Integer> deadWatchers);
+    }
+
+    private final DeadWatcherListener listener;
+    private final int watcherCleanThreshold;
+    private final long watcherCleanIntervalMillis;
+
+    // guarded by this
+    private Set<Integer> deadWatchers = new HashSet<Integer>();
+    private volatile boolean stopped = false;
+
+    public WatcherCleaner(DeadWatcherListener listener) {
+        this(listener,
+                Integer.getInteger("zookeeper.watcherCleanThreshold", 1000),
+                Integer.getInteger("zookeeper.watcherCleanIntervalInSeconds", 600) * 1000L);
+    }
+
+    public WatcherCleaner(DeadWatcherListener listener,
+            int watcherCleanThreshold, long watcherCleanIntervalMillis) {
+        super("WatcherCleaner");
+        this.listener = listener;
+        this.watcherCleanThreshold = watcherCleanThreshold;
+        this.watcherCleanIntervalMillis = watcherCleanIntervalMillis;
+        // a DataTree which hasn't been shut down must not keep the JVM alive
+        setDaemon(true);
+    }
+
+    public void addDeadWatcher(int watcherBit) {
+        synchronized (this) {
+            deadWatchers.add(watcherBit);
+            if (deadWatchers.size() >= watcherCleanThreshold) {
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized int getDeadWatcherCount() {
+        return deadWatchers.size();
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            Set<Integer> batch;
+            synchronized (this) {
+                try {
+                    if (deadWatchers.size() < watcherCleanThreshold) {
+                        wait(watcherCleanIntervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (stopped || deadWatchers.isEmpty()) {
+                    continue;
+                }
+                batch = deadWatchers;
+                deadWatchers = new HashSet<Integer>();
+            }
+            long start = System.nanoTime();
+            listener.processDeadWatchers(batch);
+            LOG.info("Purged watches of " + batch.size() + " dead watchers in "
+                    + (System.nanoTime() - start) / 1000000L + " ms");
+        }
+        LOG.info("WatcherCleaner exited");
+    }
+
+    public void shutdown() {
+        stopped = true;
+        interrupt();
+    }
+}
@@ -30,8 +30,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.zip.Adler32;
+import java.util.Random;
 import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
 
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.InputArchive;
@@ -45,6 +46,8 @@ import org.apache.zookeeper.ZKTestCase;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.server.persistence.ChecksumAlgorithm;
+import org.apache.zookeeper.server.persistence.Crc32c;
 import org.apache.zookeeper.server.persistence.FileSnap;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
 import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
@@ -76,13 +79,23 @@ public class CRCTest extends ZKTestCase implements Watcher {
         raf.close();
     }
 
+    private ChecksumAlgorithm readChecksumAlgorithm(File file) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return ChecksumAlgorithm.fromHeader(is);
+        } finally {
+            is.close();
+        }
+    }
+
     /** return if checksum matches for a snapshot **/
     private boolean getCheckSum(FileSnap snap, File snapFile) throws IOException {
         DataTree dt = new DataTree();
         Map<Long, Integer> sessions = new ConcurrentHashMap<Long, Integer>();
         InputStream snapIS = new BufferedInputStream(new FileInputStream(
                 snapFile));
-        CheckedInputStream crcIn = new CheckedInputStream(snapIS, new Adler32());
+        CheckedInputStream crcIn = new CheckedInputStream(snapIS,
+                ChecksumAlgorithm.fromHeader(snapIS).create());
         InputArchive ia = BinaryInputArchive.getArchive(crcIn);
         try {
             snap.deserialize(dt, sessions, ia);
@@ -111,6 +124,47 @@ public class CRCTest extends ZKTestCase implements Watcher {
      */
     @Test
     public void testChecksums() throws Exception {
+        checkChecksums(ChecksumAlgorithm.CRC32C);
+    }
+
+    /**
+     * files of the former format have to be readable as well
+     */
+    @Test
+    public void testAdler32Checksums() throws Exception {
+        System.setProperty(ChecksumAlgorithm.CHECKSUM_ALGORITHM, "adler32");
+        try {
+            checkChecksums(ChecksumAlgorithm.ADLER32);
+        } finally {
+            System.clearProperty(ChecksumAlgorithm.CHECKSUM_ALGORITHM);
+        }
+    }
+
+    @Test
+    public void testCrc32c() throws Exception {
+        Crc32c crc = new Crc32c();
+        byte[] check = "123456789".getBytes();
+        crc.update(check, 0, check.length);
+        Assert.assertEquals(0xE3069283L, crc.getValue());
+
+        Random r = new Random(1);
+        byte[] b = new byte[4096];
+        r.nextBytes(b);
+        for (int i = 0; i < 1000; i++) {
+            int off = r.nextInt(b.length);
+            int len = r.nextInt(b.length - off);
+            Checksum expected = ChecksumAlgorithm.CRC32C.create();
+            expected.update(b, off, len);
+            crc.reset();
+            crc.update(b, off, len / 2);
+            for (int j = off + len / 2; j < off + len; j++) {
+                crc.update(b[j]);
+            }
+            Assert.assertEquals(expected.getValue(), crc.getValue());
+        }
+    }
+
+    private void checkChecksums(ChecksumAlgorithm algorithm) throws Exception {
         File tmpDir = ClientBase.createTmpDir();
         ClientBase.setupTestEnv();
         ZooKeeperServer zks = new ZooKeeperServer(tmpDir, tmpDir, 3000);
@@ -144,8 +198,9 @@ public class CRCTest extends ZKTestCase implements Watcher {
         File logFile = null;
         for (File file: list) {
             LOG.info("file is " + file);
-            if (file.getName().startsWith("log")) {
+            if (file.getName().startsWith("log.")) {
                 logFile = file;
+                Assert.assertEquals(algorithm, readChecksumAlgorithm(logFile));
                 corruptFile(logFile);
             }
         }
@@ -164,6 +219,7 @@ public class CRCTest extends ZKTestCase implements Watcher {
         FileSnap snap = new FileSnap(versionDir);
         List<File> snapFiles = snap.findNRecentSnapshots(2);
         snapFile = snapFiles.get(0);
+        Assert.assertEquals(algorithm, readChecksumAlgorithm(snapFile));
         corruptFile(snapFile);
         boolean cfile = false;
         try {
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.server.persistence.ChecksumAlgorithm;
+import org.apache.zookeeper.server.persistence.Crc32c;
+import org.apache.zookeeper.server.persistence.FileHeader;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.util.SerializeUtils;
+
+/**
+ * Compares throughput of the checksums of txn logs & snapshots: Adler32,
+ * CRC32C as created by ChecksumAlgorithm (java.util.zip.CRC32C where the
+ * JVM has it) & the table driven Crc32c it falls back to. Measured are
+ * checksums of 64KB blocks adding up to gigabytes ("bulk") & of snapshots,
+ * as FileSnap computes them while serializing a DataTree of the given
+ * number of nodes through a CheckedOutputStream (written to nowhere, so
+ * that the disk doesn't limit it), for which the time of serializing with
+ * no checksum is given as well.
+ *
+ * Usage: ChecksumBenchmark [bulkGB] [nodes] [dataSize]
+ * e.g. java -Xmx3g -cp build/classes:build/test/classes:build/lib/*
+ *      org.apache.zookeeper.server.ChecksumBenchmark 8 1000000 1024
+ */
+public class ChecksumBenchmark {
+
+    private static final String[] NAMES = {"none", "Adler32", "CRC32C", "Crc32c"};
+
+    public static void main(String[] args) throws Exception {
+        int bulkGB = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int dataSize = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+        byte[] block = new byte[64 * 1024];
+        new Random(1).nextBytes(block);
+        DataTree dt = new DataTree();
+        byte[] data = new byte[dataSize];
+        for (int i = 0; i < nodes; i++) {
+            dt.createNode(String.format("/node-%010d", i), data,
+                    Ids.OPEN_ACL_UNSAFE, 0, 0, i, i);
+        }
+
+        System.out.println(String.format("%-10s %10s %12s %10s",
+                "test", "checksum", "MB", "MB/s"));
+        for (int i = 0; i < 2; i++) {
+            // the first pass is a warm-up
+            for (int j = 1; j < NAMES.length; j++) {
+                long blocks = (i > 0 ? bulkGB * 1024L : 256) * 1024 / 64;
+                runBulk(j, block, blocks, i > 0);
+            }
+            for (int j = 0; j < NAMES.length; j++) {
+                runSnapshot(j, dt, i > 0);
+            }
+        }
+    }
+
+    private static Checksum create(int algorithm) {
+        switch (algorithm) {
+        case 1:
+            return ChecksumAlgorithm.ADLER32.create();
+        case 2:
+            return ChecksumAlgorithm.CRC32C.create();
+        case 3:
+            return new Crc32c();
+        default:
+            return null;
+        }
+    }
+
+    private static void runBulk(int algorithm, byte[] block, long blocks,
+            boolean report) {
+        Checksum checksum = create(algorithm);
+        long start = System.nanoTime();
+        for (long i = 0; i < blocks; i++) {
+            checksum.update(block, 0, block.length);
+        }
+        report("bulk", algorithm, blocks * block.length, start, checksum.getValue(), report);
+    }
+
+    private static void runSnapshot(int algorithm, DataTree dt, boolean report)
+            throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        OutputStream os = new BufferedOutputStream(counter);
+        Checksum checksum = create(algorithm);
+        if (checksum != null) {
+            os = new CheckedOutputStream(os, checksum);
+        }
+        long start = System.nanoTime();
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(os);
+        new FileHeader(FileSnap.SNAP_MAGIC,
+                ChecksumAlgorithm.CRC32C.getVersion(), -1).serialize(oa, "fileheader");
+        SerializeUtils.serializeSnapshot(dt, oa, new HashMap<Long, Integer>());
+        os.flush();
+        report("snapshot", algorithm, counter.count, start,
+                checksum != null ? checksum.getValue() : 0, report);
+    }
+
+    private static void report(String test, int algorithm, long bytes, long start,
+            long value, boolean report) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (report) {
+            System.out.println(String.format("%-10s %10s %12d %10.1f %s",
+                    test, NAMES[algorithm], bytes >> 20, (bytes >> 20) / seconds,
+                    // keeps the checksum from being optimized away
+                    value == 1 ? "!" : ""));
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.zookeeper.data.StatPersisted;
+
+/**
+ * Compares children sets of DataNode with the former layout (a HashSet per
+ * node, copied into an ArrayList by every getChildren): heap taken by the
+ * children structures alone (names are shared) & latency of getting the
+ * children list, as DataTree.getChildren does, for nodes of 10, 1000 &
+ * 100000 sequential children ("n_0000000001", ...).
+ *
+ * Usage: DataNodeChildrenBenchmark [childrenTotal] [gets]
+ * e.g. java -Xmx4g -cp build/classes:build/test/classes:build/lib/*
+ *      org.apache.zookeeper.server.DataNodeChildrenBenchmark 2000000 2000
+ */
+public class DataNodeChildrenBenchmark {
+
+    private static final int[] SIZES = {10, 1000, 100000};
+
+    public static void main(String[] args) throws Exception {
+        int childrenTotal = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int gets = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        System.out.println(String.format("%-10s %8s %8s %16s %16s",
+                "children", "nodes", "layout", "bytes/child", "getChildren ns"));
+        for (int i = 0; i < 2; i++) {
+            // the first pass is a warm-up
+            for (int size : SIZES) {
+                int nodes = Math.max(1, childrenTotal / size);
+                String[] names = new String[size];
+                for (int j = 0; j < size; j++) {
+                    names[j] = String.format("n_%010d", j);
+                }
+                runLegacy(names, nodes, gets, i > 0);
+                runDataNode(names, nodes, gets, i > 0);
+            }
+        }
+    }
+
+    private static void runLegacy(String[] names, int nodes, int gets, boolean report)
+            throws InterruptedException {
+        long heapBefore = usedHeap();
+        List<HashSet<String>> sets = new ArrayList<HashSet<String>>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            HashSet<String> set = new HashSet<String>(8);
+            for (String name : names) {
+                set.add(name);
+            }
+            sets.add(set);
+        }
+        double bytes = (usedHeap() - heapBefore) / (double) nodes / names.length;
+
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < gets; i++) {
+            HashSet<String> set = sets.get(i % nodes);
+            List<String> children = new ArrayList<String>(set.size());
+            children.addAll(set);
+            sum += children.size();
+        }
+        report("HashSet", names.length, nodes, bytes, start, gets, sum, report);
+    }
+
+    private static void runDataNode(String[] names, int nodes, int gets, boolean report)
+            throws InterruptedException {
+        long heapBefore = usedHeap();
+        List<DataNode> dataNodes = new ArrayList<DataNode>(nodes);
+        StatPersisted stat = new StatPersisted();
+        for (int i = 0; i < nodes; i++) {
+            dataNodes.add(new DataNode(null, -1L, stat));
+        }
+        double nodeBytes = usedHeap() - heapBefore;
+        for (DataNode node : dataNodes) {
+            for (String name : names) {
+                node.addChild(name);
+            }
+        }
+        double bytes = (usedHeap() - heapBefore - nodeBytes) / nodes / names.length;
+
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < gets; i++) {
+            sum += dataNodes.get(i % nodes).getChildrenList().size();
+        }
+        report("DataNode", names.length, nodes, bytes, start, gets, sum, report);
+    }
+
+    private static void report(String layout, int size, int nodes, double bytes, long start,
+            int gets, long sum, boolean report) {
+        double getNanos = (System.nanoTime() - start) / (double) gets;
+        if (sum != (long) size * gets) {
+            throw new IllegalStateException("Lost children");
+        }
+        if (report) {
+            System.out.println(String.format("%-10d %8d %8s %16.1f %16.1f",
+                    size, nodes, layout, bytes, getNanos));
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
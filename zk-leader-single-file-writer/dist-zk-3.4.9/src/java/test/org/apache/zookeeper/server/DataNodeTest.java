@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.StatPersisted;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DataNodeTest extends ZKTestCase {
+
+    @Test
+    public void testChildrenAcrossRepresentations() {
+        DataNode node = new DataNode(new byte[0], -1L, new StatPersisted());
+        Assert.assertNull(node.getChildren());
+        Assert.assertTrue(node.getChildrenList().isEmpty());
+
+        Set<String> expected = new HashSet<String>();
+        // in reverse order, so that every add goes to the head of the array
+        for (int i = DataNode.MAX_CHILD_ARRAY_SIZE * 2; i > 0; i--) {
+            String child = "child-" + i;
+            Assert.assertTrue(node.addChild(child));
+            Assert.assertFalse(node.addChild(child));
+            expected.add(child);
+            assertChildren(expected, node);
+        }
+        for (int i = 1; i <= DataNode.MAX_CHILD_ARRAY_SIZE * 2; i++) {
+            String child = "child-" + i;
+            Assert.assertTrue(node.removeChild(child));
+            Assert.assertFalse(node.removeChild(child));
+            expected.remove(child);
+            if (i % 64 == 0 || expected.size() < 4) {
+                assertChildren(expected, node);
+            }
+        }
+    }
+
+    @Test
+    public void testChildrenViewsDontChange() {
+        DataNode node = new DataNode(new byte[0], -1L, new StatPersisted());
+        node.addChild("b");
+        node.addChild("a");
+        Set<String> children = node.getChildren();
+        List<String> list = node.getChildrenList();
+        node.addChild("c");
+        node.removeChild("a");
+
+        Assert.assertEquals(2, children.size());
+        Assert.assertTrue(children.contains("a"));
+        Assert.assertFalse(children.contains("c"));
+        Assert.assertEquals("a", list.get(0));
+        Assert.assertEquals("b", list.get(1));
+        try {
+            children.iterator().remove();
+            Assert.fail("children must not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            list.set(0, "z");
+            Assert.fail("children must not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSetChildren() {
+        DataNode node = new DataNode(new byte[0], -1L, new StatPersisted());
+        HashSet<String> children = new HashSet<String>();
+        for (int i = 0; i <= DataNode.MAX_CHILD_ARRAY_SIZE; i++) {
+            children.add("child-" + i);
+            node.setChildren(new HashSet<String>(children));
+            assertChildren(children, node);
+        }
+        node.setChildren(new HashSet<String>());
+        Assert.assertNull(node.getChildren());
+    }
+
+    private static void assertChildren(Set<String> expected, DataNode node) {
+        Assert.assertEquals(expected.isEmpty() ? null : expected, node.getChildren());
+        Assert.assertEquals(expected, new HashSet<String>(node.getChildrenList()));
+        Assert.assertEquals(expected.size(), node.getChildCount());
+        if (!expected.isEmpty()) {
+            for (String child : expected) {
+                Assert.assertTrue(node.getChildren().contains(child));
+            }
+            Assert.assertFalse(node.getChildren().contains("missing"));
+        }
+    }
+}
@@ -22,8 +22,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.zookeeper.KeeperException.NoNodeException;
 import org.apache.zookeeper.KeeperException.NodeExistsException;
+import org.apache.zookeeper.AddWatchMode;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.ZKTestCase;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.server.DataTree;
@@ -43,8 +45,10 @@ import org.apache.zookeeper.Quotas;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.Record;
-import org.apache.zookeeper.common.PathTrie;
 import java.lang.reflect.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -101,6 +105,71 @@ public class DataTreeTest extends ZKTestCase {
                 exceptionDuringDumpEphemerals.get());
     }
 
+    @Test(timeout = 60000)
+    public void testKillSessionTriggersWatchesInOnePass() throws Exception {
+        final long session = 0x1234L;
+        final int count = 10000;
+        dt.createNode("/parent", new byte[0], null, 0, -1, 1, 1);
+        dt.createNode("/other", new byte[0], null, 0, -1, 2, 1);
+        dt.createNode("/parent/e0", new byte[1], null, session, -1, 3, 1);
+        Set<String> paths = dt.getEphemeralPaths(session);
+        for (int i = 1; i < count; i++) {
+            dt.createNode("/parent/e" + i, new byte[1], null, session, -1,
+                    3 + i, 1);
+        }
+        dt.createNode("/other/e", new byte[1], null, session, -1, 3 + count, 1);
+        // the view follows the session's ephemerals without being copied
+        Assert.assertEquals(count + 1, paths.size());
+        Assert.assertEquals(count + 1, dt.getEphemeralsCount());
+        try {
+            paths.remove("/other/e");
+            Assert.fail("the view should be read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        final List<WatchedEvent> events = new ArrayList<WatchedEvent>();
+        Watcher watcher = new Watcher() {
+            public void process(WatchedEvent event) {
+                events.add(event);
+            }
+        };
+        dt.addWatch("/parent", watcher, AddWatchMode.PERSISTENT);
+        dt.getChildren("/other", null, watcher);
+        dt.getData("/parent/e7", new Stat(), watcher);
+
+        int nodeCount = dt.getNodeCount();
+        dt.killSession(session, 4 + count);
+        Assert.assertEquals(nodeCount - count - 1, dt.getNodeCount());
+        Assert.assertEquals(0, dt.getEphemeralsCount());
+        Assert.assertTrue(dt.getEphemeralPaths(session).isEmpty());
+        Assert.assertFalse(dt.getSessions().contains(session));
+        Assert.assertNull(dt.getNode("/parent/e7"));
+        Assert.assertEquals(0, dt.getNode("/parent").getChildCount());
+        Assert.assertEquals(4 + count, dt.getNode("/parent").getPzxid());
+
+        // every parent hears of its lost children once, after the deletes
+        int parentEvents = 0;
+        int otherEvents = 0;
+        int deletedEvents = 0;
+        for (WatchedEvent event : events) {
+            if (event.getType() == EventType.NodeChildrenChanged) {
+                if (event.getPath().equals("/parent")) {
+                    parentEvents++;
+                } else if (event.getPath().equals("/other")) {
+                    otherEvents++;
+                }
+            } else if (event.getType() == EventType.NodeDeleted) {
+                Assert.assertEquals("/parent/e7", event.getPath());
+                deletedEvents++;
+            }
+        }
+        Assert.assertEquals(1, parentEvents);
+        Assert.assertEquals(1, otherEvents);
+        Assert.assertEquals(1, deletedEvents);
+        Assert.assertEquals(3, events.size());
+    }
+
     private void killZkClientSession(long session, long zxid,
             final DataTree dataTree, int count) {
         for (int i = 0; i < count; i++) {
@@ -112,7 +181,7 @@ public class DataTreeTest extends ZKTestCase {
             int count) throws NoNodeException, NodeExistsException {
         for (int i = 0; i < count; i++) {
             dataTree.createNode("/test" + i, new byte[0], null, session + i,
-                    dataTree.getNode("/").stat.getCversion() + 1, 1, 1);
+                    dataTree.getNode("/").getStat().getCversion() + 1, 1, 1);
         }
     }
     
@@ -129,7 +198,7 @@ public class DataTreeTest extends ZKTestCase {
         // set a watch on the root node
         dt.getChildren("/", new Stat(), watcher);
         // add a new node, should trigger a watch
-        dt.createNode("/xyz", new byte[0], null, 0, dt.getNode("/").stat.getCversion()+1, 1, 1);
+        dt.createNode("/xyz", new byte[0], null, 0, dt.getNode("/").getStat().getCversion()+1, 1, 1);
         Assert.assertFalse("Root node watch not triggered",!watcher.fired);
     }
 
@@ -138,13 +207,13 @@ public class DataTreeTest extends ZKTestCase {
      */
     @Test(timeout = 60000)
     public void testIncrementCversion() throws Exception {
-        dt.createNode("/test", new byte[0], null, 0, dt.getNode("/").stat.getCversion()+1, 1, 1);
+        dt.createNode("/test", new byte[0], null, 0, dt.getNode("/").getStat().getCversion()+1, 1, 1);
         DataNode zk = dt.getNode("/test");
-        int prevCversion = zk.stat.getCversion();
-        long prevPzxid = zk.stat.getPzxid();
+        int prevCversion = zk.getStat().getCversion();
+        long prevPzxid = zk.getStat().getPzxid();
         dt.setCversionPzxid("/test/",  prevCversion + 1, prevPzxid + 1);
-        int newCversion = zk.stat.getCversion();
-        long newPzxid = zk.stat.getPzxid();
+        int newCversion = zk.getStat().getCversion();
+        long newPzxid = zk.getStat().getPzxid();
         Assert.assertTrue("<cversion, pzxid> verification failed. Expected: <" +
                 (prevCversion + 1) + ", " + (prevPzxid + 1) + ">, found: <" +
                 newCversion + ", " + newPzxid + ">",
@@ -174,12 +243,51 @@ public class DataTreeTest extends ZKTestCase {
         BinaryInputArchive ia = BinaryInputArchive.getArchive(bais);
         dserTree.deserialize(ia, "test");
 
-        Field pfield = DataTree.class.getDeclaredField("pTrie");
-        pfield.setAccessible(true);
-        PathTrie pTrie = (PathTrie)pfield.get(dserTree);
+        //Check that the quota of the node path is removed
+        Assert.assertNull("/bug still has a quota", dserTree.getMaxPrefixWithQuota("/bug"));
+    }
+
+    @Test(timeout = 60000)
+    public void testQuotaStatsAreWrittenOnRead() throws Exception {
+        DataTree tree = new DataTree();
+        tree.createNode("/a", new byte[10], null, -1, 1, 1, 1);
+        tree.createNode(Quotas.quotaZookeeper + "/a", null, null, -1, 1, 2, 1);
+        tree.createNode(Quotas.quotaPath("/a"),
+                "count=2,bytes=-1".getBytes(), null, -1, 1, 3, 1);
+        tree.createNode(Quotas.statPath("/a"),
+                "count=0,bytes=0".getBytes(), null, -1, 1, 4, 1);
+        Assert.assertEquals("count=1,bytes=10", new String(
+                tree.getData(Quotas.statPath("/a"), new Stat(), null)));
+
+        tree.createNode("/a/b", new byte[5], null, -1, 1, 5, 1);
+        tree.createNode("/a/b/c", null, null, -1, 1, 6, 1);
+        tree.setData("/a", new byte[3], 1, 7, 1);
+        Assert.assertEquals("/a", tree.getMaxPrefixWithQuota("/a/b/c"));
+        // the stat node is only written once read
+        Assert.assertEquals("count=1,bytes=10", new String(
+                tree.getNode(Quotas.statPath("/a")).getData()));
+        Assert.assertEquals(15, tree.statNode(Quotas.statPath("/a"), null)
+                .getDataLength());
+        Assert.assertEquals("count=3,bytes=8", new String(
+                tree.getNode(Quotas.statPath("/a")).getData()));
 
-        //Check that the node path is removed from pTrie
-        Assert.assertEquals("/bug is still in pTrie", "", pTrie.findMaxPrefix("/bug"));       
+        // or snapshotted
+        tree.deleteNode("/a/b/c", 8);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tree.serialize(BinaryOutputArchive.getArchive(baos), "test");
+        Assert.assertEquals("count=2,bytes=8", new String(
+                tree.getNode(Quotas.statPath("/a")).getData()));
+        DataTree copy = new DataTree();
+        copy.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "test");
+        Assert.assertEquals("count=2,bytes=8", new String(
+                copy.getData(Quotas.statPath("/a"), new Stat(), null)));
+
+        // a new limit is picked up, and removing it drops the quota
+        tree.setData(Quotas.quotaPath("/a"), "count=-1,bytes=100".getBytes(),
+                1, 9, 1);
+        tree.deleteNode(Quotas.quotaPath("/a"), 10);
+        Assert.assertNull(tree.getMaxPrefixWithQuota("/a/b"));
     }
 
     /*
@@ -201,7 +309,7 @@ public class DataTreeTest extends ZKTestCase {
             @Override
             public void writeRecord(Record r, String tag) throws IOException {
                 DataNode node = (DataNode) r;
-                if (node.data.length == 1 && node.data[0] == 42) {
+                if (node.getDataLength() == 1 && node.getData()[0] == 42) {
                     final Semaphore semaphore = new Semaphore(0);
                     new Thread(new Runnable() {
                         @Override
@@ -232,4 +340,62 @@ public class DataTreeTest extends ZKTestCase {
         //Let's make sure that we hit the code that ran the real assertion above
         Assert.assertTrue("Didn't find the expected node", ranTestCase.get());
     }
+
+    @Test(timeout = 60000)
+    public void testApproximateDataSizeIsKeptUpToDate() throws Exception {
+        System.setProperty(DataTree.ZOOKEEPER_SUBTREE_SIZES, "true");
+        DataTree tree;
+        try {
+            tree = new DataTree();
+        } finally {
+            System.clearProperty(DataTree.ZOOKEEPER_SUBTREE_SIZES);
+        }
+        tree.createNode("/a", new byte[10], null, -1, 1, 1, 1);
+        tree.createNode("/a/b", new byte[20], null, -1, 1, 2, 1);
+        tree.createNode("/c", null, null, -1, 1, 3, 1);
+        tree.createNode(Quotas.quotaZookeeper + "/a", null, null, -1, 1, 4, 1);
+        tree.createNode(Quotas.quotaPath("/a"), "count=-1,bytes=-1".getBytes(), null, -1, 1, 5, 1);
+        tree.createNode(Quotas.statPath("/a"), "count=0,bytes=0".getBytes(), null, -1, 1, 6, 1);
+        // under the quota: the stat node is updated as well
+        tree.createNode("/a/d", new byte[5], null, -1, 1, 7, 1);
+        tree.setData("/a/b", new byte[7], 1, 8, 1);
+        tree.deleteNode("/a/d", 9);
+        tree.deleteNode("/c", 10);
+        assertSizes(tree);
+        Assert.assertEquals(Long.valueOf("/a".length() + 10 + "/a/b".length() + 7),
+                tree.getSubtreeDataSizes().get("/a"));
+        Assert.assertEquals(Integer.valueOf(2), tree.getSubtreeNodeCounts().get("/a"));
+        Assert.assertNull(tree.getSubtreeNodeCounts().get("/c"));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tree.serialize(BinaryOutputArchive.getArchive(baos), "test");
+        DataTree copy = new DataTree();
+        copy.deserialize(BinaryInputArchive.getArchive(
+                new ByteArrayInputStream(baos.toByteArray())), "test");
+        assertSizes(copy);
+        Assert.assertEquals(tree.approximateDataSize(), copy.approximateDataSize());
+        // disabled by default
+        Assert.assertTrue(copy.getSubtreeDataSizes().isEmpty());
+    }
+
+    /**
+     * Compares the kept sizes of the tree with ones summed up over its nodes
+     */
+    private static void assertSizes(DataTree tree) throws Exception {
+        long[] sizes = new long[2];
+        sumSizes(tree, "/", sizes);
+        // "" is the root as well
+        sizes[0] += tree.getNode("/").getDataLength();
+        sizes[1]++;
+        Assert.assertEquals(sizes[0], tree.approximateDataSize());
+        Assert.assertEquals(sizes[1], tree.getNodeCount());
+    }
+
+    private static void sumSizes(DataTree tree, String path, long[] sizes) throws Exception {
+        sizes[0] += path.length() + tree.getNode(path).getDataLength();
+        sizes[1]++;
+        for (String child : tree.getChildren(path, null, null)) {
+            sumSizes(tree, (path.equals("/") ? "" : path) + "/" + child, sizes);
+        }
+    }
 }
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GroupCommitPolicyTest extends ZKTestCase {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testWaitIsDisabledByDefault() {
+        GroupCommitPolicy policy = new GroupCommitPolicy(0, 0);
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            policy.arrived(now += MS / 10);
+        }
+        policy.added(now, 100);
+        policy.committed(10 * MS);
+        policy.added(now, 100);
+        Assert.assertEquals(0, policy.getWaitNanos(now));
+        Assert.assertFalse(policy.isFull());
+    }
+
+    @Test
+    public void testWaitFollowsFsyncAndArrivals() {
+        GroupCommitPolicy policy = new GroupCommitPolicy(5000, 0);
+        long now = 1000 * MS;
+        policy.added(now, 100);
+        // nothing measured yet
+        Assert.assertEquals(0, policy.getWaitNanos(now));
+        policy.committed(4 * MS);
+        Assert.assertEquals(4 * MS, policy.getCommitNanos());
+
+        // requests arrive 1ms apart, up to half of the 4ms fsync is waited
+        for (int i = 0; i < 50; i++) {
+            policy.arrived(now += MS);
+        }
+        policy.added(now, 100);
+        Assert.assertEquals(2 * MS, policy.getWaitNanos(now));
+        // but no longer than the max delay since the batch started
+        Assert.assertEquals(MS, policy.getWaitNanos(now + 4 * MS));
+        Assert.assertEquals(0, policy.getWaitNanos(now + 5 * MS));
+        policy.waited(MS);
+        Assert.assertEquals(MS, policy.getBatchWaitNanos());
+        policy.committed(4 * MS);
+        Assert.assertEquals(0, policy.getBatchWaitNanos());
+
+        // requests arriving further apart than the wait aren't waited for
+        for (int i = 0; i < 50; i++) {
+            policy.arrived(now += 3 * MS);
+        }
+        policy.added(now, 100);
+        Assert.assertEquals(0, policy.getWaitNanos(now));
+        policy.committed(4 * MS);
+
+        // a faster disk shortens the wait, as the average follows it
+        for (int i = 0; i < 50; i++) {
+            policy.arrived(now += MS / 10);
+            policy.committed(MS);
+        }
+        policy.added(now, 100);
+        long wait = policy.getWaitNanos(now);
+        Assert.assertTrue("wait " + wait, wait > MS / 2 - MS / 100
+                && wait <= MS / 2 + MS / 100);
+    }
+
+    @Test
+    public void testFullBatchIsNotWaitedFor() {
+        GroupCommitPolicy policy = new GroupCommitPolicy(5000, 1000);
+        long now = 1000 * MS;
+        policy.added(now, 100);
+        policy.committed(4 * MS);
+        for (int i = 0; i < 50; i++) {
+            policy.arrived(now += MS / 10);
+        }
+        policy.added(now, 600);
+        Assert.assertFalse(policy.isFull());
+        Assert.assertTrue(policy.getWaitNanos(now) > 0);
+        policy.added(now, 400);
+        Assert.assertTrue(policy.isFull());
+        Assert.assertEquals(0, policy.getWaitNanos(now));
+        policy.committed(4 * MS);
+        Assert.assertFalse(policy.isFull());
+    }
+
+    @Test
+    public void testBatchSizeHistogram() {
+        ServerStats stats = new ServerStats(null);
+        stats.updateGroupCommit(1, 0, 2000000);
+        stats.updateGroupCommit(3, 1500000, 2000000);
+        stats.updateGroupCommit(4, 500000, 2000000);
+        stats.updateGroupCommit(1001, 0, 2000000);
+        stats.updateGroupCommit(5000, 0, 2000000);
+        long[] sizes = stats.getGroupCommitSizes();
+        Assert.assertEquals(ServerStats.GROUP_COMMIT_SIZE_BUCKETS, sizes.length);
+        Assert.assertEquals(1, sizes[0]);
+        Assert.assertEquals(1, sizes[1]);
+        Assert.assertEquals(1, sizes[2]);
+        Assert.assertEquals(1, sizes[9]);
+        Assert.assertEquals(1, sizes[10]);
+        Assert.assertEquals("1", ServerStats.getGroupCommitSizeBucket(0));
+        Assert.assertEquals("4_7", ServerStats.getGroupCommitSizeBucket(2));
+        Assert.assertEquals("1024_", ServerStats.getGroupCommitSizeBucket(10));
+        Assert.assertEquals(5, stats.getGroupCommitCount());
+        Assert.assertEquals(6009 / 5, stats.getAvgGroupCommitSize());
+        Assert.assertEquals(5000, stats.getMaxGroupCommitSize());
+        Assert.assertEquals(400, stats.getAvgGroupCommitWaitMicros());
+        Assert.assertEquals(1500, stats.getMaxGroupCommitWaitMicros());
+        Assert.assertEquals(2000, stats.getAvgGroupCommitFsyncMicros());
+        stats.resetGroupCommit();
+        Assert.assertEquals(0, stats.getGroupCommitCount());
+        Assert.assertEquals(0, stats.getGroupCommitSizes()[0]);
+    }
+}
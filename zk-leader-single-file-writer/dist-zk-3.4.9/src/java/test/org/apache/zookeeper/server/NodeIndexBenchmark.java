@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.StatPersisted;
+
+/**
+ * Compares HashNodeIndex & TrieNodeIndex on a synthetic deep tree: heap
+ * taken by the index alone (all paths map to one shared DataNode), heap
+ * per node of a whole DataTree and get() latency of random existing paths.
+ * Nodes of level d are named "level-d-node-i", every node has fanOut
+ * children down to the given depth.
+ *
+ * Usage: NodeIndexBenchmark [fanOut] [depth] [lookups]
+ * e.g. java -Xmx4g -cp build/classes:build/test/classes:build/lib/*
+ *      org.apache.zookeeper.server.NodeIndexBenchmark 10 6 2000000
+ */
+public class NodeIndexBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int fanOut = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 2000000;
+
+        List<String> paths = new ArrayList<String>();
+        addPaths("", 1, fanOut, depth, paths);
+        long pathChars = 0;
+        for (String path : paths) {
+            pathChars += path.length();
+        }
+        Random random = new Random(42);
+        String[] lookupPaths = new String[lookups];
+        for (int i = 0; i < lookups; i++) {
+            // fresh copies, like paths deserialized from requests
+            lookupPaths[i] = new String(paths.get(random.nextInt(paths.size())).toCharArray());
+        }
+
+        System.out.println(paths.size() + " nodes (fan-out " + fanOut + ", depth " + depth
+                + ", average path " + (pathChars / paths.size()) + " chars), "
+                + lookups + " lookups");
+        System.out.println(String.format("%-16s %18s %20s %14s",
+                "index", "index bytes/node", "DataTree bytes/node", "get ns/op"));
+        Class<?>[] indexes = {HashNodeIndex.class, TrieNodeIndex.class};
+        for (Class<?> index : indexes) {
+            // warm-up
+            run(index, paths, lookupPaths, false);
+        }
+        for (Class<?> index : indexes) {
+            run(index, paths, lookupPaths, true);
+        }
+    }
+
+    private static void addPaths(String parent, int level, int fanOut, int depth,
+            List<String> paths) {
+        for (int i = 0; i < fanOut; i++) {
+            String path = parent + "/level-" + level + "-node-" + i;
+            paths.add(path);
+            if (level < depth) {
+                addPaths(path, level + 1, fanOut, depth, paths);
+            }
+        }
+    }
+
+    private static void run(Class<?> indexClass, List<String> paths, String[] lookupPaths,
+            boolean report) throws Exception {
+        DataNode shared = new DataNode(new byte[0], -1L, new StatPersisted());
+        long heapBefore = usedHeap();
+        NodeIndex index = (NodeIndex) indexClass.newInstance();
+        index.put("/", shared);
+        for (String path : paths) {
+            // the index keeps its own copy of the path (or of its parts)
+            index.put(new String(path.toCharArray()), shared);
+        }
+        double indexBytes = (usedHeap() - heapBefore) / (double) paths.size();
+
+        long start = System.nanoTime();
+        long found = 0;
+        for (String path : lookupPaths) {
+            if (index.get(path) != null) {
+                found++;
+            }
+        }
+        double getNanos = (System.nanoTime() - start) / (double) lookupPaths.length;
+        if (found != lookupPaths.length) {
+            throw new IllegalStateException("Lost nodes: " + (lookupPaths.length - found));
+        }
+        index = null;
+
+        System.setProperty(DataTree.ZOOKEEPER_NODE_INDEX_NAME, indexClass.getName());
+        heapBefore = usedHeap();
+        DataTree dataTree = new DataTree();
+        long zxid = 1;
+        for (String path : paths) {
+            dataTree.createNode(new String(path.toCharArray()), new byte[0],
+                    Ids.OPEN_ACL_UNSAFE, 0, 0, zxid++, 0);
+        }
+        double treeBytes = (usedHeap() - heapBefore) / (double) paths.size();
+        dataTree.shutdownWatcher();
+        System.clearProperty(DataTree.ZOOKEEPER_NODE_INDEX_NAME);
+
+        if (report) {
+            System.out.println(String.format("%-16s %18.1f %20.1f %14.1f",
+                    indexClass.getSimpleName(), indexBytes, treeBytes, getNanos));
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.StatPersisted;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(Parameterized.class)
+public class NodeIndexTest extends ZKTestCase {
+
+    private final Class<? extends NodeIndex> indexClass;
+    private NodeIndex index;
+
+    public NodeIndexTest(Class<? extends NodeIndex> indexClass) {
+        this.indexClass = indexClass;
+    }
+
+    @Parameters
+    public static Collection<Object[]> configs() {
+        return Arrays.asList(new Object[][] {
+            { HashNodeIndex.class },
+            { TrieNodeIndex.class },
+        });
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        index = indexClass.newInstance();
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        DataNode root = node(0);
+        DataNode a = node(1);
+        DataNode ab = node(2);
+        DataNode abc = node(3);
+        index.put("", root);
+        index.put("/", root);
+        index.put("/a", a);
+        index.put("/a/b", ab);
+        index.put("/a/b/c", abc);
+
+        Assert.assertSame(root, index.get(""));
+        Assert.assertSame(root, index.get("/"));
+        Assert.assertSame(a, index.get("/a"));
+        Assert.assertSame(abc, index.get("/a/b/c"));
+        Assert.assertNull(index.get("/a/"));
+        Assert.assertNull(index.get("/a//b"));
+        Assert.assertNull(index.get("/ab"));
+        Assert.assertNull(index.get("/a/b/c/d"));
+        Assert.assertEquals(5, index.size());
+
+        DataNode replacement = node(4);
+        index.put("/a/b", replacement);
+        Assert.assertSame(replacement, index.get("/a/b"));
+        Assert.assertEquals(5, index.size());
+
+        Assert.assertSame(replacement, index.remove("/a/b"));
+        Assert.assertNull(index.remove("/a/b"));
+        Assert.assertNull(index.get("/a/b"));
+        // the path below the removed one stays
+        Assert.assertSame(abc, index.get("/a/b/c"));
+        Assert.assertSame(abc, index.remove("/a/b/c"));
+        Assert.assertSame(a, index.remove("/a"));
+        Assert.assertNull(index.get("/a/b/c"));
+        Assert.assertEquals(2, index.size());
+
+        index.clear();
+        Assert.assertNull(index.get("/"));
+        Assert.assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testNamesOfAnyLengthAndCharset() {
+        String[] names = {"x", "exactly-16-chars", "longer-than-16-chars-0000000001",
+                "longer-than-16-chars-0000000002", "\u00e9t\u00e9", "\u0437\u043d\u0430\u043a",
+                "mixed-\u00e9-\u0437-\u00e9"};
+        DataNode[] nodes = new DataNode[names.length];
+        for (int i = 0; i < names.length; i++) {
+            nodes[i] = node(i);
+            index.put("/" + names[i], nodes[i]);
+            index.put("/" + names[i] + "/" + names[i], nodes[i]);
+        }
+        for (int i = 0; i < names.length; i++) {
+            Assert.assertSame(nodes[i], index.get("/" + names[i]));
+            Assert.assertSame(nodes[i], index.get("/" + names[i] + "/" + names[i]));
+            // same length, differs in the last char only
+            String name = names[i].substring(0, names[i].length() - 1) + '_';
+            Assert.assertNull(index.get("/" + name));
+            Assert.assertNull(index.get("/" + names[i] + "/" + name));
+        }
+        Assert.assertNull(index.get("/exactly-16-chars-"));
+        Assert.assertNull(index.get("/exactly-16-char"));
+    }
+
+    @Test
+    public void testManyNodesSurviveGrowthAndRemovals() {
+        int count = 20000;
+        DataNode[] nodes = new DataNode[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = node(0);
+            index.put(path(i), nodes[i]);
+        }
+        for (int i = 0; i < count; i += 2) {
+            Assert.assertSame(nodes[i], index.remove(path(i)));
+        }
+        for (int i = 0; i < count; i++) {
+            Assert.assertSame(i % 2 == 0 ? null : nodes[i], index.get(path(i)));
+        }
+        Assert.assertEquals(count / 2, index.size());
+    }
+
+    @Test(timeout = 60000)
+    public void testLookupsDuringUpdates() throws Exception {
+        final int count = 20000;
+        final DataNode[] nodes = new DataNode[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = node(0);
+        }
+        // odd nodes stay, even ones come & go
+        for (int i = 1; i < count; i += 2) {
+            index.put(path(i), nodes[i]);
+        }
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread reader = new Thread() {
+            public void run() {
+                Random random = new Random(1);
+                for (int n = 0; n < 500000 && failure.get() == null; n++) {
+                    int i = random.nextInt(count);
+                    DataNode found = index.get(path(i));
+                    if (found != null ? found != nodes[i] : i % 2 == 1) {
+                        failure.set("wrong node of " + path(i));
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < count; i += 2) {
+                index.put(path(i), nodes[i]);
+            }
+            for (int i = 0; i < count; i += 2) {
+                index.remove(path(i));
+            }
+        }
+        reader.join();
+        Assert.assertNull(failure.get());
+    }
+
+    private static String path(int i) {
+        return "/dir-" + (i % 10) + "/sub-" + (i % 100) + "/node-" + i;
+    }
+
+    private static DataNode node(int dataLength) {
+        return new DataNode(new byte[dataLength], -1L, new StatPersisted());
+    }
+}
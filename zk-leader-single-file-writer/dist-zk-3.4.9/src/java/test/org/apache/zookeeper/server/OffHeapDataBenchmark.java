@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package org.apache.zookeeper.server;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Compares DataTree with znode data on the heap & in SlabDataStore slabs:
+ * heap used by the tree, off-heap slab bytes once loaded & after the
+ * updates (which mustn't keep growing them), duration of a full GC
+ * (System.gc()), GC time spent during random setData calls, and getData
+ * latency. Nodes are "/node-i" with dataSize bytes each.
+ *
+ * Usage: OffHeapDataBenchmark [nodes] [dataSize] [updates] [slabSize]
+ * e.g. java -Xmx6g -XX:MaxDirectMemorySize=6g
+ *      -cp build/classes:build/test/classes:build/lib/*
+ *      org.apache.zookeeper.server.OffHeapDataBenchmark 4000000 1024 2000000
+ */
+public class OffHeapDataBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int dataSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int updates = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+        int slabSize = args.length > 3 ? Integer.parseInt(args[3]) : 64 * 1024 * 1024;
+
+        System.out.println(nodes + " nodes of " + dataSize + " bytes, " + updates
+                + " updates, " + slabSize + " byte slabs");
+        System.out.println(String.format("%-9s %10s %12s %12s %12s %14s %12s",
+                "data", "heap MB", "off-heap MB", "updated MB", "full GC ms",
+                "update GC ms", "get ns/op"));
+        run(0, nodes, dataSize, updates);
+        run(slabSize, nodes, dataSize, updates);
+    }
+
+    private static void run(int slabSize, int nodes, int dataSize, int updates)
+            throws Exception {
+        if (slabSize > 0) {
+            System.setProperty(DataTree.ZOOKEEPER_OFF_HEAP_SLAB_SIZE,
+                    Integer.toString(slabSize));
+        }
+        long heapBefore = usedHeap();
+        DataTree dataTree = new DataTree();
+        Random random = new Random(42);
+        byte[] data = new byte[dataSize];
+        long zxid = 1;
+        for (int i = 0; i < nodes; i++) {
+            random.nextBytes(data);
+            // every node has its own array, like data deserialized from a request
+            dataTree.createNode("/node-" + i, data.clone(), Ids.OPEN_ACL_UNSAFE,
+                    0, -1, zxid++, 0);
+        }
+        double heapMB = (usedHeap() - heapBefore) / 1048576.0;
+        double offHeapMB = dataTree.getDataStore() == null ? 0
+                : dataTree.getDataStore().getSlabBytes() / 1048576.0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        double fullGcMillis = (System.nanoTime() - start) / 3 / 1e6;
+
+        long gcBefore = gcMillis();
+        for (int i = 0; i < updates; i++) {
+            random.nextBytes(data);
+            dataTree.setData("/node-" + random.nextInt(nodes), data.clone(), 1, zxid++, 0);
+        }
+        long updateGcMillis = gcMillis() - gcBefore;
+        double updatedOffHeapMB = dataTree.getDataStore() == null ? 0
+                : dataTree.getDataStore().getSlabBytes() / 1048576.0;
+
+        Stat stat = new Stat();
+        String[] paths = new String[1000];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "/node-" + random.nextInt(nodes);
+        }
+        long sum = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            sum += dataTree.getData(paths[i % paths.length], stat, null).length;
+        }
+        double getNanos = (System.nanoTime() - start) / (double) updates;
+        if (sum != (long) updates * dataSize) {
+            throw new IllegalStateException("Lost data");
+        }
+
+        System.out.println(String.format("%-9s %10.1f %12.1f %12.1f %12.1f %14d %12.1f",
+                slabSize > 0 ? "off-heap" : "heap", heapMB, offHeapMB, updatedOffHeapMB,
+                fullGcMillis, updateGcMillis, getNanos));
+        dataTree.shutdownWatcher();
+        System.clearProperty(DataTree.ZOOKEEPER_OFF_HEAP_SLAB_SIZE);
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += gc.getCollectionTime();
+        }
+        return millis;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
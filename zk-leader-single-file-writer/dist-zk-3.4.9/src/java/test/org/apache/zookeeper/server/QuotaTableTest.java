@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QuotaTableTest extends ZKTestCase {
+
+    @Test
+    public void testFindMaxPrefix() {
+        QuotaTable table = new QuotaTable();
+        Assert.assertNull(table.findMaxPrefix("/a"));
+        QuotaTable.Quota a = table.add("/a");
+        QuotaTable.Quota abc = table.add("/a/b/c");
+        Assert.assertSame(a, table.add("/a"));
+
+        Assert.assertSame(a, table.findMaxPrefix("/a"));
+        Assert.assertSame(a, table.findMaxPrefix("/a/b"));
+        Assert.assertSame(a, table.findMaxPrefix("/a/bb/c/d"));
+        Assert.assertSame(abc, table.findMaxPrefix("/a/b/c"));
+        Assert.assertSame(abc, table.findMaxPrefix("/a/b/c/d/e"));
+        Assert.assertSame(a, table.findMaxPrefix("/a/b/cc"));
+        Assert.assertNull(table.findMaxPrefix("/ab"));
+        Assert.assertNull(table.findMaxPrefix("/"));
+
+        // removing the deepest quota makes lookups skip its depth
+        Assert.assertSame(abc, table.remove("/a/b/c"));
+        Assert.assertSame(a, table.findMaxPrefix("/a/b/c/d/e"));
+        Assert.assertNull(table.remove("/a/b/c"));
+        table.clear();
+        Assert.assertTrue(table.isEmpty());
+        Assert.assertNull(table.findMaxPrefix("/a/b"));
+    }
+
+    @Test
+    public void testCountersAreCleanOnceRead() {
+        QuotaTable.Quota quota = new QuotaTable().add("/a");
+        Assert.assertFalse(quota.clean());
+        Assert.assertEquals(2, quota.addCount(2));
+        Assert.assertEquals(-5, quota.addBytes(-5));
+        Assert.assertTrue(quota.clean());
+        Assert.assertFalse(quota.clean());
+        quota.setUsage(7, 70);
+        Assert.assertTrue(quota.clean());
+        Assert.assertEquals(7, quota.count.get());
+        Assert.assertEquals(70, quota.bytes.get());
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SlabDataStoreTest extends ZKTestCase {
+
+    @After
+    public void tearDown() {
+        System.clearProperty(DataTree.ZOOKEEPER_OFF_HEAP_SLAB_SIZE);
+    }
+
+    @Test
+    public void testStoreAndRelease() {
+        SlabDataStore store = new SlabDataStore(1024, null);
+        byte[] small = new byte[SlabDataStore.MIN_LENGTH - 1];
+        byte[] large = new byte[1025];
+        Assert.assertSame(small, store.store(small));
+        Assert.assertSame(large, store.store(large));
+        Assert.assertNull(store.store(null));
+        Assert.assertEquals(0, store.getSlabCount());
+
+        List<Object> stored = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            Object data = store.store(data(i, 100));
+            Assert.assertTrue(data instanceof SlabDataStore.Data);
+            stored.add(data);
+        }
+        // 8 chunks of 128 bytes in a slab
+        Assert.assertEquals(13, store.getSlabCount());
+        Assert.assertEquals(100 * 100, store.getLiveBytes());
+        for (int i = 0; i < 100; i++) {
+            SlabDataStore.Data data = (SlabDataStore.Data) stored.get(i);
+            Assert.assertEquals(100, data.length());
+            Assert.assertTrue(Arrays.equals(data(i, 100), data.get()));
+        }
+
+        for (Object data : stored) {
+            store.release(data);
+        }
+        Assert.assertEquals(0, store.getLiveBytes());
+        // the released chunks are reused
+        for (int i = 0; i < 100; i++) {
+            store.store(data(i, 90));
+        }
+        Assert.assertEquals(13, store.getSlabCount());
+
+        try {
+            store.release(stored.get(0));
+            Assert.fail("released twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            ((SlabDataStore.Data) stored.get(0)).get();
+            Assert.fail("read after release");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Replacing data at random, as setData does, mustn't grow the slabs
+     * even though it leaves live data in all of them.
+     */
+    @Test
+    public void testSlabsStayBoundedUnderChurn() {
+        SlabDataStore store = new SlabDataStore(1024 * 1024, null);
+        Random random = new Random(42);
+        Object[] stored = new Object[20000];
+        for (int i = 0; i < stored.length; i++) {
+            stored[i] = store.store(data(i, 32 + random.nextInt(1000)));
+        }
+        long loaded = store.getSlabBytes();
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < stored.length; i++) {
+                int j = random.nextInt(stored.length);
+                byte[] data = data(i, 32 + random.nextInt(1000));
+                Object last = stored[j];
+                stored[j] = store.store(data);
+                store.release(last);
+                Assert.assertTrue(Arrays.equals(data,
+                        ((SlabDataStore.Data) stored[j]).get()));
+            }
+            Assert.assertTrue("slabs grew from " + loaded + " to "
+                    + store.getSlabBytes() + " bytes in round " + round,
+                    store.getSlabBytes() <= loaded + loaded / 4);
+        }
+        Assert.assertTrue(store.getSlabBytes() <= 2 * store.getLiveBytes()
+                + 2 * 1024 * 1024);
+    }
+
+    @Test
+    public void testMappedSlabs() throws Exception {
+        File dir = ClientBase.createTmpDir();
+        SlabDataStore store = new SlabDataStore(4096, dir);
+        Object data = store.store(data(7, 1000));
+        Assert.assertTrue(Arrays.equals(data(7, 1000), ((SlabDataStore.Data) data).get()));
+        Assert.assertEquals(4096, store.getSlabBytes());
+    }
+
+    @Test
+    public void testDataTreeOffHeap() throws Exception {
+        System.setProperty(DataTree.ZOOKEEPER_OFF_HEAP_SLAB_SIZE, "4096");
+        DataTree tree = new DataTree();
+        SlabDataStore store = tree.getDataStore();
+        Assert.assertNotNull(store);
+        for (int i = 0; i < 100; i++) {
+            tree.createNode("/node" + i, data(i, 100), Ids.OPEN_ACL_UNSAFE, 0, -1, i, i);
+        }
+        tree.createNode("/small", new byte[] {1}, Ids.OPEN_ACL_UNSAFE, 0, -1, 100, 100);
+        Assert.assertEquals(100 * 100, store.getLiveBytes());
+
+        Stat stat = new Stat();
+        Assert.assertTrue(Arrays.equals(data(5, 100), tree.getData("/node5", stat, null)));
+        Assert.assertEquals(100, stat.getDataLength());
+        tree.setData("/node5", data(6, 200), 1, 101, 101);
+        Assert.assertTrue(Arrays.equals(data(6, 200), tree.getData("/node5", stat, null)));
+        Assert.assertEquals(200, stat.getDataLength());
+        tree.deleteNode("/node6", 102);
+        Assert.assertEquals(100 * 100 + 100 - 100, store.getLiveBytes());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        tree.serialize(BinaryOutputArchive.getArchive(new DataOutputStream(baos)), "tree");
+        DataTree copy = new DataTree();
+        copy.deserialize(BinaryInputArchive.getArchive(new DataInputStream(
+                new ByteArrayInputStream(baos.toByteArray()))), "tree");
+        Assert.assertEquals(store.getLiveBytes(), copy.getDataStore().getLiveBytes());
+        Assert.assertEquals(tree.getNodeCount(), copy.getNodeCount());
+        Assert.assertEquals(tree.approximateDataSize(), copy.approximateDataSize());
+        Assert.assertTrue(Arrays.equals(data(6, 200), copy.getData("/node5", stat, null)));
+        Assert.assertTrue(Arrays.equals(new byte[] {1}, copy.getData("/small", stat, null)));
+        Assert.assertNull(copy.getNode("/node6"));
+    }
+
+    private static byte[] data(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+}
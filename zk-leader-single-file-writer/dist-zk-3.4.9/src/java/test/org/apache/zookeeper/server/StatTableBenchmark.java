@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.data.StatPersisted;
+
+/**
+ * Compares stats kept as a StatPersisted object per node with StatTable:
+ * heap taken by the stats of all nodes, and time to copy every stat into
+ * a Stat (as snapshots & responses do) in slot order & in random order.
+ * The objects are shuffled once created, like nodes created over time.
+ *
+ * Usage: StatTableBenchmark [nodes]
+ * e.g. java -Xmx2g -cp build/classes:build/test/classes:build/lib/*
+ *      org.apache.zookeeper.server.StatTableBenchmark 2000000
+ */
+public class StatTableBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int[] order = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            order[i] = i;
+        }
+        Random random = new Random(42);
+        for (int i = nodes - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        System.out.println(nodes + " stats");
+        System.out.println(String.format("%-14s %12s %14s %16s",
+                "layout", "bytes/stat", "scan ns/stat", "random ns/stat"));
+        for (int i = 0; i < 2; i++) {
+            // the first pass is a warm-up
+            runObjects(nodes, order, i > 0);
+            runTable(nodes, order, i > 0);
+        }
+    }
+
+    private static void runObjects(int nodes, int[] order, boolean report)
+            throws InterruptedException {
+        StatPersisted[] stats = new StatPersisted[nodes];
+        long heapBefore = usedHeap();
+        List<StatPersisted> created = new ArrayList<StatPersisted>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            created.add(stat(i));
+        }
+        Collections.shuffle(created, new Random(7));
+        created.toArray(stats);
+        created = null;
+        double bytes = (usedHeap() - heapBefore) / (double) nodes;
+
+        Stat to = new Stat();
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < nodes; i++) {
+            copy(stats[i], to);
+            sum += to.getMzxid();
+        }
+        double scanNanos = (System.nanoTime() - start) / (double) nodes;
+        start = System.nanoTime();
+        for (int i = 0; i < nodes; i++) {
+            copy(stats[order[i]], to);
+            sum += to.getMzxid();
+        }
+        double randomNanos = (System.nanoTime() - start) / (double) nodes;
+        report("StatPersisted", bytes, scanNanos, randomNanos, sum, nodes, report);
+    }
+
+    private static void runTable(int nodes, int[] order, boolean report)
+            throws InterruptedException {
+        long heapBefore = usedHeap();
+        StatTable table = new StatTable();
+        for (int i = 0; i < nodes; i++) {
+            table.set(table.allocate(), stat(i));
+        }
+        double bytes = (usedHeap() - heapBefore) / (double) nodes;
+
+        Stat to = new Stat();
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < nodes; i++) {
+            table.copyTo(i, to);
+            sum += to.getMzxid();
+        }
+        double scanNanos = (System.nanoTime() - start) / (double) nodes;
+        start = System.nanoTime();
+        for (int i = 0; i < nodes; i++) {
+            table.copyTo(order[i], to);
+            sum += to.getMzxid();
+        }
+        double randomNanos = (System.nanoTime() - start) / (double) nodes;
+        report("StatTable", bytes, scanNanos, randomNanos, sum, nodes, report);
+    }
+
+    private static StatPersisted stat(int i) {
+        return new StatPersisted(i, i, i, i, 0, 0, 0, 0, i);
+    }
+
+    private static void copy(StatPersisted from, Stat to) {
+        to.setCzxid(from.getCzxid());
+        to.setMzxid(from.getMzxid());
+        to.setCtime(from.getCtime());
+        to.setMtime(from.getMtime());
+        to.setEphemeralOwner(from.getEphemeralOwner());
+        to.setPzxid(from.getPzxid());
+        to.setVersion(from.getVersion());
+        to.setCversion(from.getCversion());
+        to.setAversion(from.getAversion());
+    }
+
+    private static void report(String layout, double bytes, double scanNanos,
+            double randomNanos, long sum, int nodes, boolean report) {
+        if (sum != (long) nodes * (nodes - 1)) {
+            throw new IllegalStateException("Lost stats");
+        }
+        if (report) {
+            System.out.println(String.format("%-14s %12.1f %14.1f %16.1f",
+                    layout, bytes, scanNanos, randomNanos));
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
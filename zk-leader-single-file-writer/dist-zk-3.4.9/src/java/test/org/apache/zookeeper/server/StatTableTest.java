@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.data.StatPersisted;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatTableTest extends ZKTestCase {
+
+    @Test
+    public void testSetAndCopyAcrossChunks() {
+        StatTable table = new StatTable();
+        int slots = StatTable.CHUNK_SIZE * 2 + 10;
+        for (int i = 0; i < slots; i++) {
+            Assert.assertEquals(i, table.allocate());
+            table.set(i, stat(i));
+        }
+        Assert.assertEquals(slots, table.size());
+        for (int i = 0; i < slots; i++) {
+            StatPersisted copy = new StatPersisted();
+            table.copyTo(i, copy);
+            Assert.assertEquals(stat(i), copy);
+            Assert.assertEquals(i + 2, table.getMzxid(i));
+            Assert.assertEquals(i + 6, table.getPzxid(i));
+            Assert.assertEquals(i + 5, table.getEphemeralOwner(i));
+            Assert.assertEquals(i + 8, table.getCversion(i));
+        }
+
+        table.setModified(7, 100, 101, 102);
+        table.setCversionPzxid(7, 103, 104);
+        table.setAversion(7, 105);
+        Stat copy = new Stat();
+        table.copyTo(7, copy);
+        Assert.assertEquals(100, copy.getMzxid());
+        Assert.assertEquals(101, copy.getMtime());
+        Assert.assertEquals(102, copy.getVersion());
+        Assert.assertEquals(103, copy.getCversion());
+        Assert.assertEquals(104, copy.getPzxid());
+        Assert.assertEquals(105, copy.getAversion());
+        Assert.assertEquals(7, copy.getCzxid());
+    }
+
+    @Test
+    public void testFreedSlotsAreReused() {
+        StatTable table = new StatTable();
+        for (int i = 0; i < 100; i++) {
+            table.allocate();
+        }
+        for (int i = 10; i < 60; i++) {
+            table.free(i);
+        }
+        Assert.assertEquals(50, table.size());
+        for (int i = 0; i < 50; i++) {
+            int slot = table.allocate();
+            Assert.assertTrue(slot >= 10 && slot < 60);
+        }
+        Assert.assertEquals(100, table.allocate());
+    }
+
+    @Test
+    public void testReadsAreConsistentWhileWriting() throws Exception {
+        final StatTable table = new StatTable();
+        for (int i = 0; i < StatTable.STRIPE_SIZE; i++) {
+            table.set(table.allocate(), new StatPersisted());
+        }
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread() {
+                public void run() {
+                    StatPersisted copy = new StatPersisted();
+                    int slot = 0;
+                    while (!stop.get()) {
+                        table.copyTo(slot, copy);
+                        if (copy.getMzxid() != copy.getMtime()
+                                || copy.getMzxid() != copy.getVersion()) {
+                            failure.set("Torn stat " + copy);
+                            return;
+                        }
+                        slot = (slot + 1) % StatTable.STRIPE_SIZE;
+                    }
+                }
+            };
+            readers[r].start();
+        }
+        // two writers of the same stripe
+        Thread[] writers = new Thread[2];
+        for (int w = 0; w < writers.length; w++) {
+            final int first = w;
+            writers[w] = new Thread() {
+                public void run() {
+                    for (int v = 0; v < 300000; v++) {
+                        for (int slot = first; slot < StatTable.STRIPE_SIZE; slot += 2) {
+                            table.setModified(slot, v, v, v);
+                        }
+                    }
+                }
+            };
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        stop.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Assert.assertNull(failure.get(), failure.get());
+    }
+
+    @Test
+    public void testDeletedNodeKeepsItsStat() throws Exception {
+        DataTree tree = new DataTree();
+        tree.createNode("/a", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, -1, 10, 1000);
+        DataNode a = tree.getNode("/a");
+        tree.setData("/a", new byte[0], 3, 11, 1001);
+        tree.deleteNode("/a", 12);
+        // takes the slot of /a
+        tree.createNode("/b", new byte[0], Ids.OPEN_ACL_UNSAFE, 0, -1, 20, 2000);
+
+        StatPersisted stat = a.getStat();
+        Assert.assertEquals(10, stat.getCzxid());
+        Assert.assertEquals(11, stat.getMzxid());
+        Assert.assertEquals(3, stat.getVersion());
+        Assert.assertEquals(20, tree.getNode("/b").getStat().getCzxid());
+        Stat copy = new Stat();
+        a.copyStat(copy);
+        Assert.assertEquals(1001, copy.getMtime());
+    }
+
+    private static StatPersisted stat(int i) {
+        return new StatPersisted(i, i + 2, i + 3, i + 4, i + 7, i + 8, i + 9,
+                i + 5, i + 6);
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * NodeIndex which doesn't keep full paths: it is a trie of path components,
+ * every path prefix is stored once, as an entry holding its last component
+ * and a reference to the entry of its parent. Edges of the trie are kept in
+ * a single open addressing hash table keyed by (parent entry, component),
+ * rather than in a map per entry, so that an entry costs about as much as
+ * the hash table entry of HashNodeIndex alone. Short names are packed into
+ * the entry itself, so that a component takes no array of its own.
+ *
+ * An entry is hashed by the hash code of its full path, hence a lookup is
+ * a single probe by String.hashCode() of the path (cached by the String),
+ * the candidate is verified by comparing its components with the path,
+ * going up to the root. Lookups don't lock, updates are serialized on the
+ * index and publish entries through the AtomicReferenceArray of the table,
+ * growing the table by copying it (lookups keep using the old one
+ * meanwhile).
+ *
+ * It takes a third to a half of the heap of HashNodeIndex, but the walk up
+ * to the root loads an entry per path level, which makes random reads about
+ * twice as slow on a deep tree with many inner nodes. Verifying a full-path
+ * hash hit needs either the full path or that walk, so the latency can't be
+ * matched without giving the heap back. Hence this is not a server option:
+ * it is kept with the tests, as the baseline NodeIndexBenchmark measures the
+ * heap of HashNodeIndex against.
+ */
+public class TrieNodeIndex implements NodeIndex {
+
+    private static final int MIN_CAPACITY = 16;
+
+    static final class Entry {
+        final Entry parent;
+        // last component of the path: up to HEAD_CHARS leading chars which
+        // fit a byte are packed into head0 & head1 (a byte per char, the
+        // first char in the lowest byte, zero bytes past the end), the rest
+        // is in tail, null if there is none
+        final long head0;
+        final long head1;
+        final char[] tail;
+        // hash code of the full path
+        final int hash;
+        volatile DataNode node;
+        // entries having this one as their parent, guarded by the index
+        int children;
+
+        Entry(Entry parent, String path, int start, int end, int hash) {
+            this.parent = parent;
+            this.hash = hash;
+            int headEnd = start;
+            while (headEnd < end && headEnd - start < HEAD_CHARS
+                    && isPackable(path.charAt(headEnd))) {
+                headEnd++;
+            }
+            head0 = pack(path, start, Math.min(headEnd, start + 8));
+            head1 = pack(path, start + 8, headEnd);
+            if (headEnd < end) {
+                tail = new char[end - headEnd];
+                path.getChars(headEnd, end, tail, 0);
+            } else {
+                tail = null;
+            }
+        }
+
+        int nameLength() {
+            return packedLength(head0) + packedLength(head1)
+                    + (tail == null ? 0 : tail.length);
+        }
+
+        /**
+         * @return true if the name equals the chars of path from start to
+         * start + nameLength()
+         */
+        boolean nameMatches(String path, int start) {
+            int i = start;
+            for (long head = head0; head != 0; head >>>= 8) {
+                if (path.charAt(i++) != (char) (head & 0xFF)) {
+                    return false;
+                }
+            }
+            for (long head = head1; head != 0; head >>>= 8) {
+                if (path.charAt(i++) != (char) (head & 0xFF)) {
+                    return false;
+                }
+            }
+            if (tail != null) {
+                for (char c : tail) {
+                    if (path.charAt(i++) != c) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static long pack(String path, int start, int end) {
+            long packed = 0;
+            for (int i = end - 1; i >= start; i--) {
+                packed = packed << 8 | path.charAt(i);
+            }
+            return packed;
+        }
+
+        // zero byte ends the packed chars
+        private static boolean isPackable(char c) {
+            return c != 0 && c <= 0xFF;
+        }
+
+        private static int packedLength(long packed) {
+            return (71 - Long.numberOfLeadingZeros(packed)) >> 3;
+        }
+    }
+
+    // chars of a name packed into an entry, longer names take a tail array
+    private static final int HEAD_CHARS = 16;
+
+    // marks removed slots, so that probing goes on past them
+    private static final Entry TOMBSTONE = new Entry(null, "", 0, 0, 0);
+
+    private final Entry root = new Entry(null, "", 0, 0, 0);
+
+    private volatile AtomicReferenceArray<Entry> table =
+        new AtomicReferenceArray<Entry>(MIN_CAPACITY);
+
+    // guarded by the index
+    private int entries;
+    private int tombstones;
+
+    // nodes other than the root
+    private volatile int nodeCount;
+
+    public DataNode get(String path) {
+        Entry e = find(path);
+        return e == null ? null : e.node;
+    }
+
+    public synchronized void put(String path, DataNode node) {
+        if (path.length() <= 1) {
+            if (isRoot(path)) {
+                root.node = node;
+            }
+            return;
+        }
+        if (path.charAt(0) != '/') {
+            throw new IllegalArgumentException("Invalid path " + path);
+        }
+        Entry e = root;
+        int start = 1;
+        while (start <= path.length()) {
+            int end = componentEnd(path, start);
+            if (end == start) {
+                throw new IllegalArgumentException("Invalid path " + path);
+            }
+            Entry child = findChild(table, e, path, start, end);
+            if (child == null) {
+                child = new Entry(e, path, start, end, hash(e.hash, path, start, end));
+                insert(child);
+                e.children++;
+            }
+            e = child;
+            start = end + 1;
+        }
+        if (e.node == null) {
+            nodeCount++;
+        }
+        e.node = node;
+    }
+
+    public synchronized DataNode remove(String path) {
+        Entry e = find(path);
+        if (e == null || e.node == null) {
+            return null;
+        }
+        DataNode removed = e.node;
+        e.node = null;
+        if (e != root) {
+            nodeCount--;
+            // the entry stays while there are paths below it
+            prune(e);
+        }
+        return removed;
+    }
+
+    public int size() {
+        return nodeCount + (root.node == null ? 0 : 2);
+    }
+
+    public synchronized void clear() {
+        table = new AtomicReferenceArray<Entry>(MIN_CAPACITY);
+        entries = 0;
+        tombstones = 0;
+        nodeCount = 0;
+        root.children = 0;
+        root.node = null;
+    }
+
+    private Entry find(String path) {
+        if (path.length() <= 1) {
+            return isRoot(path) ? root : null;
+        }
+        int hash = path.hashCode();
+        AtomicReferenceArray<Entry> tab = table;
+        int mask = tab.length() - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            Entry e = tab.get(i);
+            if (e == null) {
+                return null;
+            }
+            if (e.hash == hash && e != TOMBSTONE && isPathOf(e, path)) {
+                return e;
+            }
+        }
+    }
+
+    /**
+     * @return true if the path consists of the components of the entry & of
+     * its ancestors (so that there is no empty component, e.g. a trailing
+     * slash)
+     */
+    private static boolean isPathOf(Entry e, String path) {
+        int end = path.length();
+        for (; e.parent != null; e = e.parent) {
+            int start = end - e.nameLength();
+            if (start < 1 || path.charAt(start - 1) != '/'
+                    || !e.nameMatches(path, start)) {
+                return false;
+            }
+            end = start - 1;
+        }
+        return end == 0;
+    }
+
+    private static Entry findChild(AtomicReferenceArray<Entry> tab, Entry parent,
+            String path, int start, int end) {
+        int hash = hash(parent.hash, path, start, end);
+        int length = end - start;
+        int mask = tab.length() - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            Entry e = tab.get(i);
+            if (e == null) {
+                return null;
+            }
+            if (e.hash == hash && e.parent == parent && e != TOMBSTONE
+                    && e.nameLength() == length
+                    && e.nameMatches(path, start)) {
+                return e;
+            }
+        }
+    }
+
+    private void insert(Entry e) {
+        AtomicReferenceArray<Entry> tab = table;
+        if ((entries + tombstones + 1) * 4L > tab.length() * 3L) {
+            tab = rehash(entries + 1);
+        }
+        int mask = tab.length() - 1;
+        int i = spread(e.hash) & mask;
+        while (true) {
+            Entry slot = tab.get(i);
+            if (slot == null) {
+                break;
+            }
+            if (slot == TOMBSTONE) {
+                tombstones--;
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        tab.set(i, e);
+        entries++;
+    }
+
+    private AtomicReferenceArray<Entry> rehash(int minEntries) {
+        int capacity = MIN_CAPACITY;
+        // at most half full afterwards
+        while (capacity < minEntries * 2L) {
+            capacity <<= 1;
+        }
+        AtomicReferenceArray<Entry> oldTab = table;
+        AtomicReferenceArray<Entry> newTab = new AtomicReferenceArray<Entry>(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldTab.length(); j++) {
+            Entry e = oldTab.get(j);
+            if (e == null || e == TOMBSTONE) {
+                continue;
+            }
+            int i = spread(e.hash) & mask;
+            while (newTab.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            newTab.set(i, e);
+        }
+        tombstones = 0;
+        table = newTab;
+        return newTab;
+    }
+
+    private void prune(Entry e) {
+        AtomicReferenceArray<Entry> tab = table;
+        int mask = tab.length() - 1;
+        while (e != root && e.node == null && e.children == 0) {
+            int i = spread(e.hash) & mask;
+            while (tab.get(i) != e) {
+                i = (i + 1) & mask;
+            }
+            tab.set(i, TOMBSTONE);
+            entries--;
+            tombstones++;
+            e.parent.children--;
+            e = e.parent;
+        }
+    }
+
+    private static boolean isRoot(String path) {
+        return path.length() == 0 || path.equals("/");
+    }
+
+    private static int componentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return end < 0 ? path.length() : end;
+    }
+
+    /**
+     * @return hash code of the path of the child, the same as String.hashCode()
+     */
+    private static int hash(int parentHash, String path, int start, int end) {
+        int h = 31 * parentHash + '/';
+        for (int i = start; i < end; i++) {
+            h = 31 * h + path.charAt(i);
+        }
+        return h;
+    }
+
+    private static int spread(int hash) {
+        // String hashes of sequential names differ in the lowest bits only
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
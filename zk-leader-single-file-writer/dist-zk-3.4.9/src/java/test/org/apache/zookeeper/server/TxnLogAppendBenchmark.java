@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.persistence.FileHeader;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.Util;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+
+/**
+ * Compares FileTxnLog, which serializes txns into a reused direct buffer
+ * written to the FileChannel, with the former writer (a byte array &
+ * Adler32 per txn, written through BufferedOutputStream & a jute archive),
+ * reproduced below: time per txn & number of GCs while appending setData
+ * txns in groups of the given sizes, each group followed by commit(), as
+ * SyncRequestProcessor does. The log file is fsync-ed on commit only if
+ * -Dzookeeper.forceSync=yes (the default).
+ *
+ * Usage: TxnLogAppendBenchmark [txns] [dataSize] [dir]
+ * e.g. java -Xmx512m -Dzookeeper.forceSync=no
+ *      -cp build/classes:build/test/classes:build/lib/*
+ *      org.apache.zookeeper.server.TxnLogAppendBenchmark 1000000 100 /tmp
+ */
+public class TxnLogAppendBenchmark {
+
+    private static final int[] GROUP_SIZES = {1, 10, 1000};
+
+    public static void main(String[] args) throws Exception {
+        int txns = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int dataSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        File dir = new File(args.length > 2 ? args[2]
+                : System.getProperty("java.io.tmpdir"), "txnlogbench");
+
+        System.out.println(String.format("%-8s %8s %8s %12s %12s %8s",
+                "writer", "group", "txns", "ns/txn", "MB/s", "GCs"));
+        for (int i = 0; i < 2; i++) {
+            // the first pass is a warm-up
+            for (int groupSize : GROUP_SIZES) {
+                // fsync-ed groups of one are slow, hence there are fewer
+                int count = groupSize == 1 ? Math.min(txns, 20000) : txns;
+                run(new LegacyWriter(dir), dir, count, dataSize, groupSize, i > 0);
+                run(new BufferedWriter(dir), dir, count, dataSize, groupSize, i > 0);
+            }
+        }
+    }
+
+    private static void run(Writer writer, File dir, int txns, int dataSize,
+            int groupSize, boolean report) throws IOException {
+        dir.mkdirs();
+        SetDataTxn txn = new SetDataTxn("/benchmark/node", new byte[dataSize], 1);
+        int entrySize = 8 + 4 + Util.marshallTxnEntry(
+                new TxnHeader(1, 1, 1, 1, OpCode.setData), txn).length + 1;
+        long gcs = gcCount();
+        long start = System.nanoTime();
+        for (int i = 1; i <= txns; i++) {
+            TxnHeader hdr = new TxnHeader(1, i, i, i, OpCode.setData);
+            writer.append(hdr, txn);
+            if (i % groupSize == 0) {
+                writer.commit();
+            }
+        }
+        writer.commit();
+        long nanos = System.nanoTime() - start;
+        writer.close();
+        boolean written = new File(dir, "log.1").length() > 0;
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+        if (report) {
+            System.out.println(String.format("%-8s %8d %8d %12.1f %12.1f %8d",
+                    writer.getName(), groupSize, txns, nanos / (double) txns,
+                    txns * (double) entrySize * 1000 / nanos, gcCount() - gcs));
+        }
+        if (!written) {
+            throw new IllegalStateException("Nothing written");
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    private interface Writer {
+        String getName();
+        void append(TxnHeader hdr, Record txn) throws IOException;
+        void commit() throws IOException;
+        void close() throws IOException;
+    }
+
+    private static class BufferedWriter implements Writer {
+        private final FileTxnLog log;
+
+        BufferedWriter(File dir) {
+            log = new FileTxnLog(dir);
+        }
+
+        public String getName() {
+            return "direct";
+        }
+
+        public void append(TxnHeader hdr, Record txn) throws IOException {
+            log.append(hdr, txn);
+        }
+
+        public void commit() throws IOException {
+            log.commit();
+        }
+
+        public void close() throws IOException {
+            log.close();
+        }
+    }
+
+    /**
+     * Appends txns the way FileTxnLog did before it buffered them itself.
+     */
+    private static class LegacyWriter implements Writer {
+        private final File dir;
+        private final boolean forceSync =
+            !System.getProperty("zookeeper.forceSync", "yes").equals("no");
+        private FileOutputStream fos;
+        private BufferedOutputStream logStream;
+        private BinaryOutputArchive oa;
+        private long currentSize;
+
+        LegacyWriter(File dir) {
+            this.dir = dir;
+        }
+
+        public String getName() {
+            return "stream";
+        }
+
+        public void append(TxnHeader hdr, Record txn) throws IOException {
+            if (logStream == null) {
+                fos = new FileOutputStream(new File(dir, "log." + Long.toHexString(hdr.getZxid())));
+                logStream = new BufferedOutputStream(fos);
+                oa = BinaryOutputArchive.getArchive(logStream);
+                FileHeader fhdr = new FileHeader(FileTxnLog.TXNLOG_MAGIC, FileTxnLog.VERSION, 0);
+                fhdr.serialize(oa, "fileheader");
+                logStream.flush();
+                currentSize = fos.getChannel().position();
+            }
+            currentSize = Util.padLogFile(fos, currentSize, 64 * 1024 * 1024);
+            byte[] buf = Util.marshallTxnEntry(hdr, txn);
+            Checksum crc = new Adler32();
+            crc.update(buf, 0, buf.length);
+            oa.writeLong(crc.getValue(), "txnEntryCRC");
+            Util.writeTxnBytes(oa, buf);
+        }
+
+        public void commit() throws IOException {
+            if (logStream == null) {
+                return;
+            }
+            logStream.flush();
+            if (forceSync) {
+                fos.getChannel().force(false);
+            }
+        }
+
+        public void close() throws IOException {
+            if (logStream != null) {
+                logStream.close();
+            }
+        }
+    }
+}
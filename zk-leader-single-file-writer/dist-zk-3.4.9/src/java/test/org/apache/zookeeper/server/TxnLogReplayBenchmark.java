@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+
+/**
+ * Measures the time to serve after a restart, i.e. how long
+ * ZKDatabase.loadDataBase takes to replay txn logs of the given number of
+ * txns (setData of 1000 nodes, with no snapshot), from memory mapped log
+ * files (-Dzookeeper.mappedTxnLogReplay=yes) & from streams. The logs are
+ * rolled every 100000 txns, as with the default snapCount, & read from the
+ * page cache; drop it before a run to measure a cold start instead.
+ *
+ * Usage: TxnLogReplayBenchmark [txns] [dataSize] [dir]
+ * e.g. java -Xmx1g -cp build/classes:build/test/classes:build/lib/*
+ *      org.apache.zookeeper.server.TxnLogReplayBenchmark 10000000 100 /tmp
+ */
+public class TxnLogReplayBenchmark {
+
+    private static final int NODES = 1000;
+
+    private static final int TXNS_PER_LOG = 100000;
+
+    public static void main(String[] args) throws Exception {
+        int txns = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int dataSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        File dir = new File(args.length > 2 ? args[2]
+                : System.getProperty("java.io.tmpdir"), "txnlogreplaybench");
+
+        long start = System.nanoTime();
+        writeLogs(dir, txns, dataSize);
+        System.out.println(String.format("wrote %d txns in %.1f s", txns,
+                (System.nanoTime() - start) / 1e9));
+
+        System.out.println(String.format("%-8s %10s %10s %12s",
+                "reader", "txns", "seconds", "txns/s"));
+        try {
+            for (int i = 0; i < 2; i++) {
+                // the first pass is a warm-up
+                replay(dir, "stream", txns, i > 0);
+                replay(dir, "mapped", txns, i > 0);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void writeLogs(File dir, int txns, int dataSize)
+            throws IOException {
+        System.setProperty("zookeeper.forceSync", "no");
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(dir, dir);
+        FileTxnLog txnLog = new FileTxnLog(snapLog.getDataDir());
+        byte[] data = new byte[dataSize];
+        for (int i = 1; i <= txns; i++) {
+            if (i <= NODES) {
+                txnLog.append(new TxnHeader(1, i, i, i, OpCode.create),
+                        new CreateTxn("/node-" + i, data, Ids.OPEN_ACL_UNSAFE,
+                                false, i));
+            } else {
+                txnLog.append(new TxnHeader(1, i, i, i, OpCode.setData),
+                        new SetDataTxn("/node-" + (i % NODES + 1), data, i));
+            }
+            if (i % 1000 == 0) {
+                txnLog.commit();
+            }
+            if (i % TXNS_PER_LOG == 0) {
+                txnLog.rollLog();
+            }
+        }
+        txnLog.commit();
+        txnLog.close();
+        System.clearProperty("zookeeper.forceSync");
+    }
+
+    private static void replay(File dir, String reader, int txns, boolean report)
+            throws IOException {
+        System.setProperty(FileTxnSnapLog.MAPPED_REPLAY,
+                reader.equals("mapped") ? "yes" : "no");
+        ZKDatabase db = new ZKDatabase(new FileTxnSnapLog(dir, dir));
+        long start = System.nanoTime();
+        long zxid = db.loadDataBase();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        db.close();
+        System.clearProperty(FileTxnSnapLog.MAPPED_REPLAY);
+        if (zxid != txns) {
+            throw new IllegalStateException("Replayed up to " + zxid);
+        }
+        if (report) {
+            System.out.println(String.format("%-8s %10d %10.1f %12.0f",
+                    reader, txns, seconds, txns / seconds));
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.watch;
+
+import java.util.BitSet;
+
+import org.apache.zookeeper.ZKTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BitIdSetTest extends ZKTestCase {
+
+    @Test
+    public void testSparseIdsStaySorted() {
+        BitIdSet set = new BitIdSet();
+        Assert.assertTrue(set.add(5000));
+        Assert.assertTrue(set.add(7));
+        Assert.assertTrue(set.add(123456));
+        Assert.assertFalse(set.add(7));
+
+        Assert.assertEquals(3, set.size());
+        Assert.assertArrayEquals(new int[] {7, 5000, 123456}, set.toArray());
+        Assert.assertTrue(set.contains(5000));
+        Assert.assertFalse(set.contains(5001));
+
+        Assert.assertTrue(set.remove(5000));
+        Assert.assertFalse(set.remove(5000));
+        Assert.assertArrayEquals(new int[] {7, 123456}, set.toArray());
+    }
+
+    @Test
+    public void testDenseIdsKeepTheirOrderAndCount() {
+        BitIdSet set = new BitIdSet();
+        for (int id = 999; id >= 0; id--) {
+            Assert.assertTrue(set.add(id));
+        }
+        Assert.assertFalse(set.add(500));
+        Assert.assertEquals(1000, set.size());
+        int[] ids = set.toArray();
+        for (int i = 0; i < ids.length; i++) {
+            Assert.assertEquals(i, ids[i]);
+        }
+
+        Assert.assertTrue(set.remove(500));
+        Assert.assertFalse(set.contains(500));
+        Assert.assertEquals(999, set.size());
+    }
+
+    @Test
+    public void testRemoveAll() {
+        BitIdSet sparse = new BitIdSet();
+        BitIdSet dense = new BitIdSet();
+        for (int id = 0; id < 100; id++) {
+            sparse.add(id * 1000);
+            dense.add(id);
+        }
+        BitSet removed = new BitSet();
+        removed.set(0);
+        removed.set(3000);
+        removed.set(99);
+
+        Assert.assertEquals(2, sparse.removeAll(removed));
+        Assert.assertEquals(98, sparse.size());
+        Assert.assertFalse(sparse.contains(3000));
+        Assert.assertEquals(2, dense.removeAll(removed));
+        Assert.assertEquals(98, dense.size());
+        Assert.assertFalse(dense.contains(99));
+    }
+}
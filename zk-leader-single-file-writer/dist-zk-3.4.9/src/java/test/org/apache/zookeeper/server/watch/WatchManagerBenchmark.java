@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.watch;
+
+import java.util.Random;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.server.WatchManager;
+
+/**
+ * Compares WatchManager & WatchManagerOptimized: heap taken by the watches,
+ * addWatch, triggerWatch & removeWatcher throughput. Every connection watches
+ * pathsPerConnection paths picked at random from a pool of paths.
+ * JMH isn't among the build dependencies, hence a warm-up run precedes the
+ * measured ones, like a JMH fork with a single warm-up iteration.
+ *
+ * Usage: WatchManagerBenchmark [connections] [pathsPerConnection] [paths] [runs]
+ * e.g. java -Xmx4g -cp build/classes:build/test/classes:build/lib/*
+ *      org.apache.zookeeper.server.watch.WatchManagerBenchmark 50000 100 100000 3
+ */
+public class WatchManagerBenchmark {
+
+    private static final Watcher[] NO_WATCHERS = new Watcher[0];
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int pathsPerConnection = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int paths = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        if (System.getProperty("zookeeper.watcherCleanThreshold") == null) {
+            // dead watchers are purged in a single batch, like after a mass disconnect,
+            // rather than a partial batch waiting for zookeeper.watcherCleanIntervalInSeconds
+            System.setProperty("zookeeper.watcherCleanThreshold", String.valueOf(connections));
+        }
+
+        String[] pathPool = new String[paths];
+        for (int i = 0; i < paths; i++) {
+            pathPool[i] = "/zookeeper-benchmark/config/node-" + i;
+        }
+        int[][] watchedPaths = new int[connections][pathsPerConnection];
+        Random random = new Random(42);
+        for (int[] connectionPaths : watchedPaths) {
+            for (int i = 0; i < pathsPerConnection; i++) {
+                connectionPaths[i] = random.nextInt(paths);
+            }
+        }
+
+        System.out.println(connections + " connections x " + pathsPerConnection
+                + " watches over " + paths + " paths, " + runs + " runs");
+        System.out.println(String.format("%-24s %12s %14s %18s %16s",
+                "manager", "heap MB", "addWatch/s", "notifications/s", "removeWatcher/s"));
+        Class<?>[] managers = {WatchManager.class, WatchManagerOptimized.class};
+        for (Class<?> manager : managers) {
+            // warm-up
+            run(manager, pathPool, watchedPaths, false);
+        }
+        for (int i = 0; i < runs; i++) {
+            for (Class<?> manager : managers) {
+                run(manager, pathPool, watchedPaths, true);
+            }
+        }
+    }
+
+    private static void run(Class<?> managerClass, String[] pathPool, int[][] watchedPaths,
+            boolean report) throws Exception {
+        Watcher[] watchers = new Watcher[watchedPaths.length];
+        for (int i = 0; i < watchers.length; i++) {
+            watchers[i] = new CountingWatcher();
+        }
+        long heapBefore = usedHeap();
+        IWatchManager manager = (IWatchManager) managerClass.newInstance();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < watchers.length; i++) {
+            for (int path : watchedPaths[i]) {
+                manager.addWatch(pathPool[path], watchers[i]);
+            }
+        }
+        long addNanos = System.nanoTime() - start;
+        long watches = manager.size();
+        double heapMB = (usedHeap() - heapBefore) / (1024.0 * 1024.0);
+
+        start = System.nanoTime();
+        long notifications = 0;
+        for (String path : pathPool) {
+            notifications += sizeOf(manager.triggerWatch(path, EventType.NodeDataChanged));
+        }
+        long triggerNanos = System.nanoTime() - start;
+
+        // watches anew, so that removal has something to remove
+        for (int i = 0; i < watchers.length; i++) {
+            for (int path : watchedPaths[i]) {
+                manager.addWatch(pathPool[path], watchers[i]);
+            }
+        }
+        start = System.nanoTime();
+        for (Watcher watcher : watchers) {
+            manager.removeWatcher(watcher);
+        }
+        if (manager instanceof WatchManagerOptimized) {
+            // purging is lazy, but it's a part of the removal cost
+            while (manager.size() > 0) {
+                Thread.sleep(1);
+            }
+        }
+        long removeNanos = System.nanoTime() - start;
+        manager.shutdown();
+
+        if (report) {
+            System.out.println(String.format("%-24s %12.1f %14.0f %18.0f %16.0f",
+                    managerClass.getSimpleName(), heapMB,
+                    perSecond(watches, addNanos), perSecond(notifications, triggerNanos),
+                    perSecond(watchers.length, removeNanos)));
+        }
+    }
+
+    private static int sizeOf(java.util.Set<Watcher> triggered) {
+        return triggered == null ? 0 : triggered.size();
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return count * 1000000000.0 / nanos;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class CountingWatcher implements Watcher {
+        private long events;
+
+        public void process(WatchedEvent event) {
+            events++;
+        }
+    }
+}
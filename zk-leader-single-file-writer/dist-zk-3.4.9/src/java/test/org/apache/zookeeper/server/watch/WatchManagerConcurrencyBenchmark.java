@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.watch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.server.WatchManager;
+
+/**
+ * Read-heavy, watch-heavy load on a watch manager from several threads at once:
+ * reader threads keep setting watches (getData / exists / getChildren with
+ * watch=true) on random paths, writer threads keep firing watches of random
+ * paths (setData / create / delete) and a churn thread keeps closing random
+ * connections & replacing them with new ones. Reports operations per second
+ * of each kind, so that contention between unrelated paths shows up as
+ * throughput not growing with the number of threads.
+ *
+ * Usage: WatchManagerConcurrencyBenchmark [readers] [writers] [connections] [paths] [seconds]
+ * e.g. java -cp build/classes:build/test/classes:build/lib/*
+ *      org.apache.zookeeper.server.watch.WatchManagerConcurrencyBenchmark 8 2 1000 10000 5
+ */
+public class WatchManagerConcurrencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int paths = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        String[] pathPool = new String[paths];
+        for (int i = 0; i < paths; i++) {
+            pathPool[i] = "/zookeeper-benchmark/config/node-" + i;
+        }
+        System.out.println(readers + " reader & " + writers + " writer threads, " + connections
+                + " connections, " + paths + " paths, " + seconds + " s per run");
+        System.out.println(String.format("%-24s %14s %16s %18s %16s",
+                "manager", "addWatch/s", "triggerWatch/s", "notifications/s", "removeWatcher/s"));
+        Class<?>[] managers = {WatchManager.class, WatchManagerOptimized.class};
+        for (Class<?> manager : managers) {
+            // warm-up
+            run(manager, readers, writers, connections, pathPool, 1, false);
+        }
+        for (Class<?> manager : managers) {
+            run(manager, readers, writers, connections, pathPool, seconds, true);
+        }
+    }
+
+    private static void run(Class<?> managerClass, int readers, int writers, int connections,
+            final String[] pathPool, int seconds, boolean report) throws Exception {
+        final IWatchManager manager = (IWatchManager) managerClass.newInstance();
+        final AtomicReferenceArray<Watcher> watchers = new AtomicReferenceArray<Watcher>(connections);
+        for (int i = 0; i < connections; i++) {
+            watchers.set(i, new NoopWatcher());
+        }
+        final AtomicLong adds = new AtomicLong();
+        final AtomicLong triggers = new AtomicLong();
+        final AtomicLong notifications = new AtomicLong();
+        final AtomicLong removals = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < readers; i++) {
+            final Random random = new Random(i);
+            threads.add(new Thread("reader-" + i) {
+                public void run() {
+                    await(start);
+                    long count = 0;
+                    while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                        Watcher watcher = watchers.get(random.nextInt(watchers.length()));
+                        manager.addWatch(pathPool[random.nextInt(pathPool.length)], watcher);
+                        count++;
+                    }
+                    adds.addAndGet(count);
+                }
+            });
+        }
+        for (int i = 0; i < writers; i++) {
+            final Random random = new Random(-i - 1);
+            threads.add(new Thread("writer-" + i) {
+                public void run() {
+                    await(start);
+                    long count = 0;
+                    long notified = 0;
+                    while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                        Set<Watcher> triggered = manager.triggerWatch(
+                                pathPool[random.nextInt(pathPool.length)], EventType.NodeDataChanged);
+                        notified += triggered == null ? 0 : triggered.size();
+                        count++;
+                    }
+                    triggers.addAndGet(count);
+                    notifications.addAndGet(notified);
+                }
+            });
+        }
+        threads.add(new Thread("churn") {
+            public void run() {
+                await(start);
+                Random random = new Random(42);
+                long count = 0;
+                while (System.nanoTime() < deadline) {
+                    int connection = random.nextInt(watchers.length());
+                    Watcher closed = watchers.getAndSet(connection, new NoopWatcher());
+                    manager.removeWatcher(closed);
+                    count++;
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                removals.addAndGet(count);
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long nanos = System.nanoTime() - startNanos;
+        manager.shutdown();
+
+        if (report) {
+            System.out.println(String.format("%-24s %14.0f %16.0f %18.0f %16.0f",
+                    managerClass.getSimpleName(), perSecond(adds.get(), nanos),
+                    perSecond(triggers.get(), nanos), perSecond(notifications.get(), nanos),
+                    perSecond(removals.get(), nanos)));
+        }
+    }
+
+    private static void await(CountDownLatch start) {
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return count * 1000000000.0 / nanos;
+    }
+
+    private static class NoopWatcher implements Watcher {
+        public void process(WatchedEvent event) {
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.server.watch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.WatchManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.mockito.Mockito;
+
+@RunWith(Parameterized.class)
+public class WatchManagerTest extends ZKTestCase {
+
+    private final String watchManagerName;
+    private IWatchManager manager;
+
+    public WatchManagerTest(String watchManagerName) {
+        this.watchManagerName = watchManagerName;
+    }
+
+    @Parameters
+    public static Collection<Object[]> configs() {
+        return Arrays.asList(new Object[][] {
+            { WatchManager.class.getName() },
+            { WatchManagerOptimized.class.getName() },
+        });
+    }
+
+    @Before
+    public void setUp() {
+        System.setProperty(WatchManagerFactory.ZOOKEEPER_WATCH_MANAGER_NAME, watchManagerName);
+        // purge dead watchers right away
+        System.setProperty("zookeeper.watcherCleanThreshold", "1");
+        manager = WatchManagerFactory.createWatchManager();
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+        System.clearProperty(WatchManagerFactory.ZOOKEEPER_WATCH_MANAGER_NAME);
+        System.clearProperty("zookeeper.watcherCleanThreshold");
+    }
+
+    @Test
+    public void testFactoryCreatesConfiguredManager() {
+        Assert.assertEquals(watchManagerName, manager.getClass().getName());
+    }
+
+    @Test
+    public void testTriggerFiresOnce() {
+        RecordingWatcher w1 = new RecordingWatcher();
+        RecordingWatcher w2 = new RecordingWatcher();
+        manager.addWatch("/a", w1);
+        manager.addWatch("/a", w2);
+        manager.addWatch("/a", w2);
+        manager.addWatch("/b", w2);
+        Assert.assertEquals(3, manager.size());
+
+        Set<Watcher> triggered = manager.triggerWatch("/a", EventType.NodeDataChanged);
+
+        Assert.assertEquals(2, triggered.size());
+        Assert.assertEquals(Collections.singletonList("/a"), w1.paths);
+        Assert.assertEquals(Collections.singletonList("/a"), w2.paths);
+        Assert.assertNull(manager.triggerWatch("/a", EventType.NodeDataChanged));
+        Assert.assertEquals(1, manager.size());
+    }
+
+    @Test
+    public void testSuppressedWatchersAreNotNotified() {
+        RecordingWatcher w1 = new RecordingWatcher();
+        RecordingWatcher w2 = new RecordingWatcher();
+        manager.addWatch("/a", w1);
+        manager.addWatch("/a", w2);
+
+        Set<Watcher> triggered = manager.triggerWatch("/a", EventType.NodeDeleted,
+                Collections.<Watcher>singleton(w1));
+
+        Assert.assertEquals(2, triggered.size());
+        Assert.assertTrue(w1.paths.isEmpty());
+        Assert.assertEquals(1, w2.paths.size());
+    }
+
+    @Test(timeout = 30000)
+    public void testRemovedWatcherIsNotNotifiedNorReplacedBeforePurge() throws InterruptedException {
+        RecordingWatcher dead = new RecordingWatcher();
+        RecordingWatcher alive = new RecordingWatcher();
+        for (int i = 0; i < 100; i++) {
+            manager.addWatch("/path-" + i, dead);
+        }
+        manager.addWatch("/path-0", alive);
+
+        manager.removeWatcher(dead);
+
+        while (manager.size() != 1) {
+            // purged lazily by WatchManagerOptimized
+            Thread.sleep(10);
+        }
+        // the new watcher may reuse id of the dead one, but must not inherit its watches
+        RecordingWatcher newcomer = new RecordingWatcher();
+        manager.addWatch("/other", newcomer);
+        Assert.assertNull(manager.triggerWatch("/path-1", EventType.NodeDataChanged));
+        Assert.assertEquals(1, manager.triggerWatch("/path-0", EventType.NodeDataChanged).size());
+        Assert.assertTrue(dead.paths.isEmpty());
+        Assert.assertTrue(newcomer.paths.isEmpty());
+        Assert.assertEquals(1, alive.paths.size());
+    }
+
+    @Test
+    public void testClosedConnectionGetsNoWatch() {
+        // request processed after the connection has been closed & removed
+        ServerCnxn closed = Mockito.mock(ServerCnxn.class);
+        Mockito.when(closed.isStale()).thenReturn(true);
+        manager.removeWatcher(closed);
+
+        manager.addWatch("/a", closed);
+        manager.addWatch("/a", closed, AddWatchMode.PERSISTENT);
+        manager.addWatch("/", closed, AddWatchMode.PERSISTENT_RECURSIVE);
+
+        Assert.assertEquals(0, manager.size());
+        Assert.assertNull(manager.triggerWatch("/a", EventType.NodeDataChanged));
+        Mockito.verify(closed, Mockito.never()).process(Mockito.any(WatchedEvent.class));
+    }
+
+    @Test
+    public void testPersistentWatchesSurviveTrigger() {
+        RecordingWatcher recursive = new RecordingWatcher();
+        RecordingWatcher persistent = new RecordingWatcher();
+        RecordingWatcher oneTime = new RecordingWatcher();
+        manager.addWatch("/a", recursive, AddWatchMode.PERSISTENT_RECURSIVE);
+        manager.addWatch("/a/b", persistent, AddWatchMode.PERSISTENT);
+        manager.addWatch("/a/b", oneTime);
+        Assert.assertEquals(3, manager.size());
+
+        Assert.assertEquals(3, manager.triggerWatch("/a/b", EventType.NodeDataChanged).size());
+        Assert.assertEquals(2, manager.triggerWatch("/a/b", EventType.NodeDataChanged).size());
+        Assert.assertEquals(1, manager.triggerWatch("/a/b/c/d", EventType.NodeCreated).size());
+        Assert.assertEquals(1, manager.triggerWatch("/a", EventType.NodeDeleted).size());
+        Assert.assertNull(manager.triggerWatch("/ab", EventType.NodeCreated));
+        Assert.assertNull(manager.triggerWatch("/", EventType.NodeDataChanged));
+
+        Assert.assertEquals(Arrays.asList("/a/b", "/a/b", "/a/b/c/d", "/a"), recursive.paths);
+        Assert.assertEquals(Arrays.asList("/a/b", "/a/b"), persistent.paths);
+        Assert.assertEquals(Collections.singletonList("/a/b"), oneTime.paths);
+        Assert.assertEquals(2, manager.size());
+
+        manager.removeWatcher(recursive);
+        manager.removeWatcher(persistent);
+        Assert.assertEquals(0, manager.size());
+        Assert.assertNull(manager.triggerWatch("/a/b", EventType.NodeDataChanged));
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentAddAndRemoveLosesNoWatch() throws Exception {
+        final int threads = 8;
+        final int paths = 64;
+        final RecordingWatcher[] watchers = new RecordingWatcher[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final RecordingWatcher watcher = new RecordingWatcher();
+            final boolean removed = t % 2 == 1;
+            watchers[t] = watcher;
+            workers[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10 * paths; i++) {
+                        manager.addWatch("/path-" + (i % paths), watcher);
+                        if (removed && i % paths == paths - 1) {
+                            manager.removeWatcher(watcher);
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        while (manager.size() != threads / 2 * paths) {
+            // purged lazily by WatchManagerOptimized
+            Thread.sleep(10);
+        }
+
+        for (int i = 0; i < paths; i++) {
+            Assert.assertEquals(threads / 2,
+                    manager.triggerWatch("/path-" + i, EventType.NodeDataChanged).size());
+        }
+        for (int t = 0; t < threads; t++) {
+            Assert.assertEquals(t % 2 == 1 ? 0 : paths, watchers[t].paths.size());
+        }
+        Assert.assertEquals(0, manager.size());
+    }
+
+    @Test(timeout = 60000)
+    public void testWatchAddedDuringRemovalIsRemovedWithWatcher() throws Exception {
+        final RecordingWatcher watcher = new RecordingWatcher();
+        Thread[] adders = new Thread[2];
+        for (int t = 0; t < adders.length; t++) {
+            adders[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        manager.addWatch("/path-" + (i % 64), watcher);
+                    }
+                }
+            };
+            adders[t].start();
+        }
+        for (Thread adder : adders) {
+            while (adder.isAlive()) {
+                manager.removeWatcher(watcher);
+            }
+            adder.join();
+        }
+        manager.removeWatcher(watcher);
+
+        while (manager.size() != 0) {
+            // purged lazily by WatchManagerOptimized
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testIdOfWatcherRemovedDuringAddIsNotInherited() throws Exception {
+        final int count = 20000;
+        final int paths = 4;
+        final AtomicReferenceArray<RecordingWatcher> watchers =
+            new AtomicReferenceArray<RecordingWatcher>(count);
+        Thread adder = new Thread() {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    RecordingWatcher watcher = new RecordingWatcher();
+                    watchers.set(i, watcher);
+                    for (int j = 0; j < paths; j++) {
+                        manager.addWatch("/w-" + i + "/" + j, watcher);
+                    }
+                }
+            }
+        };
+        adder.start();
+        // removes every watcher while its watches are being added, so that
+        // its id is released & handed out to the next ones meanwhile
+        for (int i = 0; i < count; i++) {
+            RecordingWatcher watcher;
+            while ((watcher = watchers.get(i)) == null) {
+                Thread.yield();
+            }
+            manager.removeWatcher(watcher);
+        }
+        adder.join();
+
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < paths; j++) {
+                manager.triggerWatch("/w-" + i + "/" + j, EventType.NodeDataChanged);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            for (String path : watchers.get(i).paths) {
+                Assert.assertTrue("notified of " + path, path.startsWith("/w-" + i + "/"));
+            }
+        }
+    }
+
+    private static class RecordingWatcher implements Watcher {
+        private final List<String> paths = new ArrayList<String>();
+
+        public void process(WatchedEvent event) {
+            paths.add(event.getPath());
+        }
+    }
+}
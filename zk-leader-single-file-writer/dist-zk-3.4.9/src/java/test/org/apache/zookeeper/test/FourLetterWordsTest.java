@@ -103,6 +103,7 @@ public class FourLetterWordsTest extends ClientBase {
         verify("cons", "queued");
         verify("mntr", "zk_server_state\tstandalone");
         verify("mntr", "num_alive_connections");
+        verify("mntr", "zk_group_commit_count");
         verify("stat", "Connections");
         verify("srvr", "Connections");
     }
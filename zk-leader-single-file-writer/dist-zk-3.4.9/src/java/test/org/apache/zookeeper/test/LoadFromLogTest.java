@@ -22,9 +22,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.Checksum;
 
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
@@ -44,14 +46,18 @@ import org.apache.zookeeper.server.DataTree;
 import org.apache.zookeeper.server.ServerCnxnFactory;
 import org.apache.zookeeper.server.SyncRequestProcessor;
 import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.persistence.ChecksumAlgorithm;
 import org.apache.zookeeper.server.persistence.FileHeader;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.server.persistence.TxnLogIndex;
+import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.txn.CreateTxn;
 import org.apache.zookeeper.txn.DeleteTxn;
 import org.apache.zookeeper.txn.MultiTxn;
 import org.apache.zookeeper.txn.Txn;
+import org.apache.zookeeper.txn.SetDataTxn;
 import org.apache.zookeeper.txn.TxnHeader;
 import org.junit.Assert;
 import org.junit.Test;
@@ -165,11 +171,11 @@ public class LoadFromLogTest extends ZKTestCase implements  Watcher {
 
         LOG.info("Attempting to create " + "/test/" + (count - 1));
         doOp(logFile, OpCode.create, "/test/" + (count - 1), dt, zk,
-                zk.stat.getCversion() + 1);
+                zk.getStat().getCversion() + 1);
         
         LOG.info("Attempting to create " + "/test/" + (count - 1));
         doOp(logFile, OpCode.multi, "/test/" + (count - 1), dt, zk,
-                zk.stat.getCversion() + 1);
+                zk.getStat().getCversion() + 1);
         
         LOG.info("Attempting to create " + "/test/" + (count - 1));
         doOp(logFile, OpCode.multi, "/test/" + (count - 1), dt, zk,
@@ -189,8 +195,8 @@ public class LoadFromLogTest extends ZKTestCase implements  Watcher {
         int lastSlash = path.lastIndexOf('/');
         String parentName = path.substring(0, lastSlash);
 
-        int prevCversion = parent.stat.getCversion();
-        long prevPzxid = parent.stat.getPzxid();
+        int prevCversion = parent.getStat().getCversion();
+        long prevPzxid = parent.getStat().getPzxid();
         List<String> child = dt.getChildren(parentName, null, null);
         String childStr = "";
         for (String s : child) {
@@ -227,8 +233,8 @@ public class LoadFromLogTest extends ZKTestCase implements  Watcher {
         }
         logFile.processTransaction(txnHeader, dt, null, txn);
 
-        int newCversion = parent.stat.getCversion();
-        long newPzxid = parent.stat.getPzxid();
+        int newCversion = parent.getStat().getCversion();
+        long newPzxid = parent.getStat().getPzxid();
         child = dt.getChildren(parentName, null, null);
         childStr = "";
         for (String s : child) {
@@ -241,6 +247,238 @@ public class LoadFromLogTest extends ZKTestCase implements  Watcher {
                 newCversion + ", " + newPzxid + ">",
                 (newCversion == prevCversion + 1 && newPzxid == prevPzxid + 1));
     }
+    /**
+     * Checks that txns are written in the same format as by
+     * Util.marshallTxnEntry and Util.writeTxnBytes, whether they fit into
+     * the write buffer or not.
+     */
+    @Test
+    public void testTxnFormat() throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        FileTxnLog txnLog = new FileTxnLog(tmpDir);
+        List<byte[]> entries = new ArrayList<byte[]>();
+        long zxid = 1;
+        for (int i = 0; i < 300; i++) {
+            int size = i == 100 ? 200 * 1024 : i % 7 * 100;
+            TxnHeader hdr = new TxnHeader(0xabcd, i, zxid++,
+                    System.currentTimeMillis(), OpCode.create);
+            Record txn = new CreateTxn("/test" + i, new byte[size], null,
+                    false, i);
+            Assert.assertTrue(txnLog.append(hdr, txn));
+            entries.add(Util.marshallTxnEntry(hdr, txn));
+            if (i % 50 == 0) {
+                txnLog.commit();
+            }
+        }
+        txnLog.commit();
+        txnLog.close();
+
+        FileInputStream in = new FileInputStream(new File(tmpDir, "log.1"));
+        try {
+            BinaryInputArchive ia = BinaryInputArchive.getArchive(in);
+            FileHeader header = new FileHeader();
+            header.deserialize(ia, "fileheader");
+            Assert.assertEquals(FileTxnLog.TXNLOG_MAGIC, header.getMagic());
+            Checksum checksum = ChecksumAlgorithm.fromVersion(
+                    header.getVersion()).create();
+            long appended = 0;
+            for (byte[] entry : entries) {
+                long crc = ia.readLong("crcvalue");
+                byte[] bytes = ia.readBuffer("txnEntry");
+                Assert.assertArrayEquals(entry, bytes);
+                checksum.reset();
+                checksum.update(entry, 0, entry.length);
+                Assert.assertEquals(checksum.getValue(), crc);
+                Assert.assertEquals('B', ia.readByte("EOR"));
+                appended += 8 + 4 + entry.length + 1;
+            }
+            Assert.assertEquals(appended, txnLog.getAppendedBytes());
+            // followed by the zero padding
+            Assert.assertEquals(0, ia.readLong("crcvalue"));
+        } finally {
+            in.close();
+        }
+
+        TxnIterator itr = new FileTxnLog(tmpDir).read(1);
+        try {
+            // read() leaves the iterator at the first txn
+            for (int i = 0; i < entries.size(); i++) {
+                Assert.assertEquals(i + 1, itr.getHeader().getZxid());
+                Assert.assertEquals("/test" + i,
+                        ((CreateTxn) itr.getTxn()).getPath());
+                Assert.assertEquals(i < entries.size() - 1, itr.next());
+            }
+        } finally {
+            itr.close();
+        }
+    }
+
+    /**
+     * Checks that reading from a zxid gets to it with the index written
+     * along with the log, that a missing index is rebuilt as it was and
+     * that an index pointing to wrong offsets is ignored.
+     */
+    @Test
+    public void testTxnLogIndex() throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        FileTxnLog txnLog = new FileTxnLog(tmpDir);
+        for (int i = 1; i <= 20000; i++) {
+            TxnHeader hdr = new TxnHeader(0xabcd, i, i,
+                    System.currentTimeMillis(), OpCode.create);
+            Record txn = new CreateTxn("/test" + i, new byte[i % 200], null,
+                    false, i);
+            txnLog.append(hdr, txn);
+            if (i % 100 == 0) {
+                txnLog.commit();
+            }
+        }
+        txnLog.commit();
+        txnLog.close();
+
+        File indexFile = TxnLogIndex.getIndexFile(new File(tmpDir, "log.1"));
+        Assert.assertTrue(indexFile.length() > 16);
+        checkReadFrom(tmpDir, 20000);
+
+        byte[] written = readFile(indexFile);
+        Assert.assertTrue(indexFile.delete());
+        checkReadFrom(tmpDir, 20000);
+        Assert.assertArrayEquals(written, readFile(indexFile));
+
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        for (int i = 0; i < written.length / 16; i++) {
+            raf.seek(i * 16 + 8);
+            raf.writeLong(raf.readLong() - 20);
+        }
+        raf.close();
+        checkReadFrom(tmpDir, 20000);
+        // the invalid index is deleted & rebuilt
+        Assert.assertArrayEquals(written, readFile(indexFile));
+    }
+
+    /**
+     * Checks that the memory mapped logs are read like the streamed ones.
+     */
+    @Test
+    public void testMappedTxnIterator() throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        FileTxnLog txnLog = new FileTxnLog(tmpDir);
+        for (int i = 1; i <= 3000; i++) {
+            TxnHeader hdr;
+            Record txn;
+            if (i % 10 == 0) {
+                hdr = new TxnHeader(i, 0, i, i, OpCode.closeSession);
+                txn = null;
+            } else {
+                hdr = new TxnHeader(0xabcd, i, i, i, OpCode.setData);
+                txn = new SetDataTxn("/test" + i,
+                        new byte[i == 1500 ? 200 * 1024 : i % 300], i);
+            }
+            txnLog.append(hdr, txn);
+            if (i % 1000 == 0) {
+                txnLog.rollLog();
+            }
+        }
+        txnLog.close();
+
+        long[] zxids = {0, 1, 500, 1000, 1001, 1500, 2999, 3000, 3001};
+        for (long zxid : zxids) {
+            TxnIterator itr = txnLog.read(zxid);
+            TxnIterator mapped = txnLog.readMapped(zxid);
+            try {
+                do {
+                    Assert.assertEquals(itr.getHeader(), mapped.getHeader());
+                    Assert.assertEquals(itr.getTxn(), mapped.getTxn());
+                } while (itr.next() & mapped.next());
+                Assert.assertNull(itr.getHeader());
+                Assert.assertNull(mapped.getHeader());
+            } finally {
+                itr.close();
+                mapped.close();
+            }
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(
+                new File(tmpDir, "log." + Long.toHexString(1001)), "rw");
+        raf.seek(5000);
+        raf.write("corrupt".getBytes());
+        raf.close();
+        for (boolean useMapped : new boolean[] {false, true}) {
+            TxnIterator itr = useMapped ? txnLog.readMapped(1) : txnLog.read(1);
+            try {
+                while (itr.next()) {
+                }
+                Assert.fail("Corrupt txn was read");
+            } catch (IOException e) {
+                LOG.info("Corrupt txn", e);
+            } finally {
+                itr.close();
+            }
+        }
+    }
+
+    /**
+     * Checks that logs too large to be mapped are read through streams.
+     */
+    @Test
+    public void testMappedReadFallsBackForLargeLogs() throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        FileTxnLog txnLog = new FileTxnLog(tmpDir);
+        for (int i = 1; i <= 100; i++) {
+            txnLog.append(new TxnHeader(0xabcd, i, i, i, OpCode.setData),
+                    new SetDataTxn("/test" + i, new byte[100], i));
+        }
+        txnLog.close();
+        // sparse, zeros past the txns read as the end of the log
+        RandomAccessFile raf = new RandomAccessFile(
+                new File(tmpDir, "log." + Long.toHexString(1)), "rw");
+        raf.setLength(Integer.MAX_VALUE + 1L);
+        raf.close();
+
+        TxnIterator itr = txnLog.readMapped(1);
+        try {
+            Assert.assertTrue(itr instanceof FileTxnLog.FileTxnIterator);
+            int count = 1;
+            while (itr.next()) {
+                count++;
+            }
+            Assert.assertEquals(100, count);
+        } finally {
+            itr.close();
+        }
+    }
+
+    private void checkReadFrom(File logDir, int count) throws IOException {
+        // reads to the end first, so that a missing index is rebuilt
+        int[] zxids = {1, 2, 5000, 12345, 19999, count, 1};
+        for (int zxid : zxids) {
+            TxnIterator itr = new FileTxnLog(logDir).read(zxid);
+            try {
+                for (int i = zxid; i <= count; i++) {
+                    Assert.assertEquals(i, itr.getHeader().getZxid());
+                    Assert.assertEquals("/test" + i,
+                            ((CreateTxn) itr.getTxn()).getPath());
+                    Assert.assertEquals(i < count, itr.next());
+                    if (zxid != 1 && i > zxid + 10) {
+                        break;
+                    }
+                }
+            } finally {
+                itr.close();
+            }
+        }
+    }
+
+    private byte[] readFile(File file) throws IOException {
+        byte[] b = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(b);
+        } finally {
+            raf.close();
+        }
+        return b;
+    }
+
     /**
      * Simulates ZOOKEEPER-1069 and verifies that flush() before padLogFile
      * fixes it.
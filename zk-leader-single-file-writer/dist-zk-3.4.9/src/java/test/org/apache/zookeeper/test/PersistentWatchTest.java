@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.zookeeper.test;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.server.DataTree;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PersistentWatchTest extends ClientBase {
+    private static final int TIMEOUT = 5000;
+
+    private static class EventQueue implements Watcher {
+        final LinkedBlockingQueue<WatchedEvent> events =
+            new LinkedBlockingQueue<WatchedEvent>();
+
+        public void process(WatchedEvent event) {
+            if (event.getType() != EventType.None) {
+                events.add(event);
+            }
+        }
+
+        void assertEvent(EventType type, String path) throws InterruptedException {
+            WatchedEvent e = events.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull("no " + type + " of " + path, e);
+            Assert.assertEquals(type, e.getType());
+            Assert.assertEquals(path, e.getPath());
+        }
+
+        void assertNoEvent() throws InterruptedException {
+            Assert.assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void testRecursiveWatchFiresForSubtreeUntilClosed() throws Exception {
+        ZooKeeper zk = createClient();
+        EventQueue watcher = new EventQueue();
+        zk.addWatch("/a", watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+
+        zk.create("/a", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.create("/a/b", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.create("/a/b/c", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.create("/ab", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.setData("/a/b/c", new byte[1], -1);
+        zk.setData("/a/b/c", new byte[2], -1);
+        zk.delete("/a/b/c", -1);
+
+        watcher.assertEvent(EventType.NodeCreated, "/a");
+        watcher.assertEvent(EventType.NodeCreated, "/a/b");
+        watcher.assertEvent(EventType.NodeCreated, "/a/b/c");
+        watcher.assertEvent(EventType.NodeDataChanged, "/a/b/c");
+        watcher.assertEvent(EventType.NodeDataChanged, "/a/b/c");
+        watcher.assertEvent(EventType.NodeDeleted, "/a/b/c");
+        // neither NodeChildrenChanged nor siblings sharing the prefix
+        watcher.assertNoEvent();
+
+        DataTree dataTree = getServer(serverFactory).getZKDatabase().getDataTree();
+        Assert.assertEquals(1, dataTree.getWatchCount());
+        zk.close();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (dataTree.getWatchCount() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, dataTree.getWatchCount());
+    }
+
+    @Test
+    public void testPersistentWatchFiresForItsPathOnly() throws Exception {
+        ZooKeeper zk = createClient();
+        EventQueue watcher = new EventQueue();
+        zk.addWatch("/a", watcher, AddWatchMode.PERSISTENT);
+
+        zk.create("/a", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.create("/a/b", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.setData("/a/b", new byte[1], -1);
+        zk.setData("/a", new byte[1], -1);
+        zk.setData("/a", new byte[2], -1);
+        zk.delete("/a/b", -1);
+        zk.delete("/a", -1);
+
+        watcher.assertEvent(EventType.NodeCreated, "/a");
+        watcher.assertEvent(EventType.NodeChildrenChanged, "/a");
+        watcher.assertEvent(EventType.NodeDataChanged, "/a");
+        watcher.assertEvent(EventType.NodeDataChanged, "/a");
+        watcher.assertEvent(EventType.NodeChildrenChanged, "/a");
+        watcher.assertEvent(EventType.NodeDeleted, "/a");
+        watcher.assertNoEvent();
+    }
+
+    @Test
+    public void testOneTimeAndPersistentWatchersAreNotifiedOnce() throws Exception {
+        ZooKeeper zk = createClient();
+        zk.create("/a", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        EventQueue watcher = new EventQueue();
+        zk.addWatch("/", watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+        zk.addWatch("/a", watcher, AddWatchMode.PERSISTENT);
+        zk.getData("/a", watcher, null);
+
+        zk.setData("/a", new byte[1], -1);
+        zk.setData("/a", new byte[2], -1);
+
+        watcher.assertEvent(EventType.NodeDataChanged, "/a");
+        watcher.assertEvent(EventType.NodeDataChanged, "/a");
+        watcher.assertNoEvent();
+    }
+
+    @Test
+    public void testRecursiveWatchIsSetAgainAfterReconnectWithChroot() throws Exception {
+        CountdownWatcher zkConnection = new CountdownWatcher();
+        ZooKeeper zk = createClient(zkConnection, hostPort);
+        zk.create("/ch", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        CountdownWatcher connection = new CountdownWatcher();
+        ZooKeeper chrooted = createClient(connection, hostPort + "/ch");
+        EventQueue watcher = new EventQueue();
+        chrooted.addWatch("/", watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+
+        zk.create("/ch/x", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        watcher.assertEvent(EventType.NodeCreated, "/x");
+
+        stopServer();
+        connection.waitForDisconnected(TIMEOUT);
+        startServer();
+        connection.waitForConnected(TIMEOUT);
+        zkConnection.waitForConnected(TIMEOUT);
+        // the watch is set again prior any request sent after reconnection
+        chrooted.exists("/", false);
+
+        zk.create("/ch/x/y", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        watcher.assertEvent(EventType.NodeCreated, "/x/y");
+        zk.create("/other", null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        watcher.assertNoEvent();
+    }
+}
@@ -0,0 +1,58 @@
+package home.poc.zookeeper;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps keys (shards) to members with consistent hashing. Every member is put on the ring at several
+ * (virtual node) positions, a key is owned by the first member clockwise from key's position.
+ * Hence when a member joins or leaves, only the keys next to its positions change the owner.
+ */
+public class ConsistentHashRing {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int virtualNodes;
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    public synchronized void setMembers(Collection<String> members) {
+        ring.clear();
+        for (String member : members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    /**
+     * @return member owning the key, or null if ring has no members
+     */
+    public synchronized String ownerOf(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported by JVM", e);
+        }
+    }
+}
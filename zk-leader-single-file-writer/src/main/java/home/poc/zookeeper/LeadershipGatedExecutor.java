@@ -0,0 +1,186 @@
+package home.poc.zookeeper;
+
+import home.poc.zookeeper.metrics.WriterBean;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs submitted tasks repeatedly (with fixed delay in between) only while leadership is granted.
+ * Worker threads are parked on a condition while this process is a follower, hence consume no CPU,
+ * and are woken up right away once leadership is granted.
+ */
+public class LeadershipGatedExecutor implements Closeable {
+
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition leadershipChanged = lock.newCondition();
+    private final long interTaskDelayNanos;
+
+    // guarded by lock
+    private boolean leader = false;
+    private boolean closed = false;
+    private boolean firstRunPending = false;
+    private long grantedAtNanos;
+
+    private volatile long lastGrantToFirstRunNanos = -1;
+    private volatile WriterBean writerBean;
+
+    public LeadershipGatedExecutor(long interTaskDelayMillis) {
+        this.interTaskDelayNanos = TimeUnit.MILLISECONDS.toNanos(interTaskDelayMillis);
+    }
+
+    /**
+     * @param writerBean notified about leadership acquisitions & losses, optional
+     */
+    public void setWriterBean(WriterBean writerBean) {
+        this.writerBean = writerBean;
+    }
+
+    /**
+     * Starts a worker thread, which runs given task with fixed delay for as long as leadership is granted
+     * and parks in between leaderships
+     */
+    public void execute(final Runnable task) {
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (awaitLeadership()) {
+                        task.run();
+                        recordFirstRun();
+                        pause();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    public void grantLeadership() {
+        lock.lock();
+        try {
+            if (!leader) {
+                leader = true;
+                firstRunPending = true;
+                grantedAtNanos = System.nanoTime();
+                leadershipChanged.signalAll();
+                if (writerBean != null) {
+                    writerBean.leadershipAcquired();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void revokeLeadership() {
+        lock.lock();
+        try {
+            if (leader && writerBean != null) {
+                writerBean.leadershipLost();
+            }
+            leader = false;
+            leadershipChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isLeader() {
+        lock.lock();
+        try {
+            return leader;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks the calling thread for as long as leadership is held,
+     * i.e. until it is revoked or this executor is closed.
+     */
+    public void awaitRevocation() throws InterruptedException {
+        lock.lock();
+        try {
+            while (leader && !closed) {
+                leadershipChanged.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return nanos elapsed from the most recent leadership grant until the first task run completed
+     * in that leadership, or -1 if no task has been run yet
+     */
+    public long getLastGrantToFirstRunNanos() {
+        return lastGrantToFirstRunNanos;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (leader && writerBean != null) {
+                writerBean.leadershipLost();
+            }
+            leader = false;
+            leadershipChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * @return true once leadership is granted, false if executor has been closed meanwhile
+     */
+    private boolean awaitLeadership() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!leader && !closed) {
+                leadershipChanged.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordFirstRun() {
+        lock.lock();
+        try {
+            if (firstRunPending) {
+                firstRunPending = false;
+                lastGrantToFirstRunNanos = System.nanoTime() - grantedAtNanos;
+                System.out.println("<---- First task run " + TimeUnit.NANOSECONDS.toMicros(lastGrantToFirstRunNanos)
+                        + " MICROS after leadership has been granted ---->");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for inter-task delay, returns earlier if leadership is revoked or executor is closed
+     */
+    private void pause() throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = interTaskDelayNanos;
+            while (remaining > 0 && leader && !closed) {
+                remaining = leadershipChanged.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
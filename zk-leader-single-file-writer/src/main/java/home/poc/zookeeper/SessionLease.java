@@ -0,0 +1,118 @@
+package home.poc.zookeeper;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local leadership lease, derived from the negotiated session timeout. ZK server can't expire the session
+ * (and hand leadership over) earlier than session timeout after it has heard from the client for the last time,
+ * which is no earlier than the moment the last answered request was sent. Hence the lease lasts for
+ * leaseRatio * sessionTimeout since sending of the last answered request, measured with System.nanoTime.
+ *
+ * The lease is renewed by lightweight exists() requests (the same period ZK client uses for its pings),
+ * so that writer checks it locally on every write, instead of a round trip to ZK per write, and stops
+ * on its own when partitioned away or paused, prior Disconnected event reaches it.
+ */
+public class SessionLease implements AsyncCallback.StatCallback {
+
+    // ZK client pings every 1/3 of read timeout, do the same relative to the lease
+    private static final int RENEWALS_PER_LEASE = 3;
+
+    private final double leaseRatio;
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SessionLease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicLong expiresAtNanos = new AtomicLong(System.nanoTime());
+
+    private volatile ZooKeeper zooKeeper;
+    private ScheduledFuture<?> renewal;
+
+    /**
+     * @param leaseRatio share of the session timeout the lease lasts for, the rest is a margin for
+     *                   the write, which has passed the check, to complete
+     */
+    public SessionLease(double leaseRatio) {
+        if (leaseRatio <= 0 || leaseRatio > 1) {
+            throw new IllegalArgumentException("leaseRatio has to be in (0, 1], got: " + leaseRatio);
+        }
+        this.leaseRatio = leaseRatio;
+    }
+
+    /**
+     * Starts (or restarts after reconnection) renewing the lease by reading the path
+     */
+    public synchronized void start(ZooKeeper zooKeeper, final String path) {
+        this.zooKeeper = zooKeeper;
+        if (renewal != null) {
+            renewal.cancel(false);
+        }
+        long intervalMillis = Math.max(1, (long) (zooKeeper.getSessionTimeout() * leaseRatio / RENEWALS_PER_LEASE));
+        renewal = renewer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                SessionLease.this.zooKeeper.exists(path, false, SessionLease.this, System.nanoTime());
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        renewer.shutdownNow();
+    }
+
+    /**
+     * @return true if ZK session is guaranteed to be alive at the moment, i.e. its ephemeral znodes still exist
+     */
+    public boolean isValid() {
+        return getRemainingNanos() > 0;
+    }
+
+    public long getRemainingNanos() {
+        return expiresAtNanos.get() - System.nanoTime();
+    }
+
+    /**
+     * Extends the lease, never shortens it, since answers to earlier sent requests may come later
+     * @param sentAtNanos System.nanoTime at the moment the answered request was sent
+     */
+    void renew(long sentAtNanos, int sessionTimeoutMillis) {
+        long expiresAt = sentAtNanos + (long) (TimeUnit.MILLISECONDS.toNanos(sessionTimeoutMillis) * leaseRatio);
+        while (true) {
+            long current = expiresAtNanos.get();
+            if (expiresAt - current <= 0 || expiresAtNanos.compareAndSet(current, expiresAt)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * This callback is used to <b>renew the lease</b>: any answer, apart from connection or session related
+     * errors, proves that the session was alive when the request reached the server.
+     * @param ctx   System.nanoTime at the moment the request was sent.
+     */
+    @Override
+    public void processResult(int rc, String path, Object ctx, Stat stat) {
+        switch (rc) {
+            case KeeperException.Code.Ok:
+            case KeeperException.Code.NoNode:
+                renew((Long) ctx, zooKeeper.getSessionTimeout());
+                break;
+            default:
+                // let the lease run out
+                break;
+        }
+    }
+}
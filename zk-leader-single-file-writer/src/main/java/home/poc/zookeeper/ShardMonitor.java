@@ -0,0 +1,243 @@
+package home.poc.zookeeper;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Partitioned mode of election: instead of a single leader for the single output, every one of K shards
+ * has its own owner. Participants register themselves under /ELECTION (the same way ZNodeMonitor does)
+ * and spread shards across live participants with ConsistentHashRing.
+ *
+ * Owner of a shard holds ephemeral /SHARDS/shard-N znode, whose czxid is the fencing token of the shard.
+ * When membership changes, the previous owner stops writing and deletes the znode, while the new owner waits
+ * for the deletion (or session expiry of the previous owner) prior taking the shard over.
+ *
+ * On disconnect the owner stops writing, but keeps the znode, which survives for as long as the session does,
+ * hence a shard that has moved elsewhere meanwhile is still released once reconnected.
+ *
+ * All ZK calls are made from a single rebalancing thread, so that EventThread never blocks.
+ */
+public class ShardMonitor implements Watcher {
+
+    public static final String ELECTION_ROOT = "/ELECTION";
+    public static final String SHARDS_ROOT = "/SHARDS";
+    private static final String SHARD_PREFIX = "shard-";
+    private static final String PID_ZNODE_DELIMITER = "-";
+    private static final int SESSION_TIMEOUT = 5000;
+    private static final int VIRTUAL_NODES = 100;
+
+    private final String connectionString;
+    private final String processName;
+    // shard number is the index
+    private final List<? extends ZNodeMonitorListener> shardListeners;
+    private final boolean[] writing;
+    // the znode may be held by the current session, i.e. it's to be deleted once the shard moves elsewhere
+    private final boolean[] held;
+    private final ConsistentHashRing ring = new ConsistentHashRing(VIRTUAL_NODES);
+    private final ExecutorService rebalancer = Executors.newSingleThreadExecutor();
+
+    private volatile ZooKeeper zooKeeper;
+    // confined to rebalancer thread
+    private String memberId;
+
+    public ShardMonitor(String connectionString, String processName, List<? extends ZNodeMonitorListener> shardListeners) {
+        this.connectionString = connectionString;
+        this.processName = processName;
+        this.shardListeners = shardListeners;
+        this.writing = new boolean[shardListeners.size()];
+        this.held = new boolean[shardListeners.size()];
+    }
+
+    public void start() throws IOException {
+        this.zooKeeper = newZooKeeper();
+    }
+
+    /**
+     * Creates ZK handle with this instance as default watcher, both at start & after session expiry
+     */
+    protected ZooKeeper newZooKeeper() throws IOException {
+        return new ZooKeeper(connectionString, SESSION_TIMEOUT, this);
+    }
+
+    public void close() throws InterruptedException {
+        rebalancer.execute(new Runnable() {
+            @Override
+            public void run() {
+                stopAll();
+            }
+        });
+        rebalancer.shutdown();
+        zooKeeper.close();
+    }
+
+    @Override
+    public void process(WatchedEvent watchedEvent) {
+        System.out.println("Received " + watchedEvent.getType() + " EVENT from ZK server");
+        if (watchedEvent.getType() == Event.EventType.None) {
+            switch (watchedEvent.getState()) {
+                case SyncConnected:
+                    submitRebalance();
+                    break;
+                case Disconnected:
+                    rebalancer.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            stopAll();
+                        }
+                    });
+                    break;
+                case Expired:
+                    rebalancer.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            rebuildSession();
+                        }
+                    });
+                    break;
+                default:
+                    break;
+            }
+        } else {
+            // membership has changed, or a shard we wait for has been released
+            submitRebalance();
+        }
+    }
+
+    private void submitRebalance() {
+        rebalancer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebalance();
+                } catch (KeeperException e) {
+                    // connection / session problems are followed by None event, which is handled separately
+                    System.err.println(processName + ": exception during rebalance: " + e.getLocalizedMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    private void rebalance() throws KeeperException, InterruptedException {
+        if (memberId == null) {
+            createIfNotExists(ELECTION_ROOT);
+            createIfNotExists(SHARDS_ROOT);
+            String znode = zooKeeper.create(ELECTION_ROOT + "/" + processName + PID_ZNODE_DELIMITER, new byte[0],
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+            memberId = znode.substring(znode.lastIndexOf('/') + 1);
+            System.out.println("<---- Joined as member: " + memberId + " ---->");
+        }
+        List<String> members = zooKeeper.getChildren(ELECTION_ROOT, this);
+        ring.setMembers(members);
+        for (int shard = 0; shard < writing.length; shard++) {
+            boolean mine = memberId.equals(ring.ownerOf(SHARD_PREFIX + shard));
+            if (mine && !writing[shard]) {
+                acquire(shard);
+            } else if (!mine && held[shard]) {
+                release(shard);
+            }
+        }
+    }
+
+    private void acquire(int shard) throws KeeperException, InterruptedException {
+        String path = shardPath(shard);
+        // set prior create, since the znode may be created even if the call fails with connection loss
+        held[shard] = true;
+        try {
+            zooKeeper.create(path, memberId.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        } catch (KeeperException.NodeExistsException e) {
+            // either previous owner hasn't released it yet, or it's ours since before disconnect
+        }
+        Stat stat = zooKeeper.exists(path, this);
+        if (stat == null) {
+            // released in between, try again
+            held[shard] = false;
+            submitRebalance();
+        } else if (stat.getEphemeralOwner() == zooKeeper.getSessionId()) {
+            writing[shard] = true;
+            System.out.println(processName + " -> acquired " + path);
+            shardListeners.get(shard).startSpeaking(stat.getCzxid());
+        } else {
+            // the watch fires once previous owner deletes the znode or its session expires
+            held[shard] = false;
+        }
+    }
+
+    /**
+     * Deletes the znode only if it's owned by the current session, so that the znode of the next owner
+     * is never deleted by mistake
+     */
+    private void release(int shard) throws KeeperException, InterruptedException {
+        if (writing[shard]) {
+            writing[shard] = false;
+            shardListeners.get(shard).stopSpeaking();
+        }
+        String path = shardPath(shard);
+        Stat stat = zooKeeper.exists(path, false);
+        if (stat != null && stat.getEphemeralOwner() == zooKeeper.getSessionId()) {
+            try {
+                zooKeeper.delete(path, stat.getVersion());
+            } catch (KeeperException.NoNodeException e) {
+                // already gone together with expired session
+            }
+        }
+        held[shard] = false;
+        System.out.println(processName + " -> released " + path);
+    }
+
+    private void stopAll() {
+        for (int shard = 0; shard < writing.length; shard++) {
+            if (writing[shard]) {
+                writing[shard] = false;
+                shardListeners.get(shard).stopSpeaking();
+            }
+        }
+    }
+
+    /**
+     * Expired ZK handle never reconnects, hence a new one (i.e. a new session) is created,
+     * which joins as a new member once connected. Shard znodes are gone together with the expired session.
+     */
+    private void rebuildSession() {
+        stopAll();
+        Arrays.fill(held, false);
+        memberId = null;
+        try {
+            zooKeeper.close();
+            zooKeeper = newZooKeeper();
+        } catch (IOException e) {
+            shutdown(e);
+        } catch (InterruptedException e) {
+            shutdown(e);
+        }
+    }
+
+    private void shutdown(Exception e) {
+        System.err.println(processName + ": unable to recreate ZK session after expiry, shutting down: " + e);
+        System.exit(1); //useless to proceed
+    }
+
+    private void createIfNotExists(String path) throws KeeperException, InterruptedException {
+        try {
+            zooKeeper.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            // created by another participant
+        }
+    }
+
+    private static String shardPath(int shard) {
+        return SHARDS_ROOT + "/" + SHARD_PREFIX + shard;
+    }
+}
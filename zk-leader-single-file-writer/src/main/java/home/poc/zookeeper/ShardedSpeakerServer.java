@@ -0,0 +1,64 @@
+package home.poc.zookeeper;
+
+import home.poc.zookeeper.output.OutputEngine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ *  Partitioned mode of SpeakerServer: output is split into K shards (out-0.txt ... out-K-1.txt),
+ *  each one written by its own Speaker, and ShardMonitor spreads shard ownership across all running instances.
+ *
+ */
+public class ShardedSpeakerServer {
+
+    private static final int DEFAULT_INTER_TASKS_DELAY_MILLIS = 300;
+    private static final int DEFAULT_SHARDS = 8;
+    private ShardMonitor monitor;
+
+    /**
+     * @param args optional [config file path (default: speaker.config from classpath), msg to write]
+     */
+    public static void main(String[] args) {
+        Properties config = SpeakerServer.readConfig(args.length > 0 ? args[0] : SpeakerServer.CONFIG_FILE_PATH);
+        new ShardedSpeakerServer().start(args.length > 1 ? args[1] : "a Speaker msg, being written to shard", config);
+    }
+
+    public void start(String msg, Properties config) {
+        int shards = Integer.parseInt(config.getProperty("shards", String.valueOf(DEFAULT_SHARDS)));
+        int interTasksDelayMillis = Integer.parseInt(
+                config.getProperty("interTasksDelayMillis", String.valueOf(DEFAULT_INTER_TASKS_DELAY_MILLIS)));
+        String outputFile = config.getProperty("outputFile", SpeakerServer.OUTPUT_FILE_PATH);
+        String outputFileBase = outputFile.endsWith(".txt") ? outputFile.substring(0, outputFile.length() - 4) : outputFile;
+
+        List<Speaker> speakers = new ArrayList<Speaker>(shards);
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                Properties shardConfig = new Properties();
+                shardConfig.putAll(config);
+                shardConfig.setProperty("outputFile", outputFileBase + "-" + shard + ".txt");
+                LeadershipGatedExecutor writerExecutor = new LeadershipGatedExecutor(interTasksDelayMillis);
+                OutputEngine outputEngine = SpeakerServer.createOutputEngine(shardConfig);
+                Speaker speaker = new Speaker(msg + " " + shard, writerExecutor, outputEngine);
+                SpeakerServer.registerWriterBean(speaker.getProcessName() + "/shard-" + shard, writerExecutor, outputEngine);
+                writerExecutor.execute(speaker);
+                speakers.add(speaker);
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't open output file: " + e);
+            System.exit(1);
+        }
+        monitor = new ShardMonitor(config.getProperty("connectionString"), speakers.get(0).getProcessName(), speakers);
+        try {
+            monitor.start();
+        } catch (Exception e) {
+            System.out.println("Unrecoverable error while attempting to start " + getClass().getSimpleName() + e);
+            System.exit(1);
+        }
+        System.out.println(getClass().getSimpleName() + " started with " + shards + " shards, each one written with fixed delay "
+                + interTasksDelayMillis + " MILLIS while owned");
+    }
+
+}
@@ -11,6 +11,8 @@
 
 package home.poc.zookeeper;
 
+import home.poc.zookeeper.output.FencedException;
+import home.poc.zookeeper.output.OutputEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,18 +27,33 @@ public class Speaker implements Runnable, ZNodeMonitorListener {
     public static final String ID_DELIMITER = "-";
 
     private final static Logger logger = LoggerFactory.getLogger(Speaker.class);
-    private BufferedWriter writer = new BufferedWriter(new FileWriter(new File("out.txt"), true));
+    private final OutputEngine outputEngine;
 
     private String message;
     private String processName;
     private long counter = 0;
-    private volatile boolean canSpeak = false;
+    private final LeadershipGatedExecutor executor;
+    private volatile long fencingToken = -1;
+    private SessionLease sessionLease;
 
-    public Speaker(String message) throws IOException {
+    /**
+     * @param executor runs this Speaker only while it is allowed to speak
+     * @param outputEngine output (out.txt) the messages are appended to
+     */
+    public Speaker(String message, LeadershipGatedExecutor executor, OutputEngine outputEngine) throws IOException {
         this.message = message;
+        this.executor = executor;
+        this.outputEngine = outputEngine;
         this.processName = getUniqueIdentifier();
     }
 
+    /**
+     * @param sessionLease checked prior every write, optional
+     */
+    public void setSessionLease(SessionLease sessionLease) {
+        this.sessionLease = sessionLease;
+    }
+
     private static String getUniqueIdentifier() {
         String processName = ManagementFactory.getRuntimeMXBean().getName();
         String processId = processName.substring(0, processName.indexOf("@"));
@@ -45,9 +62,11 @@ public class Speaker implements Runnable, ZNodeMonitorListener {
 
     public void run() {
         try {
-            if (canSpeak) {
-                handleTask();
-            }
+            handleTask();
+        } catch (FencedException e) {
+            // a newer leader has already written to output, hence this one has been deposed
+            System.out.println(e.getLocalizedMessage());
+            stopSpeaking();
         } catch (IOException e) {
             System.out.println(e.getLocalizedMessage());
             System.exit(1);
@@ -55,19 +74,24 @@ public class Speaker implements Runnable, ZNodeMonitorListener {
     }
 
     public void handleTask() throws IOException {
+        if (sessionLease != null && !sessionLease.isValid()) {
+            // partitioned away or paused for too long: session might have expired & leadership might have been handed over
+            System.out.println(processName + ": session lease has run out, skipping write");
+            return;
+        }
         String msg = message + ": " + counter++ + " " + processName;
-        writer.append(msg + "\n");
-        writer.flush();     // append data to file line by line
+        outputEngine.append(fencingToken, msg);
         System.out.println(msg);
     }
 
     @Override
-    public void startSpeaking() {
-        this.canSpeak = true;
+    public void startSpeaking(long fencingToken) {
+        this.fencingToken = fencingToken;
+        executor.grantLeadership();
     }
     @Override
     public void stopSpeaking() {
-        this.canSpeak = false;
+        executor.revokeLeadership();
     }
 
     @Override
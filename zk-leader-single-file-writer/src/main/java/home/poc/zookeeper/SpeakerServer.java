@@ -1,65 +1,131 @@
 package home.poc.zookeeper;
 
 
+import home.poc.zookeeper.metrics.WriterBean;
+import home.poc.zookeeper.output.GroupCommitOutputEngine;
+import home.poc.zookeeper.output.LineOutputEngine;
+import home.poc.zookeeper.output.OutputEngine;
+import home.poc.zookeeper.output.SegmentedLogOutputEngine;
 import org.apache.commons.io.IOUtils;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 /**
  *  Instantiates Speaker, ZNodeMonitor, adds Speaker as listener to ZNodeMonitor
- *  and starts whole thing up in separate fixed scheduled thread.
+ *  and starts whole thing up in separate thread, which is parked until leadership is granted.
  *
  */
 public class SpeakerServer {
 
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(5);
-
     private static final int INTER_TASKS_DELAY_MILLIS = 300;
     public static final String CONFIG_FILE_PATH = "speaker.config";
+    public static final String OUTPUT_FILE_PATH = "out.txt";
     private ZNodeMonitor monitor;
     
+    /**
+     * @param args optional [config file path (default: speaker.config from classpath), msg to write]
+     */
     public static void main(String[] args) {
-        String connectionString = readConfig(CONFIG_FILE_PATH);
-        new SpeakerServer().start("a Speaker msg, being written to file", connectionString);
+        Properties config = readConfig(args.length > 0 ? args[0] : CONFIG_FILE_PATH);
+        new SpeakerServer().start(args.length > 1 ? args[1] : "a Speaker msg, being written to file", config);
     }
 
     public void start(String msg, String connectionString) {
+        Properties config = new Properties();
+        config.setProperty("connectionString", connectionString);
+        start(msg, config);
+    }
+
+    public void start(String msg, Properties config) {
+        String connectionString = config.getProperty("connectionString");
+        ZNodeMonitor.ElectionMode electionMode = ZNodeMonitor.ElectionMode.valueOf(
+                config.getProperty("electionMode", ZNodeMonitor.ElectionMode.ALL_CHILDREN.name()));
+        LeadershipGatedExecutor writerExecutor = new LeadershipGatedExecutor(INTER_TASKS_DELAY_MILLIS);
         Speaker speaker = null;
+        WriterBean writerBean = null;
         try {
-            speaker = new Speaker(msg);
+            OutputEngine outputEngine = createOutputEngine(config);
+            speaker = new Speaker(msg, writerExecutor, outputEngine);
+            writerBean = registerWriterBean(speaker.getProcessName(), writerExecutor, outputEngine);
         } catch (IOException e) {
-            System.out.println("Couldn't read config file: " + e);
+            System.out.println("Couldn't open output file: " + e);
+            System.exit(1);
         }
-        monitor = new ZNodeMonitor(connectionString);
+        monitor = new ZNodeMonitor(connectionString, electionMode);
         monitor.setListener(speaker);
+        monitor.setWriterBean(writerBean);
+        // 0 disables the lease, so that only ZK events stop the Speaker
+        double sessionLeaseRatio = Double.parseDouble(config.getProperty("sessionLeaseRatio", "0"));
+        if (sessionLeaseRatio > 0) {
+            SessionLease sessionLease = new SessionLease(sessionLeaseRatio);
+            speaker.setSessionLease(sessionLease);
+            monitor.setSessionLease(sessionLease);
+        }
         try {
             monitor.start();
         } catch (Exception e) {
             System.out.println("Unrecoverable error while attempting to start " + getClass().getSimpleName() + e);
             System.exit(1);
         }
-        scheduler.scheduleWithFixedDelay(speaker, 0, INTER_TASKS_DELAY_MILLIS, TimeUnit.MILLISECONDS);
-        System.out.println(getClass().getSimpleName() + " started & is gonna submit tasks with fixed delay " + INTER_TASKS_DELAY_MILLIS + " MILLIS");
+        writerExecutor.execute(speaker);
+        System.out.println(getClass().getSimpleName() + " started & is gonna run tasks with fixed delay " + INTER_TASKS_DELAY_MILLIS + " MILLIS while being leader");
+    }
+
+    /**
+     * LINE (default) - BufferedWriter flushed line by line,
+     * GROUP_COMMIT - FileChannel with batched appends, fencing tokens & fsyncPolicy,
+     * SEGMENTED_LOG - memory-mapped segments of segmentBytes in out-log directory (named after outputFile), fencing tokens & fsyncPolicy
+     */
+    static OutputEngine createOutputEngine(Properties config) throws IOException {
+        String outputFilePath = config.getProperty("outputFile", OUTPUT_FILE_PATH);
+        File outputFile = new File(outputFilePath);
+        if ("SEGMENTED_LOG".equals(config.getProperty("outputEngine"))) {
+            String outputFileBase = outputFilePath.endsWith(".txt") ? outputFilePath.substring(0, outputFilePath.length() - 4) : outputFilePath;
+            return new SegmentedLogOutputEngine(new File(outputFileBase + "-log"),
+                    Integer.parseInt(config.getProperty("segmentBytes", String.valueOf(64 * 1024 * 1024))),
+                    GroupCommitOutputEngine.FsyncPolicy.valueOf(config.getProperty("fsyncPolicy", "EVERY_COMMIT")),
+                    Long.parseLong(config.getProperty("fsyncIntervalMillis", "1000")));
+        }
+        if ("GROUP_COMMIT".equals(config.getProperty("outputEngine"))) {
+            return new GroupCommitOutputEngine(outputFile,
+                    GroupCommitOutputEngine.FsyncPolicy.valueOf(config.getProperty("fsyncPolicy", "EVERY_COMMIT")),
+                    Long.parseLong(config.getProperty("fsyncIntervalMillis", "1000")),
+                    Integer.parseInt(config.getProperty("maxBatchRecords", "1000")));
+        }
+        return new LineOutputEngine(outputFile);
+    }
+
+    /**
+     * Exposes leadership & output statistics of a writer via JMX
+     * @param name "/" separated MBean path
+     */
+    static WriterBean registerWriterBean(String name, LeadershipGatedExecutor writerExecutor, OutputEngine outputEngine) {
+        WriterBean writerBean = new WriterBean(name);
+        writerExecutor.setWriterBean(writerBean);
+        outputEngine.setMetrics(writerBean);
+        writerBean.register();
+        return writerBean;
     }
 
-    private static String readConfig(String configFile) {
+    static Properties readConfig(String configFile) {
         Properties properties = new Properties();
-        InputStream inputStream = ClassLoader.getSystemClassLoader ().getResourceAsStream (configFile);
+        InputStream inputStream = null;
         try {
+            inputStream = new File(configFile).isFile()
+                    ? new FileInputStream(configFile) : ClassLoader.getSystemClassLoader ().getResourceAsStream (configFile);
             properties.load(inputStream);
         } catch (IOException e) {
             System.out.println("Couldn't read config file: " + e);
             System.exit(1);
         }
-        String connectionString = properties.getProperty("connectionString");
-        System.out.println("Connection string: " + connectionString);
+        System.out.println("Connection string: " + properties.getProperty("connectionString")
+                + ", election mode: " + properties.getProperty("electionMode"));
         IOUtils.closeQuietly(inputStream);
-        return connectionString;
+        return properties;
     }
 
 }
\ No newline at end of file
@@ -4,35 +4,71 @@
 
 package home.poc.zookeeper;
 
+import home.poc.zookeeper.metrics.WriterBean;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Talks asynchronously to ZK server and depending on response and state of connection
  * decides if Speaker has to start or stop writing to output file
  */
-public class ZNodeMonitor implements Watcher, AsyncCallback.ChildrenCallback {
+public class ZNodeMonitor implements Watcher, AsyncCallback.ChildrenCallback, AsyncCallback.StatCallback,
+        AsyncCallback.StringCallback {
+
+    /**
+     * How participants learn that leadership might have changed.
+     * ALL_CHILDREN - every participant watches children of the election root (herd effect on each change)
+     * PREDECESSOR - every participant watches only the znode just ahead of it in sequence order
+     */
+    public enum ElectionMode {
+        ALL_CHILDREN, PREDECESSOR
+    }
 
     final Logger logger = LoggerFactory.getLogger(ZNodeMonitor.class);
     private final String ROOT = "/ELECTION";
     private int SESSION_TIMEOUT = 5000;
 
     private final String PID_ZNODE_DELIMITER = "-";
+    // context of getChildren looking for election znode created by a create with unknown outcome
+    private static final Object OWN_ZNODE_LOOKUP = new Object();
 
     private ZNodeMonitorListener listener;
     private ZooKeeper zooKeeper;
 
-    private long sequenceNumber;
+    // -1 until election znode is created
+    private long sequenceNumber = -1;
     private String connectionString;
-    private String znode;
+    private String znodePrefix;
+    // election znode of the current session, null until created
+    private volatile String znode;
+    // create of election znode has failed with connection loss, hence the znode might have been created nevertheless
+    private boolean createOutcomeUnknown;
+    private final ElectionMode electionMode;
+    private volatile String watchedPredecessor;
+    private volatile boolean closed;
+    private SessionLease sessionLease;
+    private WriterBean writerBean;
+    // the fields below are accessed by EventThread only
+    // create of election znode has been issued, but its outcome hasn't come yet
+    private boolean joinPending;
+    // 0 once the first leadership decision after joining has been made
+    private long joinStartedNanos;
+    private volatile long lastTimeToDecisionNanos = -1;
 
     public ZNodeMonitor(String connectionString) {
+        this(connectionString, ElectionMode.ALL_CHILDREN);
+    }
+
+    public ZNodeMonitor(String connectionString, ElectionMode electionMode) {
         this.connectionString = connectionString;
+        this.electionMode = electionMode;
     }
 
     // just for tests
@@ -42,24 +78,64 @@ public class ZNodeMonitor implements Watcher, AsyncCallback.ChildrenCallback {
 
     public void setListener(ZNodeMonitorListener listener) {
         this.listener = listener;
-        this.znode = ROOT + "/" + listener.getProcessName() + PID_ZNODE_DELIMITER;
+        this.znodePrefix = ROOT + "/" + listener.getProcessName() + PID_ZNODE_DELIMITER;
+    }
+
+    /**
+     * @param sessionLease renewed for as long as the session is connected, optional
+     */
+    public void setSessionLease(SessionLease sessionLease) {
+        this.sessionLease = sessionLease;
+    }
+
+    /**
+     * @param writerBean gets time from joining election to the first leadership decision, optional
+     */
+    public void setWriterBean(WriterBean writerBean) {
+        this.writerBean = writerBean;
     }
 
     public void start() throws IOException {
-        this.zooKeeper = new ZooKeeper(connectionString, SESSION_TIMEOUT, this);
+        this.zooKeeper = newZooKeeper();
+    }
+
+    /**
+     * Creates ZK handle with this instance as default watcher, both at start & after session expiry
+     */
+    protected ZooKeeper newZooKeeper() throws IOException {
+        return new ZooKeeper(connectionString, SESSION_TIMEOUT, this);
+    }
+
+    /**
+     * Closes ZK session, so that election znode (ephemeral) is removed right away
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        listener.stopSpeaking();
+        if (sessionLease != null) {
+            sessionLease.close();
+        }
+        zooKeeper.close();
     }
 
     @Override
     public void process(WatchedEvent watchedEvent) {
         System.out.println("Received " + watchedEvent.getType() + " EVENT from ZK server");
+        if (closed) {
+            return;
+        }
+        if (electionMode == ElectionMode.PREDECESSOR) {
+            processPredecessorModeEvent(watchedEvent);
+            return;
+        }
         switch (watchedEvent.getType()) {
             case None:
                 processNoneEvent(watchedEvent);
                 break;
             case NodeCreated:
             case NodeDeleted:
-                listener.stopSpeaking();
-                createZnode();
+                // root has been (re-)created or deleted together with all election znodes
+                rejoinIfZnodeGone();
             case NodeDataChanged:
             case NodeChildrenChanged:
             default:
@@ -70,10 +146,32 @@ public class ZNodeMonitor implements Watcher, AsyncCallback.ChildrenCallback {
                 }
                 break;
         }
-        try {
-            zooKeeper.exists(ROOT, this);
-        } catch (Exception e) {
-            shutdown(e);
+        if (watchedEvent.getState() != Event.KeeperState.SyncConnected) {
+            // watch is put anew once connected
+            return;
+        }
+        // watch on root (re-)creation / deletion, the result comes to processResult(.., Stat)
+        zooKeeper.exists(ROOT, this, this, null);
+    }
+
+    /**
+     * In PREDECESSOR mode the only watch is the one on predecessor znode, hence
+     * deletion of it is the only event (apart from connection ones) which may hand leadership over
+     * @param watchedEvent
+     */
+    private void processPredecessorModeEvent(WatchedEvent watchedEvent) {
+        switch (watchedEvent.getType()) {
+            case None:
+                processNoneEvent(watchedEvent);
+                break;
+            case NodeDeleted:
+                if (watchedEvent.getPath() != null && watchedEvent.getPath().equals(watchedPredecessor)) {
+                    System.out.println(listener.getProcessName() + " -> predecessor " + watchedPredecessor + " has gone");
+                    checkLeadership();
+                }
+                break;
+            default:
+                break;
         }
     }
 
@@ -85,12 +183,16 @@ public class ZNodeMonitor implements Watcher, AsyncCallback.ChildrenCallback {
         switch (event.getState()) {
             case SyncConnected:
                 System.out.println(listener.getProcessName() + " is connected to Zookeeper");
-                createRootIfNotExists();
-                System.out.println(listener.getProcessName() + ": putting watch on " + ROOT);
-                //set watch
-                zooKeeper.getChildren(ROOT, true, this, null);
-                sequenceNumber = createZnode();
-                System.out.println("<---- Initialized sequenceNumber: " + sequenceNumber + " ---->");
+                if (sessionLease != null) {
+                    sessionLease.start(zooKeeper, ROOT);
+                }
+                if (znode == null) {
+                    joinElection();
+                } else {
+                    // reconnected within the same session, hence ephemeral election znode is still there
+                    System.out.println(listener.getProcessName() + " has reconnected, keeps " + znode);
+                    readChildren();
+                }
                 break;
             case Disconnected:
                 System.out.println("Disconnected event");
@@ -99,36 +201,150 @@ public class ZNodeMonitor implements Watcher, AsyncCallback.ChildrenCallback {
             case Expired:
                 System.out.println("Expired event");
                 listener.stopSpeaking();
+                rebuildSession();
                 break;
             default:
                 break;
         }
     }
 
-    private void createRootIfNotExists() {
-        Stat stat = null;
-        try {
-            stat = zooKeeper.exists(ROOT, true);
-            if (stat == null) {
-                zooKeeper.create(ROOT, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-            }
-        } catch (KeeperException | InterruptedException ex) {
-            System.err.println("Exception during create createRootIfNotExists: " + ex.getLocalizedMessage());
+    /**
+     * Root creation is also reported to participants which have raced to create it and already joined,
+     * hence election znode is created anew only if the own one is really gone (see processResult(.., Stat)),
+     * otherwise it would be an orphan
+     */
+    private void rejoinIfZnodeGone() {
+        if (znode == null) {
+            joinElection();
+            return;
         }
+        zooKeeper.exists(znode, false, this, null);
     }
 
     /**
-     * Sequential znodes guaranty that znode path will be unique.
-     * @return
+     * Expired ZK handle never reconnects, hence a new one (i.e. a new session) is created,
+     * which joins election anew once connected
      */
-    private long createZnode() {
+    private void rebuildSession() {
+        znode = null;
+        sequenceNumber = -1;
+        createOutcomeUnknown = false;
+        joinPending = false;
+        joinStartedNanos = 0;
+        watchedPredecessor = null;
         try {
-            znode = zooKeeper.create(znode, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
-            System.out.println("<---- Created znode: " + znode + " ----->");
-        } catch (KeeperException | InterruptedException ex) {
-            System.err.println("Exception during create createZnode: " + ex.getLocalizedMessage());
+            zooKeeper.close();
+            zooKeeper = newZooKeeper();
+        } catch (IOException e) {
+            shutdown(e);
+        } catch (InterruptedException e) {
+            shutdown(e);
+        }
+    }
+
+    /**
+     * Creates root (if needed) & election znode and reads election children without waiting for any response.
+     * Requests of a session are processed & answered in order, hence by the time the children come
+     * the sequence number is known, so that joining takes a single round trip & never blocks EventThread.
+     * Not done with multi(), since create of the existing root would fail the whole transaction.
+     * If the previous create has failed with connection loss, the znode created by it (if any) is adopted,
+     * otherwise it would be an orphan, which blocks the election for as long as the session lives.
+     */
+    private void joinElection() {
+        if (joinPending) {
+            return;
+        }
+        joinPending = true;
+        if (joinStartedNanos == 0) {
+            joinStartedNanos = System.nanoTime();
+        }
+        zooKeeper.create(ROOT, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, this, null);
+        if (createOutcomeUnknown) {
+            zooKeeper.getChildren(ROOT, false, this, OWN_ZNODE_LOOKUP);
+            return;
         }
-        return parseSequenceNumber(znode);
+        createZnode();
+        readChildren();
+    }
+
+    private void createZnode() {
+        zooKeeper.create(znodePrefix, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL, this, null);
+    }
+
+    private void readChildren() {
+        if (electionMode == ElectionMode.PREDECESSOR) {
+            checkLeadership();
+            return;
+        }
+        System.out.println(listener.getProcessName() + ": putting watch on " + ROOT);
+        zooKeeper.getChildren(ROOT, true, this, null);
+    }
+
+    /**
+     * This callback is used to <b>create root & election znodes</b>.
+     * @param rc    return code or result of the call.
+     * @param path  the path that we passed to asynchronous calls.
+     * @param ctx   whatever context object that we passed to asynchronous calls.
+     * @param name  name of the created znode.
+     */
+    @Override
+    public void processResult(int rc, String path, Object ctx, String name) {
+        if (ROOT.equals(path)) {
+            if (rc != KeeperException.Code.Ok && rc != KeeperException.Code.NodeExists) {
+                System.err.println("Exception during create " + ROOT + ": " + KeeperException.Code.get(rc));
+            }
+            return;
+        }
+        joinPending = false;
+        switch (rc) {
+            case KeeperException.Code.Ok:
+                znode = name;
+                sequenceNumber = parseSequenceNumber(name);
+                createOutcomeUnknown = false;
+                System.out.println("<---- Created znode: " + znode + " ----->");
+                break;
+            case KeeperException.Code.ConnectionLoss:
+                // the znode might have been created nevertheless, it's looked for once reconnected
+                createOutcomeUnknown = true;
+                System.err.println("Exception during create " + path + ": " + KeeperException.Code.get(rc));
+                break;
+            case KeeperException.Code.NoNode:
+                // root has been deleted right after being created
+                joinElection();
+                break;
+            default:
+                System.err.println("Exception during create " + path + ": " + KeeperException.Code.get(rc));
+                break;
+        }
+    }
+
+    private void adoptOwnZnodeOrCreate(int rc, List<String> children) {
+        if (rc != KeeperException.Code.Ok && rc != KeeperException.Code.NoNode) {
+            // connection loss, looked for anew once reconnected
+            joinPending = false;
+            return;
+        }
+        znode = findOwnZnode(rc == KeeperException.Code.Ok ? children : Collections.<String>emptyList());
+        if (znode == null) {
+            createOutcomeUnknown = false;
+            createZnode();
+        } else {
+            joinPending = false;
+            createOutcomeUnknown = false;
+            sequenceNumber = parseSequenceNumber(znode);
+            System.out.println("<---- Adopted znode: " + znode + " ----->");
+        }
+        readChildren();
+    }
+
+    private String findOwnZnode(List<String> children) {
+        String prefix = znodePrefix.substring(ROOT.length() + 1);
+        for (String child : children) {
+            if (child.startsWith(prefix)) {
+                return ROOT + "/" + child;
+            }
+        }
+        return null;
     }
 
     public long parseSequenceNumber(String znode) {
@@ -144,15 +360,98 @@ public class ZNodeMonitor implements Watcher, AsyncCallback.ChildrenCallback {
      */
     @Override
     public void processResult(int rc, String path, Object ctx, List<String> nodeChildren) {
-        System.out.println("Node Children: " + nodeChildren.toString() + " for path: " + path);
+        System.out.println("Node Children: " + nodeChildren + " for path: " + path);
+        if (ctx == OWN_ZNODE_LOOKUP) {
+            adoptOwnZnodeOrCreate(rc, nodeChildren);
+            return;
+        }
+        if (sequenceNumber < 0) {
+            // election znode couldn't be created, it's going to be created once (re-)connected
+            listener.stopSpeaking();
+            return;
+        }
         switch (rc) {
             case KeeperException.Code.Ok:
-                if(getLowestNumber(nodeChildren) == sequenceNumber) {
-                    listener.startSpeaking();
+                if (electionMode == ElectionMode.PREDECESSOR) {
+                    watchPredecessorOrSpeak(nodeChildren);
+                }
+                else if(getLowestNumber(nodeChildren) == sequenceNumber) {
+                    listener.startSpeaking(sequenceNumber);
                 }
                 else {
                     listener.stopSpeaking();
                 }
+                reportTimeToDecision();
+                break;
+            default:
+                listener.stopSpeaking();
+                break;
+        }
+    }
+
+    private void reportTimeToDecision() {
+        if (joinStartedNanos == 0) {
+            return;
+        }
+        lastTimeToDecisionNanos = System.nanoTime() - joinStartedNanos;
+        joinStartedNanos = 0;
+        System.out.println(listener.getProcessName() + " made the first leadership decision "
+                + TimeUnit.NANOSECONDS.toMicros(lastTimeToDecisionNanos) + " MICROS after joining election");
+        if (writerBean != null) {
+            writerBean.electionJoined(lastTimeToDecisionNanos);
+        }
+    }
+
+    /**
+     * Lists election children without setting a watch on root. Used in PREDECESSOR mode only,
+     * so that membership changes don't wake up every participant
+     */
+    private void checkLeadership() {
+        zooKeeper.getChildren(ROOT, false, this, null);
+    }
+
+    private void watchPredecessorOrSpeak(List<String> children) {
+        String predecessor = getPredecessor(children);
+        if (predecessor == null) {
+            watchedPredecessor = null;
+            listener.startSpeaking(sequenceNumber);
+            return;
+        }
+        listener.stopSpeaking();
+        watchedPredecessor = ROOT + "/" + predecessor;
+        System.out.println(listener.getProcessName() + ": putting watch on predecessor " + watchedPredecessor);
+        zooKeeper.exists(watchedPredecessor, this, this, null);
+    }
+
+    /**
+     * This callback is used to put <b>watch on predecessor znode</b>, <b>watch on root</b> &
+     * to <b>check own znode</b> once root has been (re-)created / deleted.
+     * If predecessor has gone in between getChildren & exists calls, children are re-read.
+     * @param rc    return code or result of the call.
+     * @param path  the path that we passed to asynchronous calls.
+     * @param ctx   whatever context object that we passed to asynchronous calls.
+     * @param stat  stat of predecessor znode, null if it doesn't exist anymore.
+     */
+    @Override
+    public void processResult(int rc, String path, Object ctx, Stat stat) {
+        if (ROOT.equals(path)) {
+            // just the watch matters
+            return;
+        }
+        if (electionMode == ElectionMode.ALL_CHILDREN) {
+            if (rc == KeeperException.Code.NoNode && path.equals(znode)) {
+                listener.stopSpeaking();
+                znode = null;
+                sequenceNumber = -1;
+                joinElection();
+            }
+            return;
+        }
+        switch (rc) {
+            case KeeperException.Code.Ok:
+                break;
+            case KeeperException.Code.NoNode:
+                checkLeadership();
                 break;
             default:
                 listener.stopSpeaking();
@@ -160,6 +459,23 @@ public class ZNodeMonitor implements Watcher, AsyncCallback.ChildrenCallback {
         }
     }
 
+    /**
+     * @return name of the child with the highest sequence number lower than own one,
+     * or null if own znode has the lowest sequence number
+     */
+    String getPredecessor(List<String> children) {
+        String predecessor = null;
+        long predecessorNumber = -1;
+        for (String child : children) {
+            long current = parseSequenceNumber(child);
+            if (current < sequenceNumber && current > predecessorNumber) {
+                predecessorNumber = current;
+                predecessor = child;
+            }
+        }
+        return predecessor;
+    }
+
     long getLowestNumber(List<String> children) {
         long lowest = sequenceNumber;
         for (String child : children) {
@@ -178,6 +494,29 @@ public class ZNodeMonitor implements Watcher, AsyncCallback.ChildrenCallback {
         return sequenceNumber;
     }
 
+    public ElectionMode getElectionMode() {
+        return electionMode;
+    }
+
+    /**
+     * @return election znode of the current session, null until created
+     */
+    public String getZnode() {
+        return znode;
+    }
+
+    /**
+     * @return time from joining election (session connected) to the first leadership decision
+     * of the latest session, -1 until made
+     */
+    public long getLastTimeToDecisionNanos() {
+        return lastTimeToDecisionNanos;
+    }
+
+    public String getWatchedPredecessor() {
+        return watchedPredecessor;
+    }
+
     public void shutdown(Exception e) {
         System.err.println("Unrecoverable error while trying to set a watch on election znode, shutting down client: " + e);
         System.exit(1); //useless to proceed
@@ -2,7 +2,10 @@ package home.poc.zookeeper;
 
 public interface ZNodeMonitorListener {
 
-    void startSpeaking();
+    /**
+     * @param fencingToken sequence number of the election znode, which is monotonic across leaderships
+     */
+    void startSpeaking(long fencingToken);
     void stopSpeaking();
 
     String getProcessName();
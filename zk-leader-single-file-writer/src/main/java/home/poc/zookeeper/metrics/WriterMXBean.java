@@ -0,0 +1,75 @@
+package home.poc.zookeeper.metrics;
+
+/**
+ * Leadership & output statistics of a single writer (Speaker)
+ */
+public interface WriterMXBean {
+
+    boolean isLeader();
+
+    long getLeadershipAcquisitions();
+
+    long getLeadershipLosses();
+
+    /**
+     * @return time from becoming a candidate (start or loss of previous leadership) until the latest acquisition
+     */
+    long getLastTimeToAcquireMillis();
+
+    long getMaxTimeToAcquireMillis();
+
+    /**
+     * @return total time spent as leader, including the current leadership
+     */
+    long getTimeAsLeaderMillis();
+
+    long getCurrentLeadershipMillis();
+
+    /**
+     * @return number of times the election has been joined (start & every new session)
+     */
+    long getElectionJoins();
+
+    /**
+     * @return time from joining the election to the first leadership decision (leader or not) of the latest join
+     */
+    long getLastTimeToDecisionMicros();
+
+    long getMaxTimeToDecisionMicros();
+
+    long getAppendedRecords();
+
+    long getAppendedBytes();
+
+    /**
+     * @return rate since the previous read of the rate (at least a second ago)
+     */
+    double getRecordsPerSecond();
+
+    double getBytesPerSecond();
+
+    /**
+     * @return upper bounds of the latency histogram buckets, the last bucket has no upper bound
+     */
+    long[] getLatencyHistogramBoundsMicros();
+
+    long[] getFlushLatencyHistogram();
+
+    long getFlushCount();
+
+    long getAvgFlushLatencyMicros();
+
+    long getP99FlushLatencyMicros();
+
+    long getMaxFlushLatencyMicros();
+
+    long[] getFsyncLatencyHistogram();
+
+    long getFsyncCount();
+
+    long getAvgFsyncLatencyMicros();
+
+    long getP99FsyncLatencyMicros();
+
+    long getMaxFsyncLatencyMicros();
+}
@@ -0,0 +1,26 @@
+package home.poc.zookeeper.output;
+
+import java.io.IOException;
+
+/**
+ * Thrown on append by a deposed leader, i.e. when output has already seen a higher fencing token
+ */
+public class FencedException extends IOException {
+
+    private final long fencingToken;
+    private final long highestFencingToken;
+
+    public FencedException(long fencingToken, long highestFencingToken) {
+        super("Append with fencing token " + fencingToken + " rejected, highest seen is " + highestFencingToken);
+        this.fencingToken = fencingToken;
+        this.highestFencingToken = highestFencingToken;
+    }
+
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    public long getHighestFencingToken() {
+        return highestFencingToken;
+    }
+}
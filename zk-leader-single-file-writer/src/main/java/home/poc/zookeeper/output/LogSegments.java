@@ -0,0 +1,104 @@
+package home.poc.zookeeper.output;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Layout of the segmented log, shared by SegmentedLogOutputEngine & SegmentedLogReader.
+ *
+ * Segment NNNNNNNNNNNNNNNNNNNN.log is named after the index of its first record & consists of records
+ * [int length][long fencingToken][UTF-8 record][padding to 4 bytes], where length covers all but padding.
+ * Length is written last, so 0 means "nothing written yet" and END_OF_SEGMENT means "continue in the next segment".
+ *
+ * NNNNNNNNNNNNNNNNNNNN.index holds [int record number within segment][int position] for every
+ * INDEX_INTERVAL_RECORDS-th record of the segment, so that a reader can seek to the N-th record.
+ */
+final class LogSegments {
+
+    static final int HEADER_BYTES = 12;
+    static final int LENGTH_BYTES = 4;
+    static final int END_OF_SEGMENT = -1;
+    static final int INDEX_INTERVAL_RECORDS = 64;
+    static final int INDEX_ENTRY_BYTES = 8;
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+
+    private LogSegments() {
+    }
+
+    static File logFile(File directory, long baseIndex) {
+        return new File(directory, String.format("%020d", baseIndex) + LOG_SUFFIX);
+    }
+
+    static File indexFile(File directory, long baseIndex) {
+        return new File(directory, String.format("%020d", baseIndex) + INDEX_SUFFIX);
+    }
+
+    /**
+     * @return base indexes of all the segments in ascending order
+     */
+    static List<Long> listBaseIndexes(File directory) {
+        List<Long> baseIndexes = new ArrayList<Long>();
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(LOG_SUFFIX);
+            }
+        });
+        if (names != null) {
+            for (String name : names) {
+                baseIndexes.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+            }
+        }
+        Collections.sort(baseIndexes);
+        return baseIndexes;
+    }
+
+    static int align(int length) {
+        return (length + 3) & ~3;
+    }
+
+    /**
+     * @return [record number within segment, position] of the closest indexed record at or before
+     * the given record number, [0, 0] if there is none
+     */
+    static int[] floorIndexEntry(File indexFile, long recordNumber) throws IOException {
+        int[] entry = {0, 0};
+        if (!indexFile.isFile()) {
+            return entry;
+        }
+        FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer entries = ByteBuffer.allocate((int) (channel.size() / INDEX_ENTRY_BYTES * INDEX_ENTRY_BYTES));
+            while (entries.hasRemaining() && channel.read(entries, entries.position()) >= 0) {
+                // read whole index, it's small
+            }
+            entries.flip();
+            // entries are in ascending order, binary search for the last one <= recordNumber
+            int low = 0;
+            int high = entries.limit() / INDEX_ENTRY_BYTES - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int number = entries.getInt(middle * INDEX_ENTRY_BYTES);
+                if (number <= recordNumber) {
+                    entry[0] = number;
+                    entry[1] = entries.getInt(middle * INDEX_ENTRY_BYTES + LENGTH_BYTES);
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+        } finally {
+            channel.close();
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,270 @@
+package home.poc.zookeeper.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends records to a directory of memory-mapped segments (see LogSegments for the layout), rolling over
+ * to a new segment once the active one is full, so that output neither grows a single file without bound
+ * nor goes through write() calls. Use SegmentedLogReader to tail it.
+ *
+ * Every append is done under exclusive lock on the directory, during which records appended by other
+ * processes are caught up with, so that records of a deposed leader are rejected like in GroupCommitOutputEngine.
+ */
+public class SegmentedLogOutputEngine implements OutputEngine {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LOCK_FILE = ".lock";
+    // FileLock is held on behalf of whole JVM, hence engines of the same JVM have to be serialized separately
+    private static final ConcurrentMap<String, Lock> IN_PROCESS_LOCKS = new ConcurrentHashMap<String, Lock>();
+
+    private final File directory;
+    private final int segmentBytes;
+    private final GroupCommitOutputEngine.FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final FileChannel lockChannel;
+    private final Lock inProcessLock;
+
+    // guarded by inProcessLock
+    private long segmentBaseIndex;
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private FileChannel indexChannel;
+    private int position;
+    private long nextRecordIndex;
+    private long lastFsyncNanos = System.nanoTime();
+
+    private volatile long highestFencingToken = -1;
+    private volatile OutputMetrics metrics = OutputMetrics.NONE;
+
+    /**
+     * @param segmentBytes size of a segment, which is preallocated & mapped as a whole
+     */
+    public SegmentedLogOutputEngine(File directory, int segmentBytes, GroupCommitOutputEngine.FsyncPolicy fsyncPolicy,
+                                    long fsyncIntervalMillis) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create log directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.lockChannel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        Lock newLock = new ReentrantLock();
+        Lock existingLock = IN_PROCESS_LOCKS.putIfAbsent(directory.getCanonicalPath(), newLock);
+        this.inProcessLock = existingLock != null ? existingLock : newLock;
+
+        inProcessLock.lock();
+        try {
+            FileLock fileLock = lockChannel.lock();
+            try {
+                open();
+            } finally {
+                fileLock.release();
+            }
+        } finally {
+            inProcessLock.unlock();
+        }
+    }
+
+    @Override
+    public void append(long fencingToken, String record) throws IOException {
+        if (fencingToken < highestFencingToken) {
+            throw new FencedException(fencingToken, highestFencingToken);
+        }
+        byte[] payload = record.getBytes(UTF_8);
+        int length = LogSegments.HEADER_BYTES + payload.length;
+        if (LogSegments.align(length) > segmentBytes - LogSegments.LENGTH_BYTES) {
+            throw new IOException("Record of " + length + " bytes doesn't fit into segment of " + segmentBytes + " bytes");
+        }
+        inProcessLock.lock();
+        try {
+            FileLock fileLock = lockChannel.lock();
+            try {
+                catchUp();
+                if (fencingToken < highestFencingToken) {
+                    throw new FencedException(fencingToken, highestFencingToken);
+                }
+                // room for the length of the next record (or END_OF_SEGMENT) is always kept
+                if (position + LogSegments.align(length) + LogSegments.LENGTH_BYTES > segment.capacity()) {
+                    roll();
+                }
+                long startNanos = System.nanoTime();
+                write(fencingToken, payload, length);
+                long writtenNanos = System.nanoTime();
+                metrics.flushed(writtenNanos - startNanos);
+                if (shouldFsync()) {
+                    segment.force();
+                    lastFsyncNanos = System.nanoTime();
+                    metrics.fsynced(lastFsyncNanos - writtenNanos);
+                }
+                metrics.appended(1, length);
+            } finally {
+                fileLock.release();
+            }
+        } finally {
+            inProcessLock.unlock();
+        }
+    }
+
+    @Override
+    public void setMetrics(OutputMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public long getHighestFencingToken() {
+        return highestFencingToken;
+    }
+
+    /**
+     * @return index the next appended record will get
+     */
+    public long getNextRecordIndex() {
+        inProcessLock.lock();
+        try {
+            return nextRecordIndex;
+        } finally {
+            inProcessLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        inProcessLock.lock();
+        try {
+            if (fsyncPolicy != GroupCommitOutputEngine.FsyncPolicy.NEVER) {
+                segment.force();
+            }
+            closeSegment();
+            lockChannel.close();
+        } finally {
+            inProcessLock.unlock();
+        }
+    }
+
+    private void write(long fencingToken, byte[] payload, int length) throws IOException {
+        // clear length slot of the next record first, it may hold garbage of a record torn by a crash
+        segment.putInt(position + LogSegments.align(length), 0);
+        ByteBuffer body = segment.duplicate();
+        body.position(position + LogSegments.LENGTH_BYTES);
+        body.putLong(fencingToken);
+        body.put(payload);
+        // publishes the record to readers
+        segment.putInt(position, length);
+        long recordNumber = nextRecordIndex - segmentBaseIndex;
+        if (recordNumber % LogSegments.INDEX_INTERVAL_RECORDS == 0) {
+            ByteBuffer entry = ByteBuffer.allocate(LogSegments.INDEX_ENTRY_BYTES);
+            entry.putInt((int) recordNumber).putInt(position).flip();
+            long indexPosition = recordNumber / LogSegments.INDEX_INTERVAL_RECORDS * LogSegments.INDEX_ENTRY_BYTES;
+            while (entry.hasRemaining()) {
+                indexPosition += indexChannel.write(entry, indexPosition);
+            }
+        }
+        position += LogSegments.align(length);
+        nextRecordIndex++;
+        highestFencingToken = fencingToken;
+    }
+
+    private void roll() throws IOException {
+        segment.putInt(position, LogSegments.END_OF_SEGMENT);
+        if (fsyncPolicy != GroupCommitOutputEngine.FsyncPolicy.NEVER) {
+            segment.force();
+        }
+        closeSegment();
+        openSegment(nextRecordIndex, true);
+    }
+
+    /**
+     * Skips records appended by other processes (or other engines of this process) since the last append
+     */
+    private void catchUp() throws IOException {
+        while (true) {
+            int length = position + LogSegments.LENGTH_BYTES > segment.capacity()
+                    ? LogSegments.END_OF_SEGMENT : segment.getInt(position);
+            if (length == 0) {
+                return;
+            }
+            if (length == LogSegments.END_OF_SEGMENT) {
+                if (!LogSegments.logFile(directory, nextRecordIndex).isFile()) {
+                    // rolled over by a writer which crashed prior creating the next segment
+                    closeSegment();
+                    openSegment(nextRecordIndex, true);
+                    return;
+                }
+                closeSegment();
+                openSegment(nextRecordIndex, false);
+                continue;
+            }
+            highestFencingToken = Math.max(highestFencingToken, segment.getLong(position + LogSegments.LENGTH_BYTES));
+            position += LogSegments.align(length);
+            nextRecordIndex++;
+        }
+    }
+
+    private void open() throws IOException {
+        List<Long> baseIndexes = LogSegments.listBaseIndexes(directory);
+        if (baseIndexes.isEmpty()) {
+            openSegment(0, true);
+            return;
+        }
+        openSegmentAtLastIndexEntry(baseIndexes.get(baseIndexes.size() - 1));
+        catchUp();
+        if (nextRecordIndex == segmentBaseIndex && baseIndexes.size() > 1) {
+            // the last segment is empty, hence the last record (and the highest fencing token) is in the previous one
+            closeSegment();
+            openSegmentAtLastIndexEntry(baseIndexes.get(baseIndexes.size() - 2));
+            catchUp();
+        }
+    }
+
+    private void openSegmentAtLastIndexEntry(long baseIndex) throws IOException {
+        openSegment(baseIndex, false);
+        int[] entry = LogSegments.floorIndexEntry(LogSegments.indexFile(directory, baseIndex), Integer.MAX_VALUE);
+        position = entry[1];
+        nextRecordIndex = baseIndex + entry[0];
+    }
+
+    private void openSegment(long baseIndex, boolean create) throws IOException {
+        File logFile = LogSegments.logFile(directory, baseIndex);
+        segmentChannel = create
+                ? FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // mapping beyond the end of file extends it, hence a new segment is preallocated with zeros
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, create ? segmentBytes : segmentChannel.size());
+        indexChannel = FileChannel.open(LogSegments.indexFile(directory, baseIndex).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segmentBaseIndex = baseIndex;
+        position = 0;
+        nextRecordIndex = baseIndex;
+    }
+
+    private void closeSegment() throws IOException {
+        // mapping itself is released once the buffer is garbage collected
+        segmentChannel.close();
+        indexChannel.close();
+    }
+
+    private boolean shouldFsync() {
+        switch (fsyncPolicy) {
+            case EVERY_COMMIT:
+                return true;
+            case INTERVAL:
+                return System.nanoTime() - lastFsyncNanos >= fsyncIntervalNanos;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package home.poc.zookeeper.output;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads (tails) the log written by SegmentedLogOutputEngine, possibly by another process, through read-only
+ * mappings of its segments, so that records are read straight from the page cache without read() copies.
+ * Not thread safe.
+ */
+public class SegmentedLogReader implements Closeable {
+
+    private static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final File directory;
+
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+    private int position;
+    private long nextRecordIndex;
+
+    /**
+     * Starts reading from the first record of the log
+     */
+    public SegmentedLogReader(File directory) throws IOException {
+        this.directory = directory;
+        seek(0);
+    }
+
+    /**
+     * Positions the reader at the record with given index (or at the end of the log, if it has fewer records),
+     * using the offset index of the segment the record belongs to
+     */
+    public void seek(long recordIndex) throws IOException {
+        List<Long> baseIndexes = LogSegments.listBaseIndexes(directory);
+        long baseIndex = 0;
+        for (long candidate : baseIndexes) {
+            if (candidate <= recordIndex) {
+                baseIndex = candidate;
+            }
+        }
+        closeSegment();
+        nextRecordIndex = baseIndex;
+        position = 0;
+        if (!openSegment(baseIndex)) {
+            return;
+        }
+        int[] entry = LogSegments.floorIndexEntry(LogSegments.indexFile(directory, baseIndex), recordIndex - baseIndex);
+        position = entry[1];
+        nextRecordIndex = baseIndex + entry[0];
+        while (nextRecordIndex < recordIndex && next() != null) {
+            // scan from the indexed record
+        }
+    }
+
+    /**
+     * @return next record, or null if it hasn't been appended yet
+     */
+    public LogRecord next() throws IOException {
+        while (true) {
+            if (segment == null && !openSegment(nextRecordIndex)) {
+                return null;
+            }
+            if (position + LogSegments.LENGTH_BYTES > segment.capacity() && !remap()) {
+                return null;
+            }
+            int length = segment.getInt(position);
+            if (length == 0) {
+                return null;
+            }
+            if (length == LogSegments.END_OF_SEGMENT) {
+                if (!LogSegments.logFile(directory, nextRecordIndex).isFile()) {
+                    // writer hasn't created the next segment yet
+                    return null;
+                }
+                closeSegment();
+                continue;
+            }
+            long fencingToken = segment.getLong(position + LogSegments.LENGTH_BYTES);
+            ByteBuffer payload = segment.duplicate();
+            payload.position(position + LogSegments.HEADER_BYTES);
+            payload.limit(position + length);
+            position += LogSegments.align(length);
+            return new LogRecord(nextRecordIndex++, fencingToken, payload.slice().asReadOnlyBuffer());
+        }
+    }
+
+    /**
+     * Tails the log: waits for the next record to be appended
+     * @return next record, or null if it hasn't been appended within the timeout
+     */
+    public LogRecord poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        LogRecord record = next();
+        while (record == null && deadline - System.nanoTime() > 0) {
+            TimeUnit.NANOSECONDS.sleep(POLL_INTERVAL_NANOS);
+            record = next();
+        }
+        return record;
+    }
+
+    /**
+     * @return index of the record next() is going to return
+     */
+    public long getNextRecordIndex() {
+        return nextRecordIndex;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+
+    private boolean openSegment(long baseIndex) throws IOException {
+        File logFile = LogSegments.logFile(directory, baseIndex);
+        if (!logFile.isFile()) {
+            return false;
+        }
+        segmentChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+        position = 0;
+        return true;
+    }
+
+    /**
+     * Segment might have been mapped while being created, prior it has been preallocated
+     */
+    private boolean remap() throws IOException {
+        long size = segmentChannel.size();
+        if (size <= segment.capacity()) {
+            return false;
+        }
+        segment = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        return position + LogSegments.LENGTH_BYTES <= segment.capacity();
+    }
+
+    private void closeSegment() throws IOException {
+        if (segmentChannel != null) {
+            // mapping itself is released once the buffer is garbage collected
+            segmentChannel.close();
+            segmentChannel = null;
+            segment = null;
+        }
+    }
+}
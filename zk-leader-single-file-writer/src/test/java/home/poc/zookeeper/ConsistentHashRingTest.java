@@ -0,0 +1,73 @@
+package home.poc.zookeeper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashRingTest {
+
+    private static final int SHARDS = 64;
+
+    private final ConsistentHashRing underTest = new ConsistentHashRing(100);
+
+    @Test
+    public void testEmptyRingHasNoOwner() {
+        assertNull(underTest.ownerOf("shard-0"));
+    }
+
+    @Test
+    public void testJoiningMemberTakesShardsOnlyFromOthers() {
+        List<String> members = new ArrayList<String>(Arrays.asList("Speaker-pid-1-0000000001", "Speaker-pid-2-0000000002",
+                "Speaker-pid-3-0000000003"));
+        underTest.setMembers(members);
+        Map<String, String> before = owners();
+
+        members.add("Speaker-pid-4-0000000004");
+        underTest.setMembers(members);
+        Map<String, String> after = owners();
+
+        int moved = 0;
+        for (String shard : before.keySet()) {
+            if (!before.get(shard).equals(after.get(shard))) {
+                moved++;
+                assertEquals("shards move only to the joining member", "Speaker-pid-4-0000000004", after.get(shard));
+            }
+        }
+        assertTrue("joining member gets some shards", moved > 0);
+        assertTrue("only about 1/4 of shards move, but moved " + moved, moved < SHARDS / 2);
+    }
+
+    @Test
+    public void testLeavingMemberGivesAwayOnlyItsShards() {
+        List<String> members = new ArrayList<String>(Arrays.asList("Speaker-pid-1-0000000001", "Speaker-pid-2-0000000002",
+                "Speaker-pid-3-0000000003"));
+        underTest.setMembers(members);
+        Map<String, String> before = owners();
+
+        members.remove("Speaker-pid-2-0000000002");
+        underTest.setMembers(members);
+        Map<String, String> after = owners();
+
+        for (String shard : before.keySet()) {
+            if (!before.get(shard).equals("Speaker-pid-2-0000000002")) {
+                assertEquals(before.get(shard), after.get(shard));
+            }
+        }
+    }
+
+    private Map<String, String> owners() {
+        Map<String, String> owners = new HashMap<String, String>();
+        for (int shard = 0; shard < SHARDS; shard++) {
+            owners.put("shard-" + shard, underTest.ownerOf("shard-" + shard));
+        }
+        return owners;
+    }
+}
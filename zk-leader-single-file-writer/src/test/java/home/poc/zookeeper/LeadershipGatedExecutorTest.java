@@ -0,0 +1,95 @@
+package home.poc.zookeeper;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LeadershipGatedExecutorTest {
+
+    private final LeadershipGatedExecutor underTest = new LeadershipGatedExecutor(10);
+
+    @After
+    public void tearDown() {
+        underTest.close();
+    }
+
+    @Test
+    public void testTaskIsNotRunWithoutLeadership() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        underTest.execute(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        Thread.sleep(100);
+        assertEquals(0, runs.get());
+        assertEquals(-1, underTest.getLastGrantToFirstRunNanos());
+    }
+
+    @Test
+    public void testGrantWakesUpParkedTask() throws InterruptedException {
+        final CountDownLatch firstRun = new CountDownLatch(1);
+        underTest.execute(new Runnable() {
+            @Override
+            public void run() {
+                firstRun.countDown();
+            }
+        });
+        Thread.sleep(50);
+        underTest.grantLeadership();
+
+        assertTrue(firstRun.await(1, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        assertTrue(underTest.getLastGrantToFirstRunNanos() >= 0);
+        assertTrue(underTest.getLastGrantToFirstRunNanos() < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testRevokeParksTaskAgain() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        underTest.execute(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        underTest.grantLeadership();
+        Thread.sleep(100);
+        underTest.revokeLeadership();
+        assertFalse(underTest.isLeader());
+        Thread.sleep(20);
+
+        int runsAfterRevoke = runs.get();
+        assertTrue(runsAfterRevoke > 0);
+        Thread.sleep(100);
+        assertEquals(runsAfterRevoke, runs.get());
+    }
+
+    @Test
+    public void testAwaitRevocationReturnsOnceRevoked() throws InterruptedException {
+        underTest.grantLeadership();
+        final CountDownLatch revoked = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    underTest.awaitRevocation();
+                    revoked.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }).start();
+        assertFalse(revoked.await(50, TimeUnit.MILLISECONDS));
+        underTest.revokeLeadership();
+        assertTrue(revoked.await(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,72 @@
+package home.poc.zookeeper;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SessionLeaseTest {
+
+    private static final int SESSION_TIMEOUT_MILLIS = 1000;
+
+    private final SessionLease underTest = new SessionLease(0.5);
+
+    @Mock
+    private ZooKeeper zooKeeper;
+
+    @Before
+    public void setUp() {
+        when(zooKeeper.getSessionTimeout()).thenReturn(SESSION_TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        underTest.close();
+    }
+
+    @Test
+    public void testLeaseIsInvalidUntilRenewed() {
+        assertFalse(underTest.isValid());
+    }
+
+    @Test
+    public void testLeaseLastsForRatioOfSessionTimeoutSinceSending() throws InterruptedException {
+        underTest.renew(System.nanoTime(), SESSION_TIMEOUT_MILLIS);
+        assertTrue(underTest.isValid());
+        assertTrue(underTest.getRemainingNanos() <= TimeUnit.MILLISECONDS.toNanos(SESSION_TIMEOUT_MILLIS / 2));
+
+        Thread.sleep(SESSION_TIMEOUT_MILLIS / 2 + 50);
+        assertFalse(underTest.isValid());
+    }
+
+    @Test
+    public void testLateAnswerToEarlierRequestDoesNotShortenLease() {
+        long now = System.nanoTime();
+        underTest.renew(now, SESSION_TIMEOUT_MILLIS);
+        long remaining = underTest.getRemainingNanos();
+        underTest.renew(now - TimeUnit.MILLISECONDS.toNanos(400), SESSION_TIMEOUT_MILLIS);
+        assertTrue(underTest.getRemainingNanos() > remaining - TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void testOnlyAnswersOfLiveSessionRenewLease() {
+        underTest.start(zooKeeper, "/ELECTION");
+        underTest.processResult(KeeperException.Code.ConnectionLoss, "/ELECTION", System.nanoTime(), null);
+        underTest.processResult(KeeperException.Code.SessionExpired, "/ELECTION", System.nanoTime(), null);
+        assertFalse(underTest.isValid());
+
+        underTest.processResult(KeeperException.Code.NoNode, "/ELECTION", System.nanoTime(), null);
+        assertTrue(underTest.isValid());
+    }
+}
@@ -0,0 +1,344 @@
+package home.poc.zookeeper;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.TestableZooKeeper;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chaos & throughput rig for ZNodeMonitor: runs a group of monitors in one JVM against ClientBase server,
+ * injects disconnect / session expiry storms (the current speaker is always among the victims), and measures
+ * how fast the group converges on exactly one speaker (owning the lowest election znode, no orphan znodes left),
+ * and how many election creates / getChildren calls a recovery costs.
+ *
+ * Size is controlled with system properties, e.g. -Dstress.monitors=500 -Dstress.rounds=10 -Dstress.victims=0.3
+ */
+public class ZNodeMonitorStressTest extends ClientBase {
+
+    private static final String ROOT = "/ELECTION";
+    private static final int MONITORS = Integer.getInteger("stress.monitors", 50);
+    private static final int ROUNDS = Integer.getInteger("stress.rounds", 2);
+    private static final double VICTIMS = Double.parseDouble(System.getProperty("stress.victims", "0.2"));
+    private static final int SESSION_TIMEOUT_MILLIS = 5000;
+    private static final long CONVERGENCE_TIMEOUT_MILLIS = 60000;
+    // calls made right after convergence still belong to the recovery
+    private static final long QUIESCENCE_MILLIS = 500;
+
+    private enum Injection {
+        DISCONNECT, EXPIRE
+    }
+
+    private final Random random = new Random(27);
+    private final AtomicInteger speaking = new AtomicInteger();
+    private final AtomicInteger maxSpeaking = new AtomicInteger();
+    private final AtomicLong electionCreates = new AtomicLong();
+    private final AtomicLong getChildrenCalls = new AtomicLong();
+    private final List<StressedMonitor> monitors = new ArrayList<StressedMonitor>();
+    private PrintStream stdout;
+    private PrintStream stderr;
+    private TestableZooKeeper observer;
+
+    @Override
+    public void setUp() throws Exception {
+        // ClientBase creates server data dirs there, but doesn't create it itself
+        new File(System.getProperty("build.test.dir", "build")).mkdirs();
+        super.setUp();
+        stdout = System.out;
+        stderr = System.err;
+        // hundreds of chatty monitors would spend most of the time printing
+        System.setOut(new PrintStream(new NullOutputStream()));
+        System.setErr(new PrintStream(new NullOutputStream()));
+        observer = createClient();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        for (StressedMonitor monitor : monitors) {
+            monitor.close();
+        }
+        System.setOut(stdout);
+        System.setErr(stderr);
+        super.tearDown();
+    }
+
+    @Test
+    public void testPredecessorModeRecoversFromDisconnectStorm() throws Exception {
+        run(ZNodeMonitor.ElectionMode.PREDECESSOR, Injection.DISCONNECT);
+    }
+
+    @Test
+    public void testPredecessorModeRecoversFromExpiryStorm() throws Exception {
+        run(ZNodeMonitor.ElectionMode.PREDECESSOR, Injection.EXPIRE);
+    }
+
+    @Test
+    public void testAllChildrenModeRecoversFromDisconnectStorm() throws Exception {
+        run(ZNodeMonitor.ElectionMode.ALL_CHILDREN, Injection.DISCONNECT);
+    }
+
+    @Test
+    public void testAllChildrenModeRecoversFromExpiryStorm() throws Exception {
+        run(ZNodeMonitor.ElectionMode.ALL_CHILDREN, Injection.EXPIRE);
+    }
+
+    private void run(ZNodeMonitor.ElectionMode electionMode, Injection injection) throws Exception {
+        long startedAt = System.currentTimeMillis();
+        for (int i = 0; i < MONITORS; i++) {
+            StressedMonitor monitor = new StressedMonitor(hostPort, electionMode);
+            monitor.setListener(new RecordingListener("Speaker-" + i));
+            monitor.start();
+            monitors.add(monitor);
+        }
+        awaitConvergence();
+        long timeToDecisionNanos = 0;
+        for (StressedMonitor monitor : monitors) {
+            timeToDecisionNanos += monitor.getLastTimeToDecisionNanos();
+        }
+        report(electionMode + " startup: " + MONITORS + " monitors converged in "
+                + (System.currentTimeMillis() - startedAt) + " MILLIS, avg time to the first leadership decision "
+                + TimeUnit.NANOSECONDS.toMicros(timeToDecisionNanos / MONITORS) + " MICROS");
+
+        int victimCount = Math.max(1, (int) (MONITORS * VICTIMS));
+        for (int round = 1; round <= ROUNDS; round++) {
+            List<StressedMonitor> victims = pickVictims(victimCount);
+            electionCreates.set(0);
+            getChildrenCalls.set(0);
+            maxSpeaking.set(speaking.get());
+
+            long injectedAt = System.currentTimeMillis();
+            for (StressedMonitor victim : victims) {
+                victim.disconnectsBeforeInjection = victim.disconnects.get();
+                if (injection == Injection.DISCONNECT) {
+                    // drops the connection only, the client reconnects within the same session
+                    serverFactory.closeSession(victim.zooKeeper.getSessionId());
+                } else {
+                    getServer(serverFactory).closeSession(victim.zooKeeper.getSessionId());
+                }
+            }
+            // both injections are asynchronous, the group looks converged until victims notice them
+            awaitDisconnected(victims);
+            awaitConvergence();
+            long convergedMillis = System.currentTimeMillis() - injectedAt;
+            Thread.sleep(QUIESCENCE_MILLIS);
+            Assert.assertTrue("group hasn't stayed converged, " + describe(), isConverged());
+
+            long expectedCreates = injection == Injection.EXPIRE ? victims.size() : 0;
+            report(electionMode + " " + injection + " round " + round + ": " + victims.size() + " victims of "
+                    + MONITORS + " monitors, converged in " + convergedMillis + " MILLIS, election creates "
+                    + electionCreates.get() + " (" + (electionCreates.get() - expectedCreates) + " redundant), getChildren "
+                    + getChildrenCalls.get() + " (" + (getChildrenCalls.get() - victims.size()) + " redundant), "
+                    + String.format("%.1f", (double) getChildrenCalls.get() / victims.size()) + " per recovery, "
+                    + "max simultaneous speakers " + maxSpeaking.get());
+            Assert.assertEquals("election znodes created by a recovery", expectedCreates, electionCreates.get());
+        }
+    }
+
+    private List<StressedMonitor> pickVictims(int count) {
+        List<StressedMonitor> victims = new ArrayList<StressedMonitor>();
+        List<StressedMonitor> others = new ArrayList<StressedMonitor>();
+        for (StressedMonitor monitor : monitors) {
+            if (monitor.listener.isSpeaking()) {
+                victims.add(monitor);
+            } else {
+                others.add(monitor);
+            }
+        }
+        Collections.shuffle(others, random);
+        victims.addAll(others.subList(0, Math.min(others.size(), count - victims.size())));
+        return victims;
+    }
+
+    private void awaitDisconnected(List<StressedMonitor> victims) throws Exception {
+        long deadline = System.currentTimeMillis() + CONVERGENCE_TIMEOUT_MILLIS;
+        for (StressedMonitor victim : victims) {
+            while (victim.disconnects.get() == victim.disconnectsBeforeInjection) {
+                if (System.currentTimeMillis() > deadline) {
+                    Assert.fail("victim hasn't been disconnected within " + CONVERGENCE_TIMEOUT_MILLIS + " MILLIS");
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private void awaitConvergence() throws Exception {
+        long deadline = System.currentTimeMillis() + CONVERGENCE_TIMEOUT_MILLIS;
+        while (!isConverged()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail("no convergence within " + CONVERGENCE_TIMEOUT_MILLIS + " MILLIS, " + describe());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @return true if every monitor is connected & has its election znode, there are no orphan znodes,
+     * and the only speaker is the owner of the lowest one
+     */
+    private boolean isConverged() throws KeeperException, InterruptedException {
+        if (speaking.get() != 1) {
+            return false;
+        }
+        List<String> children = observer.getChildren(ROOT, false);
+        if (children.size() != MONITORS) {
+            return false;
+        }
+        String lowest = null;
+        for (String child : children) {
+            if (lowest == null || monitors.get(0).parseSequenceNumber(child) < monitors.get(0).parseSequenceNumber(lowest)) {
+                lowest = child;
+            }
+        }
+        for (StressedMonitor monitor : monitors) {
+            if (monitor.getZnode() == null || !monitor.zooKeeper.getState().isConnected()) {
+                return false;
+            }
+            if (monitor.getZnode().equals(ROOT + "/" + lowest) != monitor.listener.isSpeaking()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String describe() throws KeeperException, InterruptedException {
+        StringBuilder description = new StringBuilder("speakers: " + speaking.get()
+                + ", election znodes: " + observer.getChildren(ROOT, false).size());
+        for (StressedMonitor monitor : monitors) {
+            if (monitor.getZnode() == null || !monitor.zooKeeper.getState().isConnected() || monitor.listener.isSpeaking()) {
+                description.append(", ").append(monitor.listener.getProcessName()).append(" ").append(monitor.getZnode())
+                        .append(" ").append(monitor.zooKeeper.getState())
+                        .append(monitor.listener.isSpeaking() ? " speaking" : "");
+            }
+        }
+        return description.toString();
+    }
+
+    private void report(String line) {
+        stdout.println(line);
+    }
+
+    private class StressedMonitor extends ZNodeMonitor {
+        private volatile CountingZooKeeper zooKeeper;
+        private RecordingListener listener;
+        private final AtomicInteger disconnects = new AtomicInteger();
+        private int disconnectsBeforeInjection;
+
+        StressedMonitor(String connectionString, ElectionMode electionMode) {
+            super(connectionString, electionMode);
+        }
+
+        @Override
+        public void setListener(ZNodeMonitorListener listener) {
+            super.setListener(listener);
+            this.listener = (RecordingListener) listener;
+        }
+
+        @Override
+        public void process(WatchedEvent watchedEvent) {
+            if (watchedEvent.getState() == Watcher.Event.KeeperState.Disconnected) {
+                disconnects.incrementAndGet();
+            }
+            super.process(watchedEvent);
+        }
+
+        @Override
+        protected ZooKeeper newZooKeeper() throws IOException {
+            zooKeeper = new CountingZooKeeper(hostPort, SESSION_TIMEOUT_MILLIS, this);
+            return zooKeeper;
+        }
+    }
+
+    private class CountingZooKeeper extends ZooKeeper {
+
+        CountingZooKeeper(String host, int sessionTimeout, Watcher watcher) throws IOException {
+            super(host, sessionTimeout, watcher);
+        }
+
+        @Override
+        public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode)
+                throws KeeperException, InterruptedException {
+            if (createMode == CreateMode.EPHEMERAL_SEQUENTIAL) {
+                electionCreates.incrementAndGet();
+            }
+            return super.create(path, data, acl, createMode);
+        }
+
+        @Override
+        public void create(String path, byte[] data, List<ACL> acl, CreateMode createMode,
+                           AsyncCallback.StringCallback cb, Object ctx) {
+            if (createMode == CreateMode.EPHEMERAL_SEQUENTIAL) {
+                electionCreates.incrementAndGet();
+            }
+            super.create(path, data, acl, createMode, cb, ctx);
+        }
+
+        @Override
+        public List<String> getChildren(String path, boolean watch) throws KeeperException, InterruptedException {
+            getChildrenCalls.incrementAndGet();
+            return super.getChildren(path, watch);
+        }
+
+        @Override
+        public void getChildren(String path, boolean watch, AsyncCallback.ChildrenCallback cb, Object ctx) {
+            getChildrenCalls.incrementAndGet();
+            super.getChildren(path, watch, cb, ctx);
+        }
+    }
+
+    private class RecordingListener implements ZNodeMonitorListener {
+        private final String processName;
+        // guarded by this
+        private boolean speaking = false;
+
+        RecordingListener(String processName) {
+            this.processName = processName;
+        }
+
+        @Override
+        public synchronized void startSpeaking(long fencingToken) {
+            if (!speaking) {
+                speaking = true;
+                int now = ZNodeMonitorStressTest.this.speaking.incrementAndGet();
+                int max = maxSpeaking.get();
+                while (now > max && !maxSpeaking.compareAndSet(max, now)) {
+                    max = maxSpeaking.get();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void stopSpeaking() {
+            if (speaking) {
+                speaking = false;
+                ZNodeMonitorStressTest.this.speaking.decrementAndGet();
+            }
+        }
+
+        synchronized boolean isSpeaking() {
+            return speaking;
+        }
+
+        @Override
+        public String getProcessName() {
+            return processName;
+        }
+    }
+}
@@ -6,6 +6,8 @@ import org.apache.zookeeper.data.ACL;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -54,21 +56,112 @@ public class ZNodeMonitorTest {
 
     @Test
     public void testProcessWatchedEvent() throws InterruptedException, KeeperException {
+        underTest.setListener(listener);
         WatchedEvent watchedEvent = new WatchedEvent(
                 Watcher.Event.EventType.None,
                 Watcher.Event.KeeperState.SyncConnected,
                 "testPath");
 
-        when(zooKeeper.exists(anyString(), anyBoolean())).thenReturn(null);
-        when(zooKeeper.create(anyString(), any(byte[].class), Mockito.anyListOf(ACL.class), Mockito.any(CreateMode.class)))
-            .thenReturn("/ELECTION/Speaker-pid-1276-0000000028");
-
         underTest.process(watchedEvent);
 
-        Mockito.verify(zooKeeper, Mockito.times(1)).create(
-                "/ELECTION", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        // the whole bootstrap is pipelined, nothing blocks EventThread
+        InOrder inOrder = Mockito.inOrder(zooKeeper);
+        inOrder.verify(zooKeeper).create("/ELECTION", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                underTest, null);
+        inOrder.verify(zooKeeper).create("/ELECTION/Speaker-pid-1276-", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.EPHEMERAL_SEQUENTIAL, underTest, null);
+        inOrder.verify(zooKeeper).getChildren("/ELECTION", true, underTest, null);
+        Mockito.verify(zooKeeper, Mockito.never()).create(anyString(), any(byte[].class),
+                Mockito.anyListOf(ACL.class), Mockito.any(CreateMode.class));
+        Mockito.verify(zooKeeper, Mockito.never()).exists(anyString(), anyBoolean());
 
+        underTest.processResult(KeeperException.Code.Ok, "/ELECTION/Speaker-pid-1276-", null,
+                "/ELECTION/Speaker-pid-1276-0000000028");
         Assert.assertEquals(28, underTest.getSequenceNumber());
 
+        List<String> children = new ArrayList<String>();
+        children.add("Speaker-pid-1276-0000000028");
+        underTest.processResult(KeeperException.Code.Ok, "/ELECTION", null, children);
+        Mockito.verify(listener).startSpeaking(28);
+        Assert.assertTrue(underTest.getLastTimeToDecisionNanos() >= 0);
+    }
+
+    @Test
+    public void testJoinAdoptsZnodeCreatedDespiteConnectionLoss() {
+        underTest.setListener(listener);
+        WatchedEvent connected = new WatchedEvent(Watcher.Event.EventType.None,
+                Watcher.Event.KeeperState.SyncConnected, null);
+        underTest.process(connected);
+        underTest.processResult(KeeperException.Code.ConnectionLoss, "/ELECTION/Speaker-pid-1276-", null, (String) null);
+
+        underTest.process(connected);
+
+        ArgumentCaptor<Object> lookup = ArgumentCaptor.forClass(Object.class);
+        Mockito.verify(zooKeeper).getChildren(eq("/ELECTION"), eq(false), eq(underTest), lookup.capture());
+        List<String> children = new ArrayList<String>();
+        children.add("Speaker-pid-2408-0000000025");
+        children.add("Speaker-pid-1276-0000000027");
+        underTest.processResult(KeeperException.Code.Ok, "/ELECTION", lookup.getValue(), children);
+
+        Assert.assertEquals("/ELECTION/Speaker-pid-1276-0000000027", underTest.getZnode());
+        Assert.assertEquals(27, underTest.getSequenceNumber());
+        // the first join only
+        Mockito.verify(zooKeeper, Mockito.times(1)).create(eq("/ELECTION/Speaker-pid-1276-"), any(byte[].class),
+                Mockito.anyListOf(ACL.class), eq(CreateMode.EPHEMERAL_SEQUENTIAL),
+                any(AsyncCallback.StringCallback.class), any());
+    }
+
+    @Test
+    public void testGetPredecessor() {
+        underTest.setSequenceNumber(27);
+        List<String> children = new ArrayList<String>();
+        children.add("Speaker-pid-2408-0000000025");
+        children.add("Speaker-pid-4492-0000000027");
+        children.add("Speaker-pid-1233-0000000026");
+        children.add("Speaker-pid-1234-0000000030");
+        assertEquals("Speaker-pid-1233-0000000026", underTest.getPredecessor(children));
+
+        underTest.setSequenceNumber(25);
+        Assert.assertNull(underTest.getPredecessor(children));
+    }
+
+    @Test
+    public void testPredecessorModeWatchesOnlyPredecessor() {
+        ZNodeMonitor predecessorMonitor = new ZNodeMonitor("localhost:2180", ZNodeMonitor.ElectionMode.PREDECESSOR);
+        predecessorMonitor.setZooKeeper(zooKeeper);
+        predecessorMonitor.setListener(listener);
+        predecessorMonitor.setSequenceNumber(27);
+        List<String> children = new ArrayList<String>();
+        children.add("Speaker-pid-2408-0000000025");
+        children.add("Speaker-pid-4492-0000000026");
+        children.add("Speaker-pid-1276-0000000027");
+
+        predecessorMonitor.processResult(KeeperException.Code.Ok, "/ELECTION", null, children);
+
+        Mockito.verify(listener).stopSpeaking();
+        Mockito.verify(zooKeeper).exists("/ELECTION/Speaker-pid-4492-0000000026", predecessorMonitor, predecessorMonitor, null);
+        Mockito.verify(zooKeeper, Mockito.never()).getChildren(anyString(), anyBoolean(),
+                any(AsyncCallback.ChildrenCallback.class), any());
+
+        predecessorMonitor.process(new WatchedEvent(Watcher.Event.EventType.NodeDeleted,
+                Watcher.Event.KeeperState.SyncConnected, "/ELECTION/Speaker-pid-4492-0000000026"));
+
+        Mockito.verify(zooKeeper).getChildren("/ELECTION", false, predecessorMonitor, null);
+    }
+
+    @Test
+    public void testPredecessorModeSpeaksWhenLowest() {
+        ZNodeMonitor predecessorMonitor = new ZNodeMonitor("localhost:2180", ZNodeMonitor.ElectionMode.PREDECESSOR);
+        predecessorMonitor.setZooKeeper(zooKeeper);
+        predecessorMonitor.setListener(listener);
+        predecessorMonitor.setSequenceNumber(25);
+        List<String> children = new ArrayList<String>();
+        children.add("Speaker-pid-1276-0000000025");
+        children.add("Speaker-pid-4492-0000000026");
+
+        predecessorMonitor.processResult(KeeperException.Code.Ok, "/ELECTION", null, children);
+
+        Mockito.verify(listener).startSpeaking(25);
+        Assert.assertNull(predecessorMonitor.getWatchedPredecessor());
     }
-}
\ No newline at end of file
+}
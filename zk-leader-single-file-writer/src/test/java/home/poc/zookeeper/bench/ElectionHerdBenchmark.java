@@ -0,0 +1,239 @@
+package home.poc.zookeeper.bench;
+
+import home.poc.zookeeper.ZNodeMonitor;
+import home.poc.zookeeper.ZNodeMonitorListener;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.ExistsResponse;
+import org.apache.zookeeper.proto.GetChildrenResponse;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many watch notifications and how many bytes the ZK server sends to contenders per single failover,
+ * for both ElectionMode-s of ZNodeMonitor. Runs in-process ZK server and N contenders in one JVM.
+ *
+ * Usage: ElectionHerdBenchmark [contenders,...] [failovers per run], e.g. "10,100,1000 5"
+ */
+public class ElectionHerdBenchmark {
+
+    private static final int PORT = 2190;
+    private static final int TICK_TIME = 2000;
+    private static final long QUIET_PERIOD_MILLIS = 500;
+    private static final long LEADER_AWAIT_MILLIS = 60000;
+
+    public static void main(String[] args) throws Exception {
+        String[] contenders = (args.length > 0 ? args[0] : "10,100,1000").split(",");
+        int failovers = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        // ZNodeMonitor reports every event to System.out, which would dominate the run with 1000 contenders
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(new NullOutputStream()));
+
+        File dataDir = Files.createTempDirectory("zk-herd-bench").toFile();
+        ZooKeeperServer server = new ZooKeeperServer(dataDir, dataDir, TICK_TIME);
+        ServerCnxnFactory cnxnFactory = ServerCnxnFactory.createFactory(PORT, 0);
+        cnxnFactory.startup(server);
+        try {
+            report.println(String.format("%-14s %10s %22s %22s %22s",
+                    "mode", "contenders", "notifications/failover", "bytes/failover", "woken clients/failover"));
+            for (String n : contenders) {
+                for (ZNodeMonitor.ElectionMode mode : ZNodeMonitor.ElectionMode.values()) {
+                    Result result = run(mode, Integer.parseInt(n.trim()), failovers);
+                    report.println(String.format("%-14s %10s %22.1f %22.1f %22.1f",
+                            mode, n.trim(), result.notifications, result.bytes, result.wokenClients));
+                }
+            }
+        } finally {
+            cnxnFactory.shutdown();
+            server.shutdown();
+            FileUtils.deleteQuietly(dataDir);
+        }
+    }
+
+    private static Result run(ZNodeMonitor.ElectionMode mode, int contenders, int failovers) throws Exception {
+        List<CountingMonitor> monitors = new ArrayList<CountingMonitor>();
+        for (int i = 0; i < contenders; i++) {
+            CountingMonitor monitor = new CountingMonitor("127.0.0.1:" + PORT, mode);
+            monitor.setListener(new Contender("Bench" + i));
+            monitor.start();
+            monitors.add(monitor);
+        }
+        awaitQuiet(monitors);
+
+        Result result = new Result();
+        for (int i = 0; i < failovers && monitors.size() > 1; i++) {
+            CountingMonitor leader = awaitSingleLeader(monitors);
+            for (CountingMonitor monitor : monitors) {
+                monitor.reset();
+            }
+            monitors.remove(leader);
+            leader.close();
+            awaitSingleLeader(monitors);
+            awaitQuiet(monitors);
+
+            for (CountingMonitor monitor : monitors) {
+                result.notifications += monitor.notifications.get();
+                result.bytes += monitor.bytes.get();
+                result.wokenClients += monitor.notifications.get() > 0 ? 1 : 0;
+            }
+        }
+        for (CountingMonitor monitor : monitors) {
+            monitor.close();
+        }
+        result.notifications /= failovers;
+        result.bytes /= failovers;
+        result.wokenClients /= failovers;
+        return result;
+    }
+
+    private static CountingMonitor awaitSingleLeader(List<CountingMonitor> monitors) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + LEADER_AWAIT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            CountingMonitor leader = null;
+            int leaders = 0;
+            for (CountingMonitor monitor : monitors) {
+                if (monitor.contender.speaking) {
+                    leader = monitor;
+                    leaders++;
+                }
+            }
+            if (leaders == 1) {
+                return leader;
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("No single leader elected within " + LEADER_AWAIT_MILLIS + " MILLIS");
+    }
+
+    /**
+     * Waits until no monitor has received anything during QUIET_PERIOD_MILLIS
+     */
+    private static void awaitQuiet(List<CountingMonitor> monitors) throws InterruptedException {
+        long previous = -1;
+        while (true) {
+            long current = 0;
+            for (CountingMonitor monitor : monitors) {
+                current += monitor.received.get();
+            }
+            if (current == previous) {
+                return;
+            }
+            previous = current;
+            Thread.sleep(QUIET_PERIOD_MILLIS);
+        }
+    }
+
+    /**
+     * Accounts every watch notification and every reply to the calls ZNodeMonitor issues while handling it.
+     * Bytes are those of serialized jute records plus 4 bytes of length prefix, i.e. what goes over the wire.
+     */
+    private static class CountingMonitor extends ZNodeMonitor {
+
+        private static final int LENGTH_PREFIX_BYTES = 4;
+
+        final AtomicLong notifications = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        Contender contender;
+
+        CountingMonitor(String connectionString, ElectionMode electionMode) {
+            super(connectionString, electionMode);
+        }
+
+        @Override
+        public void setListener(ZNodeMonitorListener listener) {
+            super.setListener(listener);
+            this.contender = (Contender) listener;
+        }
+
+        void reset() {
+            notifications.set(0);
+            bytes.set(0);
+        }
+
+        @Override
+        public void process(WatchedEvent watchedEvent) {
+            received.incrementAndGet();
+            if (watchedEvent.getType() != Watcher.Event.EventType.None) {
+                notifications.incrementAndGet();
+                bytes.addAndGet(sizeOf(new ReplyHeader(-1, -1L, 0), watchedEvent.getWrapper()));
+                if (getElectionMode() == ElectionMode.ALL_CHILDREN) {
+                    // every event re-arms root watch with synchronous exists(ROOT)
+                    bytes.addAndGet(sizeOf(new ReplyHeader(), new ExistsResponse(new Stat())));
+                }
+            }
+            super.process(watchedEvent);
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> nodeChildren) {
+            received.incrementAndGet();
+            bytes.addAndGet(sizeOf(new ReplyHeader(), new GetChildrenResponse(nodeChildren)));
+            super.processResult(rc, path, ctx, nodeChildren);
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            received.incrementAndGet();
+            bytes.addAndGet(sizeOf(new ReplyHeader(), new ExistsResponse(new Stat())));
+            super.processResult(rc, path, ctx, stat);
+        }
+
+        private static long sizeOf(Record header, Record body) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BinaryOutputArchive archive = BinaryOutputArchive.getArchive(out);
+            try {
+                header.serialize(archive, "header");
+                body.serialize(archive, "body");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return out.size() + LENGTH_PREFIX_BYTES;
+        }
+    }
+
+    private static class Contender implements ZNodeMonitorListener {
+
+        private final String processName;
+        volatile boolean speaking;
+
+        Contender(String processName) {
+            this.processName = processName;
+        }
+
+        @Override
+        public void startSpeaking(long fencingToken) {
+            speaking = true;
+        }
+        @Override
+        public void stopSpeaking() {
+            speaking = false;
+        }
+        @Override
+        public String getProcessName() {
+            return processName;
+        }
+    }
+
+    private static class Result {
+        double notifications;
+        double bytes;
+        double wokenClients;
+    }
+}
@@ -0,0 +1,171 @@
+package home.poc.zookeeper.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.zookeeper.server.ServerConfig;
+import org.apache.zookeeper.server.ZooKeeperServerMain;
+import org.apache.zookeeper.server.quorum.QuorumPeerConfig;
+import org.apache.zookeeper.server.quorum.QuorumPeerMain;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * In-process ZK ensemble: a single ZooKeeperServerMain for size 1, otherwise QuorumPeerMain per server.
+ * Every server runs in its own thread, like it would do in its own JVM.
+ */
+public class EmbeddedEnsemble implements Closeable {
+
+    private static final int TICK_TIME = 500;
+    private static final long START_TIMEOUT_MILLIS = 30000;
+
+    private final int size;
+    private final int basePort;
+    private final File baseDir;
+    private final List<Server> servers = new ArrayList<Server>();
+
+    public EmbeddedEnsemble(int size, int basePort) throws IOException {
+        this.size = size;
+        this.basePort = basePort;
+        this.baseDir = Files.createTempDirectory("zk-ensemble").toFile();
+    }
+
+    public String getConnectionString() {
+        StringBuilder connectionString = new StringBuilder();
+        for (int i = 1; i <= size; i++) {
+            connectionString.append(i > 1 ? "," : "").append("127.0.0.1:").append(clientPort(i));
+        }
+        return connectionString.toString();
+    }
+
+    public void start() throws Exception {
+        if (size == 1) {
+            File dataDir = new File(baseDir, "1");
+            ServerConfig config = new ServerConfig();
+            config.parse(new String[] {String.valueOf(clientPort(1)), dataDir.getAbsolutePath(), String.valueOf(TICK_TIME)});
+            start("ZooKeeperServerMain-1", new StandaloneServer(config));
+        } else {
+            for (int i = 1; i <= size; i++) {
+                File dataDir = new File(baseDir, String.valueOf(i));
+                dataDir.mkdirs();
+                FileUtils.writeStringToFile(new File(dataDir, "myid"), String.valueOf(i));
+                Properties properties = new Properties();
+                properties.setProperty("tickTime", String.valueOf(TICK_TIME));
+                properties.setProperty("initLimit", "10");
+                properties.setProperty("syncLimit", "5");
+                properties.setProperty("dataDir", dataDir.getAbsolutePath());
+                properties.setProperty("clientPort", String.valueOf(clientPort(i)));
+                properties.setProperty("maxClientCnxns", "0");
+                for (int j = 1; j <= size; j++) {
+                    properties.setProperty("server." + j, "127.0.0.1:" + (basePort + 100 + j) + ":" + (basePort + 200 + j));
+                }
+                QuorumPeerConfig config = new QuorumPeerConfig();
+                config.parseProperties(properties);
+                start("QuorumPeerMain-" + i, new QuorumServer(config));
+            }
+        }
+        for (int i = 1; i <= size; i++) {
+            awaitServing(clientPort(i));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Server server : servers) {
+            server.close();
+        }
+        FileUtils.deleteQuietly(baseDir);
+    }
+
+    private int clientPort(int server) {
+        return basePort + server;
+    }
+
+    private void start(String name, final Server server) {
+        servers.add(server);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    System.err.println("ZK server has failed: " + e);
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits until server answers "stat" four letter word with its mode, i.e. until it serves requests
+     */
+    private static void awaitServing(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                try {
+                    socket.getOutputStream().write("stat".getBytes("UTF-8"));
+                    String reply = new String(IOUtils.toByteArray(socket.getInputStream()), "UTF-8");
+                    if (reply.contains("Mode: ")) {
+                        return;
+                    }
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // not up yet
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("ZK server on port " + port + " hasn't started within " + START_TIMEOUT_MILLIS + " MILLIS");
+    }
+
+    private interface Server extends Closeable {
+        /**
+         * Blocks for as long as server runs
+         */
+        void serve() throws IOException;
+    }
+
+    private static class StandaloneServer extends ZooKeeperServerMain implements Server {
+        private final ServerConfig config;
+
+        StandaloneServer(ServerConfig config) {
+            this.config = config;
+        }
+        @Override
+        public void serve() throws IOException {
+            runFromConfig(config);
+        }
+        @Override
+        public void close() {
+            shutdown();
+        }
+    }
+
+    private static class QuorumServer extends QuorumPeerMain implements Server {
+        private final QuorumPeerConfig config;
+
+        QuorumServer(QuorumPeerConfig config) {
+            this.config = config;
+        }
+        @Override
+        public void serve() throws IOException {
+            runFromConfig(config);
+        }
+        @Override
+        public void close() {
+            if (quorumPeer != null) {
+                quorumPeer.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package home.poc.zookeeper.bench;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures how long the output file goes without a writer after the leader dies.
+ *
+ * Starts in-process ZK ensemble (see EmbeddedEnsemble) and N contenders, each one in its own JVM,
+ * either SpeakerServer (raw ZNodeMonitor) or FileWriterServer (Curator LeaderSelector), all of them appending
+ * to the same output file. Then kills the current writer repeatedly (SIGTERM, which leaves ZK session to expire,
+ * like a crash does) and starts a replacement contender, so that N stays the same.
+ *
+ * Reports failover latency percentiles (kill -> first line of another contender), distribution of gaps between
+ * consecutive lines, duplicate / out-of-order lines, and how many times the writer changed compared to kills.
+ *
+ * Args (key=value, all optional):
+ *  contender=zk|curator (default zk)
+ *  classpath=... classpath of contender JVMs (default: own classpath; for curator pass the one of curator module)
+ *  contenders=5, ensemble=3, kills=10, steadyMillis=3000, basePort=2300
+ *  electionMode=PREDECESSOR, outputEngine=GROUP_COMMIT, sessionTimeoutMillis=5000 (curator only),
+ *  sessionLeaseRatio=0 (disabled)
+ */
+public class FailoverBenchmark {
+
+    private static final Pattern LINE = Pattern.compile("^(?:(\\d+) )?contender-(\\d+): (\\d+) .*");
+    private static final long FAILOVER_TIMEOUT_MILLIS = 120000;
+    private static final long[] GAP_BUCKETS_MILLIS = {100, 500, 1000, 2000, 5000, 10000};
+
+    private final Properties args;
+    private final File workDir;
+    private final File outputFile;
+    private final File contenderConfig;
+    private final Map<Integer, Process> contenders = new LinkedHashMap<Integer, Process>();
+    private int nextContenderId = 0;
+
+    public FailoverBenchmark(Properties args) throws IOException {
+        this.args = args;
+        this.workDir = Files.createTempDirectory("zk-failover-bench").toFile();
+        this.outputFile = new File(workDir, "out.txt");
+        this.contenderConfig = new File(workDir, "contender.config");
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Properties args = new Properties();
+        for (String arg : argv) {
+            args.setProperty(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new FailoverBenchmark(args).run();
+    }
+
+    public void run() throws Exception {
+        int ensembleSize = Integer.parseInt(args.getProperty("ensemble", "3"));
+        int contenderCount = Integer.parseInt(args.getProperty("contenders", "5"));
+        int kills = Integer.parseInt(args.getProperty("kills", "10"));
+        long steadyMillis = Long.parseLong(args.getProperty("steadyMillis", "3000"));
+
+        EmbeddedEnsemble ensemble = new EmbeddedEnsemble(ensembleSize, Integer.parseInt(args.getProperty("basePort", "2300")));
+        OutputTail tail = new OutputTail(outputFile);
+        List<Long> failoverNanos = new ArrayList<Long>();
+        try {
+            ensemble.start();
+            writeContenderConfig(ensemble.getConnectionString());
+            tail.start();
+            for (int i = 0; i < contenderCount; i++) {
+                startContender();
+            }
+            tail.awaitLineFromOtherThan(-1, 0, FAILOVER_TIMEOUT_MILLIS);
+
+            for (int i = 0; i < kills; i++) {
+                Thread.sleep(steadyMillis);
+                int leader = tail.lastLine().contender;
+                long killedAt = System.nanoTime();
+                contenders.remove(leader).destroy();
+                Line first = tail.awaitLineFromOtherThan(leader, killedAt, FAILOVER_TIMEOUT_MILLIS);
+                failoverNanos.add(first.seenAtNanos - killedAt);
+                System.out.println("Killed contender-" + leader + ", contender-" + first.contender + " took over in "
+                        + TimeUnit.NANOSECONDS.toMillis(first.seenAtNanos - killedAt) + " MILLIS");
+                startContender();
+            }
+            Thread.sleep(steadyMillis);
+        } finally {
+            for (Process contender : contenders.values()) {
+                contender.destroy();
+            }
+            tail.stop();
+            ensemble.close();
+        }
+        report(kills, failoverNanos, tail.lines());
+        FileUtils.deleteQuietly(workDir);
+    }
+
+    private void writeContenderConfig(String connectionString) throws IOException {
+        Properties config = new Properties();
+        config.setProperty("connectionString", connectionString);
+        config.setProperty("electionMode", args.getProperty("electionMode", "PREDECESSOR"));
+        config.setProperty("outputEngine", args.getProperty("outputEngine", "GROUP_COMMIT"));
+        config.setProperty("outputFile", outputFile.getAbsolutePath());
+        config.setProperty("sessionTimeoutMillis", args.getProperty("sessionTimeoutMillis", "5000"));
+        config.setProperty("sessionLeaseRatio", args.getProperty("sessionLeaseRatio", "0"));
+        FileOutputStream out = new FileOutputStream(contenderConfig);
+        try {
+            config.store(out, getClass().getSimpleName());
+        } finally {
+            out.close();
+        }
+    }
+
+    private void startContender() throws IOException {
+        int id = nextContenderId++;
+        String mainClass = "curator".equals(args.getProperty("contender"))
+                ? "home.poc.curator.FileWriterServer" : "home.poc.zookeeper.SpeakerServer";
+        ProcessBuilder builder = new ProcessBuilder(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", args.getProperty("classpath", System.getProperty("java.class.path")),
+                mainClass, contenderConfig.getAbsolutePath(), "contender-" + id);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(workDir, "contender-" + id + ".log"));
+        contenders.put(id, builder.start());
+    }
+
+    private static void report(int kills, List<Long> failoverNanos, List<Line> lines) {
+        System.out.println();
+        System.out.println("Lines written: " + lines.size() + ", kills: " + kills);
+        System.out.println("Failover latency MILLIS: " + percentiles(failoverNanos));
+
+        List<Long> gaps = new ArrayList<Long>();
+        long[] gapHistogram = new long[GAP_BUCKETS_MILLIS.length + 1];
+        int writerSwitches = 0;
+        int duplicates = 0;
+        int counterRegressions = 0;
+        int tokenRegressions = 0;
+        Set<String> seen = new HashSet<String>();
+        Map<Integer, Long> lastCounters = new HashMap<Integer, Long>();
+        long highestToken = -1;
+        for (int i = 0; i < lines.size(); i++) {
+            Line line = lines.get(i);
+            if (i > 0) {
+                long gap = line.seenAtNanos - lines.get(i - 1).seenAtNanos;
+                gaps.add(gap);
+                gapHistogram[bucketOf(TimeUnit.NANOSECONDS.toMillis(gap))]++;
+                if (line.contender != lines.get(i - 1).contender) {
+                    writerSwitches++;
+                }
+            }
+            if (!seen.add(line.contender + ":" + line.counter)) {
+                duplicates++;
+            }
+            Long lastCounter = lastCounters.put(line.contender, line.counter);
+            if (lastCounter != null && line.counter <= lastCounter) {
+                counterRegressions++;
+            }
+            if (line.token >= 0 && line.token < highestToken) {
+                tokenRegressions++;
+            }
+            highestToken = Math.max(highestToken, line.token);
+        }
+        System.out.println("Writer gap MILLIS: " + percentiles(gaps));
+        System.out.println("Writer gap histogram MILLIS:");
+        for (int i = 0; i < gapHistogram.length; i++) {
+            String bucket = i == 0 ? "< " + GAP_BUCKETS_MILLIS[0]
+                    : i == GAP_BUCKETS_MILLIS.length ? ">= " + GAP_BUCKETS_MILLIS[i - 1]
+                    : GAP_BUCKETS_MILLIS[i - 1] + " - " + GAP_BUCKETS_MILLIS[i];
+            System.out.println(String.format("  %-14s %d", bucket, gapHistogram[i]));
+        }
+        System.out.println("Writer switches: " + writerSwitches + " (more than kills means writers overlapped)");
+        System.out.println("Duplicate lines: " + duplicates);
+        System.out.println("Out-of-order lines: " + counterRegressions + " by counter, " + tokenRegressions + " by fencing token");
+    }
+
+    private static int bucketOf(long millis) {
+        for (int i = 0; i < GAP_BUCKETS_MILLIS.length; i++) {
+            if (millis < GAP_BUCKETS_MILLIS[i]) {
+                return i;
+            }
+        }
+        return GAP_BUCKETS_MILLIS.length;
+    }
+
+    private static String percentiles(List<Long> nanos) {
+        if (nanos.isEmpty()) {
+            return "n/a";
+        }
+        List<Long> sorted = new ArrayList<Long>(nanos);
+        Collections.sort(sorted);
+        return String.format("p50=%d p90=%d p99=%d max=%d",
+                TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 0.5)),
+                TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 0.9)),
+                TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 0.99)),
+                TimeUnit.NANOSECONDS.toMillis(sorted.get(sorted.size() - 1)));
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(fraction * sorted.size()) - 1));
+    }
+
+    private static class Line {
+        final long seenAtNanos;
+        final long token;
+        final int contender;
+        final long counter;
+
+        Line(long seenAtNanos, long token, int contender, long counter) {
+            this.seenAtNanos = seenAtNanos;
+            this.token = token;
+            this.contender = contender;
+            this.counter = counter;
+        }
+    }
+
+    /**
+     * Polls output file for appended lines and timestamps them as soon as they are seen
+     */
+    private static class OutputTail implements Runnable {
+
+        private static final long POLL_MILLIS = 2;
+
+        private final File file;
+        private final List<Line> lines = new ArrayList<Line>();
+        private final Thread thread = new Thread(this, "OutputTail");
+        private volatile boolean stopped = false;
+        private long offset = 0;
+        private final StringBuilder partialLine = new StringBuilder();
+
+        OutputTail(File file) {
+            this.file = file;
+        }
+
+        void start() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            stopped = true;
+            thread.join();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    poll();
+                    Thread.sleep(POLL_MILLIS);
+                } catch (IOException e) {
+                    System.err.println("Couldn't read output file: " + e);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void poll() throws IOException {
+            if (!file.exists() || file.length() == offset) {
+                return;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] bytes = new byte[(int) (raf.length() - offset)];
+                raf.seek(offset);
+                raf.readFully(bytes);
+                offset += bytes.length;
+                long now = System.nanoTime();
+                partialLine.append(new String(bytes, "UTF-8"));
+                int end;
+                while ((end = partialLine.indexOf("\n")) >= 0) {
+                    Matcher matcher = LINE.matcher(partialLine.substring(0, end));
+                    partialLine.delete(0, end + 1);
+                    if (matcher.matches()) {
+                        Line line = new Line(now, matcher.group(1) == null ? -1 : Long.parseLong(matcher.group(1)),
+                                Integer.parseInt(matcher.group(2)), Long.parseLong(matcher.group(3)));
+                        synchronized (lines) {
+                            lines.add(line);
+                            lines.notifyAll();
+                        }
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        Line lastLine() {
+            synchronized (lines) {
+                return lines.get(lines.size() - 1);
+            }
+        }
+
+        List<Line> lines() {
+            synchronized (lines) {
+                return new ArrayList<Line>(lines);
+            }
+        }
+
+        /**
+         * @return first line seen after given time and written by other contender than given one
+         */
+        Line awaitLineFromOtherThan(int contender, long afterNanos, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            synchronized (lines) {
+                int from = 0;
+                while (System.currentTimeMillis() < deadline) {
+                    for (int i = from; i < lines.size(); i++) {
+                        Line line = lines.get(i);
+                        if (line.contender != contender && line.seenAtNanos >= afterNanos) {
+                            return line;
+                        }
+                    }
+                    from = lines.size();
+                    lines.wait(100);
+                }
+            }
+            throw new IllegalStateException("No other writer than contender-" + contender + " within " + timeoutMillis + " MILLIS");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package home.poc.zookeeper.metrics;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriterBeanTest {
+
+    private final WriterBean underTest = new WriterBean("Speaker-pid-1276/shard-3");
+
+    @After
+    public void tearDown() {
+        underTest.unregister();
+    }
+
+    @Test
+    public void testLeadershipTransitionsAreCountedOnce() throws InterruptedException {
+        Thread.sleep(20);
+        underTest.leadershipAcquired();
+        underTest.leadershipAcquired();
+        assertTrue(underTest.isLeader());
+        assertEquals(1, underTest.getLeadershipAcquisitions());
+        assertTrue(underTest.getLastTimeToAcquireMillis() >= 20);
+
+        Thread.sleep(20);
+        underTest.leadershipLost();
+        underTest.leadershipLost();
+        assertFalse(underTest.isLeader());
+        assertEquals(1, underTest.getLeadershipLosses());
+        assertTrue(underTest.getTimeAsLeaderMillis() >= 20);
+        assertEquals(0, underTest.getCurrentLeadershipMillis());
+    }
+
+    @Test
+    public void testHistogramPutsLatenciesInBuckets() {
+        underTest.fsynced(TimeUnit.MICROSECONDS.toNanos(5));
+        underTest.fsynced(TimeUnit.MICROSECONDS.toNanos(700));
+        underTest.fsynced(TimeUnit.SECONDS.toNanos(3));
+
+        long[] histogram = underTest.getFsyncLatencyHistogram();
+        assertEquals(underTest.getLatencyHistogramBoundsMicros().length + 1, histogram.length);
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[4]);
+        assertEquals(1, histogram[histogram.length - 1]);
+        assertEquals(3, underTest.getFsyncCount());
+        assertEquals(TimeUnit.SECONDS.toMicros(3), underTest.getMaxFsyncLatencyMicros());
+        assertEquals(TimeUnit.SECONDS.toMicros(3), underTest.getP99FsyncLatencyMicros());
+        assertEquals(0, underTest.getFlushCount());
+    }
+
+    @Test
+    public void testElectionJoinsKeepLastAndMaxTimeToDecision() {
+        underTest.electionJoined(TimeUnit.MILLISECONDS.toNanos(40));
+        underTest.electionJoined(TimeUnit.MILLISECONDS.toNanos(3));
+
+        assertEquals(2, underTest.getElectionJoins());
+        assertEquals(3000, underTest.getLastTimeToDecisionMicros());
+        assertEquals(40000, underTest.getMaxTimeToDecisionMicros());
+    }
+
+    @Test
+    public void testRegisteredThroughMBeanRegistry() throws Exception {
+        underTest.register();
+        underTest.leadershipAcquired();
+        underTest.appended(2, 30);
+
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.apache.ZooKeeperService:name0=Speaker-pid-1276,name1=shard-3");
+        assertEquals(true, mBeanServer.getAttribute(name, "Leader"));
+        assertEquals(2L, mBeanServer.getAttribute(name, "AppendedRecords"));
+        assertEquals(30L, mBeanServer.getAttribute(name, "AppendedBytes"));
+    }
+}
@@ -0,0 +1,190 @@
+package home.poc.zookeeper.output;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GroupCommitOutputEngineTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("group-commit", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(file);
+    }
+
+    @Test
+    public void testRecordsCarryFencingToken() throws IOException {
+        GroupCommitOutputEngine underTest = newEngine();
+        underTest.append(27, "msg: 0");
+        underTest.append(27, "msg: 1");
+        underTest.close();
+
+        List<String> lines = FileUtils.readLines(file, "UTF-8");
+        assertEquals(2, lines.size());
+        assertEquals("27 msg: 0", lines.get(0));
+        assertEquals("27 msg: 1", lines.get(1));
+    }
+
+    @Test
+    public void testMetricsReceiveAppendedRecordsAndLatencies() throws IOException {
+        final long[] appended = new long[2];
+        final int[] flushesAndFsyncs = new int[2];
+        GroupCommitOutputEngine underTest = newEngine();
+        underTest.setMetrics(new OutputMetrics() {
+            @Override
+            public synchronized void appended(int records, long bytes) {
+                appended[0] += records;
+                appended[1] += bytes;
+            }
+            @Override
+            public synchronized void flushed(long nanos) {
+                flushesAndFsyncs[0]++;
+            }
+            @Override
+            public synchronized void fsynced(long nanos) {
+                flushesAndFsyncs[1]++;
+            }
+        });
+        underTest.append(27, "msg: 0");
+        underTest.append(27, "msg: 1");
+        underTest.close();
+
+        assertEquals(2, appended[0]);
+        assertEquals(file.length(), appended[1]);
+        assertEquals(2, flushesAndFsyncs[0]);
+        assertEquals(2, flushesAndFsyncs[1]);
+    }
+
+    @Test
+    public void testIdleIntervalIsFsynced() throws Exception {
+        final CountDownLatch fsynced = new CountDownLatch(1);
+        GroupCommitOutputEngine underTest = new GroupCommitOutputEngine(file,
+                GroupCommitOutputEngine.FsyncPolicy.INTERVAL, 200, 100);
+        underTest.setMetrics(new FsyncCounter(fsynced, new int[1]));
+        // the interval since start hasn't elapsed yet, hence not forced by the commit itself
+        underTest.append(27, "msg: 0");
+
+        assertTrue("idle writer must be fsynced once the interval elapses", fsynced.await(10, TimeUnit.SECONDS));
+        underTest.close();
+    }
+
+    @Test
+    public void testCloseFsyncsUnsyncedRecords() throws IOException {
+        int[] fsyncs = new int[1];
+        GroupCommitOutputEngine underTest = new GroupCommitOutputEngine(file,
+                GroupCommitOutputEngine.FsyncPolicy.INTERVAL, TimeUnit.HOURS.toMillis(1), 100);
+        underTest.setMetrics(new FsyncCounter(new CountDownLatch(1), fsyncs));
+        underTest.append(27, "msg: 0");
+        assertEquals(0, fsyncs[0]);
+
+        underTest.close();
+        assertEquals(1, fsyncs[0]);
+    }
+
+    @Test
+    public void testAppendWithLowerTokenIsRejected() throws IOException {
+        GroupCommitOutputEngine underTest = newEngine();
+        underTest.append(28, "new leader");
+        try {
+            underTest.append(27, "deposed leader");
+            fail("append of deposed leader must be rejected");
+        } catch (FencedException e) {
+            assertEquals(27, e.getFencingToken());
+            assertEquals(28, e.getHighestFencingToken());
+        }
+        underTest.close();
+        assertEquals(1, FileUtils.readLines(file, "UTF-8").size());
+    }
+
+    @Test
+    public void testTokenWrittenByAnotherWriterIsSeen() throws IOException {
+        GroupCommitOutputEngine deposed = newEngine();
+        deposed.append(27, "old leader");
+
+        GroupCommitOutputEngine newLeader = newEngine();
+        newLeader.append(28, "new leader");
+        newLeader.close();
+
+        try {
+            deposed.append(27, "old leader, still writing");
+            fail("append of deposed leader must be rejected");
+        } catch (FencedException e) {
+            assertEquals(28, e.getHighestFencingToken());
+        }
+        deposed.close();
+    }
+
+    @Test
+    public void testConcurrentAppendsAreAllCommitted() throws Exception {
+        final GroupCommitOutputEngine underTest = newEngine();
+        ExecutorService appenders = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(appenders.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int j = 0; j < 100; j++) {
+                        underTest.append(30, "record " + j);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        appenders.shutdown();
+        underTest.close();
+        assertEquals(800, FileUtils.readLines(file, "UTF-8").size());
+    }
+
+    private static class FsyncCounter implements OutputMetrics {
+        private final CountDownLatch fsynced;
+        private final int[] fsyncs;
+
+        FsyncCounter(CountDownLatch fsynced, int[] fsyncs) {
+            this.fsynced = fsynced;
+            this.fsyncs = fsyncs;
+        }
+
+        @Override
+        public void appended(int records, long bytes) {
+        }
+
+        @Override
+        public void flushed(long nanos) {
+        }
+
+        @Override
+        public synchronized void fsynced(long nanos) {
+            fsyncs[0]++;
+            fsynced.countDown();
+        }
+    }
+
+    private GroupCommitOutputEngine newEngine() throws IOException {
+        return new GroupCommitOutputEngine(file, GroupCommitOutputEngine.FsyncPolicy.EVERY_COMMIT, 1000, 100);
+    }
+}
@@ -0,0 +1,151 @@
+package home.poc.zookeeper.output;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentedLogOutputEngineTest {
+
+    private static final int SEGMENT_BYTES = 1024;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("segmented-log").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testRecordsAreReadBackWithFencingToken() throws IOException {
+        SegmentedLogOutputEngine underTest = newEngine();
+        underTest.append(27, "msg: 0");
+        underTest.append(28, "msg: 1 ü");
+        underTest.close();
+
+        SegmentedLogReader reader = new SegmentedLogReader(directory);
+        LogRecord first = reader.next();
+        assertEquals(0, first.getIndex());
+        assertEquals(27, first.getFencingToken());
+        assertEquals("msg: 0", first.getRecord());
+        LogRecord second = reader.next();
+        assertEquals(28, second.getFencingToken());
+        assertEquals("msg: 1 ü", second.getRecord());
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testSegmentsRollOverAndReaderSeeksToNthRecord() throws IOException {
+        SegmentedLogOutputEngine underTest = newEngine();
+        for (int i = 0; i < 1000; i++) {
+            underTest.append(27, "msg: " + i);
+        }
+        underTest.close();
+        assertTrue(LogSegments.listBaseIndexes(directory).size() > 10);
+
+        SegmentedLogReader reader = new SegmentedLogReader(directory);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("msg: " + i, reader.next().getRecord());
+        }
+        assertNull(reader.next());
+        for (int i : new int[] {0, 1, 63, 64, 65, 500, 999}) {
+            reader.seek(i);
+            LogRecord record = reader.next();
+            assertEquals(i, record.getIndex());
+            assertEquals("msg: " + i, record.getRecord());
+        }
+        reader.seek(5000);
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testReopenedEngineContinuesLogAndKeepsFencing() throws IOException {
+        SegmentedLogOutputEngine underTest = newEngine();
+        for (int i = 0; i < 100; i++) {
+            underTest.append(28, "msg: " + i);
+        }
+        underTest.close();
+
+        SegmentedLogOutputEngine reopened = newEngine();
+        assertEquals(100, reopened.getNextRecordIndex());
+        assertEquals(28, reopened.getHighestFencingToken());
+        try {
+            reopened.append(27, "deposed leader");
+            fail("append of deposed leader must be rejected");
+        } catch (FencedException e) {
+            assertEquals(28, e.getHighestFencingToken());
+        }
+        reopened.append(28, "msg: 100");
+        reopened.close();
+
+        SegmentedLogReader reader = new SegmentedLogReader(directory);
+        reader.seek(100);
+        assertEquals("msg: 100", reader.next().getRecord());
+        reader.close();
+    }
+
+    @Test
+    public void testEnginesSharingLogAreFencedByEachOther() throws IOException {
+        SegmentedLogOutputEngine deposed = newEngine();
+        SegmentedLogOutputEngine newLeader = newEngine();
+        deposed.append(27, "old leader");
+        newLeader.append(28, "new leader");
+        try {
+            deposed.append(27, "old leader again");
+            fail("append of deposed leader must be rejected");
+        } catch (FencedException e) {
+            assertEquals(28, e.getHighestFencingToken());
+        }
+        assertEquals(2, newLeader.getNextRecordIndex());
+        deposed.close();
+        newLeader.close();
+    }
+
+    @Test
+    public void testReaderTailsRecordsAppendedLater() throws Exception {
+        final SegmentedLogOutputEngine underTest = newEngine();
+        SegmentedLogReader reader = new SegmentedLogReader(directory);
+        assertNull(reader.next());
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        underTest.append(27, "msg: " + i);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        writer.start();
+        for (int i = 0; i < 200; i++) {
+            LogRecord record = reader.poll(5, TimeUnit.SECONDS);
+            assertEquals("msg: " + i, record.getRecord());
+        }
+        writer.join();
+        reader.close();
+        underTest.close();
+    }
+
+    private SegmentedLogOutputEngine newEngine() throws IOException {
+        return new SegmentedLogOutputEngine(directory, SEGMENT_BYTES, GroupCommitOutputEngine.FsyncPolicy.NEVER, 1000);
+    }
+}